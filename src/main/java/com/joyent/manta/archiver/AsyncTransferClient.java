@@ -0,0 +1,651 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.http.signature.apache.httpclient.HttpSignatureAuthScheme;
+import com.joyent.http.signature.apache.httpclient.HttpSignatureRequestInterceptor;
+import com.joyent.manta.client.MantaClient;
+import com.joyent.manta.config.ConfigContext;
+import com.joyent.manta.config.KeyPairFactory;
+import com.joyent.manta.exception.MantaClientHttpResponseException;
+import com.joyent.manta.util.MantaUtils;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * {@link TransferClient} decorator that uploads files with a non-blocking HTTP
+ * client signing its requests with Manta's HTTP signature authentication.
+ * A handful of event loop threads can keep thousands of PUT and HEAD
+ * requests in flight, so that trees of many small files aren't limited by
+ * the number of threads blocked waiting on responses.
+ *
+ * <p>Uploads behave like those of {@link MantaTransferClient}: a file is only
+ * written if it doesn't exist remotely, and an existing remote file is only
+ * overwritten if its checksum differs. Failed requests are retried with
+ * backoff according to a {@link RetryPolicy} without holding a thread while
+ * waiting. Uploads whose bandwidth is limited are passed to the blocking
+ * client, because only it can throttle the bytes sent, and are retried and
+ * rate limited in the same way. All other operations are forwarded to the
+ * decorated client.</p>
+ *
+ * <p>Each request is sent to the Manta URL of a client leased from the
+ * decorated client's {@link ClientPool}, so that asynchronous uploads use the
+ * endpoints chosen by the user, count towards the load of each client and
+ * avoid the endpoints that the pool has drained. Files that the remote index
+ * knows to exist are checked for changes without first attempting a PUT that
+ * would be refused, and uploaded files are removed from the remote index and
+ * the HEAD cache.</p>
+ */
+class AsyncTransferClient extends ForwardingTransferClient {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncTransferClient.class);
+
+    /**
+     * Default maximum number of requests in flight at once.
+     */
+    static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+    /**
+     * Maximum number of event loop threads used by the HTTP client.
+     */
+    private static final int MAX_IO_THREADS = 4;
+
+    /**
+     * Non-blocking executor of HTTP requests.
+     */
+    interface Transport extends Closeable {
+        /**
+         * Sends a request without waiting for its response.
+         *
+         * @param request request to send
+         * @return future completed with the response
+         */
+        CompletableFuture<HttpResponse> execute(HttpUriRequest request);
+    }
+
+    private final MantaTransferClient mantaClient;
+    private final Transport transport;
+    private final ClientPool endpoints;
+    private final TransferThrottle throttle;
+    private final RetryPolicy policy;
+    private final int maxInFlight;
+    private final ScheduledExecutorService retryScheduler;
+    private final ExecutorService blockingExecutor;
+
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong puts = new AtomicLong(0L);
+    private final AtomicLong heads = new AtomicLong(0L);
+    private final AtomicLong retries = new AtomicLong(0L);
+    private final AtomicLong unchanged = new AtomicLong(0L);
+    private final AtomicLong blockingUploads = new AtomicLong(0L);
+
+    /**
+     * Creates a new instance.
+     *
+     * @param delegate client to forward calls to, backed by a {@link MantaTransferClient}
+     * @param transport executor of HTTP requests
+     * @param endpoints clients whose Manta URLs requests are spread over
+     * @param throttle throttle limiting the rate of requests
+     * @param policy policy deciding which failed requests are retried
+     * @param maxInFlight maximum number of uploads in flight at once
+     * @param blockingUploaders number of threads uploading with the blocking client
+     */
+    AsyncTransferClient(final TransferClient delegate,
+                        final Transport transport,
+                        final ClientPool endpoints,
+                        final TransferThrottle throttle,
+                        final RetryPolicy policy,
+                        final int maxInFlight,
+                        final int blockingUploaders) {
+        super(delegate);
+        Validate.isTrue(maxInFlight > 0, "Max in flight must be greater than zero");
+        Validate.isTrue(blockingUploaders > 0, "Blocking uploaders must be greater than zero");
+
+        this.mantaClient = ForwardingTransferClient.unwrap(delegate, MantaTransferClient.class);
+        Validate.notNull(mantaClient, "Delegate must be backed by a Manta transfer client");
+
+        this.transport = requireNonNull(transport, "Transport is null");
+        this.endpoints = requireNonNull(endpoints, "Endpoints are null");
+        this.throttle = requireNonNull(throttle, "Throttle is null");
+        this.policy = requireNonNull(policy, "Retry policy is null");
+        this.maxInFlight = maxInFlight;
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+                "async-retry-%d", "asyncretries", "AsyncRetryScheduler"));
+        this.blockingExecutor = Executors.newFixedThreadPool(blockingUploaders, new NamedThreadFactory(
+                "blocking-upload-%d", "blockinguploads", "BlockingUploadThreadPool"));
+    }
+
+    /**
+     * Creates a new instance that sends requests with a non-blocking HTTP
+     * client configured in the same way as the Manta client of the
+     * decorated client and spread over the endpoints of its clients.
+     *
+     * @param delegate client to forward calls to, backed by a {@link MantaTransferClient}
+     * @param throttle throttle limiting the rate of requests
+     * @param maxInFlight maximum number of uploads in flight at once
+     * @return a new instance
+     */
+    static AsyncTransferClient create(final TransferClient delegate,
+                                      final TransferThrottle throttle,
+                                      final int maxInFlight) {
+        final MantaTransferClient manta = ForwardingTransferClient.unwrap(
+                delegate, MantaTransferClient.class);
+        Validate.notNull(manta, "Delegate must be backed by a Manta transfer client");
+
+        final ConfigContext config = manta.getConfig();
+
+        if (BooleanUtils.isTrue(config.isClientEncryptionEnabled())) {
+            String msg = "Client-side encryption isn't supported by the asynchronous client";
+            TransferClientException e = new TransferClientException(msg);
+            e.setContextValue("mantaUrl", config.getMantaURL());
+            throw e;
+        }
+
+        return new AsyncTransferClient(delegate, new HttpAsyncTransport(config, maxInFlight),
+                manta.getClients(), throttle, new RetryPolicy(), maxInFlight,
+                delegate.getMaximumConcurrentConnections());
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    long getPuts() {
+        return puts.get();
+    }
+
+    long getHeads() {
+        return heads.get();
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+
+    long getUnchanged() {
+        return unchanged.get();
+    }
+
+    long getBlockingUploads() {
+        return blockingUploads.get();
+    }
+
+    /**
+     * Starts uploading a file to the specified path. This blocks only while
+     * waiting for the request rate limit and for the parent directory to
+     * exist, which it will unless the directory was just created.
+     *
+     * @param path path to upload to
+     * @param upload upload object to read file from
+     * @return future completed once the file is stored remotely
+     * @throws InterruptedException thrown when interrupted while waiting for the request rate limit
+     */
+    CompletableFuture<Void> putAsync(final String path, final FileUpload upload)
+            throws InterruptedException {
+        // Only the blocking client can throttle the bytes sent
+        if (throttle.isBandwidthLimited()) {
+            blockingUploads.incrementAndGet();
+            return CompletableFuture.runAsync(() -> putBlocking(path, upload), blockingExecutor);
+        }
+
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        if (!upload.isContentAvailable()) {
+            String msg = "File is no longer available for upload";
+            FileProcessingException e = new FileProcessingException(msg);
+            e.setContextValue("upload", upload);
+            e.setContextValue("mantaPath", path);
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        try {
+            mantaClient.ensureDirectory(FilenameUtils.getFullPath(path));
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(uploadFailure(e, path, upload));
+            return result;
+        }
+
+        // A conditional PUT of an object known to exist would only be refused
+        final RemoteIndex index = mantaClient.getIndex();
+        final RemoteIndex.Entry indexed = index.lookup(path);
+        final boolean exists = indexed != null && indexed.exists() && !indexed.isDirectory();
+        index.invalidate(path);
+
+        policy.getBudget().deposit();
+        throttle.acquireRequest();
+        inFlight.incrementAndGet();
+        result.whenComplete((v, e) -> {
+            inFlight.decrementAndGet();
+            HeadCache.current().invalidate(path);
+        });
+
+        attemptPut(path, upload, exists, 1, result);
+
+        return result;
+    }
+
+    /**
+     * Uploads a file with the blocking client, retrying it according to the
+     * retry policy and waiting for the request rate limit before each
+     * attempt, as the non-blocking uploads do.
+     */
+    private void putBlocking(final String path, final FileUpload upload) {
+        policy.getBudget().deposit();
+
+        for (int attempt = 1;; attempt++) {
+            try {
+                throttle.acquireRequest();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw uploadFailure(e, path, upload);
+            }
+
+            try {
+                super.put(path, upload);
+                return;
+            } catch (RuntimeException e) {
+                if (!policy.shouldRetry(e, attempt)) {
+                    throw e;
+                }
+
+                final long delay = policy.backoffMillis(attempt);
+                retries.incrementAndGet();
+
+                LOG.warn("Attempt {} of blocking PUT on [{}] failed. Retrying in {}ms. Cause: {}",
+                        attempt, path, delay, e.getMessage());
+
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a single attempt to upload a file, scheduling another attempt
+     * if it fails and the failure can be retried.
+     */
+    private void attemptPut(final String path, final FileUpload upload, final boolean exists,
+                            final int attempt, final CompletableFuture<Void> result) {
+        final String base64Checksum = Base64.encodeBase64String(upload.getChecksum());
+        final CompletableFuture<Void> attempted;
+
+        if (exists) {
+            attempted = overwriteIfChanged(path, upload, base64Checksum);
+        } else {
+            attempted = putIfAbsent(path, upload, base64Checksum);
+        }
+
+        attempted.whenComplete((v, e) -> {
+            if (e == null) {
+                result.complete(null);
+                return;
+            }
+
+            final Throwable cause = unwrapCompletion(e);
+
+            if (result.isDone() || !policy.shouldRetry(cause, attempt)) {
+                result.completeExceptionally(uploadFailure(cause, path, upload));
+                return;
+            }
+
+            final long delay = policy.backoffMillis(attempt);
+            retries.incrementAndGet();
+
+            LOG.warn("Attempt {} of PUT on [{}] failed. Retrying in {}ms. Cause: {}",
+                    attempt, path, delay, cause.getMessage());
+
+            // Waiting for the request rate limit would hold up every other
+            // retry on the scheduler thread, so it is waited for by a worker
+            retryScheduler.schedule(() -> {
+                try {
+                    blockingExecutor.execute(() -> retryPut(path, upload, exists, attempt + 1, result));
+                } catch (RejectedExecutionException re) {
+                    result.completeExceptionally(uploadFailure(re, path, upload));
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Uploads a file unless the remote file exists, in which case it is
+     * overwritten only if its checksum differs.
+     */
+    private CompletableFuture<Void> putIfAbsent(final String path, final FileUpload upload,
+                                               final String base64Checksum) {
+        // Only PUT if the remote file doesn't exist
+        return send(uri -> putRequest(uri, upload, base64Checksum, false), path,
+                HttpStatus.SC_PRECONDITION_FAILED)
+                .thenCompose(response -> {
+                    if (response.getStatusLine().getStatusCode() == HttpStatus.SC_PRECONDITION_FAILED) {
+                        return overwriteIfChanged(path, upload, base64Checksum);
+                    }
+
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    private void retryPut(final String path, final FileUpload upload, final boolean exists,
+                          final int attempt, final CompletableFuture<Void> result) {
+        try {
+            throttle.acquireRequest();
+            attemptPut(path, upload, exists, attempt, result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(uploadFailure(e, path, upload));
+        }
+    }
+
+    /**
+     * Overwrites a remote file that already exists unless its checksum
+     * matches the checksum of the local file.
+     */
+    private CompletableFuture<Void> overwriteIfChanged(final String path, final FileUpload upload,
+                                                      final String base64Checksum) {
+        heads.incrementAndGet();
+
+        return send(HttpHead::new, path, HttpStatus.SC_NOT_FOUND).thenCompose(head -> {
+            final Header remoteChecksum = head.getFirstHeader(MantaTransferClient.ORIGINAL_MD5_HEADER);
+
+            if (head.getStatusLine().getStatusCode() != HttpStatus.SC_NOT_FOUND
+                    && remoteChecksum != null && base64Checksum.equals(remoteChecksum.getValue())) {
+                LOG.debug("Local [{}] and remote file [{}] match - not uploading",
+                        upload.getSourcePath(), path);
+                unchanged.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return send(uri -> putRequest(uri, upload, base64Checksum, true), path)
+                    .thenApply(response -> null);
+        });
+    }
+
+    private HttpUriRequest putRequest(final URI uri, final FileUpload upload,
+                                      final String base64Checksum, final boolean overwrite) {
+        final HttpPut put = new HttpPut(uri);
+        final String httpLastModified = RFC_1123_DATE_TIME.format(
+                upload.getLastModified().atZone(ZoneOffset.UTC));
+
+        put.setHeader(HttpHeaders.LAST_MODIFIED, httpLastModified);
+
+        if (!overwrite) {
+            put.setHeader(HttpHeaders.IF_MATCH, "\"\"");
+        }
+
+        put.setHeader(MantaTransferClient.UNCOMPRESSED_SIZE_HEADER,
+                Long.toString(upload.getUncompressedSize()));
+        put.setHeader(MantaTransferClient.ORIGINAL_PATH_HEADER,
+                MantaUtils.formatPath(upload.getSourcePath().toString()));
+        put.setHeader(MantaTransferClient.ORIGINAL_MD5_HEADER, base64Checksum);
+
+        if (upload.isInMemory()) {
+            put.setEntity(new ByteArrayEntity(upload.getBuffer(), 0, (int)upload.getCompressedSize(),
+                    ContentType.APPLICATION_OCTET_STREAM));
+        } else {
+            put.setEntity(new FileEntity(upload.getTempPath().toFile(),
+                    ContentType.APPLICATION_OCTET_STREAM));
+        }
+
+        LOG.debug("Uploading file [{}] --> [{}]", upload.getSourcePath(), uri);
+        puts.incrementAndGet();
+
+        return put;
+    }
+
+    /**
+     * Sends a request to the endpoint of a client leased from the pool and
+     * fails the returned future unless the response status is successful or
+     * one of the statuses expected. Failures are reported to the pool, so
+     * that failing endpoints are drained as they are for blocking requests.
+     */
+    private CompletableFuture<HttpResponse> send(final Function<URI, HttpUriRequest> requestFactory,
+                                                 final String path, final int... expectedStatuses) {
+        final ClientPool.Lease lease = endpoints.lease();
+        final HttpUriRequest request;
+        final CompletableFuture<HttpResponse> sent;
+
+        try {
+            request = requestFactory.apply(uri(lease.client(), path));
+            sent = transport.execute(request);
+        } catch (RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+
+        return sent.handle((response, e) -> {
+            try {
+                if (e != null) {
+                    throw new CompletionException(unwrapCompletion(e));
+                }
+
+                return checkStatus(request, response, path, expectedStatuses);
+            } catch (CompletionException ce) {
+                lease.failed(ce.getCause());
+                throw ce;
+            } finally {
+                lease.close();
+            }
+        });
+    }
+
+    private static HttpResponse checkStatus(final HttpUriRequest request, final HttpResponse response,
+                                            final String path, final int... expectedStatuses) {
+        EntityUtils.consumeQuietly(response.getEntity());
+
+        final int status = response.getStatusLine().getStatusCode();
+
+        if (status >= HttpStatus.SC_OK && status < HttpStatus.SC_MULTIPLE_CHOICES) {
+            return response;
+        }
+
+        for (int expected : expectedStatuses) {
+            if (status == expected) {
+                return response;
+            }
+        }
+
+        throw new CompletionException(new MantaClientHttpResponseException(request, response, path));
+    }
+
+    /**
+     * Builds the URI of an object on the Manta URL of a client.
+     */
+    private static URI uri(final MantaClient client, final String path) {
+        final String mantaUrl = StringUtils.removeEnd(client.getContext().getMantaURL(),
+                MantaClient.SEPARATOR);
+        return URI.create(mantaUrl + MantaUtils.formatPath(path));
+    }
+
+    private static TransferClientException uploadFailure(final Throwable cause, final String path,
+                                                         final FileUpload upload) {
+        if (cause instanceof TransferClientException) {
+            return (TransferClientException)cause;
+        }
+
+        String msg = "Unable to upload file";
+        TransferClientException tce = new TransferClientException(msg, cause);
+        tce.setContextValue("upload", upload);
+        tce.setContextValue("mantaPath", path);
+        return tce;
+    }
+
+    private static Throwable unwrapCompletion(final Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            return e.getCause();
+        }
+
+        return e;
+    }
+
+    /**
+     * @return human readable summary of the requests made
+     */
+    String describe() {
+        return String.format("%d/%d in flight, %d PUTs, %d HEADs, %d retries, "
+                        + "%d unchanged, %d blocking uploads",
+                getInFlight(), maxInFlight, getPuts(), getHeads(), getRetries(),
+                getUnchanged(), getBlockingUploads());
+    }
+
+    @Override
+    public void close() {
+        retryScheduler.shutdownNow();
+        blockingExecutor.shutdownNow();
+
+        try {
+            transport.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close asynchronous HTTP client", e);
+        }
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Asynchronous requests: {}", describe());
+        }
+
+        super.close();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("endpoints", endpoints)
+                .append("maxInFlight", maxInFlight)
+                .append("inFlight", getInFlight())
+                .append("puts", getPuts())
+                .append("heads", getHeads())
+                .append("retries", getRetries())
+                .toString();
+    }
+
+    /**
+     * {@link Transport} backed by an Apache non-blocking HTTP client.
+     */
+    private static final class HttpAsyncTransport implements Transport {
+        private final CloseableHttpAsyncClient httpClient;
+
+        /**
+         * Creates and starts a new HTTP client.
+         *
+         * @param config configuration of the Manta client
+         * @param maxConnections maximum number of open connections
+         */
+        HttpAsyncTransport(final ConfigContext config, final int maxConnections) {
+            final int ioThreads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_IO_THREADS);
+            final RequestConfig.Builder requestConfig = RequestConfig.custom();
+
+            if (config.getTimeout() != null) {
+                requestConfig.setConnectTimeout(config.getTimeout())
+                        .setSocketTimeout(config.getTimeout());
+            }
+
+            final HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                    .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                            .setIoThreadCount(ioThreads)
+                            .setSoKeepAlive(true)
+                            .setTcpNoDelay(true)
+                            .build())
+                    .setDefaultRequestConfig(requestConfig.build())
+                    .setMaxConnTotal(maxConnections)
+                    .setMaxConnPerRoute(maxConnections)
+                    .setThreadFactory(new NamedThreadFactory(
+                            "async-http-%d", "asynchttp", "AsyncHttpClient"));
+
+            if (!BooleanUtils.isTrue(config.noAuth())) {
+                final HttpSignatureAuthScheme authScheme = new HttpSignatureAuthScheme(
+                        new KeyPairFactory(config).createKeyPair(),
+                        !BooleanUtils.isTrue(config.disableNativeSignatures()));
+                final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(
+                        config.getMantaUser(), null);
+
+                builder.addInterceptorLast(new HttpSignatureRequestInterceptor(
+                        authScheme, credentials, true));
+            }
+
+            this.httpClient = builder.build();
+            this.httpClient.start();
+        }
+
+        @Override
+        public CompletableFuture<HttpResponse> execute(final HttpUriRequest request) {
+            final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+            httpClient.execute(request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(final HttpResponse response) {
+                    future.complete(response);
+                }
+
+                @Override
+                public void failed(final Exception e) {
+                    future.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    future.cancel(false);
+                }
+            });
+
+            return future;
+        }
+
+        @Override
+        public void close() throws IOException {
+            httpClient.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of equally sized heap buffers that hold small compressed files in
+ * memory between compression and upload, so that small files don't need a
+ * temp file. The number of buffers handed out at once is bounded, which
+ * bounds the memory used. When every buffer is in use, callers are expected
+ * to fall back to temp files rather than wait, so that compression never
+ * waits on uploads to release buffers.
+ */
+class BufferPool {
+    /**
+     * Default size of the largest file that is compressed into memory.
+     */
+    static final int DEFAULT_SMALL_FILE_THRESHOLD = 64 * 1024;
+
+    /**
+     * Default upper bound of the memory held by the pool.
+     */
+    static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024L * 1024L;
+
+    /**
+     * Room left in each buffer for compression headers, so that
+     * incompressible files below the threshold still fit.
+     */
+    private static final int COMPRESSION_OVERHEAD = 4096;
+
+    /**
+     * Fraction of the maximum heap that the pool may use at most.
+     */
+    private static final int MAX_HEAP_FRACTION = 8;
+
+    private final int smallFileThreshold;
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inUse = new AtomicInteger(0);
+    private final AtomicLong acquired = new AtomicLong(0L);
+    private final AtomicLong exhausted = new AtomicLong(0L);
+
+    /**
+     * Creates a new instance.
+     *
+     * @param smallFileThreshold size of the largest file that is compressed into memory
+     * @param maxPooledBytes upper bound of the memory held by the pool
+     */
+    BufferPool(final int smallFileThreshold, final long maxPooledBytes) {
+        Validate.isTrue(smallFileThreshold >= 0, "Small file threshold must not be negative");
+
+        this.smallFileThreshold = smallFileThreshold;
+        this.bufferSize = smallFileThreshold + COMPRESSION_OVERHEAD;
+        this.maxBuffers = (int)Math.min(Math.max(maxPooledBytes, 0L) / bufferSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return a pool sized with the defaults, bounded by a fraction of the maximum heap
+     */
+    static BufferPool withDefaults() {
+        final long maxPooledBytes = Math.min(DEFAULT_MAX_POOLED_BYTES,
+                Runtime.getRuntime().maxMemory() / MAX_HEAP_FRACTION);
+        return new BufferPool(DEFAULT_SMALL_FILE_THRESHOLD, maxPooledBytes);
+    }
+
+    /**
+     * @return a pool that never hands out buffers
+     */
+    static BufferPool disabled() {
+        return new BufferPool(0, 0L);
+    }
+
+    /**
+     * Determines if a file is small enough to be compressed into memory.
+     *
+     * @param size size of the file in bytes
+     * @return true if the file could be held by a pooled buffer
+     */
+    boolean accepts(final long size) {
+        return maxBuffers > 0 && size <= smallFileThreshold;
+    }
+
+    /**
+     * Takes a buffer from the pool without waiting.
+     *
+     * @return a buffer or null if the maximum number of buffers are in use
+     */
+    byte[] tryAcquire() {
+        while (true) {
+            final int current = inUse.get();
+
+            if (current >= maxBuffers) {
+                exhausted.incrementAndGet();
+                return null;
+            }
+
+            if (inUse.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+
+        acquired.incrementAndGet();
+
+        final byte[] buffer = free.poll();
+
+        if (buffer != null) {
+            return buffer;
+        }
+
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buffer buffer previously taken from this pool
+     */
+    void release(final byte[] buffer) {
+        Validate.isTrue(buffer.length == bufferSize, "Buffer doesn't belong to this pool");
+
+        free.offer(buffer);
+        inUse.decrementAndGet();
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    int getInUse() {
+        return inUse.get();
+    }
+
+    long getAcquired() {
+        return acquired.get();
+    }
+
+    long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return human readable summary of the pool's state
+     */
+    String describe() {
+        return String.format("%d/%d buffers of %s in use, %d files held in memory, "
+                        + "%d spilled to temp files",
+                getInUse(), maxBuffers, FileUtils.byteCountToDisplaySize(bufferSize),
+                getAcquired(), getExhausted());
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("smallFileThreshold", smallFileThreshold)
+                .append("bufferSize", bufferSize)
+                .append("maxBuffers", maxBuffers)
+                .append("inUse", getInUse())
+                .append("acquired", getAcquired())
+                .append("exhausted", getExhausted())
+                .toString();
+    }
+}
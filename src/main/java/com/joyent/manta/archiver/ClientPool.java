@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaClient;
+import com.joyent.manta.config.ConfigContext;
+import com.joyent.manta.exception.MantaClientHttpResponseException;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.http.HttpStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Set of {@link MantaClient} instances that requests are spread over, each
+ * with its own connection pool and possibly its own endpoint, so that
+ * transfers aren't limited by a single pool or a single front door.
+ *
+ * <p>Each request goes to the healthy client with the fewest requests in
+ * progress. A client whose requests fail several times in a row, for
+ * reasons other than the request itself such as connection errors and
+ * server errors, is drained: it gets no new requests for a while, after
+ * which it is tried again and is drained once more if it still fails. When
+ * every client is drained, the one whose drain ends first is used anyway.</p>
+ */
+final class ClientPool implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ClientPool.class);
+
+    /**
+     * Number of failed requests in a row after which a client is drained.
+     */
+    static final int FAILURES_BEFORE_DRAIN = 3;
+
+    /**
+     * Time during which a drained client gets no new requests.
+     */
+    static final long DRAIN_MILLIS = 30_000L;
+
+    private final List<Member> members;
+    private final Clock clock;
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    /**
+     * Creates a new instance.
+     *
+     * @param clients clients that requests are spread over
+     * @param clock clock used to time how long clients are drained
+     */
+    ClientPool(final List<MantaClient> clients, final Clock clock) {
+        Validate.notEmpty(clients, "At least one client is required");
+
+        final List<Member> created = new ArrayList<>(clients.size());
+
+        for (int i = 0; i < clients.size(); i++) {
+            created.add(new Member(i, clients.get(i)));
+        }
+
+        this.members = Collections.unmodifiableList(created);
+        this.clock = clock;
+    }
+
+    /**
+     * Creates a pool of clients provided by a supplier.
+     *
+     * @param supplier supplier of configured clients
+     * @param count number of clients to create
+     * @return pool of the clients
+     */
+    static ClientPool create(final Supplier<MantaClient> supplier, final int count) {
+        Validate.isTrue(count > 0, "Client count must be greater than zero");
+
+        final List<MantaClient> clients = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            clients.add(supplier.get());
+        }
+
+        return new ClientPool(clients, Clock.systemUTC());
+    }
+
+    /**
+     * A request made with a client.
+     *
+     * @param <T> type of response
+     */
+    @FunctionalInterface
+    interface ClientCall<T> {
+        /**
+         * Executes the request.
+         *
+         * @param client client to execute the request with
+         * @return the response
+         * @throws IOException thrown when the request fails
+         */
+        T call(MantaClient client) throws IOException;
+    }
+
+    /**
+     * @return the first client, whose configuration is shared by every client
+     */
+    MantaClient primary() {
+        return members.get(0).client;
+    }
+
+    /**
+     * @return number of clients
+     */
+    int size() {
+        return members.size();
+    }
+
+    /**
+     * @return total number of connections of every client
+     */
+    int getMaximumConnections() {
+        int total = 0;
+
+        for (Member member : members) {
+            final ConfigContext context = member.client.getContext();
+
+            if (context != null && context.getMaximumConnections() != null) {
+                total += context.getMaximumConnections();
+            }
+        }
+
+        return Math.max(total, 1);
+    }
+
+    /**
+     * Executes a request with the client that is least busy.
+     *
+     * @param call request to execute
+     * @param <T> type of response
+     * @return the response
+     * @throws IOException thrown when the request fails
+     */
+    <T> T call(final ClientCall<T> call) throws IOException {
+        try (Lease lease = lease()) {
+            try {
+                return call.call(lease.client());
+            } catch (IOException | RuntimeException e) {
+                lease.failed(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Opens a stream with the client that is least busy, which counts as a
+     * request in progress until the stream is closed.
+     *
+     * @param call request opening the stream
+     * @return stream that frees the client once closed
+     * @throws IOException thrown when the request fails
+     */
+    InputStream stream(final ClientCall<? extends InputStream> call) throws IOException {
+        final Lease lease = lease();
+
+        try {
+            return new ProxyInputStream(call.call(lease.client())) {
+                @Override
+                protected void handleIOException(final IOException e) throws IOException {
+                    lease.failed(e);
+                    throw e;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        lease.close();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            lease.failed(e);
+            lease.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reserves the client that is least busy for a request or series of
+     * requests lasting until the lease is closed.
+     *
+     * @return lease of a client
+     */
+    Lease lease() {
+        final Member member = select();
+        member.outstanding.incrementAndGet();
+        member.requests.incrementAndGet();
+        return new Lease(member);
+    }
+
+    private Member select() {
+        final long now = clock.millis();
+        final int count = members.size();
+        final int start = Math.floorMod(next.getAndIncrement(), count);
+        Member best = null;
+        Member leastRecentlyDrained = null;
+
+        // Starting from a different client each time spreads requests
+        // evenly over clients that are equally busy
+        for (int i = 0; i < count; i++) {
+            final Member member = members.get((start + i) % count);
+
+            if (member.drainedUntil > now) {
+                if (leastRecentlyDrained == null || member.drainedUntil < leastRecentlyDrained.drainedUntil) {
+                    leastRecentlyDrained = member;
+                }
+            } else if (best == null || member.outstanding.get() < best.outstanding.get()) {
+                best = member;
+            }
+        }
+
+        if (best == null) {
+            return leastRecentlyDrained;
+        }
+
+        return best;
+    }
+
+    /**
+     * Determines if a failure indicates a problem with a client or its
+     * endpoint rather than with the request.
+     */
+    private static boolean isClientFailure(final Throwable e) {
+        if (e instanceof MantaClientHttpResponseException) {
+            return ((MantaClientHttpResponseException)e).getStatusCode()
+                    >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        }
+
+        return e instanceof IOException;
+    }
+
+    /**
+     * @return human readable summary of the requests sent with each client
+     */
+    String describe() {
+        return members.stream().map(Member::describe).collect(Collectors.joining(", "));
+    }
+
+    @Override
+    public void close() {
+        for (Member member : members) {
+            member.client.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("members", members)
+                .toString();
+    }
+
+    /**
+     * Reservation of a client. Closing the lease records the end of the
+     * request and, unless a failure was reported, its success.
+     */
+    final class Lease implements AutoCloseable {
+        private final Member member;
+        private boolean failed = false;
+        private boolean closed = false;
+
+        private Lease(final Member member) {
+            this.member = member;
+        }
+
+        /**
+         * @return leased client
+         */
+        MantaClient client() {
+            return member.client;
+        }
+
+        /**
+         * Records that a request made with the leased client failed.
+         *
+         * @param e cause of the failure
+         */
+        void failed(final Throwable e) {
+            if (!failed && isClientFailure(e)) {
+                failed = true;
+                member.failed(clock.millis());
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            member.outstanding.decrementAndGet();
+
+            if (!failed) {
+                member.succeeded();
+            }
+        }
+    }
+
+    /**
+     * Client along with its load and health.
+     */
+    private static final class Member {
+        private final int number;
+        private final MantaClient client;
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+        private final AtomicLong requests = new AtomicLong(0L);
+        private final AtomicLong failures = new AtomicLong(0L);
+        private final AtomicLong drains = new AtomicLong(0L);
+        private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+        private volatile long drainedUntil = 0L;
+
+        Member(final int number, final MantaClient client) {
+            this.number = number;
+            this.client = client;
+        }
+
+        void failed(final long now) {
+            failures.incrementAndGet();
+
+            if (consecutiveFailures.incrementAndGet() >= FAILURES_BEFORE_DRAIN && drainedUntil <= now) {
+                drainedUntil = now + DRAIN_MILLIS;
+                drains.incrementAndGet();
+                LOG.warn("Draining client {} [{}] for {}ms after {} failed requests in a row",
+                        number, url(), DRAIN_MILLIS, consecutiveFailures.get());
+            }
+        }
+
+        void succeeded() {
+            consecutiveFailures.set(0);
+
+            if (drainedUntil != 0L) {
+                drainedUntil = 0L;
+                LOG.info("Client {} [{}] recovered", number, url());
+            }
+        }
+
+        private String url() {
+            if (client.getContext() == null) {
+                return null;
+            }
+
+            return client.getContext().getMantaURL();
+        }
+
+        String describe() {
+            return String.format("%d [%s]: %d requests, %d in progress, %d failed, %d drains",
+                    number, url(), requests.get(), outstanding.get(), failures.get(), drains.get());
+        }
+
+        @Override
+        public String toString() {
+            return describe();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.bouncycastle.util.encoders.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Content addressed cache of compressed files that outlives the process,
+ * so that files whose contents were already compressed by a previous run,
+ * such as a retried upload or an upload to another remote directory, aren't
+ * compressed again.
+ *
+ * <p>Compressed files are keyed by the MD5 checksum of their uncompressed
+ * contents along with the compression format and level. Instead of being
+ * deleted once uploaded, temp files are moved into the cache, and the least
+ * recently used files are evicted when the cache grows beyond its size
+ * budget. Files in use by an upload are never evicted.</p>
+ *
+ * <p>The cache used by the process is set with {@link #use(CompressionCache)}
+ * and is disabled by default.</p>
+ */
+final class CompressionCache {
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionCache.class);
+
+    /**
+     * Size budget of a cache whose size wasn't specified.
+     */
+    static final long DEFAULT_BUDGET = 10L * 1024L * 1024L * 1024L;
+
+    private static final String KEY_SUFFIX = "." + ObjectCompressor.COMPRESSION_LEVEL
+            + "." + ObjectCompressor.COMPRESSION_TYPE;
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static volatile CompressionCache current = disabled();
+
+    private final Path directory;
+    private final long budget;
+    private final Map<String, Artifact> artifacts = new LinkedHashMap<>(
+            INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private long totalBytes = 0L;
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+    private final AtomicLong evictions = new AtomicLong(0L);
+
+    private CompressionCache(final Path directory, final long budget) {
+        this.directory = directory;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the cache used by the process
+     */
+    static CompressionCache current() {
+        return current;
+    }
+
+    /**
+     * Sets the cache used by the process.
+     *
+     * @param cache cache to use
+     */
+    static void use(final CompressionCache cache) {
+        current = Validate.notNull(cache, "Compression cache must not be null");
+        LOG.info("Using compression cache: {}", cache.describe());
+    }
+
+    /**
+     * @return a cache that holds nothing
+     */
+    static CompressionCache disabled() {
+        return new CompressionCache(null, 0L);
+    }
+
+    /**
+     * Parses a directory optionally followed by an equals sign and the size
+     * budget of the cache (e.g. "/var/cache/manta-archiver=50GB") and opens
+     * the cache in that directory.
+     *
+     * @param spec specification of the cache
+     * @return cache in the directory specified
+     * @throws IOException thrown when the cache directory can't be read
+     * @throws IllegalArgumentException thrown when the specification is invalid
+     */
+    static CompressionCache parse(final String spec) throws IOException {
+        Validate.notBlank(spec, "Compression cache specification must not be blank");
+
+        final String trimmed = spec.trim();
+        String dir = trimmed;
+        long budget = DEFAULT_BUDGET;
+
+        if (trimmed.contains("=")) {
+            dir = StringUtils.substringBeforeLast(trimmed, "=").trim();
+            budget = TempStorage.parseSize(StringUtils.substringAfterLast(trimmed, "=").trim());
+        }
+
+        return open(Paths.get(dir), budget);
+    }
+
+    /**
+     * Opens a cache in a directory, indexing the files cached by previous
+     * runs from least to most recently used.
+     *
+     * @param directory directory holding the cached files
+     * @param budget maximum number of bytes of cached files
+     * @return cache in the directory
+     * @throws IOException thrown when the cache directory can't be read
+     */
+    static CompressionCache open(final Path directory, final long budget) throws IOException {
+        final Path dir = directory.toAbsolutePath().normalize();
+        Files.createDirectories(dir);
+
+        final CompressionCache cache = new CompressionCache(dir, budget);
+        final List<Path> files = new ArrayList<>();
+
+        try (Stream<Path> list = Files.list(dir)) {
+            list.filter(Files::isRegularFile).forEach(files::add);
+        }
+
+        final Map<Path, FileTime> lastUsed = new LinkedHashMap<>();
+
+        for (Path file : files) {
+            // Files being moved into the cache when a previous run died are incomplete
+            if (file.getFileName().toString().endsWith(PARTIAL_SUFFIX)) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+
+            lastUsed.put(file, Files.getLastModifiedTime(file));
+        }
+
+        files.clear();
+        files.addAll(lastUsed.keySet());
+        files.sort(Comparator.comparing(lastUsed::get));
+
+        synchronized (cache) {
+            for (Path file : files) {
+                final long size = Files.size(file);
+                cache.artifacts.put(file.getFileName().toString(), new Artifact(file, size));
+                cache.totalBytes += size;
+            }
+
+            cache.evict();
+        }
+
+        return cache;
+    }
+
+    /**
+     * @return true when files are cached
+     */
+    boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Determines if a path is a file held by the cache.
+     *
+     * @param path path to check
+     * @return true when the path is within the cache directory
+     */
+    boolean holds(final Path path) {
+        return isEnabled() && path != null && path.startsWith(directory);
+    }
+
+    /**
+     * Finds the compressed version of a file in the cache. The checksum of
+     * the file is computed to look it up. A file found is protected from
+     * eviction until the upload returned is released.
+     *
+     * @param path path to the file to upload
+     * @return upload of the cached compressed file or null if it isn't cached
+     */
+    FileUpload lookup(final Path path) {
+        return lookup(path, null);
+    }
+
+    /**
+     * Finds the compressed version of a file in the cache by its checksum,
+     * which is only computed when it isn't known yet. A file found is
+     * protected from eviction until the upload returned is released.
+     *
+     * @param path path to the file to upload
+     * @param knownChecksum checksum of the file or null to compute it
+     * @return upload of the cached compressed file or null if it isn't cached
+     */
+    FileUpload lookup(final Path path, final byte[] knownChecksum) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        final long size = path.toFile().length();
+        final Instant lastModified = Instant.ofEpochMilli(path.toFile().lastModified());
+        final byte[] checksum;
+
+        if (knownChecksum != null) {
+            checksum = knownChecksum;
+        } else {
+            checksum = LocalFileUtils.checksum(path);
+        }
+        final Artifact artifact;
+
+        synchronized (this) {
+            artifact = artifacts.get(key(checksum));
+
+            if (artifact == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+
+            artifact.pins++;
+        }
+
+        hits.incrementAndGet();
+        touch(artifact.path);
+
+        LOG.debug("Reusing cached compressed file [{}] for [{}]", artifact.path, path);
+
+        return new FileUpload(artifact.path, path, checksum, lastModified, size, artifact.size);
+    }
+
+    /**
+     * Keeps the compressed file of an upload once it was uploaded. A temp
+     * file is moved into the cache, while a file that was already cached is
+     * released so that it can be evicted again.
+     *
+     * @param upload upload whose compressed file is no longer needed
+     * @return true when the file was kept by the cache and must not be deleted
+     */
+    boolean retain(final FileUpload upload) {
+        if (!isEnabled() || upload.isInMemory()) {
+            return false;
+        }
+
+        final Path tempPath = upload.getTempPath();
+
+        if (holds(tempPath)) {
+            unpin(tempPath.getFileName().toString());
+            return true;
+        }
+
+        final String key = key(upload.getChecksum());
+
+        synchronized (this) {
+            if (artifacts.containsKey(key) || upload.getCompressedSize() > budget) {
+                return false;
+            }
+        }
+
+        final Path target = directory.resolve(key);
+
+        try {
+            moveInto(tempPath, target);
+        } catch (IOException e) {
+            LOG.warn("Unable to move [{}] into the compression cache", tempPath, e);
+            return false;
+        }
+
+        synchronized (this) {
+            final Artifact previous = artifacts.put(key, new Artifact(target, upload.getCompressedSize()));
+
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+
+            totalBytes += upload.getCompressedSize();
+            evict();
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves a file into the cache directory so that the cached file is
+     * always complete, even when the move copies between filesystems.
+     */
+    private static void moveInto(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        } catch (AtomicMoveNotSupportedException e) {
+            LOG.trace("Copying [{}] into the compression cache from another filesystem", source);
+        }
+
+        final Path partial = target.resolveSibling(target.getFileName() + PARTIAL_SUFFIX);
+
+        try {
+            Files.copy(source, partial, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+
+        Files.deleteIfExists(source);
+    }
+
+    private synchronized void unpin(final String key) {
+        final Artifact artifact = artifacts.get(key);
+
+        if (artifact != null && artifact.pins > 0) {
+            artifact.pins--;
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files that aren't in use until the
+     * cache fits in its budget.
+     */
+    private void evict() {
+        final Iterator<Artifact> eldest = artifacts.values().iterator();
+
+        while (totalBytes > budget && eldest.hasNext()) {
+            final Artifact artifact = eldest.next();
+
+            if (artifact.pins > 0) {
+                continue;
+            }
+
+            eldest.remove();
+            totalBytes -= artifact.size;
+            evictions.incrementAndGet();
+
+            try {
+                Files.deleteIfExists(artifact.path);
+            } catch (IOException e) {
+                LOG.warn("Unable to evict cached file: " + artifact.path, e);
+            }
+        }
+    }
+
+    private static void touch(final Path path) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.from(Instant.now()));
+        } catch (IOException e) {
+            LOG.debug("Unable to update last use of cached file [{}]", path, e);
+        }
+    }
+
+    private static String key(final byte[] checksum) {
+        return Hex.toHexString(checksum) + KEY_SUFFIX;
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int getNumberOfFiles() {
+        return artifacts.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return human readable summary of the cache's state
+     */
+    String describe() {
+        if (!isEnabled()) {
+            return "disabled";
+        }
+
+        return String.format("%s [%d files, %s of %s, %d hits, %d misses, %d evictions]",
+                directory, getNumberOfFiles(), FileUtils.byteCountToDisplaySize(getTotalBytes()),
+                FileUtils.byteCountToDisplaySize(budget), getHits(), getMisses(), getEvictions());
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("directory", directory)
+                .append("budget", budget)
+                .append("totalBytes", getTotalBytes())
+                .append("hits", getHits())
+                .append("misses", getMisses())
+                .append("evictions", getEvictions())
+                .toString();
+    }
+
+    /**
+     * Compressed file held by the cache.
+     */
+    private static final class Artifact {
+        private final Path path;
+        private final long size;
+        private int pins = 0;
+
+        Artifact(final Path path, final long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+}
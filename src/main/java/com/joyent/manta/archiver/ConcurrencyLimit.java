@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limit on the number of concurrent operations that can be changed at
+ * runtime. This is used to resize the effective parallelism of a thread pool
+ * that can't be resized itself, like a {@link java.util.concurrent.ForkJoinPool}
+ * on Java 8. When the limit is lowered, operations that are already running
+ * complete normally and new operations wait until enough of them have finished.
+ */
+class ConcurrencyLimit {
+    private final ResizableSemaphore semaphore;
+    private volatile int limit;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param limit initial number of concurrent operations allowed
+     */
+    ConcurrencyLimit(final int limit) {
+        Validate.isTrue(limit > 0, "Limit must be greater than zero");
+        this.limit = limit;
+        this.semaphore = new ResizableSemaphore(limit);
+    }
+
+    /**
+     * Waits until an operation is allowed to start.
+     *
+     * @throws InterruptedException thrown when interrupted while waiting
+     */
+    void acquire() throws InterruptedException {
+        semaphore.acquire();
+    }
+
+    /**
+     * Signals that an operation has completed.
+     */
+    void release() {
+        semaphore.release();
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return number of operations that could start right now
+     */
+    int getAvailable() {
+        return semaphore.availablePermits();
+    }
+
+    /**
+     * Changes the number of concurrent operations allowed.
+     *
+     * @param newLimit new number of concurrent operations allowed
+     */
+    synchronized void setLimit(final int newLimit) {
+        Validate.isTrue(newLimit > 0, "Limit must be greater than zero");
+        final int delta = newLimit - limit;
+
+        if (delta > 0) {
+            semaphore.release(delta);
+        } else if (delta < 0) {
+            semaphore.reducePermits(-delta);
+        }
+
+        limit = newLimit;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("limit", limit)
+                .append("available", getAvailable())
+                .toString();
+    }
+
+    /**
+     * Semaphore that exposes the ability to reduce its permits.
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 2326418418932519245L;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param permits initial number of permits
+         */
+        ResizableSemaphore(final int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(final int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe collection of objects that could not be transferred after all
+ * retries were exhausted. It is printed at the end of a run so that the
+ * failed objects can be inspected and transferred again.
+ */
+class DeadLetterReport {
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * Records an object that failed to transfer.
+     *
+     * @param path path of the object that failed
+     * @param cause error that caused the final failure
+     */
+    void add(final String path, final Throwable cause) {
+        entries.add(new Entry(path, cause));
+        count.incrementAndGet();
+    }
+
+    boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    int size() {
+        return count.get();
+    }
+
+    /**
+     * @return a snapshot of all of the failed objects
+     */
+    List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Prints a summary line for each failed object.
+     *
+     * @param out stream to print to
+     */
+    void print(final PrintStream out) {
+        if (isEmpty()) {
+            return;
+        }
+
+        out.println();
+        out.printf("%d objects failed to transfer:%s", size(),
+                System.lineSeparator());
+
+        for (Entry entry : entries) {
+            out.printf("[ FAILED ] %s (%s)%s", entry.getPath(),
+                    ExceptionUtils.getRootCauseMessage(entry.getCause()),
+                    System.lineSeparator());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("failures", size())
+                .toString();
+    }
+
+    /**
+     * Object that failed to transfer along with the error that caused it.
+     */
+    static class Entry {
+        private final String path;
+        private final Throwable cause;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param path path of the object that failed
+         * @param cause error that caused the final failure
+         */
+        Entry(final String path, final Throwable cause) {
+            this.path = path;
+            this.cause = cause;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        Throwable getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("path", path)
+                    .append("cause", cause)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Set of remote directories known to exist, stored as a trie of path
+ * components so that each component is held once no matter how many
+ * directories are below it. Directories are never evicted, so a tree of
+ * any size is only created once, and a directory that is known implies that
+ * all of its parents are known.
+ *
+ * <p>Lookups neither lock nor allocate: a path is walked component by
+ * component within the path string. The children of each directory are
+ * held in an open addressed hash table that is only replaced as a whole
+ * when it grows, so readers always see a complete table. Additions lock
+ * the parent directory being added to.</p>
+ */
+final class DirectoryTrie {
+    private static final char SEPARATOR = '/';
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * Growth happens once more than three quarters of a table is in use.
+     */
+    private static final int LOAD_NUMERATOR = 3;
+    private static final int LOAD_DENOMINATOR = 4;
+
+    private static final int HASH_MULTIPLIER = 31;
+    private static final int HASH_SPREAD_SHIFT = 16;
+
+    private final Node root = new Node("", 0);
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /**
+     * Determines if a directory is known to exist. The root always exists.
+     *
+     * @param path remote directory path with or without a trailing separator
+     * @return true when the directory or one of its subdirectories was added
+     */
+    boolean contains(final String path) {
+        final int length = path.length();
+        Node node = root;
+        int start = skipSeparators(path, 0);
+
+        while (start < length) {
+            final int end = componentEnd(path, start);
+            node = node.child(path, start, end);
+
+            if (node == null) {
+                return false;
+            }
+
+            start = skipSeparators(path, end);
+        }
+
+        return true;
+    }
+
+    /**
+     * Records that a directory, and therefore all of its parents, exists.
+     *
+     * @param path remote directory path with or without a trailing separator
+     */
+    void add(final String path) {
+        final int length = path.length();
+        Node node = root;
+        int start = skipSeparators(path, 0);
+
+        while (start < length) {
+            final int end = componentEnd(path, start);
+            Node child = node.child(path, start, end);
+
+            if (child == null) {
+                child = node.addChild(path, start, end, size);
+            }
+
+            node = child;
+            start = skipSeparators(path, end);
+        }
+    }
+
+    /**
+     * Forgets a directory and all of the directories within it, such as
+     * after it was deleted.
+     *
+     * @param path remote directory path with or without a trailing separator
+     */
+    void remove(final String path) {
+        final int length = path.length();
+        Node parent = null;
+        Node node = root;
+        int start = skipSeparators(path, 0);
+        int componentStart = 0;
+        int componentEnd = 0;
+
+        while (start < length) {
+            final int end = componentEnd(path, start);
+            parent = node;
+            node = node.child(path, start, end);
+
+            if (node == null) {
+                return;
+            }
+
+            componentStart = start;
+            componentEnd = end;
+            start = skipSeparators(path, end);
+        }
+
+        if (parent != null) {
+            parent.removeChild(path, componentStart, componentEnd, size);
+        }
+    }
+
+    /**
+     * @return number of directories known, including the parents of the
+     *         directories added
+     */
+    int size() {
+        return size.get();
+    }
+
+    private static int skipSeparators(final String path, final int from) {
+        int i = from;
+
+        while (i < path.length() && path.charAt(i) == SEPARATOR) {
+            i++;
+        }
+
+        return i;
+    }
+
+    private static int componentEnd(final String path, final int start) {
+        final int end = path.indexOf(SEPARATOR, start);
+
+        if (end < 0) {
+            return path.length();
+        }
+
+        return end;
+    }
+
+    private static int hash(final String path, final int start, final int end) {
+        int h = 0;
+
+        for (int i = start; i < end; i++) {
+            h = HASH_MULTIPLIER * h + path.charAt(i);
+        }
+
+        // Spread the high bits so that similar names don't cluster
+        return h ^ (h >>> HASH_SPREAD_SHIFT);
+    }
+
+    /**
+     * Directory with the table of its subdirectories.
+     */
+    private static final class Node {
+        private final String name;
+        private final int hash;
+        private volatile AtomicReferenceArray<Node> children;
+        private int count = 0;
+
+        Node(final String name, final int hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+
+        private boolean matches(final String path, final int start, final int end, final int h) {
+            return hash == h && name.length() == end - start
+                    && path.regionMatches(start, name, 0, name.length());
+        }
+
+        /**
+         * Finds the slot of a child or of the empty slot that ends its probe sequence.
+         */
+        private static int slot(final AtomicReferenceArray<Node> table, final String path,
+                                final int start, final int end, final int h) {
+            final int mask = table.length() - 1;
+            int i = h & mask;
+
+            while (true) {
+                final Node candidate = table.get(i);
+
+                if (candidate == null || candidate.matches(path, start, end, h)) {
+                    return i;
+                }
+
+                i = (i + 1) & mask;
+            }
+        }
+
+        Node child(final String path, final int start, final int end) {
+            final AtomicReferenceArray<Node> table = children;
+
+            if (table == null) {
+                return null;
+            }
+
+            return table.get(slot(table, path, start, end, hash(path, start, end)));
+        }
+
+        synchronized Node addChild(final String path, final int start, final int end,
+                                   final AtomicInteger size) {
+            final int h = hash(path, start, end);
+            final Node existing = child(path, start, end);
+
+            if (existing != null) {
+                return existing;
+            }
+
+            if (children == null) {
+                children = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+            } else if ((count + 1) * LOAD_DENOMINATOR > children.length() * LOAD_NUMERATOR) {
+                children = rehash(children, children.length() * 2);
+            }
+
+            final Node child = new Node(path.substring(start, end), h);
+            children.set(slot(children, path, start, end, h), child);
+            count++;
+            size.incrementAndGet();
+
+            return child;
+        }
+
+        synchronized void removeChild(final String path, final int start, final int end,
+                                      final AtomicInteger size) {
+            final AtomicReferenceArray<Node> table = children;
+
+            if (table == null) {
+                return;
+            }
+
+            final int i = slot(table, path, start, end, hash(path, start, end));
+            final Node removed = table.get(i);
+
+            if (removed == null) {
+                return;
+            }
+
+            // Removing from an open addressed table would break the probe
+            // sequences of other children, so the table is rebuilt instead
+            final AtomicReferenceArray<Node> rebuilt = new AtomicReferenceArray<>(table.length());
+
+            for (int j = 0; j < table.length(); j++) {
+                final Node child = table.get(j);
+
+                if (child != null && child != removed) {
+                    rebuilt.set(slot(rebuilt, child.name, 0, child.name.length(), child.hash), child);
+                }
+            }
+
+            children = rebuilt;
+            count--;
+            size.addAndGet(-removed.countNodes());
+        }
+
+        private static AtomicReferenceArray<Node> rehash(final AtomicReferenceArray<Node> table,
+                                                         final int capacity) {
+            final AtomicReferenceArray<Node> grown = new AtomicReferenceArray<>(capacity);
+
+            for (int i = 0; i < table.length(); i++) {
+                final Node child = table.get(i);
+
+                if (child != null) {
+                    grown.set(slot(grown, child.name, 0, child.name.length(), child.hash), child);
+                }
+            }
+
+            return grown;
+        }
+
+        /**
+         * @return number of nodes in the subtree rooted at this node
+         */
+        private int countNodes() {
+            final AtomicReferenceArray<Node> table = children;
+            int nodes = 1;
+
+            if (table != null) {
+                for (int i = 0; i < table.length(); i++) {
+                    final Node child = table.get(i);
+
+                    if (child != null) {
+                        nodes += child.countNodes();
+                    }
+                }
+            }
+
+            return nodes;
+        }
+    }
+}
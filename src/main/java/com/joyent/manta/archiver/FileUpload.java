@@ -11,13 +11,21 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.math3.util.Precision;
 import org.bouncycastle.util.encoders.Hex;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that provides properties about a file that has been compressed and
- * is pending upload to Manta.
+ * is pending upload to Manta. The compressed contents are either held in a
+ * temp file or, for small files, in a buffer that may belong to a
+ * {@link BufferPool}.
  */
 class FileUpload implements ObjectUpload {
     private final Path sourcePath;
@@ -26,6 +34,10 @@ class FileUpload implements ObjectUpload {
     private final Instant lastModified;
     private final long uncompressedSize;
     private final long compressedSize;
+    private final byte[] buffer;
+    private final BufferPool bufferPool;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    private final AtomicInteger references = new AtomicInteger(1);
     private AtomicInteger uploadAttempts = new AtomicInteger(0);
 
     /**
@@ -47,6 +59,33 @@ class FileUpload implements ObjectUpload {
         this.lastModified = lastModified;
         this.uncompressedSize = uncompressedSize;
         this.compressedSize = compressedSize;
+        this.buffer = null;
+        this.bufferPool = null;
+    }
+
+    /**
+     * Creates a new instance of a file object whose compressed contents are
+     * held in memory.
+     *
+     * @param buffer buffer starting with the compressed version of the file
+     * @param bufferPool pool to return the buffer to or null if it isn't pooled
+     * @param sourcePath path to the original uncompressed version of the file
+     * @param checksum checksum of the original uncompressed version of the file
+     * @param lastModified last-modified timestamp
+     * @param uncompressedSize size of the file uncompressed
+     * @param compressedSize size of the file compressed
+     */
+    FileUpload(final byte[] buffer, final BufferPool bufferPool, final Path sourcePath,
+               final byte[] checksum, final Instant lastModified,
+               final long uncompressedSize, final long compressedSize) {
+        this.sourcePath = sourcePath;
+        this.tempPath = null;
+        this.checksum = checksum;
+        this.lastModified = lastModified;
+        this.uncompressedSize = uncompressedSize;
+        this.compressedSize = compressedSize;
+        this.buffer = buffer;
+        this.bufferPool = bufferPool;
     }
 
     @Override
@@ -63,6 +102,108 @@ class FileUpload implements ObjectUpload {
         return tempPath;
     }
 
+    /**
+     * @return true when the compressed contents are held in memory rather than in a temp file
+     */
+    boolean isInMemory() {
+        return buffer != null;
+    }
+
+    /**
+     * @return buffer starting with the compressed contents, which are
+     *         {@link #getCompressedSize()} bytes long
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return true when the compressed contents can still be read
+     */
+    boolean isContentAvailable() {
+        if (isInMemory()) {
+            return !released.get();
+        }
+
+        return Files.exists(tempPath, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * Opens a stream of the compressed contents.
+     *
+     * @return stream that must be closed
+     * @throws IOException thrown when the temp file can't be opened
+     */
+    InputStream openContent() throws IOException {
+        if (isInMemory()) {
+            return new ByteArrayInputStream(buffer, 0, (int)compressedSize);
+        }
+
+        return Files.newInputStream(tempPath);
+    }
+
+    /**
+     * Keeps the compressed contents from being freed by {@link #release()}
+     * until {@link #releaseContent()} is called, so that a request still
+     * sending them, such as a hedged request that lost, can't read a buffer
+     * that was reused by another file.
+     *
+     * @return true when the contents were retained, false when they were already freed
+     */
+    boolean retainContent() {
+        while (true) {
+            final int count = references.get();
+
+            if (count == 0) {
+                return false;
+            }
+
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends a use of the compressed contents started by {@link #retainContent()}.
+     *
+     * @throws IOException thrown when the temp file can't be deleted
+     */
+    void releaseContent() throws IOException {
+        if (references.decrementAndGet() == 0) {
+            free();
+        }
+    }
+
+    /**
+     * Releases the compressed contents by returning their buffer to its pool,
+     * handing their temp file over to the {@link CompressionCache} or deleting
+     * it, once they are no longer retained. The contents can't be read
+     * afterwards.
+     *
+     * @throws IOException thrown when the temp file can't be deleted
+     */
+    void release() throws IOException {
+        if (released.compareAndSet(false, true)) {
+            releaseContent();
+        }
+    }
+
+    private void free() throws IOException {
+        if (!isInMemory()) {
+            try {
+                // Compressed files are kept by the cache for later runs when it is enabled
+                if (!CompressionCache.current().retain(this)) {
+                    Files.deleteIfExists(tempPath);
+                }
+            } finally {
+                TempStorage.current().release(tempPath);
+            }
+        } else if (bufferPool != null) {
+            bufferPool.release(buffer);
+        }
+    }
+
     byte[] getChecksum() {
         return checksum;
     }
@@ -104,6 +245,7 @@ class FileUpload implements ObjectUpload {
         return new ToStringBuilder(this)
                 .append("sourcePath", sourcePath)
                 .append("tempPath", tempPath)
+                .append("inMemory", isInMemory())
                 .append("checksum", Hex.toHexString(checksum))
                 .append("lastModified", lastModified)
                 .append("compressionPercentage", getCompressionPercentage())
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * {@link TransferClient} implementation that forwards all calls to another
+ * client. Decorators that add behavior to a subset of operations extend this
+ * class and override only the methods they are interested in.
+ */
+abstract class ForwardingTransferClient implements TransferClient {
+    private final TransferClient delegate;
+
+    /**
+     * Creates a new instance that forwards to the specified client.
+     *
+     * @param delegate client to forward calls to
+     */
+    ForwardingTransferClient(final TransferClient delegate) {
+        this.delegate = requireNonNull(delegate, "Delegate client is null");
+    }
+
+    /**
+     * @return the client that calls are forwarded to
+     */
+    TransferClient delegate() {
+        return delegate;
+    }
+
+    /**
+     * Finds the first client of the specified type in a chain of forwarding
+     * clients.
+     *
+     * @param client outermost client of the chain
+     * @param type type of client to find
+     * @param <T> type of client to find
+     * @return the matching client or null if it isn't present in the chain
+     */
+    static <T extends TransferClient> T unwrap(final TransferClient client,
+                                               final Class<T> type) {
+        TransferClient current = client;
+
+        while (current != null) {
+            if (type.isInstance(current)) {
+                return type.cast(current);
+            }
+
+            if (current instanceof ForwardingTransferClient) {
+                current = ((ForwardingTransferClient)current).delegate();
+            } else {
+                current = null;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public int getMaximumConcurrentConnections() {
+        return delegate.getMaximumConcurrentConnections();
+    }
+
+    @Override
+    public Stream<FileDownload> find() {
+        return delegate.find();
+    }
+
+    @Override
+    public void mkdirp(final String path, final DirectoryUpload upload) {
+        delegate.mkdirp(path, upload);
+    }
+
+    @Override
+    public void put(final String path, final FileUpload upload) {
+        delegate.put(path, upload);
+    }
+
+    @Override
+    public void put(final String path, final SymbolicLinkUpload upload) {
+        delegate.put(path, upload);
+    }
+
+    @Override
+    public void delete(final String path, final boolean recursive) {
+        delegate.delete(path, recursive);
+    }
+
+    @Override
+    public VerificationResult verifyDirectory(final String remotePath) {
+        return delegate.verifyDirectory(remotePath);
+    }
+
+    @Override
+    public VerificationResult verifyFile(final String remotePath, final long size,
+                                         final byte[] checksum) {
+        return delegate.verifyFile(remotePath, size, checksum);
+    }
+
+    @Override
+    public VerificationResult verifyLink(final String remotePath, final Path localResolvedPath) {
+        return delegate.verifyLink(remotePath, localResolvedPath);
+    }
+
+    @Override
+    public VerificationResult download(final String remotePath, final Optional<Path> path) {
+        return delegate.download(remotePath, path);
+    }
+
+    @Override
+    public String get(final String remotePath) {
+        return delegate.get(remotePath);
+    }
+
+    @Override
+    public String convertLocalPathToRemotePath(final Path sourcePath, final Path localRoot) {
+        return delegate.convertLocalPathToRemotePath(sourcePath, localRoot);
+    }
+
+    @Override
+    public Path convertRemotePathToLocalPath(final String remotePath, final Path localRoot) {
+        return delegate.convertRemotePathToLocalPath(remotePath, localRoot);
+    }
+
+    @Override
+    public String getRemotePath() {
+        return delegate.getRemotePath();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaClient;
+import com.joyent.manta.client.MantaObjectResponse;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the metadata returned by HEAD requests, so that an object whose
+ * metadata is requested several times within a run, such as when a file is
+ * verified and then uploaded again, is only requested once.
+ *
+ * <p>Entries expire after a fixed time, and the least recently used entries
+ * are evicted once the cache holds its maximum number of entries. Objects
+ * written or deleted by the process are removed from the cache, but changes
+ * made by other processes are only seen once the entry expires. Only found
+ * objects are cached.</p>
+ *
+ * <p>Entries are spread over segments by path, each with its own lock and
+ * its own share of the maximum number of entries, so that concurrent
+ * requests of different objects rarely wait for each other. A request
+ * marks its path as loading, and its response is only cached if the mark is
+ * still there once the response arrives, so that a response requested
+ * before the object was written or deleted is never cached.</p>
+ *
+ * <p>The cache used by the process is set with {@link #use(HeadCache)}, so
+ * that every client of the process shares it, and is disabled by default.</p>
+ */
+final class HeadCache {
+    private static final Logger LOG = LoggerFactory.getLogger(HeadCache.class);
+
+    /**
+     * Time after which a cached response is requested again.
+     */
+    static final long DEFAULT_TTL_MILLIS = 60_000L;
+
+    /**
+     * Maximum number of responses cached.
+     */
+    static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Maximum number of segments the entries are spread over.
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Minimum number of entries per segment, below which fewer segments
+     * are used so that small caches keep a strict eviction order.
+     */
+    private static final int MIN_SEGMENT_ENTRIES = 1024;
+
+    private static volatile HeadCache current = disabled();
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final Clock clock;
+    private final Segment[] segments;
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+    private final AtomicLong evictions = new AtomicLong(0L);
+
+    /**
+     * Creates a new instance.
+     *
+     * @param ttlMillis time after which a cached response is requested again
+     * @param maxEntries maximum number of responses cached
+     * @param clock clock used to expire entries
+     */
+    HeadCache(final long ttlMillis, final int maxEntries, final Clock clock) {
+        Validate.isTrue(ttlMillis >= 0L, "TTL must not be negative");
+        Validate.isTrue(maxEntries >= 0, "Maximum entries must not be negative");
+
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+
+        final int count = Math.max(1, Math.min(MAX_SEGMENTS, maxEntries / MIN_SEGMENT_ENTRIES));
+        this.segments = new Segment[count];
+
+        for (int i = 0; i < count; i++) {
+            int share = maxEntries / count;
+
+            if (i < maxEntries % count) {
+                share++;
+            }
+
+            segments[i] = new Segment(share);
+        }
+    }
+
+    /**
+     * Creates a new instance holding the default number of entries.
+     *
+     * @param ttlMillis time after which a cached response is requested again
+     */
+    HeadCache(final long ttlMillis) {
+        this(ttlMillis, DEFAULT_MAX_ENTRIES, Clock.systemUTC());
+    }
+
+    /**
+     * @return the cache used by the process
+     */
+    static HeadCache current() {
+        return current;
+    }
+
+    /**
+     * Sets the cache used by the process.
+     *
+     * @param cache cache to use
+     */
+    static void use(final HeadCache cache) {
+        current = Validate.notNull(cache, "HEAD cache must not be null");
+        LOG.debug("Using HEAD cache: {}", cache);
+    }
+
+    /**
+     * @return a cache that holds nothing
+     */
+    static HeadCache disabled() {
+        return new HeadCache(0L, 0, Clock.systemUTC());
+    }
+
+    /**
+     * A HEAD request of an object.
+     */
+    @FunctionalInterface
+    interface HeadRequest {
+        /**
+         * Requests the metadata of the object.
+         *
+         * @return the response
+         * @throws IOException thrown when the request fails
+         */
+        MantaObjectResponse head() throws IOException;
+    }
+
+    /**
+     * @return true when responses are cached
+     */
+    boolean isEnabled() {
+        return ttlMillis > 0L && maxEntries > 0;
+    }
+
+    /**
+     * Returns the cached response for an object or requests it and caches
+     * it when it isn't cached or has expired.
+     *
+     * @param path remote path of the object
+     * @param request request of the object's metadata
+     * @return metadata of the object
+     * @throws IOException thrown when the request fails
+     */
+    MantaObjectResponse head(final String path, final HeadRequest request) throws IOException {
+        if (!isEnabled()) {
+            return request.head();
+        }
+
+        final String key = key(path);
+        final Segment segment = segment(key);
+        final Entry loading = new Entry(null, 0L);
+        final Entry found = segment.lookup(key, clock.millis(), loading);
+
+        if (found != loading && found.response != null) {
+            hits.incrementAndGet();
+            return found.response;
+        }
+
+        misses.incrementAndGet();
+
+        // Another request of the same object is in progress, whose response
+        // will be cached instead
+        if (found != loading) {
+            return request.head();
+        }
+
+        final MantaObjectResponse response;
+
+        try {
+            response = request.head();
+        } catch (IOException | RuntimeException e) {
+            segment.abandon(key, loading);
+            throw e;
+        }
+
+        segment.complete(key, loading, new Entry(response, clock.millis() + ttlMillis));
+
+        return response;
+    }
+
+    /**
+     * Removes an object from the cache, which must be done whenever the
+     * process writes or deletes the object.
+     *
+     * @param path remote path of the object
+     */
+    void invalidate(final String path) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        final String key = key(path);
+        segment(key).remove(key);
+    }
+
+    /**
+     * Removes an object and every object within it from the cache.
+     *
+     * @param path remote path of the object
+     */
+    void invalidateTree(final String path) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        final String key = key(path);
+        final String prefix = key + MantaClient.SEPARATOR;
+
+        for (Segment segment : segments) {
+            segment.removeTree(key, prefix);
+        }
+    }
+
+    private Segment segment(final String key) {
+        return segments[Math.floorMod(key.hashCode(), segments.length)];
+    }
+
+    private static String key(final String path) {
+        if (path.length() > 1 && path.endsWith(MantaClient.SEPARATOR)) {
+            return path.substring(0, path.length() - 1);
+        }
+
+        return path;
+    }
+
+    /**
+     * @return number of responses cached
+     */
+    int size() {
+        int size = 0;
+
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return human readable summary of the use of the cache
+     */
+    String describe() {
+        if (!isEnabled()) {
+            return "disabled";
+        }
+
+        return String.format("%d hits, %d misses, %d entries, %d evictions",
+                getHits(), getMisses(), size(), getEvictions());
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("ttlMillis", ttlMillis)
+                .append("maxEntries", maxEntries)
+                .append("hits", hits)
+                .append("misses", misses)
+                .toString();
+    }
+
+    /**
+     * Entries of a share of the paths, in the order they were last used.
+     */
+    private final class Segment {
+        private final int maxEntries;
+        private final Map<String, Entry> entries = new LinkedHashMap<>(
+                INITIAL_CAPACITY, LOAD_FACTOR, true);
+
+        Segment(final int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * Finds the unexpired entry of a path or else marks the path as
+         * loading.
+         *
+         * @return the entry found, which may be another request's mark, or
+         *         the given mark when the path is now marked as loading
+         */
+        synchronized Entry lookup(final String key, final long now, final Entry loading) {
+            final Entry entry = entries.get(key);
+
+            if (entry != null && (entry.response == null || entry.expiresAt > now)) {
+                return entry;
+            }
+
+            entries.put(key, loading);
+
+            if (entries.size() > maxEntries) {
+                final Iterator<String> eldest = entries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+
+            return loading;
+        }
+
+        /**
+         * Caches a response unless the path was invalidated or evicted
+         * since it was marked as loading.
+         */
+        synchronized void complete(final String key, final Entry loading, final Entry loaded) {
+            entries.replace(key, loading, loaded);
+        }
+
+        synchronized void abandon(final String key, final Entry loading) {
+            entries.remove(key, loading);
+        }
+
+        synchronized void remove(final String key) {
+            entries.remove(key);
+        }
+
+        synchronized void removeTree(final String key, final String prefix) {
+            entries.keySet().removeIf(k -> k.equals(key) || k.startsWith(prefix));
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Cached response along with the time it expires, or the mark of a
+     * path being loaded when it holds no response.
+     */
+    private static final class Entry {
+        private final MantaObjectResponse response;
+        private final long expiresAt;
+
+        Entry(final MantaObjectResponse response, final long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
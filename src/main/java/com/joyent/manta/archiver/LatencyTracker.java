@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe tracker of the most recent latencies of an operation that
+ * provides an estimate of a percentile of those latencies. The percentile
+ * is recalculated periodically rather than on every sample so that reading
+ * it stays cheap.
+ */
+class LatencyTracker {
+    /**
+     * Number of samples recorded between recalculations of the percentile.
+     */
+    private static final int RECALCULATE_EVERY = 32;
+
+    private final long[] samples;
+    private final double percentile;
+    private final int minSamples;
+    private int next = 0;
+    private int count = 0;
+    private int sinceCalculated = 0;
+    private volatile long percentileNanos = -1L;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param capacity number of most recent samples kept
+     * @param percentile percentile to estimate as a fraction (e.g. 0.95)
+     * @param minSamples number of samples needed before an estimate is available
+     */
+    LatencyTracker(final int capacity, final double percentile, final int minSamples) {
+        Validate.isTrue(capacity > 0, "Capacity must be greater than zero");
+        Validate.isTrue(percentile > 0.0 && percentile <= 1.0,
+                "Percentile must be between 0 and 1");
+        Validate.inclusiveBetween(1, capacity, minSamples,
+                "Minimum samples must be between 1 and the capacity");
+
+        this.samples = new long[capacity];
+        this.percentile = percentile;
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Records the latency of a completed operation.
+     *
+     * @param nanos latency in nanoseconds
+     */
+    synchronized void record(final long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        sinceCalculated++;
+
+        if (count >= minSamples && (sinceCalculated >= RECALCULATE_EVERY || percentileNanos < 0)) {
+            sinceCalculated = 0;
+            percentileNanos = calculate();
+        }
+    }
+
+    private long calculate() {
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        final int index = (int)Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    /**
+     * @return the estimated percentile latency in milliseconds or -1 if
+     *         not enough samples have been recorded
+     */
+    long getPercentileMillis() {
+        final long nanos = percentileNanos;
+
+        if (nanos < 0) {
+            return -1L;
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("percentile", percentile)
+                .append("percentileMillis", getPercentileMillis())
+                .toString();
+    }
+}
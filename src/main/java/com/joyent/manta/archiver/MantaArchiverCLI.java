@@ -24,6 +24,7 @@ import com.joyent.manta.config.ConfigContext;
 import com.joyent.manta.util.MantaVersion;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
@@ -37,9 +38,13 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -456,6 +461,249 @@ public class MantaArchiverCLI {
     }
 
     public abstract static class ArchiveSubCommand extends MantaSubCommand {
+        @CommandLine.Option(names = {"--limit-schedule"},
+                description = "transfer limits by time of day "
+                        + "(e.g. \"08:00-20:00=50MB,200rps;*=unlimited\")")
+        private String limitSchedule;
+
+        @CommandLine.Option(names = {"--limit-control-file"},
+                description = "file containing a limit schedule that is reloaded "
+                        + "when modified or upon SIGUSR2")
+        private String limitControlFile;
+
+        @CommandLine.Option(names = {"--hedge"},
+                description = "issue a duplicate request when a request to Manta "
+                        + "is slower than usual and use the first response")
+        private boolean hedge;
+
+        @CommandLine.Option(names = {"--temp-dirs"},
+                description = "comma separated directories for compressed temp files, "
+                        + "each optionally limited in size (e.g. \"/mnt/ssd1=200GB,/dev/shm=2GB\")")
+        private String tempDirs;
+
+        @CommandLine.Option(names = {"--endpoints"},
+                description = "comma separated Manta URLs that requests are spread over "
+                        + "instead of the configured Manta URL")
+        private String endpoints;
+
+        @CommandLine.Option(names = {"--clients"},
+                description = "number of Manta clients, each with its own connection pool, "
+                        + "that requests are spread over (default: one per endpoint)")
+        private Integer clients;
+
+        @CommandLine.Option(names = {"--head-cache-ttl"},
+                description = "seconds for which the metadata of remote objects is reused "
+                        + "instead of being requested again, or 0 to always request it (default: 60)")
+        private Long headCacheTtl;
+
+        /**
+         * Configures the directories that compressed temp files are written
+         * to, if the user specified any.
+         */
+        void configureTempStorage() {
+            if (tempDirs == null) {
+                return;
+            }
+
+            try {
+                TempStorage.use(TempStorage.parse(tempDirs));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid temp directories: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        /**
+         * Configures the cache of compressed files, if the user specified one,
+         * for the subcommands that compress files.
+         *
+         * @param cacheSpec cache directory and size as input by the user or null
+         */
+        void configureCompressionCache(final String cacheSpec) {
+            if (cacheSpec == null) {
+                return;
+            }
+
+            try {
+                CompressionCache.use(CompressionCache.parse(cacheSpec));
+            } catch (IllegalArgumentException | IOException e) {
+                System.err.println("Invalid compression cache: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        /**
+         * Lists the remote working directory into the client's index, if the
+         * user asked for it, for the subcommands that compare local files with
+         * remote objects that may not exist.
+         *
+         * @param client client whose remote working directory is listed
+         * @param prefetch true when the user asked for the listing
+         * @throws InterruptedException thrown when interrupted while listing
+         */
+        void prefetchListing(final MantaTransferClient client, final boolean prefetch)
+                throws InterruptedException {
+            if (!prefetch) {
+                return;
+            }
+
+            System.err.println("Listing remote directory: " + client.getRemotePath());
+            client.prefetchListing();
+        }
+
+        /**
+         * Configures the client to download large objects in byte ranges, if
+         * the user specified the size of those objects, for the subcommands
+         * that download objects.
+         *
+         * @param client client that downloads objects
+         * @param thresholdSpec size of the objects downloaded in ranges as input by the user or null
+         */
+        void configureRangedDownloads(final MantaTransferClient client, final String thresholdSpec) {
+            if (thresholdSpec == null) {
+                return;
+            }
+
+            try {
+                final long threshold = TempStorage.parseSize(thresholdSpec);
+
+                if (threshold <= 0L) {
+                    throw new IllegalArgumentException("Size must be greater than zero");
+                }
+
+                client.useRangedDownloads(new RangedDownloader(threshold));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid ranged download threshold: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        /**
+         * Configures the cache of the metadata of remote objects shared by
+         * every client of the process. A cache with the same TTL as the one
+         * already in use is kept, so that subcommands run by the same process
+         * share its entries.
+         */
+        void configureHeadCache() {
+            final long ttlMillis;
+
+            if (headCacheTtl == null) {
+                ttlMillis = HeadCache.DEFAULT_TTL_MILLIS;
+            } else if (headCacheTtl < 0L) {
+                System.err.println("Invalid HEAD cache TTL: " + headCacheTtl);
+                System.exit(1);
+                return;
+            } else {
+                ttlMillis = TimeUnit.SECONDS.toMillis(headCacheTtl);
+            }
+
+            if (HeadCache.current().getTtlMillis() != ttlMillis) {
+                HeadCache.use(new HeadCache(ttlMillis));
+            }
+        }
+
+        /**
+         * Opens the upload journal specified by the user, for the subcommands
+         * that upload files.
+         *
+         * @param journalFile journal file as input by the user or null
+         * @param remoteRoot remote directory that files are uploaded to
+         * @return journal that is disabled unless the user specified a journal file
+         */
+        UploadJournal openJournal(final String journalFile, final String remoteRoot) {
+            if (journalFile == null) {
+                return UploadJournal.disabled();
+            }
+
+            try {
+                return UploadJournal.open(Paths.get(journalFile), remoteRoot);
+            } catch (IOException e) {
+                System.err.println("Unable to open upload journal: " + e.getMessage());
+                System.exit(1);
+                return null;
+            }
+        }
+
+        /**
+         * Builds the limiter of bandwidth and request rate specified by the
+         * user's options.
+         *
+         * @return throttle that is unlimited unless the user specified limits
+         */
+        TransferThrottle buildThrottle() {
+            final ThrottleSchedule schedule;
+
+            try {
+                schedule = ThrottleSchedule.parse(limitSchedule);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid limit schedule: " + e.getMessage());
+                System.exit(1);
+                return null;
+            }
+
+            final Path controlFile;
+
+            if (limitControlFile != null) {
+                controlFile = Paths.get(limitControlFile);
+            } else {
+                controlFile = null;
+            }
+
+            return new TransferThrottle(schedule, controlFile, Clock.systemDefaultZone());
+        }
+
+        /**
+         * Builds the client of the remote directory, spreading its requests
+         * over the endpoints and clients specified by the user's options.
+         *
+         * @param mantaDirectory remote directory as input by the user
+         * @param localPath local source path or null when not uploading
+         * @param createParentDirectories recover from a missing remote directory automatically
+         * @param throttle limiter of the bandwidth used for object contents
+         * @return client of the remote directory
+         */
+        MantaTransferClient buildClient(final String mantaDirectory, final Path localPath,
+                                        final boolean createParentDirectories,
+                                        final TransferThrottle throttle) {
+            final MantaClientSupplier supplier;
+
+            if (endpoints == null) {
+                supplier = MANTA_CLIENT_SUPPLIER;
+            } else {
+                supplier = new MantaClientSupplier(Arrays.stream(endpoints.split(","))
+                        .map(String::trim)
+                        .filter(StringUtils::isNotEmpty)
+                        .collect(Collectors.toList()));
+            }
+
+            final int count;
+
+            if (clients != null) {
+                count = clients;
+            } else {
+                count = Math.max(supplier.getEndpointCount(), 1);
+            }
+
+            if (count < 1) {
+                System.err.println("Invalid number of clients: " + count);
+                System.exit(1);
+            }
+
+            configureHeadCache();
+
+            return new MantaTransferClient(supplier, mantaDirectory, localPath,
+                    createParentDirectories, throttle, buildHedger(), count);
+        }
+
+        /**
+         * Builds the hedger of requests specified by the user's options.
+         *
+         * @return hedger that is disabled unless the user enabled hedging
+         */
+        RequestHedger buildHedger() {
+            return new RequestHedger(hedge, RequestHedger.DEFAULT_HEDGE_RATIO);
+        }
+
         /**
          * Validates a local directory path.
          *
@@ -495,15 +743,70 @@ public class MantaArchiverCLI {
         @CommandLine.Option(names = {"-p", "--mkdirp"})
         private boolean mkdirp;
 
+        @CommandLine.Option(names = {"--order"},
+                description = "order of uploads: WALK (default), LARGEST_FIRST, "
+                        + "NEWEST_FIRST or DIRECTORY_ROUND_ROBIN")
+        private UploadOrderPolicy order = UploadOrderPolicy.WALK;
+
+        @CommandLine.Option(names = {"--order-window"},
+                description = "number of local objects that can be reordered at once")
+        private int orderWindow = UploadOrderPolicy.DEFAULT_LOOK_AHEAD_WINDOW;
+
+        @CommandLine.Option(names = {"--async"},
+                description = "upload files with a non-blocking HTTP client that "
+                        + "keeps many more requests in flight")
+        private boolean async;
+
+        @CommandLine.Option(names = {"--max-in-flight"},
+                description = "maximum number of asynchronous uploads in flight")
+        private int maxInFlight = AsyncTransferClient.DEFAULT_MAX_IN_FLIGHT;
+
+        @CommandLine.Option(names = {"--hash-first"},
+                description = "compare files with their remote copies by checksum before "
+                        + "compressing them, so that unchanged files aren't compressed")
+        private boolean hashFirst;
+
+        @CommandLine.Option(names = {"--multipart-threshold"},
+                description = "upload files of this size or larger in parts that are compressed "
+                        + "and uploaded concurrently (e.g. \"1GB\")")
+        private String multipartThreshold;
+
+        @CommandLine.Option(names = {"--compression-cache"},
+                description = "directory that keeps compressed files for later runs, "
+                        + "optionally limited in size (e.g. \"/var/cache/manta-archiver=50GB\")")
+        private String compressionCache;
+
+        @CommandLine.Option(names = {"--prefetch-listing"},
+                description = "list the whole remote directory up front instead of "
+                        + "checking each remote object with its own request")
+        private boolean prefetchListing;
+
+        @CommandLine.Option(names = {"--journal"},
+                description = "file recording the progress of uploads, so that an "
+                        + "interrupted upload resumes where it stopped")
+        private String journal;
+
         @Override
         public void run() {
             final Path localRoot = findLocalPath(localDirectory);
-
-            MantaTransferClient mantaTransferClient = new MantaTransferClient(
-                    MANTA_CLIENT_SUPPLIER, mantaDirectory, localRoot, mkdirp);
-
-            try (TransferManager manager = new TransferManager(mantaTransferClient,
-                    localRoot)) {
+            final long threshold = parseMultipartThreshold();
+            configureTempStorage();
+            configureCompressionCache(compressionCache);
+
+            final TransferThrottle throttle = buildThrottle();
+            MantaTransferClient mantaTransferClient = buildClient(mantaDirectory, localRoot, mkdirp, throttle);
+
+            final TransferManager.Options options = new TransferManager.Options()
+                    .setUploadOrder(order)
+                    .setUploadOrderWindow(orderWindow)
+                    .setJournal(openJournal(journal, mantaTransferClient.getRemotePath()))
+                    .setHashFirst(hashFirst)
+                    .setMultipartThreshold(threshold);
+
+            try (TransferManager manager = new TransferManager(
+                    new RateLimitedTransferClient(withAsyncUploads(mantaTransferClient, throttle),
+                            throttle), localRoot, options)) {
+                prefetchListing(mantaTransferClient, prefetchListing);
                 manager.uploadAll();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -512,6 +815,53 @@ public class MantaArchiverCLI {
                 e.printStackTrace(System.err);
             }
         }
+
+        /**
+         * Parses the size of the files uploaded in parts.
+         *
+         * @return size of the files uploaded in parts or zero if the user didn't set one
+         */
+        private long parseMultipartThreshold() {
+            if (multipartThreshold == null) {
+                return 0L;
+            }
+
+            try {
+                final long threshold = TempStorage.parseSize(multipartThreshold);
+
+                if (threshold < MultipartUploader.MIN_PART_SIZE) {
+                    throw new IllegalArgumentException(String.format(
+                            "Size must be at least %d bytes", MultipartUploader.MIN_PART_SIZE));
+                }
+
+                return threshold;
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid multipart threshold: " + e.getMessage());
+                System.exit(1);
+                return 0L;
+            }
+        }
+
+        /**
+         * Decorates a client with asynchronous uploads if the user enabled them.
+         *
+         * @param client client to decorate
+         * @param throttle throttle limiting the rate of requests
+         * @return decorated client or the client passed if asynchronous uploads aren't used
+         */
+        private TransferClient withAsyncUploads(final MantaTransferClient client,
+                                                final TransferThrottle throttle) {
+            if (!async) {
+                return client;
+            }
+
+            try {
+                return AsyncTransferClient.create(client, throttle, maxInFlight);
+            } catch (TransferClientException e) {
+                System.err.println("Uploading without asynchronous requests: " + e.getRawMessage());
+                return client;
+            }
+        }
     }
 
     @CommandLine.Command(name = "download",
@@ -526,15 +876,22 @@ public class MantaArchiverCLI {
                 index = "1", description = "directory in Manta to download files from")
         private String mantaDirectory;
 
+        @CommandLine.Option(names = {"--ranged-download-threshold"},
+                description = "download objects of this size or larger as byte ranges "
+                        + "fetched concurrently (e.g. \"1GB\")")
+        private String rangedDownloadThreshold;
+
         @Override
         public void run() {
             final Path localRoot = findLocalPath(localDirectory);
+            configureTempStorage();
 
-            MantaTransferClient mantaTransferClient = new MantaTransferClient(
-                    MANTA_CLIENT_SUPPLIER, mantaDirectory);
+            final TransferThrottle throttle = buildThrottle();
+            MantaTransferClient mantaTransferClient = buildClient(mantaDirectory, null, false, throttle);
+            configureRangedDownloads(mantaTransferClient, rangedDownloadThreshold);
 
-            try (TransferManager manager = new TransferManager(mantaTransferClient,
-                    localRoot)) {
+            try (TransferManager manager = new TransferManager(
+                    new RateLimitedTransferClient(mantaTransferClient, throttle), localRoot)) {
                 manager.downloadAll();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -559,18 +916,39 @@ public class MantaArchiverCLI {
                 type = Boolean.class, description = "reupload objects that don't match remote")
         private Boolean fix;
 
+        @CommandLine.Option(names = {"--compression-cache"},
+                description = "directory that keeps compressed files for later runs, "
+                        + "optionally limited in size (e.g. \"/var/cache/manta-archiver=50GB\")")
+        private String compressionCache;
+
+        @CommandLine.Option(names = {"--prefetch-listing"},
+                description = "list the whole remote directory up front instead of "
+                        + "checking each remote object with its own request")
+        private boolean prefetchListing;
+
+        @CommandLine.Option(names = {"--journal"},
+                description = "file recording the progress of uploads, so that an "
+                        + "interrupted upload resumes where it stopped")
+        private String journal;
+
         @Override
         public void run() {
             final Path localRoot = findLocalPath(localDirectory);
+            configureTempStorage();
+            configureCompressionCache(compressionCache);
 
-            MantaTransferClient mantaTransferClient = new MantaTransferClient(
-                    MANTA_CLIENT_SUPPLIER, mantaDirectory);
+            final TransferThrottle throttle = buildThrottle();
+            MantaTransferClient mantaTransferClient = buildClient(mantaDirectory, null, false, throttle);
 
             boolean verificationSuccess = false;
 
-            try (TransferManager manager = new TransferManager(mantaTransferClient,
-                    localRoot)) {
+            try (TransferManager manager = new TransferManager(
+                    new RateLimitedTransferClient(mantaTransferClient, throttle), localRoot,
+                    new TransferManager.Options().setJournal(openJournal(journal, mantaTransferClient.getRemotePath())))) {
+                prefetchListing(mantaTransferClient, prefetchListing);
                 verificationSuccess = manager.verifyLocal(BooleanUtils.isTrue(fix));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (RuntimeException e) {
                 System.err.println("Unrecoverable error verifying files on Manta");
                 e.printStackTrace(System.err);
@@ -593,15 +971,23 @@ public class MantaArchiverCLI {
                 index = "0", description = "directory in Manta to verify to")
         private String mantaDirectory;
 
+        @CommandLine.Option(names = {"--ranged-download-threshold"},
+                description = "download objects of this size or larger as byte ranges "
+                        + "fetched concurrently (e.g. \"1GB\")")
+        private String rangedDownloadThreshold;
+
         @Override
         public void run() {
-            MantaTransferClient mantaTransferClient = new MantaTransferClient(
-                    MANTA_CLIENT_SUPPLIER, mantaDirectory);
+            configureTempStorage();
+
+            final TransferThrottle throttle = buildThrottle();
+            MantaTransferClient mantaTransferClient = buildClient(mantaDirectory, null, false, throttle);
+            configureRangedDownloads(mantaTransferClient, rangedDownloadThreshold);
 
             boolean verificationSuccess = false;
 
-            try (TransferManager manager = new TransferManager(mantaTransferClient,
-                    null)) {
+            try (TransferManager manager = new TransferManager(
+                    new RateLimitedTransferClient(mantaTransferClient, throttle), null)) {
                 verificationSuccess = manager.verifyRemote();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -15,23 +15,64 @@ import com.joyent.manta.config.EnvVarConfigContext;
 import com.joyent.manta.config.MapConfigContext;
 import com.joyent.manta.config.StandardConfigContext;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
- * Provides configured {@link MantaClient} instances.
+ * Provides configured {@link MantaClient} instances. When endpoints are
+ * specified, each instance provided uses the next endpoint in turn instead
+ * of the configured Manta URL.
  */
 public class MantaClientSupplier implements Supplier<MantaClient> {
     private static final int EXPECT_CONTINUE_DEFAULT_TIMEOUT = 3_000;
     private static final int TIMEOUT_FROM_CONNECTION_POOL = 15_000;
 
+    private final List<String> endpoints;
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    /**
+     * Creates a new instance providing clients for the configured Manta URL.
+     */
+    public MantaClientSupplier() {
+        this(Collections.emptyList());
+    }
+
+    /**
+     * Creates a new instance providing clients for each of the specified
+     * endpoints in turn.
+     *
+     * @param endpoints Manta URLs of the endpoints or an empty list to use the configured Manta URL
+     */
+    public MantaClientSupplier(final List<String> endpoints) {
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+    }
+
     @Override
     public MantaClient get() {
+        StandardConfigContext overrides = new StandardConfigContext();
+        overrides.setExpectContinueTimeout(EXPECT_CONTINUE_DEFAULT_TIMEOUT);
+
+        if (!endpoints.isEmpty()) {
+            final int index = Math.floorMod(next.getAndIncrement(), endpoints.size());
+            overrides.setMantaURL(endpoints.get(index));
+        }
+
         ConfigContext config = new ChainedConfigContext(new DefaultsConfigContext(),
                 new EnvVarConfigContext(),
                 new MapConfigContext(System.getProperties()),
-                new StandardConfigContext()
-                        .setExpectContinueTimeout(EXPECT_CONTINUE_DEFAULT_TIMEOUT))
+                overrides)
                         .setConnectionRequestTimeout(TIMEOUT_FROM_CONNECTION_POOL);
         return new MantaClient(config);
     }
+
+    /**
+     * @return number of endpoints that clients are provided for, or zero
+     *         when the configured Manta URL is used
+     */
+    public int getEndpointCount() {
+        return endpoints.size();
+    }
 }
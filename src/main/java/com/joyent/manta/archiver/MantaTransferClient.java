@@ -7,13 +7,13 @@
  */
 package com.joyent.manta.archiver;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.joyent.manta.client.MantaClient;
 import com.joyent.manta.client.MantaMetadata;
 import com.joyent.manta.client.MantaObject;
 import com.joyent.manta.client.MantaObjectInputStream;
 import com.joyent.manta.client.MantaObjectResponse;
+import com.joyent.manta.client.multipart.ServerSideMultipartManager;
+import com.joyent.manta.config.ConfigContext;
 import com.joyent.manta.domain.ObjectType;
 import com.joyent.manta.exception.MantaClientHttpResponseException;
 import com.joyent.manta.exception.MantaUnexpectedObjectTypeException;
@@ -28,6 +28,7 @@ import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.io.DigestInputStream;
@@ -35,15 +36,14 @@ import org.bouncycastle.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
@@ -51,8 +51,10 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.util.Iterator;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
@@ -67,13 +69,29 @@ import static java.util.Objects.requireNonNull;
 class MantaTransferClient implements TransferClient {
     private static final Logger LOG = LoggerFactory.getLogger(MantaTransferClient.class);
 
-    private static final int DIRECTORY_CACHE_SIZE = 16384;
-    private static final int CACHE_ACCESS_EXPIRATION_HOURS = 4;
-    private static final String UNCOMPRESSED_SIZE_HEADER = "m-uncompressed-size";
-    private static final String ORIGINAL_PATH_HEADER = "m-original-path";
-    private static final String ORIGINAL_MD5_HEADER = "m-original-md5";
+    static final String UNCOMPRESSED_SIZE_HEADER = "m-uncompressed-size";
+    static final String ORIGINAL_PATH_HEADER = "m-original-path";
+    static final String ORIGINAL_MD5_HEADER = "m-original-md5";
     private static final String SYMBOLIC_LINK = "m-is-symbolic-link";
 
+    /**
+     * Metadata holding the Base64 encoded UTF-8 target of a symbolic link,
+     * so that the link is verified without reading the object. Links
+     * uploaded before it was added only hold their target in the object.
+     */
+    static final String LINK_TARGET_HEADER = "m-symbolic-link-target";
+
+    /**
+     * Longest encoded link target stored in metadata, which is limited in
+     * size. Links with longer targets only hold their target in the object.
+     */
+    private static final int MAX_LINK_TARGET_HEADER_LENGTH = 1024;
+
+    /**
+     * Largest compressed object size for which uploads are hedged.
+     */
+    private static final long HEDGE_MAX_OBJECT_SIZE = 16L * 1024L * 1024L;
+
     /**
      * Function that converts a {@link MantaObject} to a {@link FileDownload}.
      */
@@ -102,13 +120,23 @@ class MantaTransferClient implements TransferClient {
                 o.isDirectory());
     };
 
-    private Cache<String, Boolean> dirCache = CacheBuilder.newBuilder()
-            .maximumSize(DIRECTORY_CACHE_SIZE)
-            .softValues()
-            .expireAfterAccess(CACHE_ACCESS_EXPIRATION_HOURS, TimeUnit.HOURS)
-            .build();
+    /**
+     * Remote directories known to exist. Directories are never evicted, so
+     * each is only checked or created once per run.
+     */
+    private final DirectoryTrie dirCache = new DirectoryTrie();
 
-    private final AtomicReference<MantaClient> clientRef;
+    /**
+     * Directory creation requests that are currently in progress keyed by
+     * the remote directory path.
+     */
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> inFlightDirs =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Clients that requests are spread over.
+     */
+    private final ClientPool clients;
 
     /**
      * Path to the remote working directory.
@@ -121,6 +149,28 @@ class MantaTransferClient implements TransferClient {
      */
     private final String singleFile;
 
+    /**
+     * Limiter of the bandwidth used when transferring object contents.
+     */
+    private final TransferThrottle throttle;
+
+    /**
+     * Hedger of idempotent requests used to cut tail latency.
+     */
+    private final RequestHedger hedger;
+
+    /**
+     * Index of the remote tree consulted before requesting an object's
+     * metadata, which knows nothing unless a listing was prefetched.
+     */
+    private volatile RemoteIndex index = RemoteIndex.empty();
+
+    /**
+     * Downloader of large objects in byte ranges, which accepts no object
+     * unless it was enabled.
+     */
+    private volatile RangedDownloader rangedDownloader = RangedDownloader.disabled();
+
     /**
      * Creates a new instance based on the specified Manta client and the
      * remote working directory.
@@ -146,11 +196,57 @@ class MantaTransferClient implements TransferClient {
                         final String mantaRoot,
                         final Path localPath,
                         final boolean createParentDirectories) {
+        this(clientSupplier, mantaRoot, localPath, createParentDirectories,
+                new TransferThrottle(), RequestHedger.disabled());
+    }
+
+    /**
+     * Creates a new instance based on the specified Manta client and the
+     * remote working directory.
+     *
+     * @param clientSupplier Manta client supplier that provides configured MantaClient instances
+     * @param mantaRoot remote working directory
+     * @param localPath local source path
+     * @param createParentDirectories recover from a missing manta root automatically
+     * @param throttle limiter of the bandwidth used for object contents
+     * @param hedger hedger of idempotent requests
+     */
+    MantaTransferClient(final Supplier<MantaClient> clientSupplier,
+                        final String mantaRoot,
+                        final Path localPath,
+                        final boolean createParentDirectories,
+                        final TransferThrottle throttle,
+                        final RequestHedger hedger) {
+        this(clientSupplier, mantaRoot, localPath, createParentDirectories, throttle, hedger, 1);
+    }
+
+    /**
+     * Creates a new instance based on the specified Manta client and the
+     * remote working directory.
+     *
+     * @param clientSupplier Manta client supplier that provides configured MantaClient instances
+     * @param mantaRoot remote working directory
+     * @param localPath local source path
+     * @param createParentDirectories recover from a missing manta root automatically
+     * @param throttle limiter of the bandwidth used for object contents
+     * @param hedger hedger of idempotent requests
+     * @param clientCount number of clients obtained from the supplier that requests are spread over
+     */
+    MantaTransferClient(final Supplier<MantaClient> clientSupplier,
+                        final String mantaRoot,
+                        final Path localPath,
+                        final boolean createParentDirectories,
+                        final TransferThrottle throttle,
+                        final RequestHedger hedger,
+                        final int clientCount) {
+        this.throttle = requireNonNull(throttle, "Throttle is null");
+        this.hedger = requireNonNull(hedger, "Hedger is null");
+
         // A null supplier is only ever valid when testing
         if (clientSupplier == null) {
-            this.clientRef = null;
+            this.clients = null;
         } else {
-            this.clientRef = new AtomicReference<>(clientSupplier.get());
+            this.clients = ClientPool.create(clientSupplier, clientCount);
         }
 
         final String normalized = normalize(mantaRoot);
@@ -166,7 +262,7 @@ class MantaTransferClient implements TransferClient {
             boolean missingRemote = false;
 
             try {
-                existingRemote = clientRef.get().head(normalized);
+                existingRemote = clients.primary().head(normalized);
             } catch (IOException e) {
                 if (e instanceof MantaClientHttpResponseException) {
                     MantaClientHttpResponseException mchre = (MantaClientHttpResponseException) e;
@@ -206,11 +302,26 @@ class MantaTransferClient implements TransferClient {
 
     private void populateDirectoryCache() {
         LOG.debug("Populating directory cache");
-        if (mantaRoot.endsWith(MantaClient.SEPARATOR)) {
-            dirCache.put(mantaRoot, true);
-        } else {
-            dirCache.put(mantaRoot + MantaClient.SEPARATOR, true);
-        }
+        dirCache.add(mantaRoot);
+    }
+
+    /**
+     * Lists the whole remote working directory up front, so that the
+     * existence of remote objects and directories is looked up in an index
+     * instead of being requested for each object.
+     *
+     * @throws InterruptedException thrown when interrupted while listing
+     */
+    void prefetchListing() throws InterruptedException {
+        final RemoteIndex built = RemoteIndex.build(mantaRoot, dir -> clients.call(c -> c.listObjects(dir)),
+                getMaximumConcurrentConnections());
+        LOG.info("Prefetched remote listing: {}", built.describe());
+        built.forEachDirectory(dirCache::add);
+        index = built;
+    }
+
+    RemoteIndex getIndex() {
+        return index;
     }
 
     @Override
@@ -218,7 +329,7 @@ class MantaTransferClient implements TransferClient {
         if (singleFile != null) {
             try {
                 String path = mantaRoot + singleFile;
-                MantaObjectResponse head = clientRef.get().head(path);
+                MantaObjectResponse head = clients.call(c -> c.head(path));
                 return Stream.of(OBJ_TO_DOWNLOAD_FUNCTION.apply(head));
             } catch (IOException e) {
                 String msg = "Unable to find remote object";
@@ -228,18 +339,22 @@ class MantaTransferClient implements TransferClient {
             }
         }
 
-        return clientRef.get().find(mantaRoot).map(OBJ_TO_DOWNLOAD_FUNCTION);
+        final int parallelism = Math.min(RemoteTreeLister.DEFAULT_PARALLELISM,
+                getMaximumConcurrentConnections());
+
+        return RemoteTreeLister.find(mantaRoot, dir -> clients.call(c -> c.listObjects(dir)), parallelism)
+                .map(OBJ_TO_DOWNLOAD_FUNCTION);
     }
 
     @Override
     public void mkdirp(final String path, final DirectoryUpload upload) {
-        if (BooleanUtils.toBoolean(dirCache.getIfPresent(path))) {
+        if (isKnownDirectory(path)) {
             LOG.debug("Directory is already in cache [{}]", path);
             return;
         }
 
         try {
-            clientRef.get().putDirectory(path, true);
+            ensureDirectory(path);
         } catch (IOException e) {
             String msg = "Unable to create directory";
             TransferClientException tce = new TransferClientException(msg, e);
@@ -247,14 +362,156 @@ class MantaTransferClient implements TransferClient {
             tce.setContextValue("mantaPath", path);
             throw tce;
         }
+    }
+
+    /**
+     * Makes sure that a remote directory exists, creating it if it isn't
+     * already in the directory cache. Concurrent calls for the same directory
+     * are coalesced so that only the first caller issues a request and all
+     * other callers wait for its result. When the request fails, every waiting
+     * caller receives the failure and the next call will issue a new request.
+     *
+     * @param path remote directory path
+     * @throws IOException thrown when the directory couldn't be created
+     */
+    void ensureDirectory(final String path) throws IOException {
+        final String dir = withTrailingSeparator(path);
+
+        while (!isKnownDirectory(dir)) {
+            final CompletableFuture<Boolean> created = new CompletableFuture<>();
+            final CompletableFuture<Boolean> inFlight = inFlightDirs.putIfAbsent(dir, created);
+
+            if (inFlight == null) {
+                try {
+                    // Another request may have finished between the cache check and now
+                    if (!isKnownDirectory(dir)) {
+                        createDirectory(dir);
+                    }
+
+                    created.complete(true);
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    created.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlightDirs.remove(dir, created);
+                }
+            }
+
+            LOG.debug("Waiting on in-flight creation of directory [{}]", dir);
+
+            try {
+                inFlight.get();
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException iioe = new InterruptedIOException(
+                        "Interrupted while waiting on directory creation: " + dir);
+                iioe.initCause(e);
+                throw iioe;
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
 
-        dirCache.put(path, true);
+                throw new TransferClientException(cause);
+            }
+        }
+    }
+
+    /**
+     * Creates a remote directory with a single request, first making sure
+     * that its parent exists the same way when the parent is within the
+     * remote working directory. Missing parents are thereby created on
+     * demand from the top down, and concurrent uploads below a new directory
+     * share the requests creating it. Directories outside of the remote
+     * working directory are created along with all of their missing parents.
+     *
+     * @param dir remote directory path with a trailing separator
+     * @throws IOException thrown when the directory couldn't be created
+     */
+    private void createDirectory(final String dir) throws IOException {
+        final String parent = parentDirectory(dir);
+
+        if (parent != null && !isKnownDirectory(parent)
+                && parent.startsWith(withTrailingSeparator(mantaRoot))) {
+            ensureDirectory(parent);
+        }
+
+        // When the parent is known to exist, we only need a single PUT
+        if (parent != null && isKnownDirectory(parent)) {
+            clients.call(c -> c.putDirectory(dir));
+        } else {
+            LOG.debug("Parent directory is not in cache [{}]", dir);
+            clients.call(c -> {
+                c.putDirectory(dir, true);
+                return null;
+            });
+        }
+
+        invalidate(dir);
+        cacheDirectoryAndParents(dir);
+    }
+
+    /**
+     * Determines if a remote directory is known to exist from the directory
+     * cache, which holds the directories of the remote index as well.
+     *
+     * @param path remote directory path
+     * @return true when no request is needed to know that the directory exists
+     */
+    private boolean isKnownDirectory(final String path) {
+        return dirCache.contains(path);
+    }
+
+    /**
+     * Adds a directory and therefore all of its parents to the directory
+     * cache. This should only be called after the directory is known to
+     * exist remotely.
+     *
+     * @param path remote directory path
+     */
+    private void cacheDirectoryAndParents(final String path) {
+        dirCache.add(path);
+    }
+
+    /**
+     * Finds the parent directory of a remote directory path.
+     *
+     * @param path remote directory path
+     * @return parent directory with a trailing separator or null if the path is the root
+     */
+    static String parentDirectory(final String path) {
+        final String noSeparator = StringUtils.removeEnd(path, MantaClient.SEPARATOR);
+
+        if (noSeparator.isEmpty()) {
+            return null;
+        }
+
+        return FilenameUtils.getFullPath(noSeparator);
+    }
+
+    private static String withTrailingSeparator(final String path) {
+        if (path.endsWith(MantaClient.SEPARATOR)) {
+            return path;
+        }
+
+        return path + MantaClient.SEPARATOR;
     }
 
     @Override
     public void put(final String path, final FileUpload upload) {
+        // A conditional PUT of an object known to exist would only be refused
+        final RemoteIndex.Entry indexed = index.lookup(path);
+        final boolean overwrite = indexed != null && indexed.exists() && !indexed.isDirectory();
+        index.invalidate(path);
+
         try {
-            put(path, upload, false);
+            put(path, upload, overwrite);
         } catch (MantaClientHttpResponseException e) {
             MantaClientHttpResponseException thrownException;
 
@@ -275,30 +532,30 @@ class MantaTransferClient implements TransferClient {
             tce.setContextValue("upload", upload);
             tce.setContextValue("mantaPath", path);
             throw tce;
+        } finally {
+            // Cached metadata is only used to check for an identical remote
+            // file before uploading, so it is dropped once the upload is done
+            HeadCache.current().invalidate(path);
         }
     }
 
     private MantaObjectResponse put(final String path, final FileUpload upload, final boolean overwrite)
             throws MantaClientHttpResponseException {
         final String dir = FilenameUtils.getFullPath(path);
-        final File file = upload.getTempPath().toFile();
         final String base64Checksum = Base64.encodeBase64String(upload.getChecksum());
 
-        if (!Files.exists(upload.getTempPath(), LinkOption.NOFOLLOW_LINKS)) {
+        if (!upload.isContentAvailable()) {
             String msg = String.format("Something went wrong. The file [%s] is "
                     + "no longer available for upload. Please make sure that "
                     + "there is no process deleting temp files. Upload details: %s%s",
-                    file.getAbsolutePath(),
+                    upload.getTempPath(),
                     upload, System.lineSeparator());
             System.err.println(msg);
             System.exit(1);
         }
 
         try {
-            if (!BooleanUtils.toBoolean(dirCache.getIfPresent(dir))) {
-                LOG.debug("Parent directory is already not in cache [{}] for file", dir, path);
-                clientRef.get().putDirectory(dir, true);
-            }
+            ensureDirectory(dir);
 
             final String httpLastModified = RFC_1123_DATE_TIME.format(
                     upload.getLastModified().atZone(ZoneOffset.UTC));
@@ -331,7 +588,22 @@ class MantaTransferClient implements TransferClient {
             metadata.put(ORIGINAL_MD5_HEADER, base64Checksum);
 
             LOG.debug("Uploading file [{}] --> [{}]", upload.getSourcePath(), path);
-            return clientRef.get().put(path, file, headers, metadata);
+
+            // Duplicate uploads would double the bandwidth used, so we only
+            // hedge uploads when bandwidth isn't limited
+            if (!throttle.isBandwidthLimited()) {
+                if (upload.getCompressedSize() <= HEDGE_MAX_OBJECT_SIZE) {
+                    return hedger.execute(putOperation(upload.getCompressedSize()),
+                            () -> putContent(path, upload, headers, metadata));
+                }
+
+                return putContent(path, upload, headers, metadata);
+            }
+
+            try (InputStream in = throttle.throttle(upload.openContent())) {
+                return clients.call(c -> c.put(path, in, upload.getCompressedSize(),
+                        headers, metadata));
+            }
         } catch (IOException e) {
             if (e instanceof MantaClientHttpResponseException) {
                 throw (MantaClientHttpResponseException)e;
@@ -345,16 +617,98 @@ class MantaTransferClient implements TransferClient {
         }
     }
 
+    /**
+     * Uploads the compressed contents of a file from its buffer or from its
+     * temp file. A hedged attempt that loses may still be sending once the
+     * upload has returned, so each attempt retains a buffer until it is done
+     * with it rather than copying it.
+     */
+    private MantaObjectResponse putContent(final String path, final FileUpload upload,
+                                           final MantaHttpHeaders headers,
+                                           final MantaMetadata metadata) throws IOException {
+        if (!upload.isInMemory()) {
+            return clients.call(c -> c.put(path, upload.getTempPath().toFile(), headers, metadata));
+        }
+
+        if (!upload.retainContent()) {
+            throw new IOException("Compressed contents of [" + upload.getSourcePath()
+                    + "] were released before being uploaded");
+        }
+
+        try (InputStream in = upload.openContent()) {
+            return clients.call(c -> c.put(path, in, upload.getCompressedSize(), headers, metadata));
+        } finally {
+            upload.releaseContent();
+        }
+    }
+
+    /**
+     * Uploads a large file with a multipart upload, whose parts are
+     * compressed and uploaded concurrently and retried individually by the
+     * multipart uploader. The committed object has the same metadata as an
+     * object uploaded with a single PUT, so it is verified and downloaded
+     * the same way.
+     *
+     * @param path remote path to upload to
+     * @param upload large file to upload
+     * @param uploader uploader compressing and uploading the parts of the file
+     */
+    void putMultipart(final String path, final MultipartFileUpload upload,
+                      final MultipartUploader uploader) {
+        final String dir = FilenameUtils.getFullPath(path);
+        invalidate(path);
+
+        try {
+            ensureDirectory(dir);
+
+            final String httpLastModified = RFC_1123_DATE_TIME.format(
+                    upload.getLastModifiedInstant().atZone(ZoneOffset.UTC));
+            final MantaHttpHeaders headers = new MantaHttpHeaders()
+                    .setLastModified(httpLastModified);
+
+            final MantaMetadata metadata = new MantaMetadata();
+            metadata.put(UNCOMPRESSED_SIZE_HEADER, Long.toString(upload.getSize()));
+            metadata.put(ORIGINAL_PATH_HEADER, MantaUtils.formatPath(upload.getSourcePath().toString()));
+            metadata.put(ORIGINAL_MD5_HEADER, Base64.encodeBase64String(upload.getChecksum()));
+
+            LOG.debug("Uploading file in parts [{}] --> [{}]", upload.getSourcePath(), path);
+
+            // Every part goes through the same client, which holds the lease
+            // for the whole upload
+            try (ClientPool.Lease lease = clients.lease()) {
+                try {
+                    uploader.upload(new ServerSideMultipartManager(lease.client()), throttle,
+                            path, upload, metadata, headers);
+                } catch (IOException | RuntimeException e) {
+                    lease.failed(e);
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            String msg = "Unable to upload file in parts";
+            TransferClientException tce = new TransferClientException(msg, e);
+            tce.setContextValue("upload", upload);
+            tce.setContextValue("mantaPath", path);
+            throw tce;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            String msg = "Interrupted while uploading file in parts";
+            TransferClientException tce = new TransferClientException(msg, e);
+            tce.setContextValue("upload", upload);
+            tce.setContextValue("mantaPath", path);
+            throw tce;
+        }
+    }
+
     @Override
     public void put(final String path, final SymbolicLinkUpload upload) {
         final String dir = FilenameUtils.getFullPath(path);
         final String sourcePath = upload.getSourcePath().toString();
+        invalidate(path);
 
         try {
-            if (!BooleanUtils.toBoolean(dirCache.getIfPresent(dir))) {
-                LOG.debug("Parent directory is already not in cache [{}] for file", dir, path);
-                clientRef.get().putDirectory(dir, true);
-            }
+            ensureDirectory(dir);
 
             final byte[] resolvedLink = upload.linkPathAsUtf8();
 
@@ -375,10 +729,16 @@ class MantaTransferClient implements TransferClient {
 
             metadata.put(ORIGINAL_MD5_HEADER, mime64Checksum);
 
+            final String encodedTarget = Base64.encodeBase64String(resolvedLink);
+
+            if (encodedTarget.length() <= MAX_LINK_TARGET_HEADER_LENGTH) {
+                metadata.put(LINK_TARGET_HEADER, encodedTarget);
+            }
+
             LOG.debug("Uploading link [{}] --> [{}]", upload.getSourcePath(), path);
 
-            MantaObjectResponse response = clientRef.get().put(
-                    path, resolvedLink, headers, metadata);
+            hedger.execute(putOperation(resolvedLink.length),
+                    () -> clients.call(c -> c.put(path, resolvedLink, headers, metadata)));
         } catch (IOException e) {
             String msg = "Unable to upload link";
             TransferClientException tce = new TransferClientException(msg, e);
@@ -390,8 +750,20 @@ class MantaTransferClient implements TransferClient {
 
     @Override
     public VerificationResult verifyDirectory(final String remotePath) {
+        final RemoteIndex.Entry indexed = index.lookup(remotePath);
+
+        if (indexed != null) {
+            if (!indexed.exists()) {
+                return VerificationResult.NOT_FOUND;
+            } else if (!indexed.isDirectory()) {
+                return VerificationResult.NOT_DIRECTORY;
+            }
+
+            return VerificationResult.OK;
+        }
+
         try {
-            MantaObjectResponse response = clientRef.get().head(remotePath);
+            MantaObjectResponse response = head(remotePath);
 
             if (!response.isDirectory()) {
                 return VerificationResult.NOT_DIRECTORY;
@@ -417,8 +789,17 @@ class MantaTransferClient implements TransferClient {
     @Override
     public VerificationResult verifyFile(final String remotePath, final long size,
             final byte[] checksum) {
+        final RemoteIndex.Entry indexed = index.lookup(remotePath);
+
+        // Only the object's metadata holds its original size and checksum
+        if (indexed != null && !indexed.exists()) {
+            return VerificationResult.NOT_FOUND;
+        } else if (indexed != null && indexed.isDirectory()) {
+            return VerificationResult.NOT_FILE;
+        }
+
         try {
-            MantaObjectResponse response = clientRef.get().head(remotePath);
+            MantaObjectResponse response = head(remotePath);
 
             if (response.isDirectory()) {
                 return VerificationResult.NOT_FILE;
@@ -473,8 +854,82 @@ class MantaTransferClient implements TransferClient {
 
     @Override
     public VerificationResult verifyLink(final String remotePath, final Path localLink) {
+        final RemoteIndex.Entry indexed = index.lookup(remotePath);
+
+        if (indexed != null && !indexed.exists()) {
+            return VerificationResult.NOT_FOUND;
+        } else if (indexed != null && indexed.isDirectory() && indexed.getChildren() == 0) {
+            return VerificationResult.NOT_LINK_ACTUALLY_EMPTY_DIR;
+        } else if (indexed != null && indexed.isDirectory() && indexed.getChildren() > 0) {
+            return VerificationResult.NOT_LINK_ACTUALLY_DIR;
+        }
+
+        final MantaObjectResponse response;
+
+        try {
+            response = head(remotePath);
+        } catch (IOException e) {
+            if (e instanceof MantaClientHttpResponseException) {
+                MantaClientHttpResponseException mchre = (MantaClientHttpResponseException)e;
+
+                if (mchre.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                    LOG.info("Couldn't find remote link path {}", remotePath);
+                    return VerificationResult.NOT_FOUND;
+                }
+            }
+
+            String msg = "Unable to verify link";
+            TransferClientException tce = new TransferClientException(msg, e);
+            tce.setContextValue("mantaPath", remotePath);
+            throw tce;
+        }
+
+        final boolean isLink = BooleanUtils.toBoolean(response.getHeaderAsString(SYMBOLIC_LINK));
+
+        if (!isLink && response.isDirectory()) {
+            if ("0".equals(response.getHeaderAsString(MantaHttpHeaders.RESULT_SET_SIZE))) {
+                return VerificationResult.NOT_LINK_ACTUALLY_EMPTY_DIR;
+            }
+
+            return VerificationResult.NOT_LINK_ACTUALLY_DIR;
+        } else if (!isLink) {
+            return VerificationResult.NOT_LINK_ACTUALLY_FILE;
+        }
+
+        final String linkTarget = linkTarget(response);
+
+        if (linkTarget != null) {
+            return verifyLocalLinkToRemoteStoredLink(linkTarget, localLink);
+        }
+
+        // Links uploaded before their target was stored in metadata
+        return verifyLinkContent(remotePath, localLink);
+    }
+
+    /**
+     * Reads the target of a symbolic link from the metadata of its object.
+     *
+     * @param object object of the link
+     * @return target of the link or null when the metadata doesn't hold it
+     */
+    private static String linkTarget(final MantaObject object) {
+        final String encoded = object.getHeaderAsString(LINK_TARGET_HEADER);
+
+        if (encoded == null) {
+            return null;
+        }
+
+        return new String(Base64.decodeBase64(encoded), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Verifies a symbolic link by reading its target from the contents of
+     * its object.
+     */
+    private VerificationResult verifyLinkContent(final String remotePath, final Path localLink) {
         final String linkStoredRemotely;
-        try (MantaObjectInputStream in = clientRef.get().getAsInputStream(remotePath)) {
+        try (MantaObjectInputStream in = hedger.execute("GET",
+                () -> clients.call(c -> c.getAsInputStream(remotePath)))) {
             final boolean isLink = BooleanUtils.toBoolean(in.getHeaderAsString(SYMBOLIC_LINK));
 
             if (!isLink && in.isDirectory()) {
@@ -559,11 +1014,29 @@ class MantaTransferClient implements TransferClient {
 
     @Override
     public VerificationResult download(final String remotePath, final Optional<Path> path) {
-        try (MantaObjectInputStream in = clientRef.get().getAsInputStream(remotePath)) {
-            if (BooleanUtils.toBoolean(in.getHeaderAsString(SYMBOLIC_LINK)) && path.isPresent()) {
-                return downloadLink(in, path.get());
-            } else {
-                return downloadFile(remotePath, in, path);
+        final PartialDownload partial;
+
+        if (path.isPresent()) {
+            partial = PartialDownload.of(path.get());
+        } else {
+            partial = null;
+        }
+
+        // The client is leased until the whole object is read, since most of
+        // the time of a download is spent reading the response
+        try (ClientPool.Lease lease = clients.lease()) {
+            try (MantaObjectInputStream in = openForDownload(lease.client(), remotePath, partial)) {
+                if (BooleanUtils.toBoolean(in.getHeaderAsString(SYMBOLIC_LINK)) && path.isPresent()) {
+                    partial.discard();
+                    return downloadLink(in, path.get());
+                }
+
+                try (InputStream body = openBody(remotePath, in, partial)) {
+                    return downloadFile(remotePath, in, body, partial);
+                }
+            } catch (RuntimeException | IOException e) {
+                lease.failed(e);
+                throw e;
             }
         } catch (RuntimeException | IOException e) {
             if (e instanceof MantaClientHttpResponseException) {
@@ -586,7 +1059,12 @@ class MantaTransferClient implements TransferClient {
                                             final Path path)
             throws IOException {
 
-        final String linkStoredRemotely = IOUtils.toString(in, StandardCharsets.UTF_8);
+        String linkStoredRemotely = linkTarget(in);
+
+        if (linkStoredRemotely == null) {
+            linkStoredRemotely = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+
         final Path target = Paths.get(linkStoredRemotely);
 
         try {
@@ -607,9 +1085,150 @@ class MantaTransferClient implements TransferClient {
         return VerificationResult.LINK_OK;
     }
 
+    /**
+     * Opens an object for download. When a previous attempt staged some of
+     * its bytes and the object hasn't changed since, only the bytes that
+     * are missing are requested.
+     */
+    private MantaObjectInputStream openForDownload(final MantaClient client,
+                                                   final String remotePath,
+                                                   final PartialDownload partial)
+            throws IOException {
+        if (partial != null && partial.isResumable()) {
+            final MantaHttpHeaders headers = new MantaHttpHeaders();
+            headers.setRange(String.format("bytes=%d-", partial.getOffset()));
+            headers.setIfMatch(partial.getEtag());
+
+            try {
+                final MantaObjectInputStream in = hedger.execute("GET",
+                        () -> client.getAsInputStream(remotePath, headers));
+
+                if (in.getHeaderAsString(HttpHeaders.CONTENT_RANGE) != null) {
+                    LOG.info("Resuming download of [{}] from byte {}", remotePath, partial.getOffset());
+                } else {
+                    // The whole object was sent, so the staged bytes aren't needed
+                    partial.discard();
+                }
+
+                return in;
+            } catch (MantaClientHttpResponseException e) {
+                if (e.getStatusCode() != HttpStatus.SC_PRECONDITION_FAILED
+                        && e.getStatusCode() != HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                    throw e;
+                }
+
+                LOG.info("Restarting download of [{}], which changed since it was interrupted",
+                        remotePath);
+                partial.discard();
+            }
+        }
+
+        return hedger.execute("GET", () -> client.getAsInputStream(remotePath));
+    }
+
+    /**
+     * Opens the compressed contents of an object, which are staged so that
+     * the download can resume when it is written to a local file.
+     */
+    private InputStream openBody(final String remotePath, final MantaObjectInputStream in,
+                                 final PartialDownload partial) throws IOException {
+        final Long length = in.getContentLength();
+        final long offset;
+        final InputStream remaining;
+
+        if (partial != null) {
+            offset = partial.getOffset();
+        } else {
+            offset = 0L;
+        }
+
+        if (rangedDownloader.accepts(length)) {
+            remaining = openRanges(remotePath, in, offset);
+        } else {
+            remaining = throttle.throttle(in);
+        }
+
+        if (partial == null || length == null) {
+            return remaining;
+        }
+
+        return partial.stage(in.getEtag(), offset + length, remaining);
+    }
+
+    /**
+     * Fetches the rest of a large object as byte ranges fetched
+     * concurrently. The response that revealed the size of the object is
+     * only used for its headers, so its connection is dropped instead of
+     * reading the rest of it. Ranges are only accepted from the same version
+     * of the object.
+     *
+     * @param offset offset of the first byte of the object that is fetched
+     */
+    private InputStream openRanges(final String remotePath, final MantaObjectInputStream in,
+                                   final long offset) {
+        in.abortConnection();
+
+        final String etag = in.getEtag();
+        final RangedDownloader.RangeSource source = (start, end) -> {
+            final MantaHttpHeaders headers = new MantaHttpHeaders();
+            headers.setRange(String.format("bytes=%d-%d", offset + start, offset + end));
+
+            if (etag != null) {
+                headers.setIfMatch(etag);
+            }
+
+            return clients.stream(c -> c.getAsInputStream(remotePath, headers));
+        };
+
+        LOG.debug("Downloading [{}] in ranges", remotePath);
+
+        return rangedDownloader.open(remotePath, in.getContentLength(), source, throttle);
+    }
+
+    /**
+     * Decompresses and verifies the contents of an object. A local file is
+     * only replaced once its new contents are verified, and the bytes staged
+     * for a later attempt are kept when the download fails midway.
+     *
+     * @param remotePath remote path of the object
+     * @param in response of the object, whose headers describe the contents
+     * @param body compressed contents of the object
+     * @param partial staged download of the local file or null to only verify the contents
+     */
     private VerificationResult downloadFile(final String remotePath,
                                             final MantaObjectInputStream in,
-                                            final Optional<Path> path)
+                                            final InputStream body,
+                                            final PartialDownload partial)
+            throws IOException {
+        if (partial == null) {
+            return decompressAndVerify(remotePath, in, body, Optional.empty());
+        }
+
+        boolean finished = false;
+
+        try {
+            final VerificationResult result = decompressAndVerify(remotePath, in, body,
+                    Optional.of(partial.getOutputPath()));
+
+            if (result.isOk()) {
+                partial.commit();
+            } else {
+                partial.discard();
+            }
+
+            finished = true;
+            return result;
+        } finally {
+            if (!finished) {
+                partial.abandon();
+            }
+        }
+    }
+
+    private VerificationResult decompressAndVerify(final String remotePath,
+                                                   final MantaObjectInputStream in,
+                                                   final InputStream body,
+                                                   final Optional<Path> path)
             throws IOException {
 
         final byte[] expectedChecksum;
@@ -617,7 +1236,8 @@ class MantaTransferClient implements TransferClient {
         final long expectedSize;
         final long lastModified;
 
-        try (InputStream decompressStream = ObjectCompressor.INSTANCE.decompress(remotePath, in);
+        try (InputStream decompressStream = ObjectCompressor.INSTANCE.decompress(
+                remotePath, body);
              CountingInputStream cIn = new CountingInputStream(decompressStream);
              DigestInputStream dIn = new DigestInputStream(cIn, new FastMD5Digest())) {
 
@@ -703,17 +1323,41 @@ class MantaTransferClient implements TransferClient {
     @Override
     public String get(final String remotePath) {
         try {
-            return clientRef.get().getAsString(remotePath,
-                    StandardCharsets.UTF_8);
+            return clients.call(c -> c.getAsString(remotePath,
+                    StandardCharsets.UTF_8));
         } catch (IOException e) {
             String msg = "Couldn't find remote object: " + remotePath;
             throw new UncheckedIOException(msg, e);
         }
     }
 
+    /**
+     * Requests the metadata of an object unless the HEAD cache of the process
+     * holds it.
+     *
+     * @param path remote path of the object
+     * @return metadata of the object
+     * @throws IOException thrown when the request fails
+     */
+    private MantaObjectResponse head(final String path) throws IOException {
+        return HeadCache.current().head(path,
+                () -> hedger.execute("HEAD", () -> clients.call(c -> c.head(path))));
+    }
+
+    /**
+     * Removes an object that is about to be written or was just written
+     * from the remote index and from the HEAD cache.
+     *
+     * @param path remote path of the object
+     */
+    private void invalidate(final String path) {
+        index.invalidate(path);
+        HeadCache.current().invalidate(path);
+    }
+
     private MantaObjectResponse checkForRemoteFile(final String path) throws IOException {
         try {
-            return clientRef.get().head(path);
+            return head(path);
         } catch (MantaClientHttpResponseException e) {
             if (e.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
                 return null;
@@ -725,11 +1369,26 @@ class MantaTransferClient implements TransferClient {
 
     @Override
     public void delete(final String remotePath, final boolean recursive) {
+        index.invalidate(remotePath);
+        dirCache.remove(remotePath);
+
+        if (recursive) {
+            HeadCache.current().invalidateTree(remotePath);
+        } else {
+            HeadCache.current().invalidate(remotePath);
+        }
+
         try {
             if (recursive) {
-                clientRef.get().deleteRecursive(remotePath);
+                clients.call(c -> {
+                    c.deleteRecursive(remotePath);
+                    return null;
+                });
             } else {
-                clientRef.get().delete(remotePath);
+                clients.call(c -> {
+                    c.delete(remotePath);
+                    return null;
+                });
             }
         } catch (IOException e) {
             if (e instanceof MantaClientHttpResponseException) {
@@ -750,7 +1409,7 @@ class MantaTransferClient implements TransferClient {
 
     @Override
     public int getMaximumConcurrentConnections() {
-        return this.clientRef.get().getContext().getMaximumConnections();
+        return clients.getMaximumConnections();
     }
 
     @Override
@@ -804,13 +1463,70 @@ class MantaTransferClient implements TransferClient {
         return this.mantaRoot;
     }
 
-    Cache<String, Boolean> getDirCache() {
+    DirectoryTrie getDirCache() {
         return dirCache;
     }
 
     @Override
     public void close() {
-        clientRef.get().close();
+        if (index.isEnabled()) {
+            LOG.info("Remote index: {}", index.describe());
+        }
+
+        if (rangedDownloader.getDownloads() > 0) {
+            LOG.info("Ranged downloads: {}", rangedDownloader.describe());
+        }
+
+        if (HeadCache.current().isEnabled()) {
+            LOG.info("HEAD cache: {}", HeadCache.current().describe());
+        }
+
+        if (clients.size() > 1) {
+            LOG.info("Clients: {}", clients.describe());
+        }
+
+        hedger.close();
+        clients.close();
+    }
+
+    RequestHedger getHedger() {
+        return hedger;
+    }
+
+    ClientPool getClients() {
+        return clients;
+    }
+
+    RangedDownloader getRangedDownloader() {
+        return rangedDownloader;
+    }
+
+    /**
+     * Downloads objects at least as large as the downloader's threshold in
+     * byte ranges instead of over a single connection.
+     *
+     * @param downloader downloader of large objects
+     */
+    void useRangedDownloads(final RangedDownloader downloader) {
+        this.rangedDownloader = requireNonNull(downloader, "Ranged downloader is null");
+    }
+
+    /**
+     * @return configuration of the underlying Manta client
+     */
+    ConfigContext getConfig() {
+        return clients.primary().getContext();
+    }
+
+    /**
+     * Names uploads by power of two size class so that the latencies of
+     * uploads of similar sizes are tracked together when hedging.
+     *
+     * @param size size of object being uploaded
+     * @return operation name for the upload
+     */
+    private static String putOperation(final long size) {
+        return "PUT-" + (Long.SIZE - Long.numberOfLeadingZeros(size));
     }
 
     /**
@@ -822,8 +1538,8 @@ class MantaTransferClient implements TransferClient {
     private String normalize(final String path) {
         final MantaClient client;
 
-        if (clientRef != null) {
-            client = this.clientRef.get();
+        if (clients != null) {
+            client = this.clients.primary();
         } else {
             client = null;
         }
@@ -884,7 +1600,7 @@ class MantaTransferClient implements TransferClient {
 
     private void ensureMantaRootExists() {
         try {
-            clientRef.get().putDirectory(this.mantaRoot, true);
+            clients.primary().putDirectory(this.mantaRoot, true);
         } catch (final IOException ioe) {
             final TransferClientException tce = new TransferClientException("Error creating manta directory");
             tce.setContextValue("mantaPath", this.mantaRoot);
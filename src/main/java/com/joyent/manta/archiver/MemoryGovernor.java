@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Governor that holds back the reading of new work, such as walking a local
+ * directory or listing a remote one, while the heap is close to full.
+ *
+ * <p>Heap occupancy is measured as the heap used after the last garbage
+ * collection, which is reported by garbage collection notifications, so that
+ * garbage that hasn't been collected yet doesn't count. Reading is paused
+ * once occupancy reaches the high watermark and resumed once it falls below
+ * the low watermark, which lets the stages downstream drain the work already
+ * read. Since occupancy is only known as of the last collection, which may
+ * not happen again for a long time once reading stops, a pause also ends as
+ * soon as the stages downstream have nothing left queued, or after a bounded
+ * wait. Reading then goes on until the next collection tells whether the
+ * heap still needs relief.</p>
+ */
+final class MemoryGovernor implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryGovernor.class);
+
+    /**
+     * Default heap occupancy at which reading is paused.
+     */
+    static final double DEFAULT_HIGH_WATERMARK = 0.75;
+
+    /**
+     * Default heap occupancy below which reading is resumed.
+     */
+    static final double DEFAULT_LOW_WATERMARK = 0.60;
+
+    /**
+     * Default maximum duration of a pause.
+     */
+    static final long DEFAULT_MAX_PAUSE_MILLIS = 60_000L;
+
+    /**
+     * Fraction of the heap that items waiting in an unbounded stage's queue
+     * may occupy at most.
+     */
+    private static final int QUEUE_HEAP_FRACTION = 8;
+
+    /**
+     * Time between checks of occupancy while paused.
+     */
+    private static final long PAUSED_CHECK_MILLIS = 50L;
+
+    private static final double PERCENT = 100.0;
+
+    private final LongSupplier currentUsed;
+    private final long maxBytes;
+    private final double highWatermark;
+    private final double lowWatermark;
+    private final long maxPauseNanos;
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final NotificationListener listener = this::handleNotification;
+    private final Set<String> heapPools = new HashSet<>();
+    private final AtomicLong pauses = new AtomicLong(0L);
+    private final AtomicLong pausedNanos = new AtomicLong(0L);
+    private volatile long liveBytes = 0L;
+    private volatile boolean paused = false;
+    private volatile boolean overridden = false;
+
+    /**
+     * Creates a new instance that is only updated by {@link #collected(long)}.
+     *
+     * @param currentUsed supplier of the heap currently used, including garbage
+     * @param maxBytes maximum size of the heap
+     * @param highWatermark fraction of the heap occupied at which reading is paused
+     * @param lowWatermark fraction of the heap occupied below which reading is resumed
+     * @param maxPauseMillis time after which reading is resumed regardless of occupancy
+     */
+    MemoryGovernor(final LongSupplier currentUsed, final long maxBytes,
+                   final double highWatermark, final double lowWatermark,
+                   final long maxPauseMillis) {
+        Validate.isTrue(maxBytes > 0, "Maximum heap size must be greater than zero");
+        Validate.isTrue(lowWatermark > 0 && lowWatermark <= highWatermark && highWatermark <= 1,
+                "Watermarks must satisfy 0 < low <= high <= 1");
+        Validate.isTrue(maxPauseMillis > 0, "Maximum pause must be greater than zero");
+
+        this.currentUsed = currentUsed;
+        this.maxBytes = maxBytes;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.maxPauseNanos = TimeUnit.MILLISECONDS.toNanos(maxPauseMillis);
+    }
+
+    /**
+     * Creates a governor of the JVM's heap that is updated by the garbage
+     * collection notifications of every collector.
+     *
+     * @return a new instance that must be closed to stop listening to notifications
+     */
+    static MemoryGovernor forHeap() {
+        final MemoryGovernor governor = new MemoryGovernor(
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+                Runtime.getRuntime().maxMemory(), DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK,
+                DEFAULT_MAX_PAUSE_MILLIS);
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                governor.heapPools.add(pool.getName());
+            }
+        }
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                final NotificationEmitter emitter = (NotificationEmitter)collector;
+                emitter.addNotificationListener(governor.listener, null, null);
+                governor.emitters.add(emitter);
+            }
+        }
+
+        return governor;
+    }
+
+    private void handleNotification(final Notification notification, final Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(
+                notification.getType())) {
+            return;
+        }
+
+        final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                (CompositeData)notification.getUserData());
+        long used = 0L;
+
+        for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+            if (heapPools.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+
+        collected(used);
+    }
+
+    /**
+     * Records the heap used after a garbage collection and pauses or resumes
+     * reading accordingly.
+     *
+     * @param usedAfterCollection bytes of heap used after the collection
+     */
+    synchronized void collected(final long usedAfterCollection) {
+        liveBytes = usedAfterCollection;
+        // A new collection gives figures that can be trusted again
+        overridden = false;
+        update();
+    }
+
+    private synchronized void update() {
+        // The heap currently used is never less than the live data, so it
+        // is a tighter estimate when it's lower than the last collection's
+        final long occupied = Math.min(liveBytes, currentUsed.getAsLong());
+        final double occupancy = (double)occupied / maxBytes;
+
+        if (!paused && !overridden && occupancy >= highWatermark) {
+            paused = true;
+            pauses.incrementAndGet();
+            LOG.info("Pausing reading of new work: heap occupancy is {}%",
+                    Math.round(occupancy * PERCENT));
+        } else if (paused && occupancy < lowWatermark) {
+            paused = false;
+            LOG.info("Resuming reading of new work: heap occupancy is {}%",
+                    Math.round(occupancy * PERCENT));
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the heap has room for more work, until the work already
+     * read has drained or until the pause has lasted its maximum duration.
+     * Returns right away unless reading is paused.
+     *
+     * @param drained tells whether the stages downstream have nothing left queued
+     * @throws InterruptedException thrown when interrupted while waiting
+     */
+    void awaitHeadroom(final BooleanSupplier drained) throws InterruptedException {
+        if (!paused) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+
+        synchronized (this) {
+            while (paused) {
+                final long elapsed = System.nanoTime() - start;
+
+                if (drained.getAsBoolean()) {
+                    override("nothing is left queued downstream", elapsed);
+                } else if (elapsed >= maxPauseNanos) {
+                    override("the pause reached its maximum duration", elapsed);
+                } else {
+                    wait(PAUSED_CHECK_MILLIS);
+                    update();
+                }
+            }
+        }
+
+        pausedNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Resumes reading while occupancy is still high, without pausing again
+     * before the next collection.
+     */
+    private synchronized void override(final String reason, final long elapsedNanos) {
+        paused = false;
+        overridden = true;
+        LOG.info("Resuming reading of new work after {} ms because {}: "
+                        + "heap occupancy was {}% after the last collection",
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos), reason,
+                Math.round((double)liveBytes / maxBytes * PERCENT));
+        notifyAll();
+    }
+
+    /**
+     * Sizes the queue of a stage that would otherwise be unbounded, so that
+     * the items waiting in it occupy a bounded fraction of the heap.
+     *
+     * @param bytesPerItem estimated heap used by each item
+     * @return maximum number of items to queue
+     */
+    int maxQueuedItems(final long bytesPerItem) {
+        final long items = maxBytes / QUEUE_HEAP_FRACTION / Math.max(bytesPerItem, 1L);
+        return (int)Math.max(1L, Math.min(items, Integer.MAX_VALUE));
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    long getPauses() {
+        return pauses.get();
+    }
+
+    long getPausedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(pausedNanos.get());
+    }
+
+    /**
+     * @return human readable summary of heap occupancy and pauses
+     */
+    String describe() {
+        String state = "running";
+
+        if (paused) {
+            state = "paused";
+        }
+
+        return String.format("%s, %d%% of heap live after last collection "
+                        + "(pause at %d%%, resume below %d%%), paused %d times for %d ms",
+                state, Math.round((double)liveBytes / maxBytes * PERCENT),
+                Math.round(highWatermark * PERCENT), Math.round(lowWatermark * PERCENT),
+                getPauses(), getPausedMillis());
+    }
+
+    @Override
+    public synchronized void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                LOG.debug("Garbage collection listener was already removed", e);
+            }
+        }
+
+        emitters.clear();
+
+        // Nothing should stay blocked once the work is over
+        paused = false;
+        notifyAll();
+    }
+}
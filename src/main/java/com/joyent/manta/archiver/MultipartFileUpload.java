@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * File large enough to be uploaded with a multipart upload. Unlike a
+ * {@link FileUpload}, it isn't compressed ahead of its upload: each part is
+ * compressed just before it is uploaded by the {@link MultipartUploader}.
+ */
+final class MultipartFileUpload implements ObjectUpload {
+    private final Path sourcePath;
+    private final long size;
+    private final long lastModified;
+    private final byte[] checksum;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param sourcePath path to the file to upload
+     * @param size size of the file
+     * @param lastModified last modified time of the file in milliseconds since the epoch
+     * @param checksum checksum of the whole uncompressed file
+     */
+    MultipartFileUpload(final Path sourcePath, final long size, final long lastModified,
+                        final byte[] checksum) {
+        this.sourcePath = sourcePath;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.checksum = checksum;
+    }
+
+    @Override
+    public Path getSourcePath() {
+        return sourcePath;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return false;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    Instant getLastModifiedInstant() {
+        return Instant.ofEpochMilli(lastModified);
+    }
+
+    byte[] getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("sourcePath", sourcePath)
+                .append("size", size)
+                .append("lastModified", lastModified)
+                .append("checksum", Hex.toHexString(checksum))
+                .toString();
+    }
+}
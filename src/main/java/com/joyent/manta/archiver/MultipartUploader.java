@@ -0,0 +1,530 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaMetadata;
+import com.joyent.manta.client.multipart.MantaMultipartUploadPart;
+import com.joyent.manta.client.multipart.ServerSideMultipartManager;
+import com.joyent.manta.client.multipart.ServerSideMultipartUpload;
+import com.joyent.manta.http.MantaHttpHeaders;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads large files with Manta multipart uploads, so that a single file is
+ * sent over several connections and a failure only repeats the part that
+ * failed instead of the whole file.
+ *
+ * <p>A file is read in chunks that are compressed independently into
+ * separate XZ streams, which decompress as one stream once concatenated.
+ * Chunks are compressed concurrently under the same limit as the
+ * compression of other files and each part is uploaded as soon as it is
+ * compressed. Only as many chunks are compressed ahead as parts are uploaded
+ * at once, so a file never needs its whole compressed size in temp space.
+ * Chunks that compress below the minimum part size are joined with the
+ * chunks after them into a single part.</p>
+ *
+ * <p>Each request is retried according to a {@link RetryPolicy}. When a part
+ * fails for good, the multipart upload is aborted.</p>
+ */
+final class MultipartUploader {
+    private static final Logger LOG = LoggerFactory.getLogger(MultipartUploader.class);
+
+    /**
+     * Default size of the files uploaded in parts.
+     */
+    static final long DEFAULT_THRESHOLD = 1024L * 1024L * 1024L;
+
+    /**
+     * Default number of bytes of a file compressed into each chunk.
+     */
+    static final long DEFAULT_CHUNK_SIZE = 64L * 1024L * 1024L;
+
+    /**
+     * Smallest size accepted by Manta for every part but the last.
+     */
+    static final long MIN_PART_SIZE = 5L * 1024L * 1024L;
+
+    /**
+     * Largest number of parts accepted by Manta for a single upload.
+     */
+    static final int MAX_PARTS = 10_000;
+
+    private final long threshold;
+    private final long chunkSize;
+    private final long minPartSize;
+    private final int parallelism;
+    private final ConcurrencyLimit compressionLimit;
+    private final ConcurrencyLimit sendLimit;
+    private final RetryPolicy policy;
+    private final AtomicLong uploads = new AtomicLong(0L);
+    private final AtomicLong parts = new AtomicLong(0L);
+    private final AtomicLong retries = new AtomicLong(0L);
+    private final AtomicLong aborts = new AtomicLong(0L);
+
+    /**
+     * Creates a new instance with the default chunk size and retry policy.
+     *
+     * @param threshold size of the files uploaded in parts
+     * @param parallelism number of parts of all files uploaded at once
+     * @param compressionLimit limit on the number of chunks and files compressed at once
+     */
+    MultipartUploader(final long threshold, final int parallelism,
+                      final ConcurrencyLimit compressionLimit) {
+        this(threshold, DEFAULT_CHUNK_SIZE, MIN_PART_SIZE, parallelism, compressionLimit,
+                new RetryPolicy());
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param threshold size of the files uploaded in parts or zero to upload every file whole
+     * @param chunkSize number of bytes of a file compressed into each chunk
+     * @param minPartSize smallest size of every part but the last
+     * @param parallelism number of parts of all files uploaded at once
+     * @param compressionLimit limit on the number of chunks and files compressed at once
+     * @param policy policy determining when and how requests are retried
+     */
+    MultipartUploader(final long threshold, final long chunkSize, final long minPartSize,
+                      final int parallelism, final ConcurrencyLimit compressionLimit,
+                      final RetryPolicy policy) {
+        Validate.isTrue(threshold >= 0L, "Threshold must not be negative");
+        Validate.isTrue(chunkSize > 0L, "Chunk size must be greater than zero");
+        Validate.isTrue(parallelism > 0, "Parallelism must be greater than zero");
+
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+        this.minPartSize = minPartSize;
+        this.parallelism = parallelism;
+        this.compressionLimit = compressionLimit;
+        this.sendLimit = new ConcurrencyLimit(parallelism);
+        this.policy = policy;
+    }
+
+    /**
+     * @return an uploader that doesn't accept any file
+     */
+    static MultipartUploader disabled() {
+        return new MultipartUploader(0L, 1, new ConcurrencyLimit(1));
+    }
+
+    /**
+     * @return true when files above a threshold are uploaded in parts
+     */
+    boolean isEnabled() {
+        return threshold > 0L;
+    }
+
+    /**
+     * Determines if a file is uploaded in parts.
+     *
+     * @param size size of the file
+     * @return true when the file is large enough to be uploaded in parts
+     */
+    boolean accepts(final long size) {
+        return isEnabled() && size >= threshold;
+    }
+
+    /**
+     * Calculates the number of bytes of a file compressed into each chunk,
+     * which grows for files that would otherwise need too many parts.
+     *
+     * @param size size of the file
+     * @return chunk size of the file
+     */
+    long chunkSizeOf(final long size) {
+        return Math.max(chunkSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    /**
+     * Uploads a file in parts and commits them as a single object. The
+     * upload is aborted when it fails.
+     *
+     * @param manager manager of multipart uploads to the remote object store
+     * @param throttle limiter of the requests and bandwidth used by parts
+     * @param path remote path of the object
+     * @param upload file to upload
+     * @param metadata metadata of the committed object
+     * @param headers headers of the committed object
+     * @throws IOException thrown when the file couldn't be uploaded
+     * @throws InterruptedException thrown when interrupted while uploading
+     */
+    void upload(final ServerSideMultipartManager manager, final TransferThrottle throttle,
+                final String path, final MultipartFileUpload upload,
+                final MantaMetadata metadata, final MantaHttpHeaders headers)
+            throws IOException, InterruptedException {
+        final ServerSideMultipartUpload multipart = withRetries("initiate", path,
+                () -> manager.initiateUpload(path, metadata, headers));
+        final Transfer transfer = new Transfer(manager, throttle, path, upload, multipart);
+        boolean committed = false;
+
+        try {
+            final List<MantaMultipartUploadPart> uploaded = transfer.run();
+            checkUnchanged(upload);
+
+            withRetries("commit", path, () -> {
+                manager.complete(multipart, uploaded.stream());
+                return null;
+            });
+
+            committed = true;
+            uploads.incrementAndGet();
+            LOG.debug("Committed [{}] from {} parts", path, uploaded.size());
+        } finally {
+            transfer.close();
+
+            if (!committed) {
+                abort(manager, multipart, path);
+            }
+        }
+    }
+
+    /**
+     * Makes sure that a file didn't change while its parts were uploaded,
+     * since its metadata was taken before the upload started.
+     */
+    private static void checkUnchanged(final MultipartFileUpload upload) {
+        final File file = upload.getSourcePath().toFile();
+
+        if (file.length() != upload.getSize() || file.lastModified() != upload.getLastModified()) {
+            String msg = "File changed while it was uploaded in parts";
+            FileProcessingException fpe = new FileProcessingException(msg);
+            fpe.setContextValue("path", upload.getSourcePath());
+            fpe.setContextValue("expectedSize", upload.getSize());
+            fpe.setContextValue("actualSize", file.length());
+            throw fpe;
+        }
+    }
+
+    private void abort(final ServerSideMultipartManager manager,
+                       final ServerSideMultipartUpload multipart, final String path) {
+        aborts.incrementAndGet();
+
+        try {
+            manager.abort(multipart);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Unable to abort multipart upload of [{}]", path, e);
+        }
+    }
+
+    /**
+     * Remote request of a multipart upload.
+     *
+     * @param <T> type of the result of the request
+     */
+    @FunctionalInterface
+    private interface Request<T> {
+        /**
+         * Sends the request.
+         *
+         * @return result of the request
+         * @throws IOException thrown when the request failed
+         */
+        T send() throws IOException;
+    }
+
+    /**
+     * Sends a request until it succeeds or the retry policy decides that it
+     * should no longer be retried.
+     */
+    private <T> T withRetries(final String operation, final String path, final Request<T> request)
+            throws IOException, InterruptedException {
+        policy.getBudget().deposit();
+        int attempt = 0;
+
+        while (true) {
+            attempt++;
+
+            try {
+                return request.send();
+            } catch (IOException | RuntimeException e) {
+                if (!policy.shouldRetry(e, attempt)) {
+                    throw e;
+                }
+
+                final long delay = policy.backoffMillis(attempt);
+                retries.incrementAndGet();
+
+                LOG.warn("Attempt {} of multipart {} on [{}] failed. Retrying in {}ms. Cause: {}",
+                        attempt, operation, path, delay, e.getMessage());
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Waits for the result of a task, rethrowing its failure.
+     */
+    private static <T> T await(final Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    long getUploads() {
+        return uploads.get();
+    }
+
+    long getParts() {
+        return parts.get();
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+
+    long getAborts() {
+        return aborts.get();
+    }
+
+    /**
+     * @return human readable summary of the multipart uploads
+     */
+    String describe() {
+        if (!isEnabled()) {
+            return "disabled";
+        }
+
+        return String.format("files of %d bytes or more [%d files in %d parts, "
+                + "%d retried requests, %d aborted]", threshold, getUploads(), getParts(),
+                getRetries(), getAborts());
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("threshold", threshold)
+                .append("chunkSize", chunkSize)
+                .append("parallelism", parallelism)
+                .append("uploads", getUploads())
+                .append("parts", getParts())
+                .append("retries", getRetries())
+                .append("aborts", getAborts())
+                .toString();
+    }
+
+    /**
+     * Compression and upload of the parts of a single file.
+     */
+    private final class Transfer implements AutoCloseable {
+        private final ServerSideMultipartManager manager;
+        private final TransferThrottle throttle;
+        private final String path;
+        private final MultipartFileUpload upload;
+        private final ServerSideMultipartUpload multipart;
+        private final long fileChunkSize;
+        private final ExecutorService executor;
+        private final List<Future<?>> tasks = new ArrayList<>();
+        private final Set<Path> tempFiles = ConcurrentHashMap.newKeySet();
+
+        Transfer(final ServerSideMultipartManager manager, final TransferThrottle throttle,
+                 final String path, final MultipartFileUpload upload,
+                 final ServerSideMultipartUpload multipart) {
+            this.manager = manager;
+            this.throttle = throttle;
+            this.path = path;
+            this.upload = upload;
+            this.multipart = multipart;
+            this.fileChunkSize = chunkSizeOf(upload.getSize());
+            this.executor = Executors.newFixedThreadPool(parallelism,
+                    new NamedThreadFactory("multipart-%d", "multipart", "MultipartThreadPool"));
+        }
+
+        /**
+         * Compresses and uploads every part of the file.
+         *
+         * @return uploaded parts in order
+         * @throws IOException thrown when a chunk couldn't be compressed or uploaded
+         * @throws InterruptedException thrown when interrupted while waiting on a part
+         */
+        List<MantaMultipartUploadPart> run() throws IOException, InterruptedException {
+            final int chunks = (int)Math.max((upload.getSize() + fileChunkSize - 1) / fileChunkSize, 1L);
+            final Deque<Future<Path>> compressing = new ArrayDeque<>();
+            final Deque<Future<MantaMultipartUploadPart>> sending = new ArrayDeque<>();
+            final List<MantaMultipartUploadPart> sent = new ArrayList<>();
+            int submitted = 0;
+            int partNumber = 1;
+            Path part = null;
+
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                // Every chunk in flight holds temp space, so compression only
+                // runs ahead of the uploads by as many chunks as are sent at once
+                while (sending.size() >= parallelism) {
+                    sent.add(await(sending.removeFirst()));
+                }
+
+                while (submitted < chunks && compressing.size() + sending.size() < parallelism) {
+                    final int next = submitted++;
+                    compressing.add(submit(() -> compress(next)));
+                }
+
+                final Path compressed = await(compressing.removeFirst());
+
+                if (part == null) {
+                    part = compressed;
+                } else {
+                    append(compressed, part);
+                }
+
+                if (Files.size(part) >= minPartSize || chunk == chunks - 1) {
+                    final int number = partNumber++;
+                    final Path ready = part;
+                    sending.add(submit(() -> send(number, ready)));
+                    part = null;
+                }
+            }
+
+            while (!sending.isEmpty()) {
+                sent.add(await(sending.removeFirst()));
+            }
+
+            return sent;
+        }
+
+        private <T> Future<T> submit(final Callable<T> task) {
+            final Future<T> future = executor.submit(task);
+            tasks.add(future);
+            return future;
+        }
+
+        /**
+         * Compresses a chunk of the file into a temp file.
+         */
+        private Path compress(final int chunk) throws IOException, InterruptedException {
+            final Path source = upload.getSourcePath();
+            final long offset = chunk * fileChunkSize;
+            final long length = Math.min(fileChunkSize, upload.getSize() - offset);
+
+            compressionLimit.acquire();
+
+            try {
+                final PreprocessingOutputStream out = ObjectUploadQueueLoader.compressedTempFile(
+                        Paths.get(source + ".part" + chunk), length);
+                final Path tempPath = out.getTempPath();
+                tempFiles.add(tempPath);
+
+                try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ);
+                     InputStream in = new BoundedInputStream(
+                             Channels.newInputStream(channel.position(offset)), length);
+                     OutputStream compressor = out) {
+                    IOUtils.copy(in, compressor);
+                }
+
+                TempStorage.current().resize(tempPath, out.getSize());
+
+                return tempPath;
+            } finally {
+                compressionLimit.release();
+            }
+        }
+
+        /**
+         * Appends a compressed chunk to a part that is too small to be sent.
+         */
+        private void append(final Path compressed, final Path part) throws IOException {
+            try (OutputStream out = Files.newOutputStream(part, StandardOpenOption.APPEND)) {
+                Files.copy(compressed, out);
+            }
+
+            TempStorage.current().resize(part, Files.size(part));
+            delete(compressed);
+        }
+
+        /**
+         * Uploads a part and deletes its temp file.
+         */
+        private MantaMultipartUploadPart send(final int number, final Path part)
+                throws IOException, InterruptedException {
+            final long size = Files.size(part);
+
+            sendLimit.acquire();
+
+            try {
+                throttle.acquireRequest();
+                throttle.acquireBytes(size);
+
+                final MantaMultipartUploadPart sent = withRetries("part " + number, path,
+                        () -> manager.uploadPart(multipart, number, part.toFile()));
+                parts.incrementAndGet();
+
+                LOG.trace("Uploaded part {} of [{}] [{} bytes]", number, path, size);
+
+                return sent;
+            } finally {
+                sendLimit.release();
+                delete(part);
+            }
+        }
+
+        private void delete(final Path tempPath) {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                LOG.warn("Unable to delete temp file of part: " + tempPath, e);
+            } finally {
+                TempStorage.current().release(tempPath);
+                tempFiles.remove(tempPath);
+            }
+        }
+
+        /**
+         * Stops the tasks that are still running and deletes the temp files
+         * of the parts that weren't uploaded.
+         */
+        @Override
+        public void close() {
+            tasks.forEach(task -> task.cancel(true));
+            executor.shutdownNow();
+
+            for (Path tempPath : new ArrayList<>(tempFiles)) {
+                delete(tempPath);
+            }
+        }
+    }
+}
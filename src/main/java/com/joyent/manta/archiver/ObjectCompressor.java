@@ -9,6 +9,7 @@ package com.joyent.manta.archiver;
 
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.tukaani.xz.LZMA2Options;
 
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,6 +25,12 @@ public class ObjectCompressor {
      */
     public static final String COMPRESSION_TYPE = CompressorStreamFactory.XZ;
 
+    /**
+     * Preset of the XZ compressor, which is the default preset used by the
+     * compressor stream factory.
+     */
+    static final int COMPRESSION_LEVEL = LZMA2Options.PRESET_DEFAULT;
+
     /**
      * Instance for easy access to a single copy of this object.
      */
@@ -32,6 +39,13 @@ public class ObjectCompressor {
     private static final CompressorStreamFactory COMPRESSOR_STREAM_FACTORY =
             new CompressorStreamFactory();
 
+    /**
+     * Factory of decompression streams that read every concatenated XZ
+     * stream, since files uploaded in parts are compressed one part at a time.
+     */
+    private static final CompressorStreamFactory DECOMPRESSOR_STREAM_FACTORY =
+            new CompressorStreamFactory(true);
+
     /**
      * Compresses stream using the XZ compression format.
      *
@@ -60,7 +74,7 @@ public class ObjectCompressor {
      */
     InputStream decompress(final String mantaPath, final InputStream in) {
         try {
-            return COMPRESSOR_STREAM_FACTORY.createCompressorInputStream(COMPRESSION_TYPE, in);
+            return DECOMPRESSOR_STREAM_FACTORY.createCompressorInputStream(COMPRESSION_TYPE, in);
         } catch (CompressorException e) {
             String msg = "Error compressing file";
             FileProcessingException fpe = new FileProcessingException(msg, e);
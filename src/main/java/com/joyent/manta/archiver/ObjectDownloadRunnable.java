@@ -34,6 +34,7 @@ class ObjectDownloadRunnable implements Runnable {
     private FileDownload fileDownload;
     private AtomicBoolean verificationSuccess;
     private AtomicLong totalObjectsProcessed;
+    private DeadLetterReport deadLetters;
 
     /**
      * Creates a new instance.
@@ -43,17 +44,20 @@ class ObjectDownloadRunnable implements Runnable {
      * @param fileDownload remote object
      * @param verificationSuccess atomic boolean flag indicated everything succeeded
      * @param totalObjectsProcessed atomic long counting total files downlaoded
+     * @param deadLetters report of downloads that failed permanently
      */
     ObjectDownloadRunnable(final Path path,
                            final TransferClient client,
                            final FileDownload fileDownload,
                            final AtomicBoolean verificationSuccess,
-                           final AtomicLong totalObjectsProcessed) {
+                           final AtomicLong totalObjectsProcessed,
+                           final DeadLetterReport deadLetters) {
         this.path = path;
         this.client = client;
         this.fileDownload = fileDownload;
         this.verificationSuccess = verificationSuccess;
         this.totalObjectsProcessed = totalObjectsProcessed;
+        this.deadLetters = deadLetters;
     }
 
     @Override
@@ -82,6 +86,8 @@ class ObjectDownloadRunnable implements Runnable {
             }
 
             LOG.error("Error downloading object", e);
+            verificationSuccess.set(false);
+            deadLetters.add(fileDownload.getRemotePath(), e);
         } finally {
             totalObjectsProcessed.incrementAndGet();
         }
@@ -94,14 +100,8 @@ class ObjectDownloadRunnable implements Runnable {
 
         if (Files.isSymbolicLink(localPath)) {
             try {
-                final Path resolvedLink = Files.readSymbolicLink(localPath);
                 return client.verifyLink(fileDownload.getRemotePath(),
-                        resolvedLink).equals(VerificationResult.LINK_OK);
-            } catch (IOException e) {
-                String msg = String.format("Unable to process symbolic link: %s",
-                        localPath);
-                LOG.error(msg, e);
-                return false;
+                        localPath).equals(VerificationResult.LINK_OK);
             } catch (UncheckedIOException e) {
                 final IOException cause = e.getCause();
 
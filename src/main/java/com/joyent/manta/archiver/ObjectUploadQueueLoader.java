@@ -26,13 +26,16 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.time.Instant;
-import java.util.UUID;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.LinkedTransferQueue;
-import java.util.concurrent.TransferQueue;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.io.File.separator;
+import static java.util.Objects.requireNonNull;
 
 /**
  * Class in charge of compressing files and doing checksums on files that will
@@ -46,48 +49,55 @@ class ObjectUploadQueueLoader {
 
     private static final int FILE_READ_BUFFER = 16_384;
 
-    private static final int MIN_FILE_SIZE_TO_BLOCK_ON = 10_000;
-
     private static final ObjectCompressor COMPRESSOR = ObjectCompressor.INSTANCE;
 
-    private final ForkJoinPool executor;
-    private final TransferQueue<ObjectUpload> queue;
-    private final int queuePreloadSize;
+    private final UploadOrderPolicy orderPolicy;
+    private final int lookAheadWindow;
+    private final ConcurrencyLimit compressionLimit;
+    private final BufferPool bufferPool;
+    private final UploadJournal journal;
+    private final LongAdder compressionNanos = new LongAdder();
     private final AtomicLong objectsProcessed = new AtomicLong(0L);
 
     static {
         // Queue up deletion of temp files when process exits
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            LOG.info("Deleting temp files");
+            final TempStorage storage = TempStorage.current();
 
-            try {
-                FileUtils.forceDelete(TEMP_PATH.toFile());
-            } catch (IOException e) {
-                LOG.warn("Unable to delete temp files from path: " + TEMP_PATH, e);
+            // Temp files recorded in an upload journal are reused by the next run
+            if (storage.isRetainedOnExit()) {
+                LOG.info("Keeping temp files for the next run");
+                return;
             }
+
+            LOG.info("Deleting temp files");
+            storage.deleteAll();
         }));
     }
 
     /**
-     * Creates a new queue loader based on the specified fork join pool
-     * and the maximum queue preload size.
-     *
-     * @param executor fork join pool used for concurrent operations
-     * @param queuePreloadSize number of objects to process before we start
-     *                         blocking queue transfer operations
+     * Creates a new queue loader that submits objects in the order they are
+     * walked and compresses as many files concurrently as there are processors.
      */
-    ObjectUploadQueueLoader(final ForkJoinPool executor, final int queuePreloadSize) {
-        this.executor = executor;
-        this.queuePreloadSize = queuePreloadSize;
-        this.queue = new LinkedTransferQueue<>();
-
-        boolean dataDirCreated = TEMP_PATH.toFile().mkdir();
+    ObjectUploadQueueLoader() {
+        this(new Options());
+    }
 
-        if (dataDirCreated) {
-            LOG.info("Created new temporary data directory: {}", TEMP_PATH);
-        } else {
-            LOG.info("Using existing temporary data directory: {}", TEMP_PATH);
-        }
+    /**
+     * Creates a new queue loader that orders, compresses and journals
+     * objects as specified by the options passed.
+     *
+     * @param options options of the order, compression and journaling of objects
+     */
+    ObjectUploadQueueLoader(final Options options) {
+        this.orderPolicy = options.getOrderPolicy();
+        this.lookAheadWindow = options.getLookAheadWindow();
+        this.compressionLimit = options.getCompressionLimit();
+        this.bufferPool = options.getBufferPool();
+        this.journal = options.getJournal();
+
+        // Temp directories are created as temp files are placed in them
+        LOG.info("Using temporary data directories: {}", TempStorage.current().describe());
     }
 
     /**
@@ -116,42 +126,47 @@ class ObjectUploadQueueLoader {
 
     /**
      * {@link OutputStream} that compresses data and stores embedded metadata
-     * based on the specified path.
+     * based on the specified path. The temp file is placed in one of the
+     * directories of the current {@link TempStorage}, which reserves space
+     * for it.
      *
      * @param path path to the source file that will be written to the stream
+     * @param size size of the source file, used to reserve space for the temp file
      * @return stream configured to write to a compressed temp file
+     * @throws InterruptedException thrown when interrupted while waiting for temp space
      */
-    static PreprocessingOutputStream compressedTempFile(final Path path) {
-        Path subPath = Paths.get(path + "." + ObjectCompressor.COMPRESSION_TYPE);
-        Path tempPath = appendPaths(TEMP_PATH, subPath);
-        Path parent = tempPath.getParent();
-
-        if (Files.exists(tempPath, LinkOption.NOFOLLOW_LINKS)) {
-            Path changedPath = Paths.get(tempPath.getFileName() + "-" + UUID.randomUUID());
-            LOG.warn("Avoiding overwrite of path [{}] by changing file name to [{}]",
-                    tempPath, changedPath);
-            tempPath = changedPath;
-        } else if (!Files.exists(parent, LinkOption.NOFOLLOW_LINKS)) {
-            if (!parent.toFile().mkdirs() && !parent.toFile().exists()) {
-                String msg = "Unable to create parent directory structure";
-                FileProcessingException fpe = new FileProcessingException(msg);
-                fpe.setContextValue("path", path);
-                fpe.setContextValue("parentDir", parent);
-                throw fpe;
-            }
-        }
+    static PreprocessingOutputStream compressedTempFile(final Path path, final long size)
+            throws InterruptedException {
+        final TempStorage storage = TempStorage.current();
+        final Path tempPath = storage.allocate(path, size);
+        final Path parent = tempPath.getParent();
 
         try {
+            if (!Files.exists(parent, LinkOption.NOFOLLOW_LINKS)) {
+                if (!parent.toFile().mkdirs() && !parent.toFile().exists()) {
+                    String msg = "Unable to create parent directory structure";
+                    FileProcessingException fpe = new FileProcessingException(msg);
+                    fpe.setContextValue("path", path);
+                    fpe.setContextValue("parentDir", parent);
+                    throw fpe;
+                }
+            }
+
             OutputStream fileOut = Files.newOutputStream(tempPath,
                     StandardOpenOption.CREATE, StandardOpenOption.WRITE);
             OutputStream compressed = COMPRESSOR.compress(tempPath, fileOut);
             return new PreprocessingOutputStream(compressed, tempPath);
         } catch (IOException e) {
+            storage.release(tempPath);
+
             String msg = "Unable to open path for write";
             FileProcessingException fpe = new FileProcessingException(msg, e);
             fpe.setContextValue("tempPath", tempPath);
 
             throw fpe;
+        } catch (RuntimeException e) {
+            storage.release(tempPath);
+            throw e;
         }
     }
 
@@ -160,15 +175,28 @@ class ObjectUploadQueueLoader {
      * object with metadata about the object.
      *
      * @param in source stream (this stream will be closed)
+     * @param size size of the source file
      * @return object representing metadata and path of the temp file on the
      *         local filesystem
+     * @throws InterruptedException thrown when interrupted while waiting for temp space
      */
-    static FileUpload buildFileToUpload(final PreprocessingInputStream in) {
+    static FileUpload buildFileToUpload(final PreprocessingInputStream in, final long size)
+            throws InterruptedException {
         final Path path = in.getPath();
-        final PreprocessingOutputStream out = compressedTempFile(path);
+        final PreprocessingOutputStream out;
+
+        try {
+            out = compressedTempFile(path, size);
+        } catch (InterruptedException | RuntimeException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+
+        boolean compressed = false;
 
         try {
             IOUtils.copy(in, out);
+            compressed = true;
         } catch (IOException e) {
             String msg = "Unable to copy and compress file contents";
             FileProcessingException fpe = new FileProcessingException(msg, e);
@@ -178,120 +206,272 @@ class ObjectUploadQueueLoader {
         } finally {
             IOUtils.closeQuietly(in);
             IOUtils.closeQuietly(out);
+
+            if (!compressed) {
+                deletePartialTempFile(out.getTempPath());
+            }
         }
 
+        TempStorage.current().resize(out.getTempPath(), out.getSize());
+
+        return new FileUpload(out.getTempPath(), in.getPath(), checksum(in),
+                in.getLastModified(), in.getSize(), out.getSize());
+    }
+
+    private static void deletePartialTempFile(final Path tempPath) {
+        try {
+            Files.deleteIfExists(tempPath);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete partial temp file: " + tempPath, e);
+        } finally {
+            TempStorage.current().release(tempPath);
+        }
+    }
+
+    /**
+     * Compresses a small file into a buffer taken from a pool and returns an
+     * object with metadata about the object. If the compressed file doesn't
+     * fit in the pooled buffer, it is held in a larger buffer instead.
+     *
+     * @param path path to read
+     * @param pool pool the buffer was taken from
+     * @param buffer buffer to compress the file into
+     * @return object representing metadata and the compressed file in memory
+     */
+    static FileUpload fileToUploadInMemory(final Path path, final BufferPool pool,
+                                           final byte[] buffer) {
+        final PooledBufferOutputStream out = new PooledBufferOutputStream(pool, buffer);
+        boolean compressed = false;
+
+        try {
+            final PreprocessingInputStream in = readPath(path);
+
+            try (OutputStream compressor = COMPRESSOR.compress(path, out)) {
+                IOUtils.copy(in, compressor);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+
+            BufferPool owner = null;
+
+            if (out.isPooled()) {
+                owner = pool;
+            }
+
+            final FileUpload upload = new FileUpload(out.getBuffer(), owner, in.getPath(),
+                    checksum(in), in.getLastModified(), in.getSize(), out.size());
+            compressed = true;
+            return upload;
+        } catch (IOException e) {
+            String msg = "Unable to copy and compress file contents";
+            FileProcessingException fpe = new FileProcessingException(msg, e);
+            fpe.setContextValue("path", path);
+
+            throw fpe;
+        } finally {
+            if (!compressed && out.isPooled()) {
+                pool.release(out.getBuffer());
+            }
+        }
+    }
+
+    private static byte[] checksum(final PreprocessingInputStream in) {
         final Digest digest = in.getDigestInputStream().getDigest();
         final byte[] checksum = new byte[digest.getDigestSize()];
         digest.doFinal(checksum, 0);
-
-        return new FileUpload(out.getTempPath(), in.getPath(), checksum,
-                in.getLastModified(), in.getSize(), out.getSize());
+        return checksum;
     }
 
     /**
      * Reads the object data from the specified path and creates a
      * {@link FileUpload} object based on the data from the specified path.
+     * When the compressed contents are in the {@link CompressionCache}, the
+     * cached file is used instead of compressing the file again.
+     *
+     * @param path path to read
+     * @return a file upload object with a compressed file in a temp path or in the cache
+     * @throws InterruptedException thrown when interrupted while waiting for temp space
+     */
+    static FileUpload fileToUploadFromPath(final Path path) throws InterruptedException {
+        return fileToUploadFromPath(path, null);
+    }
+
+    /**
+     * Reads the object data from the specified path and creates a
+     * {@link FileUpload} object, looking the file up in the
+     * {@link CompressionCache} by a checksum that is only computed when it
+     * isn't known yet.
+     *
+     * @param path path to read
+     * @param checksum checksum of the file or null when it isn't known
+     * @return a file upload object with a compressed file in a temp path or in the cache
+     * @throws InterruptedException thrown when interrupted while waiting for temp space
+     */
+    static FileUpload fileToUploadFromPath(final Path path, final byte[] checksum)
+            throws InterruptedException {
+        final FileUpload cached = CompressionCache.current().lookup(path, checksum);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        return compressToTempFile(path);
+    }
+
+    /**
+     * Compresses a file into a temp file without looking it up in the
+     * {@link CompressionCache}.
      *
      * @param path path to read
      * @return a file upload object with a compressed file in a temp path
+     * @throws InterruptedException thrown when interrupted while waiting for temp space
      */
-    static FileUpload fileToUploadFromPath(final Path path) {
+    private static FileUpload compressToTempFile(final Path path) throws InterruptedException {
         final PreprocessingInputStream in = readPath(path);
+        final long size = path.toFile().length();
 
         if (LOG.isTraceEnabled() && !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
             LOG.trace("Started compressing [{}] [{} bytes]",
-                    path, FileUtils.byteCountToDisplaySize(path.toFile().length()));
+                    path, FileUtils.byteCountToDisplaySize(size));
         }
 
         // This method closes the InputStream
-        return buildFileToUpload(in);
+        return buildFileToUpload(in, size);
     }
 
     /**
-     * Adds an object to the queue for eventual upload. This method will preload
-     * <code>queuePreloadSize</code> to the queue and then it will block until
-     * an uploader becomes available before transferring another item to the
-     * queue. This allows us to throttle the amount of compressed temp files
-     * being created on the system.
+     * Prepares an object for upload. Directories and symbolic links are
+     * uploaded as is, while files are compressed into a temp file, or into
+     * memory when they are small, once the compression limit allows for it.
+     * Files whose intact temp file is recorded in the journal by a previous
+     * run aren't compressed again.
      *
-     * @param path path to object to add to upload queue
+     * @param path path to object to prepare
+     * @return object ready to be uploaded
+     * @throws InterruptedException thrown when interrupted while waiting to compress
      */
-    void addObjectToQueue(final Path path) {
-        try {
-            final File file = path.toFile();
-
-            // Creates directory in temporary path
-            if (Files.isSymbolicLink(path)) {
-                SymbolicLinkUpload linkUpload = new SymbolicLinkUpload(path);
-                queue.put(linkUpload);
-            } else if (file.isDirectory()) {
-                appendPaths(TEMP_PATH, path).toFile().mkdirs();
-                queue.put(new DirectoryUpload(path));
-            } else {
-                final FileUpload fileUpload = fileToUploadFromPath(path);
-
-                if (LOG.isDebugEnabled() && !file.isDirectory()) {
-                    LOG.debug("Finished compressing [{}] [{} -> {} {}]",
-                            fileUpload.getSourcePath(),
-                            FileUtils.byteCountToDisplaySize(fileUpload.getUncompressedSize()),
-                            FileUtils.byteCountToDisplaySize(fileUpload.getCompressedSize()),
-                            fileUpload.getCompressionPercentage());
-                }
+    ObjectUpload prepare(final Path path) throws InterruptedException {
+        return prepare(path, null);
+    }
 
-                if (queue.size() > queuePreloadSize && file.length() > MIN_FILE_SIZE_TO_BLOCK_ON) {
-                    queue.transfer(fileUpload);
-                } else {
-                    queue.put(fileUpload);
+    /**
+     * Prepares an object for upload, reusing the checksum of a file that was
+     * already computed, such as when it was compared with its remote copy.
+     *
+     * @param path path to object to prepare
+     * @param checksum checksum of the file or null when it isn't known
+     * @return object ready to be uploaded
+     * @throws InterruptedException thrown when interrupted while waiting to compress
+     */
+    ObjectUpload prepare(final Path path, final byte[] checksum) throws InterruptedException {
+        final File file = path.toFile();
+        final ObjectUpload upload;
+
+        if (Files.isSymbolicLink(path)) {
+            upload = new SymbolicLinkUpload(path);
+        } else if (file.isDirectory()) {
+            // Temp directories are only created when a file within them
+            // needs a temp file, so small files never touch the temp path
+            upload = new DirectoryUpload(path);
+        } else {
+            FileUpload fileUpload = journal.reuse(path, file.length(), file.lastModified());
+
+            if (fileUpload == null) {
+                fileUpload = compress(path, file.length(), checksum);
+
+                // Cached files outlive the run without the journal's help
+                if (!CompressionCache.current().holds(fileUpload.getTempPath())) {
+                    journal.compressed(fileUpload);
                 }
             }
 
-            objectsProcessed.incrementAndGet();
-        } catch (InterruptedException e) {
-            LOG.warn("Object preloader thread interrupted");
-            Thread.currentThread().interrupt();
-        } catch (RuntimeException e) {
-            LOG.error("Object couldn't be properly enqueued", e);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Finished compressing [{}] [{} -> {} {}]",
+                        fileUpload.getSourcePath(),
+                        FileUtils.byteCountToDisplaySize(fileUpload.getUncompressedSize()),
+                        FileUtils.byteCountToDisplaySize(fileUpload.getCompressedSize()),
+                        fileUpload.getCompressionPercentage());
+            }
+
+            upload = fileUpload;
         }
+
+        objectsProcessed.incrementAndGet();
+
+        return upload;
     }
 
     /**
-     * Creates a fork join task for each file that will need to be uploaded
-     * to the remote filesystem. These tasks will be queued in the fork join
-     * pool. When the tasks execute they will add an upload object to the
-     * upload queue.
+     * Compresses a file once the compression limit allows for it, recording
+     * the time spent compressing. Small files are compressed into memory
+     * while pooled buffers are available.
      *
-     * @param root local working directory
-     * @return value object containing details about the transfer
+     * @param path path to file to compress
+     * @param size size of the file
+     * @param checksum checksum of the file or null when it isn't known
+     * @return a file upload object with a compressed file in memory or in a temp path
+     * @throws InterruptedException thrown when interrupted while waiting to compress
      */
-    @SuppressWarnings("FutureReturnValueIgnored")
-    TotalTransferDetails uploadDirectoryContents(final Path root) {
-        final TotalTransferDetails transferDetails = new TotalTransferDetails();
+    private FileUpload compress(final Path path, final long size, final byte[] checksum)
+            throws InterruptedException {
+        compressionLimit.acquire();
+
+        final long start = System.nanoTime();
+
+        try {
+            if (bufferPool.accepts(size)) {
+                final byte[] buffer = bufferPool.tryAcquire();
 
-        LocalFileUtils.directoryContentsStream(root)
-                .forEach(p -> {
-                    final File file = p.toFile().getAbsoluteFile();
-                    final long size;
+                if (buffer != null) {
+                    return fileToUploadInMemory(path, bufferPool, buffer);
+                }
 
-                    if (file.isDirectory()) {
-                        size = 0L;
-                    } else {
-                        size = file.length();
-                    }
+                // Small files are compressed in memory whenever a buffer is
+                // free, so reading them again to look them up in the cache
+                // would rarely pay off
+                return compressToTempFile(path);
+            }
 
-                    transferDetails.numberOfBytes += size;
-                    transferDetails.numberOfObjects++;
+            return fileToUploadFromPath(path, checksum);
+        } finally {
+            compressionNanos.add(System.nanoTime() - start);
+            compressionLimit.release();
+        }
+    }
 
-                    executor.execute(() -> addObjectToQueue(p));
-                });
+    /**
+     * Walks the local working directory and returns the objects to upload in
+     * the order determined by the upload order policy. The totals are updated
+     * as the stream is consumed and are complete once it is exhausted.
+     *
+     * @param root local working directory
+     * @param totals value object that accumulates details about the transfer
+     * @return stream of objects to upload that must be closed
+     */
+    Stream<UploadOrderPolicy.Candidate> scan(final Path root, final TotalTransferDetails totals) {
+        final Stream<Path> walk = LocalFileUtils.directoryContentsStream(root);
+        final Iterator<UploadOrderPolicy.Candidate> candidates = orderPolicy.reorder(
+                walk.map(UploadOrderPolicy.Candidate::fromPath).iterator(),
+                lookAheadWindow);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(candidates,
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .peek(candidate -> {
+                    totals.numberOfBytes += candidate.getSize();
+                    totals.numberOfObjects++;
+                })
+                .onClose(walk::close);
+    }
 
-        return transferDetails;
+    BufferPool getBufferPool() {
+        return bufferPool;
     }
 
     /**
-     * @return reference to upload queue
+     * @return total time spent compressing files in nanoseconds
      */
-    TransferQueue<ObjectUpload> getQueue() {
-        return queue;
+    long getCompressionNanos() {
+        return compressionNanos.sum();
     }
 
     /**
@@ -314,4 +494,97 @@ class ObjectUploadQueueLoader {
         final Path withoutParentSubPath = subPath.subpath(0, subPath.getNameCount());
         return parent.resolve(withoutParentSubPath);
     }
+
+    /**
+     * Options of an {@link ObjectUploadQueueLoader}, whose defaults submit
+     * objects in the order they are walked, compress as many files
+     * concurrently as there are processors, compress small files into
+     * buffers from a pool with the default sizes and journal nothing.
+     */
+    static final class Options {
+        private UploadOrderPolicy orderPolicy = UploadOrderPolicy.WALK;
+        private int lookAheadWindow = UploadOrderPolicy.DEFAULT_LOOK_AHEAD_WINDOW;
+        private ConcurrencyLimit compressionLimit;
+        private BufferPool bufferPool;
+        private UploadJournal journal = UploadJournal.disabled();
+
+        UploadOrderPolicy getOrderPolicy() {
+            return orderPolicy;
+        }
+
+        /**
+         * @param orderPolicy order in which walked objects are submitted
+         * @return this instance
+         */
+        Options setOrderPolicy(final UploadOrderPolicy orderPolicy) {
+            this.orderPolicy = requireNonNull(orderPolicy, "Order policy is null");
+            return this;
+        }
+
+        int getLookAheadWindow() {
+            return lookAheadWindow;
+        }
+
+        /**
+         * @param lookAheadWindow number of walked objects that can be reordered at once
+         * @return this instance
+         */
+        Options setLookAheadWindow(final int lookAheadWindow) {
+            this.lookAheadWindow = lookAheadWindow;
+            return this;
+        }
+
+        /**
+         * @return limit on the number of files compressed concurrently
+         */
+        ConcurrencyLimit getCompressionLimit() {
+            if (compressionLimit == null) {
+                return new ConcurrencyLimit(Runtime.getRuntime().availableProcessors());
+            }
+
+            return compressionLimit;
+        }
+
+        /**
+         * @param compressionLimit limit on the number of files compressed concurrently
+         * @return this instance
+         */
+        Options setCompressionLimit(final ConcurrencyLimit compressionLimit) {
+            this.compressionLimit = requireNonNull(compressionLimit, "Compression limit is null");
+            return this;
+        }
+
+        /**
+         * @return pool of buffers that hold small compressed files in memory
+         */
+        BufferPool getBufferPool() {
+            if (bufferPool == null) {
+                return BufferPool.withDefaults();
+            }
+
+            return bufferPool;
+        }
+
+        /**
+         * @param bufferPool pool of buffers that hold small compressed files in memory
+         * @return this instance
+         */
+        Options setBufferPool(final BufferPool bufferPool) {
+            this.bufferPool = requireNonNull(bufferPool, "Buffer pool is null");
+            return this;
+        }
+
+        UploadJournal getJournal() {
+            return journal;
+        }
+
+        /**
+         * @param journal journal recording compressed files and providing those of previous runs
+         * @return this instance
+         */
+        Options setJournal(final UploadJournal journal) {
+            this.journal = requireNonNull(journal, "Journal is null");
+            return this;
+        }
+    }
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2017, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import me.tongfei.progressbar.ProgressBar;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Class that handles the upload stage and the cleanup stage of object uploads.
+ */
+class ObjectUploader {
+    private static final Logger LOG = LoggerFactory.getLogger(ObjectUploader.class);
+
+    private final AtomicLong totalUploads;
+    private final TransferClient client;
+    private final Path localRoot;
+    private final AtomicReference<ProgressBar> pb;
+    private final DeadLetterReport deadLetters;
+    private final UploadJournal journal;
+    private final MultipartUploader multipart;
+    private volatile boolean pbInitialized = false;
+    private final AtomicLong totalTransferred = new AtomicLong(0L);
+    private final AtomicLong unchanged = new AtomicLong(0L);
+
+    /**
+     * Creates a new instance.
+     *
+     * @param totalUploads total number of completed uploads
+     * @param client transfer client used to upload objects
+     * @param localRoot local working directory
+     * @param pb reference to progress bar to update
+     * @param deadLetters report of uploads that failed permanently
+     * @param journal journal recording the files uploaded
+     * @param multipart uploader of the files that are uploaded in parts
+     */
+    ObjectUploader(final AtomicLong totalUploads,
+                   final TransferClient client,
+                   final Path localRoot,
+                   final AtomicReference<ProgressBar> pb,
+                   final DeadLetterReport deadLetters,
+                   final UploadJournal journal,
+                   final MultipartUploader multipart) {
+        this.totalUploads = totalUploads;
+        this.client = client;
+        this.localRoot = localRoot;
+        this.pb = pb;
+        this.deadLetters = deadLetters;
+        this.journal = journal;
+        this.multipart = multipart;
+    }
+
+    /**
+     * Uploads an object, recording it as a dead letter if it fails.
+     *
+     * @param upload object to upload
+     * @return true when the object was uploaded
+     */
+    boolean upload(final ObjectUpload upload) {
+        try {
+            uploadObject(upload);
+            recordUploaded(upload);
+            return true;
+        } catch (RuntimeException e) {
+            // Transient errors have already been retried by the
+            // client, so anything reaching here has failed for good
+            LOG.error("Error uploading file. Giving up on object.", e);
+            deadLetters.add(upload.getSourcePath().toString(), e);
+            deleteTempFile(upload);
+            return false;
+        }
+    }
+
+    /**
+     * Starts uploading an object with a non-blocking client. Only files are
+     * uploaded asynchronously; directories and links are rare enough that
+     * they are uploaded before this method returns. Failures are recorded as
+     * dead letters when the upload completes.
+     *
+     * @param upload object to upload
+     * @param asyncClient non-blocking client used to upload files
+     * @return future completed with the object once it was uploaded, or with
+     *         null if it failed
+     * @throws InterruptedException thrown when interrupted while waiting to send a request
+     */
+    CompletableFuture<ObjectUpload> uploadAsync(final ObjectUpload upload,
+                                                final AsyncTransferClient asyncClient)
+            throws InterruptedException {
+        if (!(upload instanceof FileUpload)) {
+            if (upload(upload)) {
+                return CompletableFuture.completedFuture(upload);
+            }
+
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final String mantaPath = client.convertLocalPathToRemotePath(
+                upload.getSourcePath(), localRoot);
+
+        return asyncClient.putAsync(mantaPath, (FileUpload)upload).handle((v, e) -> {
+            if (e == null) {
+                recordUploaded(upload);
+                return upload;
+            }
+
+            final Throwable cause = unwrapCompletion(e);
+            LOG.error("Error uploading file. Giving up on object.", cause);
+            deadLetters.add(upload.getSourcePath().toString(), cause);
+            deleteTempFile(upload);
+            return null;
+        });
+    }
+
+    /**
+     * Counts an object that was already uploaded by a previous run as
+     * uploaded without uploading it again.
+     *
+     * @param size size of the object
+     */
+    void skip(final long size) {
+        totalUploads.incrementAndGet();
+        recordProgress(size);
+    }
+
+    /**
+     * Compares a file with its remote copy before it is compressed, so that
+     * files that are already stored remotely with the same contents are
+     * neither compressed nor uploaded. Such files are counted as uploaded
+     * and recorded as verified in the journal. Any error while comparing is
+     * logged and leaves the file to be uploaded as usual. A file that is
+     * uploaded carries the checksum computed, so that it isn't read again
+     * to compute it.
+     *
+     * @param candidate walked file to compare
+     * @return null when the remote copy is identical and the file was skipped,
+     *         otherwise the candidate to upload
+     */
+    UploadOrderPolicy.Candidate skipIfUnchanged(final UploadOrderPolicy.Candidate candidate) {
+        final Path path = candidate.getPath();
+
+        if (candidate.isDirectory() || Files.isSymbolicLink(path)) {
+            return candidate;
+        }
+
+        final VerificationResult result;
+        final byte[] checksum;
+
+        try {
+            final String mantaPath = client.convertLocalPathToRemotePath(path, localRoot);
+            checksum = LocalFileUtils.checksum(path);
+            result = client.verifyFile(mantaPath, candidate.getSize(), checksum);
+        } catch (RuntimeException e) {
+            LOG.debug("Unable to compare [{}] with its remote copy before compressing it", path, e);
+            return candidate;
+        }
+
+        if (!VerificationResult.OK.equals(result)) {
+            return candidate.withChecksum(checksum);
+        }
+
+        LOG.debug("Remote copy of [{}] is identical - not compressing", path);
+        journal.verified(path, candidate.getSize(), candidate.getLastModified(), checksum);
+        unchanged.incrementAndGet();
+        skip(candidate.getSize());
+
+        return null;
+    }
+
+    /**
+     * @return number of files skipped because their remote copy was identical
+     */
+    long getUnchanged() {
+        return unchanged.get();
+    }
+
+    private void recordUploaded(final ObjectUpload upload) {
+        if (upload instanceof FileUpload) {
+            journal.uploaded((FileUpload)upload);
+        } else if (upload instanceof MultipartFileUpload) {
+            // Parts are committed as a whole, so there is no temp file to resume from
+            final MultipartFileUpload large = (MultipartFileUpload)upload;
+            journal.verified(large.getSourcePath(), large.getSize(), large.getLastModified(),
+                    large.getChecksum());
+        }
+
+        totalUploads.incrementAndGet();
+    }
+
+    private static Throwable unwrapCompletion(final Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            return e.getCause();
+        }
+
+        return e;
+    }
+
+    /**
+     * Uploads an object to the remote data store.
+     *
+     * @param upload object to upload.
+     */
+    void uploadObject(final ObjectUpload upload) {
+        if (upload.getClass().equals(SymbolicLinkUpload.class)) {
+            uploadLink((SymbolicLinkUpload)upload);
+        } else if (upload.isDirectory()) {
+            createDirectory((DirectoryUpload)upload);
+        } else if (upload instanceof MultipartFileUpload) {
+            uploadFileInParts((MultipartFileUpload)upload);
+        } else {
+            uploadFile((FileUpload)upload);
+        }
+    }
+
+    /**
+     * Creates directory on the remote data store.
+     * @param upload directory to create
+     */
+    void createDirectory(final DirectoryUpload upload) {
+        final String mantaDir = client.convertLocalPathToRemotePath(
+                upload.getSourcePath(), localRoot);
+
+        client.mkdirp(mantaDir, upload);
+    }
+
+    /**
+     * Uploads a link to the remote data store.
+     * @param upload link to upload
+     */
+    void uploadLink(final SymbolicLinkUpload upload) {
+        final String mantaPath = client.convertLocalPathToRemotePath(
+                upload.getSourcePath(), localRoot);
+
+        client.put(mantaPath, upload);
+    }
+
+    /**
+     * Uploads a file to the remote data store.
+     * @param upload file to upload
+     */
+    void uploadFile(final FileUpload upload) {
+        final String mantaPath = client.convertLocalPathToRemotePath(
+                upload.getSourcePath(), localRoot);
+
+        client.put(mantaPath, upload);
+    }
+
+    /**
+     * Uploads a large file to the remote data store in parts, unless its
+     * remote copy is already identical.
+     *
+     * @param upload file to upload
+     */
+    void uploadFileInParts(final MultipartFileUpload upload) {
+        final String mantaPath = client.convertLocalPathToRemotePath(
+                upload.getSourcePath(), localRoot);
+        final VerificationResult result = client.verifyFile(mantaPath, upload.getSize(),
+                upload.getChecksum());
+
+        if (VerificationResult.OK.equals(result)) {
+            LOG.debug("Local [{}] and remote file [{}] match - not uploading",
+                    upload.getSourcePath(), mantaPath);
+            return;
+        }
+
+        // Multipart uploads are only enabled when the client is backed by Manta
+        ForwardingTransferClient.unwrap(client, MantaTransferClient.class)
+                .putMultipart(mantaPath, upload, multipart);
+    }
+
+    /**
+     * Removes the temp file of an uploaded object and records its progress.
+     *
+     * @param upload object that was uploaded
+     */
+    void cleanup(final ObjectUpload upload) {
+        if (upload instanceof MultipartFileUpload) {
+            recordProgress(((MultipartFileUpload)upload).getSize());
+            return;
+        }
+
+        if (!(upload instanceof FileUpload)) {
+            return;
+        }
+
+        final FileUpload fileUpload = (FileUpload)upload;
+
+        // Clean up the temp upload file or buffer so we don't leave it lingering
+        deleteTempFile(fileUpload);
+        recordProgress(fileUpload.getUncompressedSize());
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Upload [{} {}] has completed",
+                    fileUpload.getSourcePath(),
+                    FileUtils.byteCountToDisplaySize(fileUpload.getUncompressedSize()));
+        }
+    }
+
+    private void recordProgress(final long size) {
+        totalTransferred.addAndGet(size);
+
+        // We increment the progress bar as uploads are processed if the
+        // progress bar is available.
+        if (pbInitialized && pb.get() != null) {
+            pb.get().stepBy(size);
+        } else {
+            // We wait for when the progress becomes available and then
+            // increment it all at once with the total amount of bytes
+            // transferred.
+            synchronized (this) {
+                if (!pbInitialized && pb.get() != null) {
+                    pbInitialized = true;
+                    pb.get().stepBy(totalTransferred.get());
+                }
+            }
+        }
+    }
+
+    private static void deleteTempFile(final ObjectUpload upload) {
+        if (!(upload instanceof FileUpload)) {
+            return;
+        }
+
+        final FileUpload fileUpload = (FileUpload)upload;
+
+        try {
+            fileUpload.release();
+        } catch (IOException e) {
+            String msg = String.format("Unable to delete [%s]", fileUpload.getTempPath());
+            LOG.warn(msg, e);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Staging of the download of an object to a local file, so that the file
+ * only appears once it is complete and verified and an interrupted
+ * download resumes where it stopped.
+ *
+ * <p>The contents are decompressed into a file next to the destination
+ * that is renamed into place once verified. The compressed bytes of large
+ * objects are also kept in a {@code .partial} file as they are received,
+ * along with a small state file recording the etag of the object and the
+ * number of bytes safely written. When the download is retried and the
+ * object still has the same etag, only the bytes that are missing are
+ * requested and the bytes already received are decompressed again from
+ * the local copy.</p>
+ */
+final class PartialDownload {
+    private static final Logger LOG = LoggerFactory.getLogger(PartialDownload.class);
+
+    /**
+     * Smallest object whose compressed bytes are kept so that its download
+     * can resume. Smaller objects are simply downloaded again.
+     */
+    static final long STAGING_THRESHOLD = 16L * 1024L * 1024L;
+
+    /**
+     * Number of bytes received between each update of the state file.
+     */
+    static final long CHECKPOINT_BYTES = 8L * 1024L * 1024L;
+
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final String STATE_SUFFIX = ".partial.state";
+    static final String OUTPUT_SUFFIX = ".download";
+
+    private static final String ETAG_PROPERTY = "etag";
+    private static final String BYTES_PROPERTY = "bytes";
+
+    private final Path target;
+    private final Path partialPath;
+    private final Path statePath;
+    private final Path outputPath;
+    private String etag;
+    private long offset;
+    private volatile boolean finished = false;
+
+    private PartialDownload(final Path target, final String etag, final long offset) {
+        this.target = target;
+        this.partialPath = sibling(target, PARTIAL_SUFFIX);
+        this.statePath = sibling(target, STATE_SUFFIX);
+        this.outputPath = sibling(target, OUTPUT_SUFFIX);
+        this.etag = etag;
+        this.offset = offset;
+    }
+
+    /**
+     * Finds the staged download of a file, which resumes from the bytes
+     * recorded by a previous attempt when there are any.
+     *
+     * @param target local file being downloaded
+     * @return staged download of the file
+     */
+    static PartialDownload of(final Path target) {
+        final Path statePath = sibling(target, STATE_SUFFIX);
+        final Path partialPath = sibling(target, PARTIAL_SUFFIX);
+
+        if (!Files.exists(statePath)) {
+            return new PartialDownload(target, null, 0L);
+        }
+
+        final PartialDownload partial = new PartialDownload(target, null, 0L);
+
+        try (InputStream in = Files.newInputStream(statePath)) {
+            final Properties state = new Properties();
+            state.load(in);
+
+            final String etag = state.getProperty(ETAG_PROPERTY);
+            final long bytes = Long.parseLong(state.getProperty(BYTES_PROPERTY, "0"));
+
+            if (etag != null && bytes > 0L && Files.size(partialPath) >= bytes) {
+                // Bytes after the last checkpoint may not have reached the disk
+                try (FileChannel channel = FileChannel.open(partialPath, StandardOpenOption.WRITE)) {
+                    channel.truncate(bytes);
+                }
+
+                LOG.debug("Resuming download of [{}] from byte {}", target, bytes);
+                return new PartialDownload(target, etag, bytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Unable to resume partial download of [{}]: {}", target, e.getMessage());
+        }
+
+        partial.discard();
+        return partial;
+    }
+
+    private static Path sibling(final Path target, final String suffix) {
+        return target.resolveSibling(target.getFileName() + suffix);
+    }
+
+    /**
+     * @return true when bytes of a previous attempt can be reused
+     */
+    boolean isResumable() {
+        return offset > 0L;
+    }
+
+    /**
+     * @return etag of the object the staged bytes were received from
+     */
+    String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return number of compressed bytes already received
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return path to the file that the contents are decompressed into
+     */
+    Path getOutputPath() {
+        return outputPath;
+    }
+
+    /**
+     * Returns the compressed contents of the object, made up of the bytes
+     * received by previous attempts followed by the remaining bytes, which
+     * are staged as they are read when the object is large enough to be
+     * worth resuming.
+     *
+     * @param objectEtag etag of the object the remaining bytes are received from
+     * @param size compressed size of the whole object
+     * @param remaining remaining bytes of the object
+     * @return stream of the compressed contents of the whole object
+     * @throws IOException thrown when the staged bytes couldn't be opened
+     */
+    InputStream stage(final String objectEtag, final long size, final InputStream remaining)
+            throws IOException {
+        if (objectEtag == null || size < STAGING_THRESHOLD) {
+            discard();
+            return remaining;
+        }
+
+        if (!objectEtag.equals(etag)) {
+            discard();
+            etag = objectEtag;
+        }
+
+        final FileChannel channel = FileChannel.open(partialPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        final InputStream received;
+
+        try {
+            channel.truncate(offset);
+            channel.position(offset);
+            writeState(offset);
+            received = new BoundedInputStream(Files.newInputStream(partialPath), offset);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(channel);
+            throw e;
+        }
+
+        finished = false;
+
+        return new SequenceInputStream(received, new StagingInputStream(remaining, channel));
+    }
+
+    /**
+     * Moves the verified file into place and removes the staged bytes.
+     *
+     * @throws IOException thrown when the file couldn't be moved
+     */
+    void commit() throws IOException {
+        try {
+            Files.move(outputPath, target, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(outputPath, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        finished = true;
+        deleteStaged();
+    }
+
+    /**
+     * Removes the decompressed file of an attempt that didn't complete,
+     * keeping the staged bytes so that the next attempt resumes.
+     */
+    void abandon() {
+        delete(outputPath);
+    }
+
+    /**
+     * Removes every file of the download, so that the next attempt starts
+     * from the first byte.
+     */
+    void discard() {
+        finished = true;
+        delete(outputPath);
+        deleteStaged();
+        etag = null;
+        offset = 0L;
+    }
+
+    private void deleteStaged() {
+        delete(statePath);
+        delete(partialPath);
+    }
+
+    private static void delete(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete file of partial download: " + path, e);
+        }
+    }
+
+    /**
+     * Records the number of bytes that are safely written. The state is
+     * written to a separate file that is renamed over the previous one, so
+     * it is never seen half written.
+     */
+    private void writeState(final long bytes) throws IOException {
+        final Properties state = new Properties();
+        state.setProperty(ETAG_PROPERTY, etag);
+        state.setProperty(BYTES_PROPERTY, Long.toString(bytes));
+
+        final Path tempState = sibling(statePath, ".tmp");
+
+        try (OutputStream out = Files.newOutputStream(tempState)) {
+            state.store(out, null);
+        }
+
+        try {
+            Files.move(tempState, statePath, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempState, statePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("target", target)
+                .append("etag", etag)
+                .append("offset", offset)
+                .toString();
+    }
+
+    /**
+     * Stream of the remaining bytes of an object that appends each byte read
+     * to the staged bytes and periodically records how many were received.
+     */
+    private final class StagingInputStream extends FilterInputStream {
+        private final FileChannel channel;
+        private long received;
+        private long checkpointed;
+
+        StagingInputStream(final InputStream in, final FileChannel channel) {
+            super(in);
+            this.channel = channel;
+            this.received = offset;
+            this.checkpointed = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+
+            if (read(single, 0, 1) < 0) {
+                return -1;
+            }
+
+            return Byte.toUnsignedInt(single[0]);
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = in.read(b, off, len);
+
+            if (read > 0) {
+                final ByteBuffer buffer = ByteBuffer.wrap(b, off, read);
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+
+                received += read;
+
+                if (received - checkpointed >= CHECKPOINT_BYTES) {
+                    checkpoint();
+                }
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // Every byte must be staged, so skipped bytes are read instead
+            final byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+            long skipped = 0L;
+
+            while (skipped < n) {
+                final int read = read(buffer, 0, (int)Math.min(buffer.length, n - skipped));
+
+                if (read < 0) {
+                    break;
+                }
+
+                skipped += read;
+            }
+
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void checkpoint() throws IOException {
+            if (finished) {
+                return;
+            }
+
+            channel.force(false);
+            writeState(received);
+            checkpointed = received;
+            offset = received;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (received > checkpointed && channel.isOpen()) {
+                    checkpoint();
+                }
+            } finally {
+                try {
+                    channel.close();
+                } finally {
+                    super.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,942 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.exception.ContextedRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * A chain of processing stages connected by bounded queues. Items are read
+ * from a source stream by a single thread and flow through each stage in
+ * order. Every stage is served by a fixed number of worker threads and may
+ * emit any number of items to the next stage for each item it receives.
+ *
+ * <p>When a stage's input queue is full, the stage before it blocks until
+ * there is room, so that a slow stage slows down every stage before it
+ * instead of letting work accumulate in memory. The end of the source is
+ * signalled through the queues, so the pipeline completes exactly when the
+ * last item has left the last stage. If any stage throws an exception, the
+ * whole pipeline is cancelled and the exception is rethrown to the thread
+ * waiting on the pipeline, unless the pipeline tolerates item failures (see
+ * {@link #toleratingItemFailures()}), in which case the failure is logged and
+ * counted and only that item is dropped.</p>
+ *
+ * <p>Stages that block on remote I/O are added with
+ * {@link #thenBlocking(String, int, int, StageFunction)}. When virtual threads
+ * are available (see {@link TransferExecutors}), such stages start a thread
+ * per item and bound the number of items in flight with a semaphore instead
+ * of serving items from a fixed set of workers.</p>
+ *
+ * <p>Stages whose work is performed by a non-blocking client are added with
+ * {@link #thenAsync(String, int, int, AsyncStageFunction)}. Such a stage only
+ * starts each item and receives its result through a future, so a single
+ * thread can keep thousands of items in flight. Results are passed to the
+ * next stage from a separate thread so that the threads completing the
+ * futures never block on a full queue.</p>
+ *
+ * <p>Instances are immutable; {@link #then(String, int, int, StageFunction)}
+ * returns a new pipeline with an additional stage.</p>
+ *
+ * @param <T> type of item emitted by the last stage
+ */
+final class Pipeline<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(Pipeline.class);
+
+    /**
+     * Marker placed in a queue after the last item.
+     */
+    private static final Object END = new Object();
+
+    /**
+     * Marker for an asynchronous item that completed without a result.
+     */
+    private static final Object NOTHING = new Object();
+
+    private final String name;
+    private final Supplier<? extends Stream<?>> source;
+    private final List<StageSpec> stages;
+    private final MemoryGovernor governor;
+    private final boolean toleratesItemFailures;
+
+    /**
+     * A stage's processing of a single item.
+     *
+     * @param <I> type of item received
+     * @param <O> type of item emitted
+     */
+    @FunctionalInterface
+    interface StageFunction<I, O> {
+        /**
+         * Processes an item.
+         *
+         * @param item item to process
+         * @param downstream emitter of items to the next stage
+         * @throws IOException thrown when the item couldn't be processed
+         * @throws InterruptedException thrown when the pipeline is cancelled
+         */
+        void apply(I item, Emitter<O> downstream) throws IOException, InterruptedException;
+    }
+
+    /**
+     * A stage's asynchronous processing of a single item.
+     *
+     * @param <I> type of item received
+     * @param <O> type of item emitted
+     */
+    @FunctionalInterface
+    interface AsyncStageFunction<I, O> {
+        /**
+         * Starts processing an item.
+         *
+         * @param item item to process
+         * @return future completed with the item to pass to the next stage,
+         *         or with null when nothing should be passed on
+         * @throws IOException thrown when the item couldn't be started
+         * @throws InterruptedException thrown when the pipeline is cancelled
+         */
+        CompletableFuture<? extends O> apply(I item) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Receiver of the items emitted by a stage.
+     *
+     * @param <O> type of item emitted
+     */
+    @FunctionalInterface
+    interface Emitter<O> {
+        /**
+         * Passes an item to the next stage, waiting for room in its queue.
+         *
+         * @param item item to pass on
+         * @throws InterruptedException thrown when the pipeline is cancelled
+         */
+        void emit(O item) throws InterruptedException;
+    }
+
+    /**
+     * Live statistics about a running stage.
+     */
+    interface StageStats {
+        /**
+         * @return name of the stage
+         */
+        String getName();
+
+        /**
+         * @return number of worker threads serving the stage
+         */
+        int getParallelism();
+
+        /**
+         * @return number of worker threads waiting for an item
+         */
+        int getIdleWorkers();
+
+        /**
+         * @return number of items waiting in the stage's input queue
+         */
+        int getQueueSize();
+
+        /**
+         * @return number of items that the stage has finished processing
+         */
+        long getProcessed();
+    }
+
+    private Pipeline(final String name, final Supplier<? extends Stream<?>> source,
+                     final List<StageSpec> stages, final MemoryGovernor governor,
+                     final boolean toleratesItemFailures) {
+        this.name = name;
+        this.source = source;
+        this.stages = stages;
+        this.governor = governor;
+        this.toleratesItemFailures = toleratesItemFailures;
+    }
+
+    /**
+     * Creates a pipeline that reads its items from a stream. The stream is
+     * created when the pipeline is started and closed once it is exhausted
+     * or the pipeline is cancelled.
+     *
+     * @param name name of the pipeline used for thread names and status output
+     * @param source supplier of the stream of items
+     * @param <T> type of item in the source stream
+     * @return a new pipeline without any stages
+     */
+    static <T> Pipeline<T> from(final String name, final Supplier<? extends Stream<T>> source) {
+        Validate.notBlank(name, "Pipeline name must not be blank");
+        Validate.notNull(source, "Source must not be null");
+
+        return new Pipeline<>(name, source, Collections.emptyList(), null, false);
+    }
+
+    /**
+     * Holds back the reading of the source while the governor reports that
+     * the heap is close to full.
+     *
+     * @param memoryGovernor governor of the heap
+     * @return a new pipeline whose source is governed
+     */
+    Pipeline<T> governedBy(final MemoryGovernor memoryGovernor) {
+        Validate.notNull(memoryGovernor, "Memory governor must not be null");
+        return new Pipeline<>(name, source, stages, memoryGovernor, toleratesItemFailures);
+    }
+
+    /**
+     * Logs and counts the items that a stage fails to process, other than
+     * with an {@link Error}, instead of cancelling the pipeline, so that one
+     * bad object doesn't abort a whole transfer.
+     *
+     * @return a new pipeline that drops the items it fails to process
+     */
+    Pipeline<T> toleratingItemFailures() {
+        return new Pipeline<>(name, source, stages, governor, true);
+    }
+
+    /**
+     * Appends a stage to the pipeline.
+     *
+     * @param stageName name of the stage
+     * @param parallelism number of worker threads serving the stage
+     * @param capacity maximum number of items waiting for the stage
+     * @param function processing of each item
+     * @param <R> type of item emitted by the stage
+     * @return a new pipeline ending with the stage
+     */
+    <R> Pipeline<R> then(final String stageName, final int parallelism, final int capacity,
+                         final StageFunction<? super T, R> function) {
+        return append(stageName, parallelism, capacity, function, false);
+    }
+
+    /**
+     * Appends a stage that spends most of its time blocked on remote I/O.
+     *
+     * @param stageName name of the stage
+     * @param concurrency maximum number of items processed at once
+     * @param capacity maximum number of items waiting for the stage
+     * @param function processing of each item
+     * @param <R> type of item emitted by the stage
+     * @return a new pipeline ending with the stage
+     */
+    <R> Pipeline<R> thenBlocking(final String stageName, final int concurrency, final int capacity,
+                                 final StageFunction<? super T, R> function) {
+        Validate.notNull(function, "Stage function must not be null");
+        return append(new StageSpec(stageName, concurrency, capacity, function, null, true));
+    }
+
+    /**
+     * Appends a stage that processes items asynchronously.
+     *
+     * @param stageName name of the stage
+     * @param maxInFlight maximum number of items started but not yet completed
+     * @param capacity maximum number of items waiting for the stage
+     * @param function starting of the processing of each item
+     * @param <R> type of item emitted by the stage
+     * @return a new pipeline ending with the stage
+     */
+    <R> Pipeline<R> thenAsync(final String stageName, final int maxInFlight, final int capacity,
+                              final AsyncStageFunction<? super T, R> function) {
+        Validate.notNull(function, "Stage function must not be null");
+        return append(new StageSpec(stageName, maxInFlight, capacity, null, function, false));
+    }
+
+    private <R> Pipeline<R> append(final String stageName, final int parallelism, final int capacity,
+                                   final StageFunction<? super T, R> function, final boolean blocking) {
+        Validate.notNull(function, "Stage function must not be null");
+        return append(new StageSpec(stageName, parallelism, capacity, function, null, blocking));
+    }
+
+    private <R> Pipeline<R> append(final StageSpec spec) {
+        Validate.notBlank(spec.name, "Stage name must not be blank");
+        Validate.isTrue(spec.parallelism > 0, "Parallelism must be greater than zero");
+        Validate.isTrue(spec.capacity > 0, "Capacity must be greater than zero");
+
+        final List<StageSpec> appended = new ArrayList<>(stages);
+        appended.add(spec);
+
+        return new Pipeline<>(name, source, Collections.unmodifiableList(appended), governor,
+                toleratesItemFailures);
+    }
+
+    /**
+     * Starts processing items in the background.
+     *
+     * @return the running pipeline
+     */
+    Execution start() {
+        Validate.validState(!stages.isEmpty(), "Pipeline must have at least one stage");
+
+        final Execution execution = new Execution(name, source, stages, governor,
+                toleratesItemFailures);
+        execution.start();
+        return execution;
+    }
+
+    /**
+     * Processes all items and waits for the pipeline to complete.
+     *
+     * @throws InterruptedException thrown when interrupted while waiting
+     */
+    void run() throws InterruptedException {
+        try (Execution execution = start()) {
+            execution.await();
+        }
+    }
+
+    /**
+     * Immutable description of a stage.
+     */
+    private static final class StageSpec {
+        private final String name;
+        private final int parallelism;
+        private final int capacity;
+        private final StageFunction<Object, Object> function;
+        private final AsyncStageFunction<Object, Object> asyncFunction;
+        private final boolean blocking;
+
+        @SuppressWarnings("unchecked")
+        StageSpec(final String name, final int parallelism, final int capacity,
+                  final StageFunction<?, ?> function, final AsyncStageFunction<?, ?> asyncFunction,
+                  final boolean blocking) {
+            this.name = name;
+            this.parallelism = parallelism;
+            this.capacity = capacity;
+            this.function = (StageFunction<Object, Object>)function;
+            this.asyncFunction = (AsyncStageFunction<Object, Object>)asyncFunction;
+            this.blocking = blocking;
+        }
+
+        boolean isAsync() {
+            return asyncFunction != null;
+        }
+    }
+
+    /**
+     * A running stage with its input queue and worker bookkeeping.
+     */
+    private static final class RunningStage implements StageStats {
+        private final StageSpec spec;
+        private final BlockingQueue<Object> input;
+        private final AtomicInteger idleWorkers = new AtomicInteger(0);
+        private final AtomicInteger activeWorkers;
+        private final AtomicLong processed = new AtomicLong(0L);
+        private final AtomicLong failed = new AtomicLong(0L);
+        private final Semaphore inFlight;
+        private final BlockingQueue<Object> completions;
+
+        RunningStage(final StageSpec spec, final boolean threadPerItem) {
+            this.spec = spec;
+            this.input = new LinkedBlockingQueue<>(spec.capacity);
+
+            if (spec.isAsync()) {
+                // A dispatcher thread and a forwarder thread
+                this.activeWorkers = new AtomicInteger(2);
+                this.inFlight = new Semaphore(spec.parallelism);
+                // Never holds more items than there are permits
+                this.completions = new LinkedBlockingQueue<>();
+            } else if (threadPerItem) {
+                this.activeWorkers = new AtomicInteger(1);
+                this.inFlight = new Semaphore(spec.parallelism);
+                this.completions = null;
+            } else {
+                this.activeWorkers = new AtomicInteger(spec.parallelism);
+                this.inFlight = null;
+                this.completions = null;
+            }
+        }
+
+        /**
+         * @return number of threads that take items from the stage's queue
+         */
+        int getWorkers() {
+            return activeWorkers.get();
+        }
+
+        @Override
+        public String getName() {
+            return spec.name;
+        }
+
+        @Override
+        public int getParallelism() {
+            return spec.parallelism;
+        }
+
+        @Override
+        public int getIdleWorkers() {
+            if (inFlight != null) {
+                return inFlight.availablePermits();
+            }
+
+            return idleWorkers.get();
+        }
+
+        @Override
+        public int getQueueSize() {
+            return input.size();
+        }
+
+        @Override
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        /**
+         * @return number of items that the stage failed to process and dropped
+         */
+        long getFailed() {
+            return failed.get();
+        }
+    }
+
+    /**
+     * A started pipeline. Closing it cancels any processing that hasn't
+     * completed and waits for all of its threads to exit.
+     */
+    static final class Execution implements AutoCloseable {
+        private final String name;
+        private final Supplier<? extends Stream<?>> source;
+        private final MemoryGovernor governor;
+        private final boolean toleratesItemFailures;
+        private final List<RunningStage> stages = new ArrayList<>();
+        private final List<Thread> threads = new ArrayList<>();
+        private final Set<Thread> itemThreads = ConcurrentHashMap.newKeySet();
+        private final Set<CompletableFuture<?>> pendingFutures = ConcurrentHashMap.newKeySet();
+        private final boolean threadPerItem = TransferExecutors.isVirtualThreadPerObject();
+        private ThreadFactory itemThreadFactory;
+        private final CountDownLatch finished;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final AtomicLong sourced = new AtomicLong(0L);
+        private volatile boolean sourceExhausted = false;
+        private volatile boolean cancelled = false;
+
+        private Execution(final String name, final Supplier<? extends Stream<?>> source,
+                          final List<StageSpec> specs, final MemoryGovernor governor,
+                          final boolean toleratesItemFailures) {
+            this.name = name;
+            this.source = source;
+            this.governor = governor;
+            this.toleratesItemFailures = toleratesItemFailures;
+
+            int workers = 0;
+
+            for (StageSpec spec : specs) {
+                final RunningStage stage = new RunningStage(spec, threadPerItem && spec.blocking);
+                stages.add(stage);
+                workers += stage.getWorkers();
+            }
+
+            this.finished = new CountDownLatch(workers + 1);
+        }
+
+        private void start() {
+            final String loggerName = name + "Pipeline";
+            final ThreadFactory threadFactory = new NamedThreadFactory(
+                    name + "-%d", name, loggerName);
+            final ThreadFactory blockingThreadFactory = TransferExecutors.blockingThreadFactory(
+                    name + "-io-%d", name + "-io", loggerName);
+            itemThreadFactory = blockingThreadFactory;
+
+            threads.add(threadFactory.newThread(this::readSource));
+
+            for (int i = 0; i < stages.size(); i++) {
+                final RunningStage stage = stages.get(i);
+                final RunningStage next = nextStage(i);
+
+                if (stage.spec.isAsync()) {
+                    threads.add(threadFactory.newThread(() -> dispatchAsync(stage)));
+                    threads.add(threadFactory.newThread(() -> forward(stage, next)));
+                } else if (stage.inFlight != null) {
+                    threads.add(threadFactory.newThread(() -> dispatch(stage, next)));
+                } else if (stage.spec.blocking) {
+                    for (int w = 0; w < stage.spec.parallelism; w++) {
+                        threads.add(blockingThreadFactory.newThread(() -> work(stage, next)));
+                    }
+                } else {
+                    for (int w = 0; w < stage.spec.parallelism; w++) {
+                        threads.add(threadFactory.newThread(() -> work(stage, next)));
+                    }
+                }
+            }
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        private RunningStage nextStage(final int index) {
+            if (index + 1 < stages.size()) {
+                return stages.get(index + 1);
+            }
+
+            return null;
+        }
+
+        /**
+         * Waits until the governor, if any, lets more items be read.
+         *
+         * @return always true, so that it can guard the reading of each item
+         */
+        private boolean awaitHeadroom() throws InterruptedException {
+            if (governor != null) {
+                governor.awaitHeadroom(this::isDrained);
+            }
+
+            return true;
+        }
+
+        /**
+         * @return true when no stage has items waiting in its queue
+         */
+        private boolean isDrained() {
+            for (RunningStage stage : stages) {
+                if (!stage.input.isEmpty()
+                        || (stage.completions != null && !stage.completions.isEmpty())) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Feeds the source stream into the first stage.
+         */
+        private void readSource() {
+            final BlockingQueue<Object> first = stages.get(0).input;
+
+            try {
+                try (Stream<?> items = source.get()) {
+                    final Iterator<?> itr = items.iterator();
+
+                    while (awaitHeadroom() && itr.hasNext()) {
+                        first.put(itr.next());
+                        sourced.incrementAndGet();
+                    }
+                }
+
+                sourceExhausted = true;
+                first.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException | Error e) {
+                fail("source", e);
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Processes items from a stage's queue until the end of the input
+         * is reached.
+         */
+        private void work(final RunningStage stage, final RunningStage next) {
+            final Emitter<Object> downstream = emitterTo(next);
+
+            try {
+                while (true) {
+                    final Object item;
+                    stage.idleWorkers.incrementAndGet();
+
+                    try {
+                        item = stage.input.take();
+                    } finally {
+                        stage.idleWorkers.decrementAndGet();
+                    }
+
+                    if (item == END) {
+                        // Leave the marker for the other workers of this stage
+                        stage.input.put(END);
+                        break;
+                    }
+
+                    try {
+                        stage.spec.function.apply(item, downstream);
+                        stage.processed.incrementAndGet();
+                    } catch (IOException | RuntimeException e) {
+                        if (!toleratesItemFailures) {
+                            throw e;
+                        }
+
+                        itemFailed(stage, item, e);
+                    }
+                }
+
+                // The last worker to finish signals the end to the next stage
+                if (stage.activeWorkers.decrementAndGet() == 0 && next != null) {
+                    next.input.put(END);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException | Error e) {
+                fail(stage.spec.name, e);
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Starts a thread for each item in a stage's queue, waiting while
+         * the maximum number of items are in flight, until the end of the
+         * input is reached.
+         */
+        private void dispatch(final RunningStage stage, final RunningStage next) {
+            final Emitter<Object> downstream = emitterTo(next);
+
+            try {
+                while (true) {
+                    final Object item = stage.input.take();
+
+                    if (item == END) {
+                        break;
+                    }
+
+                    stage.inFlight.acquire();
+
+                    final Thread thread = itemThreadFactory.newThread(() -> {
+                        try {
+                            stage.spec.function.apply(item, downstream);
+                            stage.processed.incrementAndGet();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } catch (IOException | RuntimeException e) {
+                            if (toleratesItemFailures) {
+                                itemFailed(stage, item, e);
+                            } else {
+                                fail(stage.spec.name, e);
+                            }
+                        } catch (Error e) {
+                            fail(stage.spec.name, e);
+                        } finally {
+                            itemThreads.remove(Thread.currentThread());
+                            stage.inFlight.release();
+                        }
+                    });
+
+                    itemThreads.add(thread);
+                    thread.start();
+                }
+
+                // Wait for the items in flight before signalling the end
+                stage.inFlight.acquire(stage.spec.parallelism);
+
+                if (next != null) {
+                    next.input.put(END);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Starts the processing of each item in a stage's queue, waiting while
+         * the maximum number of items are in flight, until the end of the
+         * input is reached. Completed items are handed to the forwarder.
+         */
+        private void dispatchAsync(final RunningStage stage) {
+            try {
+                while (true) {
+                    final Object item = stage.input.take();
+
+                    if (item == END) {
+                        break;
+                    }
+
+                    stage.inFlight.acquire();
+
+                    final CompletableFuture<?> future;
+
+                    try {
+                        future = stage.spec.asyncFunction.apply(item);
+                    } catch (IOException | RuntimeException e) {
+                        stage.inFlight.release();
+
+                        if (!toleratesItemFailures) {
+                            throw e;
+                        }
+
+                        itemFailed(stage, item, e);
+                        continue;
+                    } catch (Error e) {
+                        stage.inFlight.release();
+                        throw e;
+                    }
+
+                    if (future == null) {
+                        stage.completions.put(NOTHING);
+                        continue;
+                    }
+
+                    pendingFutures.add(future);
+                    future.whenComplete((result, error) -> {
+                        pendingFutures.remove(future);
+
+                        if (error != null && !cancelled) {
+                            final Throwable cause = unwrapCompletion(error);
+
+                            if (toleratesItemFailures && !(cause instanceof Error)) {
+                                itemFailed(stage, item, cause);
+                            } else {
+                                fail(stage.spec.name, cause);
+                            }
+                        }
+
+                        if (result == null) {
+                            stage.completions.add(NOTHING);
+                        } else {
+                            stage.completions.add(result);
+                        }
+                    });
+                }
+
+                // The forwarder releases a permit for each item it has passed on
+                stage.inFlight.acquire(stage.spec.parallelism);
+                stage.completions.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException | Error e) {
+                fail(stage.spec.name, e);
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Passes the results of an asynchronous stage to the next stage in the
+         * order that they complete, until the end of the results is reached.
+         */
+        private void forward(final RunningStage stage, final RunningStage next) {
+            final Emitter<Object> downstream = emitterTo(next);
+
+            try {
+                while (true) {
+                    final Object result = stage.completions.take();
+
+                    if (result == END) {
+                        break;
+                    }
+
+                    try {
+                        if (result != NOTHING) {
+                            downstream.emit(result);
+                        }
+
+                        stage.processed.incrementAndGet();
+                    } finally {
+                        stage.inFlight.release();
+                    }
+                }
+
+                if (next != null) {
+                    next.input.put(END);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        private static Throwable unwrapCompletion(final Throwable error) {
+            if ((error instanceof CompletionException || error instanceof ExecutionException)
+                    && error.getCause() != null) {
+                return error.getCause();
+            }
+
+            return error;
+        }
+
+        private static Emitter<Object> emitterTo(final RunningStage next) {
+            if (next != null) {
+                return next.input::put;
+            }
+
+            return item -> { };
+        }
+
+        /**
+         * Logs and counts an item that a stage failed to process, which is
+         * dropped while the pipeline goes on.
+         */
+        private void itemFailed(final RunningStage stage, final Object item, final Throwable e) {
+            stage.failed.incrementAndGet();
+            LOG.error("Pipeline [{}] stage [{}] failed to process [{}]",
+                    name, stage.spec.name, item, e);
+        }
+
+        private void fail(final String stageName, final Throwable e) {
+            if (e instanceof ContextedRuntimeException) {
+                ((ContextedRuntimeException)e).setContextValue("pipelineStage", stageName);
+            }
+
+            if (failure.compareAndSet(null, e)) {
+                LOG.debug("Pipeline [{}] stage [{}] failed - cancelling pipeline",
+                        name, stageName, e);
+                cancel();
+            }
+        }
+
+        /**
+         * Interrupts all of the pipeline's threads.
+         */
+        void cancel() {
+            cancelled = true;
+
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+
+            for (Thread thread : itemThreads) {
+                thread.interrupt();
+            }
+
+            for (CompletableFuture<?> future : pendingFutures) {
+                future.cancel(true);
+            }
+        }
+
+        /**
+         * Waits for the pipeline to complete.
+         *
+         * @throws InterruptedException thrown when interrupted while waiting
+         */
+        void await() throws InterruptedException {
+            finished.await();
+            joinItemThreads();
+
+            final Throwable cause = failure.get();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            } else if (cause instanceof IOException) {
+                throw new UncheckedIOException(String.format(
+                        "Pipeline [%s] failed", name), (IOException)cause);
+            }
+
+            Validate.validState(!cancelled, "Pipeline [%s] was cancelled", name);
+        }
+
+        /**
+         * @return true when every item has been processed or the pipeline failed
+         */
+        boolean isDone() {
+            return finished.getCount() == 0;
+        }
+
+        /**
+         * Waits for the threads processing single items to exit, which may
+         * still be running once the stage that started them is done when
+         * the pipeline was cancelled.
+         */
+        private void joinItemThreads() throws InterruptedException {
+            for (Thread thread : itemThreads) {
+                thread.join();
+            }
+        }
+
+        /**
+         * @return number of items that every stage failed to process and dropped
+         */
+        long getFailedItems() {
+            long failedItems = 0L;
+
+            for (RunningStage stage : stages) {
+                failedItems += stage.getFailed();
+            }
+
+            return failedItems;
+        }
+
+        /**
+         * @return number of items read from the source so far
+         */
+        long getSourced() {
+            return sourced.get();
+        }
+
+        /**
+         * Finds the statistics of a stage by name.
+         *
+         * @param stageName name of the stage
+         * @return statistics of the stage
+         */
+        StageStats stage(final String stageName) {
+            for (RunningStage stage : stages) {
+                if (stage.spec.name.equals(stageName)) {
+                    return stage;
+                }
+            }
+
+            throw new IllegalArgumentException("No such stage: " + stageName);
+        }
+
+        /**
+         * @return human readable summary of the progress of each stage
+         */
+        String describe() {
+            final StringJoiner joiner = new StringJoiner(" -> ");
+            String sourceState = "";
+
+            if (sourceExhausted) {
+                sourceState = ", done";
+            } else if (governor != null && governor.isPaused()) {
+                sourceState = ", paused for memory";
+            }
+
+            joiner.add(String.format("source [%d read%s]", getSourced(), sourceState));
+
+            for (RunningStage stage : stages) {
+                joiner.add(String.format("%s [%d queued, %d/%d busy, %d processed, %d failed]",
+                        stage.getName(), stage.getQueueSize(),
+                        stage.getParallelism() - stage.getIdleWorkers(),
+                        stage.getParallelism(), stage.getProcessed(), stage.getFailed()));
+            }
+
+            return joiner.toString();
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            if (!isDone()) {
+                cancel();
+            }
+
+            finished.await();
+            joinItemThreads();
+        }
+    }
+}
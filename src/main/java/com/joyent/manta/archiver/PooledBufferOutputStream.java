@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * {@link OutputStream} implementation that writes to a buffer taken from a
+ * {@link BufferPool}. If more data is written than fits in the pooled
+ * buffer, the data is moved to a larger buffer outside of the pool and the
+ * pooled buffer is returned right away.
+ */
+class PooledBufferOutputStream extends OutputStream {
+    private final BufferPool pool;
+    private byte[] buffer;
+    private int count = 0;
+    private boolean pooled = true;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param pool pool the buffer was taken from
+     * @param buffer buffer taken from the pool
+     */
+    PooledBufferOutputStream(final BufferPool pool, final byte[] buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(final int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity <= buffer.length) {
+            return;
+        }
+
+        final byte[] grown = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+
+        if (pooled) {
+            pool.release(buffer);
+            pooled = false;
+        }
+
+        buffer = grown;
+    }
+
+    /**
+     * @return buffer holding the data written, which may be larger than the data
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return true when the buffer still belongs to the pool
+     */
+    boolean isPooled() {
+        return pooled;
+    }
+
+    int size() {
+        return count;
+    }
+}
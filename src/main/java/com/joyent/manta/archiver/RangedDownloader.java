@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads large objects as byte ranges fetched over several connections,
+ * so that a single object isn't limited to the throughput of one
+ * connection and a failure only repeats the rest of the range that failed.
+ *
+ * <p>Ranges are fetched concurrently into temp files and read back in
+ * order as a single stream, which is decompressed and verified like any
+ * other download. Only as many ranges are fetched ahead of the one being
+ * read as are fetched at once, so an object never needs its whole
+ * compressed size in temp space.</p>
+ *
+ * <p>Each range request is retried according to a {@link RetryPolicy} and
+ * resumes from the last byte received.</p>
+ */
+final class RangedDownloader {
+    private static final Logger LOG = LoggerFactory.getLogger(RangedDownloader.class);
+
+    /**
+     * Default size of the objects downloaded in ranges.
+     */
+    static final long DEFAULT_THRESHOLD = 1024L * 1024L * 1024L;
+
+    /**
+     * Default number of bytes fetched by each range request.
+     */
+    static final long DEFAULT_RANGE_SIZE = 64L * 1024L * 1024L;
+
+    /**
+     * Default number of ranges of an object fetched at once.
+     */
+    static final int DEFAULT_PARALLELISM = 8;
+
+    private static final int BYTE_MASK = 0xFF;
+
+    private final long threshold;
+    private final long rangeSize;
+    private final int parallelism;
+    private final RetryPolicy policy;
+    private final AtomicLong downloads = new AtomicLong(0L);
+    private final AtomicLong ranges = new AtomicLong(0L);
+    private final AtomicLong retries = new AtomicLong(0L);
+
+    /**
+     * Creates a new instance with the default range size, parallelism and
+     * retry policy.
+     *
+     * @param threshold size of the objects downloaded in ranges or zero to download every object whole
+     */
+    RangedDownloader(final long threshold) {
+        this(threshold, DEFAULT_RANGE_SIZE, DEFAULT_PARALLELISM, new RetryPolicy());
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param threshold size of the objects downloaded in ranges or zero to download every object whole
+     * @param rangeSize number of bytes fetched by each range request
+     * @param parallelism number of ranges of an object fetched at once
+     * @param policy policy determining when and how range requests are retried
+     */
+    RangedDownloader(final long threshold, final long rangeSize, final int parallelism,
+                     final RetryPolicy policy) {
+        Validate.isTrue(threshold >= 0L, "Threshold must not be negative");
+        Validate.isTrue(rangeSize > 0L, "Range size must be greater than zero");
+        Validate.isTrue(parallelism > 0, "Parallelism must be greater than zero");
+
+        this.threshold = threshold;
+        this.rangeSize = rangeSize;
+        this.parallelism = parallelism;
+        this.policy = policy;
+    }
+
+    /**
+     * @return a downloader that doesn't accept any object
+     */
+    static RangedDownloader disabled() {
+        return new RangedDownloader(0L);
+    }
+
+    /**
+     * @return true when objects above a threshold are downloaded in ranges
+     */
+    boolean isEnabled() {
+        return threshold > 0L;
+    }
+
+    /**
+     * Determines if an object is downloaded in ranges.
+     *
+     * @param size size of the object as stored remotely
+     * @return true when the object is large enough to be downloaded in ranges
+     */
+    boolean accepts(final Long size) {
+        return isEnabled() && size != null && size >= threshold;
+    }
+
+    /**
+     * Source of the byte ranges of a single remote object.
+     */
+    @FunctionalInterface
+    interface RangeSource {
+        /**
+         * Requests a range of the object.
+         *
+         * @param start offset of the first byte of the range
+         * @param end offset of the last byte of the range, inclusive
+         * @return stream of the bytes of the range
+         * @throws IOException thrown when the request failed
+         */
+        InputStream open(long start, long end) throws IOException;
+    }
+
+    /**
+     * Starts fetching the ranges of an object and returns its contents as a
+     * single stream. Closing the stream stops any fetch still running and
+     * deletes the temp files of the ranges that weren't read.
+     *
+     * @param path remote path of the object
+     * @param size size of the object as stored remotely
+     * @param source source of the ranges of the object
+     * @param throttle limiter of the requests and bandwidth used by ranges
+     * @return stream of the contents of the object in order
+     */
+    InputStream open(final String path, final long size, final RangeSource source,
+                     final TransferThrottle throttle) {
+        downloads.incrementAndGet();
+        return new RangedInputStream(path, size, source, throttle);
+    }
+
+    /**
+     * Waits for the result of a task, rethrowing its failure.
+     */
+    private static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw interrupted(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw interrupted(cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    private static InterruptedIOException interrupted(final Throwable cause) {
+        final InterruptedIOException e = new InterruptedIOException("Interrupted while waiting for a range");
+        e.initCause(cause);
+        return e;
+    }
+
+    long getDownloads() {
+        return downloads.get();
+    }
+
+    long getRanges() {
+        return ranges.get();
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return human readable summary of the ranged downloads
+     */
+    String describe() {
+        if (!isEnabled()) {
+            return "disabled";
+        }
+
+        return String.format("objects of %d bytes or more [%d objects in %d ranges, "
+                + "%d retried requests]", threshold, getDownloads(), getRanges(), getRetries());
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("threshold", threshold)
+                .append("rangeSize", rangeSize)
+                .append("parallelism", parallelism)
+                .append("downloads", getDownloads())
+                .append("ranges", getRanges())
+                .append("retries", getRetries())
+                .toString();
+    }
+
+    /**
+     * Stream of the ranges of a single object read back in order.
+     */
+    private final class RangedInputStream extends InputStream {
+        private final String path;
+        private final long size;
+        private final RangeSource source;
+        private final TransferThrottle throttle;
+        private final int count;
+        private final ExecutorService executor;
+        private final Deque<Future<Path>> fetching = new ArrayDeque<>();
+        private final List<Future<?>> tasks = new ArrayList<>();
+        private final Set<Path> tempFiles = ConcurrentHashMap.newKeySet();
+        private int submitted = 0;
+        private Path currentPath;
+        private InputStream current;
+        private boolean closed = false;
+
+        RangedInputStream(final String path, final long size, final RangeSource source,
+                          final TransferThrottle throttle) {
+            this.path = path;
+            this.size = size;
+            this.source = source;
+            this.throttle = throttle;
+            this.count = (int)Math.max((size + rangeSize - 1) / rangeSize, 1L);
+            this.executor = Executors.newFixedThreadPool(parallelism,
+                    new NamedThreadFactory("ranged-%d", "ranged", "RangedThreadPool"));
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int read = read(single, 0, 1);
+
+            if (read < 0) {
+                return -1;
+            }
+
+            return single[0] & BYTE_MASK;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+
+            if (len == 0) {
+                return 0;
+            }
+
+            while (true) {
+                if (current == null && !advance()) {
+                    return -1;
+                }
+
+                final int read = current.read(b, off, len);
+
+                if (read >= 0) {
+                    return read;
+                }
+
+                finishCurrent();
+            }
+        }
+
+        /**
+         * Opens the next range once it has been fetched, keeping the
+         * fetches ahead of it running.
+         *
+         * @return false when every range has been read
+         */
+        private boolean advance() throws IOException {
+            while (submitted < count && fetching.size() < parallelism) {
+                final int next = submitted++;
+                final Future<Path> future = executor.submit(() -> fetch(next));
+                tasks.add(future);
+                fetching.add(future);
+            }
+
+            if (fetching.isEmpty()) {
+                return false;
+            }
+
+            currentPath = await(fetching.removeFirst());
+            current = Files.newInputStream(currentPath);
+            return true;
+        }
+
+        private void finishCurrent() {
+            IOUtils.closeQuietly(current);
+            current = null;
+            delete(currentPath);
+            currentPath = null;
+        }
+
+        /**
+         * Fetches a range into a temp file, resuming from the bytes already
+         * received when a request is retried.
+         */
+        private Path fetch(final int range) throws IOException, InterruptedException {
+            final long start = range * rangeSize;
+            final long length = Math.min(rangeSize, size - start);
+            final Path tempPath = TempStorage.current().allocate(Paths.get(path + ".range" + range), length);
+            tempFiles.add(tempPath);
+
+            final Path parent = tempPath.getParent();
+
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+
+            Files.deleteIfExists(tempPath);
+            Files.createFile(tempPath);
+
+            policy.getBudget().deposit();
+            int attempt = 0;
+
+            while (true) {
+                attempt++;
+
+                try {
+                    final long received = Files.size(tempPath);
+                    throttle.acquireRequest();
+
+                    try (InputStream in = new BoundedInputStream(throttle.throttle(
+                            source.open(start + received, start + length - 1)), length - received);
+                         OutputStream out = Files.newOutputStream(tempPath, StandardOpenOption.APPEND)) {
+                        IOUtils.copyLarge(in, out);
+                    }
+
+                    if (Files.size(tempPath) < length) {
+                        String msg = String.format("Range ended after %d of %d bytes",
+                                Files.size(tempPath), length);
+                        throw new EOFException(msg);
+                    }
+
+                    ranges.incrementAndGet();
+                    LOG.trace("Fetched range {} of [{}] [{} bytes]", range, path, length);
+
+                    return tempPath;
+                } catch (IOException | RuntimeException e) {
+                    if (!policy.shouldRetry(e, attempt)) {
+                        throw e;
+                    }
+
+                    final long delay = policy.backoffMillis(attempt);
+                    retries.incrementAndGet();
+
+                    LOG.warn("Attempt {} of range {} of [{}] failed. Retrying in {}ms. Cause: {}",
+                            attempt, range, path, delay, e.getMessage());
+                    Thread.sleep(delay);
+                }
+            }
+        }
+
+        private void delete(final Path tempPath) {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                LOG.warn("Unable to delete temp file of range: " + tempPath, e);
+            } finally {
+                TempStorage.current().release(tempPath);
+                tempFiles.remove(tempPath);
+            }
+        }
+
+        /**
+         * Stops the fetches that are still running and deletes the temp
+         * files of the ranges that weren't read.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            IOUtils.closeQuietly(current);
+            tasks.forEach(task -> task.cancel(true));
+            executor.shutdownNow();
+
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (Path tempPath : new ArrayList<>(tempFiles)) {
+                delete(tempPath);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * {@link TransferClient} decorator that limits the rate of requests made to
+ * the remote data store using a {@link TransferThrottle}. Bandwidth is
+ * limited separately by the client that moves the bytes.
+ */
+class RateLimitedTransferClient extends ForwardingTransferClient {
+    private final TransferThrottle throttle;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param delegate client to forward calls to
+     * @param throttle throttle limiting the rate of requests
+     */
+    RateLimitedTransferClient(final TransferClient delegate, final TransferThrottle throttle) {
+        super(delegate);
+        this.throttle = requireNonNull(throttle, "Throttle is null");
+    }
+
+    TransferThrottle getThrottle() {
+        return throttle;
+    }
+
+    @Override
+    public void mkdirp(final String path, final DirectoryUpload upload) {
+        awaitRequest(path);
+        super.mkdirp(path, upload);
+    }
+
+    @Override
+    public void put(final String path, final FileUpload upload) {
+        awaitRequest(path);
+        super.put(path, upload);
+    }
+
+    @Override
+    public void put(final String path, final SymbolicLinkUpload upload) {
+        awaitRequest(path);
+        super.put(path, upload);
+    }
+
+    @Override
+    public void delete(final String path, final boolean recursive) {
+        awaitRequest(path);
+        super.delete(path, recursive);
+    }
+
+    @Override
+    public VerificationResult verifyDirectory(final String remotePath) {
+        awaitRequest(remotePath);
+        return super.verifyDirectory(remotePath);
+    }
+
+    @Override
+    public VerificationResult verifyFile(final String remotePath, final long size,
+                                         final byte[] checksum) {
+        awaitRequest(remotePath);
+        return super.verifyFile(remotePath, size, checksum);
+    }
+
+    @Override
+    public VerificationResult verifyLink(final String remotePath, final Path localResolvedPath) {
+        awaitRequest(remotePath);
+        return super.verifyLink(remotePath, localResolvedPath);
+    }
+
+    @Override
+    public VerificationResult download(final String remotePath, final Optional<Path> path) {
+        awaitRequest(remotePath);
+        return super.download(remotePath, path);
+    }
+
+    @Override
+    public String get(final String remotePath) {
+        awaitRequest(remotePath);
+        return super.get(remotePath);
+    }
+
+    private void awaitRequest(final String path) {
+        try {
+            throttle.acquireRequest();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            TransferClientException tce = new TransferClientException(
+                    "Interrupted while waiting for request rate limit", e);
+            tce.setContextValue("mantaPath", path);
+            throw tce;
+        }
+    }
+}
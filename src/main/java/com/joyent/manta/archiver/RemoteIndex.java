@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaClient;
+import com.joyent.manta.client.MantaObject;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Index of the objects within a remote directory tree, built by listing
+ * every directory of the tree once, so that the existence and type of a
+ * remote object can be answered without a request per object.
+ *
+ * <p>Directories are listed concurrently by {@link RemoteTreeLister}. The
+ * entries of each directory are kept in parallel arrays sorted by name
+ * instead of as an object per entry, which keeps the index compact for
+ * trees of millions of objects. Listings don't include the metadata of
+ * objects, so checks that need an object's original checksum still request
+ * its metadata, but only when the index shows that the object exists.</p>
+ *
+ * <p>The index is a snapshot. Objects changed by this process afterwards are
+ * marked in the listing of their directory, and a directory that gains
+ * objects no longer answers for the names it doesn't list. Such paths, like
+ * paths in directories that couldn't be listed, are unknown to the index, so
+ * that callers fall back to asking the server.</p>
+ */
+final class RemoteIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteIndex.class);
+
+    private final String root;
+    private final ConcurrentMap<String, Listing> listings = new ConcurrentHashMap<>();
+    private final AtomicLong entries = new AtomicLong(0L);
+    private final AtomicLong failures = new AtomicLong(0L);
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+    private volatile long buildMillis = 0L;
+
+    private RemoteIndex(final String root) {
+        this.root = root;
+    }
+
+    /**
+     * @return an index that knows nothing, so that every lookup is a miss
+     */
+    static RemoteIndex empty() {
+        return new RemoteIndex(null);
+    }
+
+    /**
+     * Builds an index by listing a remote directory and all of the
+     * directories within it. Directories that can't be listed are logged
+     * and left out of the index.
+     *
+     * @param root remote directory to index
+     * @param lister lister of a single directory
+     * @param parallelism number of directories listed concurrently
+     * @return index of the directory tree
+     * @throws InterruptedException thrown when interrupted while listing
+     */
+    static RemoteIndex build(final String root, final RemoteTreeLister.DirectoryLister lister,
+                             final int parallelism) throws InterruptedException {
+        Validate.notBlank(root, "Remote root must not be blank");
+
+        final RemoteIndex index = new RemoteIndex(withTrailingSeparator(root));
+        final CountDownLatch finished = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+        final RemoteTreeLister listing = RemoteTreeLister.start(index.root, lister, parallelism,
+                new RemoteTreeLister.Visitor() {
+                    @Override
+                    public void visit(final String directory, final List<MantaObject> objects) {
+                        index.add(directory, objects);
+                    }
+
+                    @Override
+                    public boolean failed(final String directory, final Exception e) {
+                        index.failures.incrementAndGet();
+                        LOG.warn("Unable to list remote directory [{}], its objects will be "
+                                + "checked individually", directory, e);
+                        return true;
+                    }
+
+                    @Override
+                    public void finished() {
+                        finished.countDown();
+                    }
+                });
+
+        try {
+            finished.await();
+        } finally {
+            listing.stop();
+        }
+
+        index.buildMillis = System.currentTimeMillis() - start;
+
+        return index;
+    }
+
+    /**
+     * Adds the listing of a directory to the index.
+     */
+    private void add(final String directory, final List<MantaObject> objects) {
+        final Listing indexed = new Listing(objects);
+        listings.put(directory, indexed);
+        entries.addAndGet(indexed.names.length);
+    }
+
+    /**
+     * @return true when the index holds any listing
+     */
+    boolean isEnabled() {
+        return root != null;
+    }
+
+    /**
+     * Looks up a remote path.
+     *
+     * @param path remote path of a file or a directory
+     * @return entry of the path, {@link Entry#ABSENT} when the path is known
+     *         not to exist or null when the index doesn't know the path
+     */
+    Entry lookup(final String path) {
+        if (!isEnabled() || path == null) {
+            return null;
+        }
+
+        final String noSeparator = StringUtils.removeEnd(path, MantaClient.SEPARATOR);
+
+        // Directories that were listed are known to exist, the root included
+        final Listing own = listings.get(noSeparator + MantaClient.SEPARATOR);
+
+        if (own != null) {
+            hits.incrementAndGet();
+            return new Entry(true, 0L, 0L, null, own.names.length);
+        }
+
+        final Listing parent = listings.get(FilenameUtils.getFullPath(noSeparator));
+
+        if (parent == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        final int i = Arrays.binarySearch(parent.names, FilenameUtils.getName(noSeparator));
+
+        if ((i < 0 && !parent.complete) || (i >= 0 && parent.isChanged(i))) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+
+        if (i < 0) {
+            return Entry.ABSENT;
+        }
+
+        // A directory that was listed would have been found above
+        return new Entry(parent.directories.get(i), parent.sizes[i], parent.lastModified[i],
+                parent.etags[i], -1);
+    }
+
+    /**
+     * Determines if a remote directory is known to exist.
+     *
+     * @param path remote directory path
+     * @return true when the index shows the path as a directory
+     */
+    boolean isDirectory(final String path) {
+        final Entry entry = lookup(path);
+        return entry != null && entry.isDirectory();
+    }
+
+    /**
+     * Marks a path as changed by this process, so that the index no longer
+     * answers for it. The listings within a directory that is changed are
+     * dropped as well. Nothing is added to the index, so its size doesn't
+     * depend on the number of changes.
+     *
+     * @param path remote path that was written or deleted
+     */
+    void invalidate(final String path) {
+        if (!isEnabled() || path == null) {
+            return;
+        }
+
+        final String noSeparator = StringUtils.removeEnd(path, MantaClient.SEPARATOR);
+        final String prefix = noSeparator + MantaClient.SEPARATOR;
+
+        if (listings.containsKey(prefix)) {
+            listings.keySet().removeIf(dir -> dir.startsWith(prefix));
+        }
+
+        final Listing parent = listings.get(FilenameUtils.getFullPath(noSeparator));
+
+        if (parent != null) {
+            parent.changed(FilenameUtils.getName(noSeparator));
+        }
+    }
+
+    /**
+     * Visits every directory that the index shows to exist, whether or not
+     * it could be listed itself.
+     *
+     * @param visitor consumer of remote directory paths with a trailing separator
+     */
+    void forEachDirectory(final Consumer<String> visitor) {
+        listings.forEach((directory, listing) -> {
+            visitor.accept(directory);
+
+            for (int i = listing.directories.nextSetBit(0); i >= 0;
+                 i = listing.directories.nextSetBit(i + 1)) {
+                visitor.accept(directory + listing.names[i] + MantaClient.SEPARATOR);
+            }
+        });
+    }
+
+    long getEntries() {
+        return entries.get();
+    }
+
+    int getDirectories() {
+        return listings.size();
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return human readable summary of the index and of its use
+     */
+    String describe() {
+        if (!isEnabled()) {
+            return "disabled";
+        }
+
+        return String.format("%s [%d objects in %d directories listed in %d ms, "
+                        + "%d unlisted directories, %d hits, %d misses]",
+                root, getEntries(), getDirectories(), buildMillis, getFailures(),
+                getHits(), getMisses());
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("root", root)
+                .append("entries", getEntries())
+                .append("directories", getDirectories())
+                .append("failures", getFailures())
+                .append("hits", getHits())
+                .append("misses", getMisses())
+                .toString();
+    }
+
+    private static String withTrailingSeparator(final String path) {
+        if (path.endsWith(MantaClient.SEPARATOR)) {
+            return path;
+        }
+
+        return path + MantaClient.SEPARATOR;
+    }
+
+    /**
+     * Remote object as listed.
+     */
+    static final class Entry {
+        /**
+         * Entry of a path that is known not to exist.
+         */
+        static final Entry ABSENT = new Entry(false, 0L, 0L, null, -1);
+
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+        private final String etag;
+        private final int children;
+
+        private Entry(final boolean directory, final long size, final long lastModified,
+                      final String etag, final int children) {
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.children = children;
+        }
+
+        boolean exists() {
+            return this != ABSENT;
+        }
+
+        boolean isDirectory() {
+            return directory;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return number of objects in a directory that was listed or -1 when unknown
+         */
+        int getChildren() {
+            return children;
+        }
+    }
+
+    /**
+     * Objects directly within a directory, sorted by name, along with the
+     * ones changed since they were listed.
+     */
+    private static final class Listing {
+        private final String[] names;
+        private final long[] sizes;
+        private final long[] lastModified;
+        private final String[] etags;
+        private final BitSet directories;
+        private final BitSet changed;
+        private volatile boolean complete = true;
+
+        Listing(final List<MantaObject> objects) {
+            objects.sort(Comparator.comparing(o -> name(o.getPath())));
+
+            final int count = objects.size();
+            this.names = new String[count];
+            this.sizes = new long[count];
+            this.lastModified = new long[count];
+            this.etags = new String[count];
+            this.directories = new BitSet(count);
+            this.changed = new BitSet(count);
+
+            for (int i = 0; i < count; i++) {
+                final MantaObject object = objects.get(i);
+                names[i] = name(object.getPath());
+                etags[i] = object.getEtag();
+
+                if (object.getContentLength() != null) {
+                    sizes[i] = object.getContentLength();
+                }
+
+                if (object.getLastModifiedTime() != null) {
+                    lastModified[i] = object.getLastModifiedTime().getTime();
+                }
+
+                if (object.isDirectory()) {
+                    directories.set(i);
+                }
+            }
+        }
+
+        /**
+         * Marks an object as changed. A name that isn't listed means that the
+         * listing is no longer complete.
+         */
+        synchronized void changed(final String name) {
+            final int i = Arrays.binarySearch(names, name);
+
+            if (i >= 0) {
+                changed.set(i);
+            } else {
+                complete = false;
+            }
+        }
+
+        synchronized boolean isChanged(final int i) {
+            return changed.get(i);
+        }
+
+        private static String name(final String path) {
+            return FilenameUtils.getName(StringUtils.removeEnd(path, MantaClient.SEPARATOR));
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaClient;
+import com.joyent.manta.client.MantaObject;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lists a remote directory tree recursively with several directories
+ * listed concurrently, which is shared by the streaming of a remote tree
+ * and the building of the {@link RemoteIndex}.
+ *
+ * <p>The listing of each directory is read in full and closed before its
+ * objects are handed to the visitor of the tree, so that no listing is left
+ * open while the visitor waits, and the subdirectories of a directory are
+ * only listed once the visitor has received the directory's objects.</p>
+ */
+final class RemoteTreeLister {
+    /**
+     * Default number of directories listed at once.
+     */
+    static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * Default number of objects found ahead of the reader.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    /**
+     * Marker of the end of the listing in the buffer.
+     */
+    private static final Object END = new Object();
+
+    /**
+     * Lister of the objects directly within a remote directory.
+     */
+    @FunctionalInterface
+    interface DirectoryLister {
+        /**
+         * Lists a directory.
+         *
+         * @param directory remote directory path with a trailing separator
+         * @return stream of the objects in the directory, which is closed once read
+         * @throws IOException thrown when the directory couldn't be listed
+         */
+        Stream<MantaObject> list(String directory) throws IOException;
+    }
+
+    /**
+     * Receiver of the directories of a tree as they are listed. Its methods
+     * are called from several listing threads at once.
+     */
+    interface Visitor {
+        /**
+         * Receives the objects directly within a directory.
+         *
+         * @param directory remote directory path with a trailing separator
+         * @param objects objects within the directory
+         * @throws InterruptedException thrown when interrupted while handing on the objects
+         */
+        void visit(String directory, List<MantaObject> objects) throws InterruptedException;
+
+        /**
+         * Receives the failure to list a directory, whose subdirectories are
+         * then left out.
+         *
+         * @param directory remote directory path with a trailing separator
+         * @param e cause of the failure
+         * @return true to carry on listing the rest of the tree, false to stop
+         */
+        boolean failed(String directory, Exception e);
+
+        /**
+         * Called once every directory of the tree was listed, unless the
+         * listing was stopped.
+         *
+         * @throws InterruptedException thrown when interrupted while handing on the end
+         */
+        void finished() throws InterruptedException;
+    }
+
+    private final DirectoryLister lister;
+    private final Visitor visitor;
+    private final ExecutorService executor;
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+    private RemoteTreeLister(final DirectoryLister lister, final Visitor visitor,
+                             final int parallelism) {
+        Validate.isTrue(parallelism > 0, "Parallelism must be greater than zero");
+
+        this.lister = lister;
+        this.visitor = visitor;
+        this.executor = Executors.newFixedThreadPool(parallelism,
+                new NamedThreadFactory("remote-list-%d", "remotelisting", "RemoteListingThreadPool"));
+    }
+
+    /**
+     * Starts listing a remote directory tree in the background.
+     *
+     * @param root remote directory to list
+     * @param lister lister of a single directory
+     * @param parallelism number of directories listed at once
+     * @param visitor receiver of the listed directories
+     * @return the started listing, which is stopped by {@link #stop()}
+     */
+    static RemoteTreeLister start(final String root, final DirectoryLister lister,
+                                  final int parallelism, final Visitor visitor) {
+        final RemoteTreeLister started = new RemoteTreeLister(lister, visitor, parallelism);
+        started.start(root);
+        return started;
+    }
+
+    /**
+     * Lists a remote directory tree with the default buffer size.
+     *
+     * @param root remote directory to list
+     * @param lister lister of a single directory
+     * @param parallelism number of directories listed at once
+     * @return stream of every object within the tree, which must be closed
+     */
+    static Stream<MantaObject> find(final String root, final DirectoryLister lister,
+                                    final int parallelism) {
+        return find(root, lister, parallelism, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Lists a remote directory tree into a stream. A directory is always
+     * streamed before any object within it. Objects found ahead of the
+     * reader are buffered up to a fixed number, beyond which listing waits
+     * for the reader. A directory that can't be listed fails the stream,
+     * like a failed listing of {@link MantaClient#find(String)} does.
+     * Closing the stream stops the listing.
+     *
+     * @param root remote directory to list
+     * @param lister lister of a single directory
+     * @param parallelism number of directories listed at once
+     * @param bufferSize number of objects found ahead of the reader
+     * @return stream of every object within the tree, which must be closed
+     */
+    static Stream<MantaObject> find(final String root, final DirectoryLister lister,
+                                    final int parallelism, final int bufferSize) {
+        Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero");
+
+        final Reader reader = new Reader(bufferSize);
+        reader.listing = new RemoteTreeLister(lister, reader, parallelism);
+        reader.listing.start(root);
+
+        final Spliterator<MantaObject> spliterator = Spliterators.spliteratorUnknownSize(
+                reader, Spliterator.ORDERED | Spliterator.NONNULL);
+
+        return StreamSupport.stream(spliterator, false).onClose(reader::stop);
+    }
+
+    private void start(final String root) {
+        Validate.notBlank(root, "Remote root must not be blank");
+        submit(StringUtils.appendIfMissing(root, MantaClient.SEPARATOR));
+    }
+
+    private void submit(final String directory) {
+        pending.incrementAndGet();
+
+        try {
+            executor.execute(() -> list(directory));
+        } catch (RejectedExecutionException e) {
+            // The listing was stopped
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Lists a directory, hands its objects to the visitor and then submits
+     * the listing of each subdirectory.
+     */
+    private void list(final String directory) {
+        if (stopped.get()) {
+            return;
+        }
+
+        try {
+            final List<MantaObject> objects = read(directory);
+
+            if (objects != null && !stopped.get()) {
+                visitor.visit(directory, objects);
+
+                for (MantaObject object : objects) {
+                    if (object.isDirectory()) {
+                        submit(StringUtils.appendIfMissing(object.getPath(), MantaClient.SEPARATOR));
+                    }
+                }
+            }
+
+            if (pending.decrementAndGet() == 0 && !stopped.get()) {
+                executor.shutdown();
+                visitor.finished();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the listing of a directory in full and closes it.
+     *
+     * @return objects in the directory or null when it couldn't be listed
+     */
+    private List<MantaObject> read(final String directory) {
+        final List<MantaObject> objects = new ArrayList<>();
+
+        try (Stream<MantaObject> listing = lister.list(directory)) {
+            listing.forEach(objects::add);
+            return objects;
+        } catch (IOException | RuntimeException e) {
+            if (!visitor.failed(directory, e)) {
+                stop();
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Stops the listing, interrupting the directories being listed.
+     */
+    void stop() {
+        stopped.set(true);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Reader of a listing streamed through a buffer.
+     */
+    private static final class Reader implements Iterator<MantaObject>, Visitor {
+        private final BlockingQueue<Object> buffer;
+        private final AtomicBoolean failed = new AtomicBoolean(false);
+        private RemoteTreeLister listing;
+        private Object next;
+
+        Reader(final int bufferSize) {
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        @Override
+        public void visit(final String directory, final List<MantaObject> objects)
+                throws InterruptedException {
+            for (MantaObject object : objects) {
+                buffer.put(object);
+            }
+        }
+
+        /**
+         * Stops the listing and hands the failure to the reader instead of
+         * the rest of the objects.
+         */
+        @Override
+        public boolean failed(final String directory, final Exception e) {
+            if (!failed.compareAndSet(false, true)) {
+                return false;
+            }
+
+            final String msg = "Unable to list remote directory";
+            final TransferClientException tce = new TransferClientException(msg, e);
+            tce.setContextValue("directory", directory);
+            listing.stop();
+
+            // Listers that were waiting for room are interrupted, but one
+            // may still add an object before the failure gets in
+            while (!buffer.offer(tce)) {
+                buffer.clear();
+            }
+
+            return false;
+        }
+
+        @Override
+        public void finished() throws InterruptedException {
+            buffer.put(END);
+        }
+
+        void stop() {
+            listing.stop();
+            buffer.clear();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = buffer.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stop();
+                    throw new TransferClientException("Interrupted while listing remote directory", e);
+                }
+            }
+
+            if (next instanceof TransferClientException) {
+                throw (TransferClientException)next;
+            }
+
+            return next != END;
+        }
+
+        @Override
+        public MantaObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            final MantaObject object = (MantaObject)next;
+            next = null;
+            return object;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaObjectInputStream;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class that reduces tail latency by hedging remote requests. When a request
+ * takes longer than the recent 95th percentile latency of requests of the
+ * same kind, a speculative duplicate is issued and the first successful
+ * response is used. Losing responses that hold resources (such as open
+ * streams) are closed, and the connection of a losing object stream is
+ * aborted first so that its body isn't read only to be thrown away. The number of hedges is capped by a budget that is a
+ * fraction of the overall number of requests so that hedging can't
+ * significantly amplify the load on the server.
+ *
+ * <p>Hedging is only safe for idempotent requests.</p>
+ */
+class RequestHedger implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestHedger.class);
+
+    /**
+     * Percentile of latency after which a request is hedged.
+     */
+    static final double HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * Default fraction of requests that may be hedged.
+     */
+    static final double DEFAULT_HEDGE_RATIO = 0.05;
+
+    private static final int LATENCY_SAMPLES = 512;
+    private static final int MIN_LATENCY_SAMPLES = 32;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50L;
+    private static final long INITIAL_HEDGES = 10L;
+    private static final long MAX_SAVED_HEDGES = 100L;
+
+    /**
+     * A remote request that may be executed more than once.
+     *
+     * @param <T> type of response
+     */
+    @FunctionalInterface
+    interface RemoteCall<T> {
+        /**
+         * Executes the request.
+         *
+         * @return the response
+         * @throws IOException thrown when the request fails
+         */
+        T call() throws IOException;
+    }
+
+    private final boolean enabled;
+    private final ExecutorService executor;
+    private final RetryBudget budget;
+    private final ConcurrentMap<String, LatencyTracker> latencies = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong(0L);
+    private final AtomicLong hedges = new AtomicLong(0L);
+    private final AtomicLong hedgeWins = new AtomicLong(0L);
+    private final AtomicLong hedgesDenied = new AtomicLong(0L);
+
+    /**
+     * Creates a new instance.
+     *
+     * @param enabled when false requests are executed directly without hedging
+     * @param hedgeRatio fraction of requests that may be hedged
+     */
+    RequestHedger(final boolean enabled, final double hedgeRatio) {
+        this.enabled = enabled;
+        this.budget = new RetryBudget(INITIAL_HEDGES, MAX_SAVED_HEDGES, hedgeRatio);
+
+        if (enabled) {
+            this.executor = Executors.newCachedThreadPool(new NamedThreadFactory(
+                    "hedged-request-%d", "hedgedrequests", "HedgedRequestThreadPool"));
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * @return a new instance that never hedges requests
+     */
+    static RequestHedger disabled() {
+        return new RequestHedger(false, 0.0);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getHedges() {
+        return hedges.get();
+    }
+
+    long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    long getHedgesDenied() {
+        return hedgesDenied.get();
+    }
+
+    /**
+     * Executes a request, hedging it if it takes longer than usual.
+     *
+     * @param operation kind of request used to group latencies
+     * @param call request to execute
+     * @param <T> type of response
+     * @return the first successful response
+     * @throws IOException thrown when all attempts of the request failed
+     */
+    <T> T execute(final String operation, final RemoteCall<T> call) throws IOException {
+        if (!enabled) {
+            return call.call();
+        }
+
+        requests.incrementAndGet();
+        budget.deposit();
+
+        final LatencyTracker tracker = latencies.computeIfAbsent(operation,
+                o -> new LatencyTracker(LATENCY_SAMPLES, HEDGE_PERCENTILE, MIN_LATENCY_SAMPLES));
+        final long percentile = tracker.getPercentileMillis();
+
+        // Until we know what a normal latency is, we don't hedge
+        if (percentile < 0) {
+            final long start = System.nanoTime();
+            final T result = call.call();
+            tracker.record(System.nanoTime() - start);
+            return result;
+        }
+
+        final long hedgeDelay = Math.max(percentile, MIN_HEDGE_DELAY_MILLIS);
+        final CompletableFuture<Attempt<T>> winner = new CompletableFuture<>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final List<Future<?>> attempts = new ArrayList<>(2);
+
+        attempts.add(executor.submit(() -> attempt(call, tracker, winner, pending, false)));
+
+        try {
+            try {
+                return won(winner.get(hedgeDelay, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                if (budget.tryAcquire()) {
+                    LOG.debug("{} request exceeded {}ms - issuing hedged request",
+                            operation, hedgeDelay);
+                    hedges.incrementAndGet();
+                    pending.incrementAndGet();
+                    attempts.add(executor.submit(() -> attempt(call, tracker, winner, pending, true)));
+                } else {
+                    hedgesDenied.incrementAndGet();
+                }
+            }
+
+            return won(winner.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ioe = new InterruptedIOException(
+                    "Interrupted while waiting for response");
+            ioe.initCause(e);
+            throw ioe;
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } finally {
+            for (Future<?> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Counts the winning attempt if it was the hedge.
+     */
+    private <T> T won(final Attempt<T> attempt) {
+        if (attempt.hedge) {
+            hedgeWins.incrementAndGet();
+        }
+
+        return attempt.result;
+    }
+
+    /**
+     * Runs a single attempt of a request and offers its response as the
+     * winner. Responses that lose are discarded.
+     */
+    private <T> void attempt(final RemoteCall<T> call, final LatencyTracker tracker,
+                             final CompletableFuture<Attempt<T>> winner, final AtomicInteger pending,
+                             final boolean hedge) {
+        final long start = System.nanoTime();
+
+        try {
+            final T result = call.call();
+            tracker.record(System.nanoTime() - start);
+
+            if (!winner.complete(new Attempt<>(result, hedge))) {
+                discard(result);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Only fail when every attempt has failed
+            if (pending.decrementAndGet() == 0) {
+                winner.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Releases the resources held by a losing response. Closing an object
+     * stream would read the rest of its body to reuse the connection, so
+     * its connection is aborted instead.
+     */
+    private static void discard(final Object result) {
+        if (!(result instanceof Closeable)) {
+            return;
+        }
+
+        try {
+            if (result instanceof MantaObjectInputStream) {
+                ((MantaObjectInputStream)result).abortConnection();
+            }
+
+            ((Closeable)result).close();
+        } catch (IOException e) {
+            LOG.debug("Unable to close losing hedged response", e);
+        }
+    }
+
+    private static IOException unwrap(final Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException)cause;
+        }
+
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+        }
+
+        return new IOException(cause);
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+
+        if (enabled && LOG.isInfoEnabled()) {
+            LOG.info("Hedged requests: {}", this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("enabled", enabled)
+                .append("requests", getRequests())
+                .append("hedges", getHedges())
+                .append("hedgeWins", getHedgeWins())
+                .append("hedgesDenied", getHedgesDenied())
+                .append("latencies", latencies)
+                .toString();
+    }
+
+    /**
+     * Response of an attempt along with whether the attempt was the hedge.
+     *
+     * @param <T> type of response
+     */
+    private static final class Attempt<T> {
+        private final T result;
+        private final boolean hedge;
+
+        Attempt(final T result, final boolean hedge) {
+            this.result = result;
+            this.hedge = hedge;
+        }
+    }
+}
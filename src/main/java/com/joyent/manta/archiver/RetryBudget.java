@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide limit on the number of retries. Every operation deposits a
+ * fraction of a retry into the budget and every retry withdraws a whole one,
+ * so retries can never exceed a fixed ratio of the overall request volume.
+ * When the remote end is down for an extended period the budget runs dry and
+ * operations fail fast instead of multiplying the load on the server.
+ *
+ * <p>Retry policies created with the default settings all draw from the
+ * budget returned by {@link #shared()}, so that retries of uploads, parts,
+ * ranges and asynchronous requests count against a single allowance.</p>
+ */
+class RetryBudget {
+    /**
+     * Default number of retries available before any deposits are made.
+     */
+    static final long DEFAULT_INITIAL_RETRIES = 100L;
+
+    /**
+     * Default maximum number of retries that can be saved up.
+     */
+    static final long DEFAULT_MAX_RETRIES = 1_000L;
+
+    /**
+     * Default fraction of a retry deposited for each operation.
+     */
+    static final double DEFAULT_RETRY_RATIO = 0.1;
+
+    /**
+     * Number of units that a single retry is divided into so that fractional
+     * deposits can be tracked with integer arithmetic.
+     */
+    private static final long UNITS_PER_RETRY = 1_000L;
+
+    private static final RetryBudget SHARED = new RetryBudget();
+
+    private final AtomicLong balance;
+    private final long maxBalance;
+    private final long depositUnits;
+    private final AtomicLong retriesAcquired = new AtomicLong(0L);
+    private final AtomicLong retriesDenied = new AtomicLong(0L);
+
+    /**
+     * Creates a new instance with the default settings.
+     */
+    RetryBudget() {
+        this(DEFAULT_INITIAL_RETRIES, DEFAULT_MAX_RETRIES, DEFAULT_RETRY_RATIO);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param initialRetries number of retries available before any deposits are made
+     * @param maxRetries maximum number of retries that can be saved up
+     * @param retryRatio fraction of a retry deposited for each operation
+     */
+    RetryBudget(final long initialRetries, final long maxRetries, final double retryRatio) {
+        Validate.isTrue(initialRetries >= 0, "Initial retries must not be negative");
+        Validate.isTrue(maxRetries >= initialRetries,
+                "Max retries must be greater than or equal to initial retries");
+        Validate.isTrue(retryRatio >= 0.0, "Retry ratio must not be negative");
+
+        this.balance = new AtomicLong(initialRetries * UNITS_PER_RETRY);
+        this.maxBalance = maxRetries * UNITS_PER_RETRY;
+        this.depositUnits = Math.round(retryRatio * UNITS_PER_RETRY);
+    }
+
+    /**
+     * @return the budget shared by every default retry policy of the process
+     */
+    static RetryBudget shared() {
+        return SHARED;
+    }
+
+    /**
+     * Records that an operation was attempted for the first time.
+     */
+    void deposit() {
+        balance.accumulateAndGet(depositUnits, (current, units) ->
+                Math.min(maxBalance, current + units));
+    }
+
+    /**
+     * Withdraws a single retry from the budget if one is available.
+     *
+     * @return true if a retry may be performed
+     */
+    boolean tryAcquire() {
+        while (true) {
+            final long current = balance.get();
+
+            if (current < UNITS_PER_RETRY) {
+                retriesDenied.incrementAndGet();
+                return false;
+            }
+
+            if (balance.compareAndSet(current, current - UNITS_PER_RETRY)) {
+                retriesAcquired.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return number of whole retries currently available
+     */
+    long getAvailableRetries() {
+        return balance.get() / UNITS_PER_RETRY;
+    }
+
+    long getRetriesAcquired() {
+        return retriesAcquired.get();
+    }
+
+    long getRetriesDenied() {
+        return retriesDenied.get();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("availableRetries", getAvailableRetries())
+                .append("retriesAcquired", getRetriesAcquired())
+                .append("retriesDenied", getRetriesDenied())
+                .toString();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.exception.MantaClientHttpResponseException;
+import com.joyent.manta.exception.MantaUnexpectedObjectTypeException;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.http.HttpStatus;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class that decides if a failed transfer operation should be retried and how
+ * long to wait before retrying it. Errors are classified as either transient
+ * (server errors, throttling and I/O errors) or permanent (client errors and
+ * local file processing errors). Delays grow exponentially with each attempt
+ * and are randomized using "full jitter" so that many workers failing at the
+ * same moment don't retry in lockstep.
+ */
+class RetryPolicy {
+    /**
+     * Default maximum number of attempts for a single operation.
+     */
+    static final int DEFAULT_MAX_ATTEMPTS = 6;
+
+    /**
+     * Default delay before the first retry.
+     */
+    static final long DEFAULT_BASE_DELAY_MILLIS = 500L;
+
+    /**
+     * Default upper bound of the delay between retries.
+     */
+    static final long DEFAULT_MAX_DELAY_MILLIS = 60_000L;
+
+    /**
+     * HTTP status code returned when the server is throttling requests.
+     */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Largest shift used when calculating exponential delays so that the
+     * calculation can't overflow.
+     */
+    private static final int MAX_BACKOFF_SHIFT = 30;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final RetryBudget budget;
+
+    /**
+     * Creates a new instance with the default settings, drawing from the
+     * retry budget shared by the process.
+     */
+    RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS,
+                DEFAULT_MAX_DELAY_MILLIS, RetryBudget.shared());
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxAttempts maximum number of attempts (including the first) per operation
+     * @param baseDelayMillis delay before the first retry
+     * @param maxDelayMillis upper bound of the delay between retries
+     * @param budget retry budget shared by all operations
+     */
+    RetryPolicy(final int maxAttempts, final long baseDelayMillis,
+                final long maxDelayMillis, final RetryBudget budget) {
+        Validate.isTrue(maxAttempts > 0, "Max attempts must be greater than zero");
+        Validate.isTrue(baseDelayMillis >= 0, "Base delay must not be negative");
+        Validate.isTrue(maxDelayMillis >= baseDelayMillis,
+                "Max delay must be greater than or equal to the base delay");
+
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budget = budget;
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    RetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Determines if an error could succeed if the operation were retried.
+     *
+     * @param e error thrown by a transfer operation
+     * @return true if the error is transient
+     */
+    static boolean isRetryable(final Throwable e) {
+        Throwable current = e;
+
+        while (current != null) {
+            if (current instanceof FileProcessingException
+                    || current instanceof MantaUnexpectedObjectTypeException) {
+                return false;
+            }
+
+            if (current instanceof MantaClientHttpResponseException) {
+                final int status = ((MantaClientHttpResponseException)current).getStatusCode();
+                return status >= HttpStatus.SC_INTERNAL_SERVER_ERROR
+                        || status == HttpStatus.SC_REQUEST_TIMEOUT
+                        || status == SC_TOO_MANY_REQUESTS;
+            }
+
+            if (current instanceof IOException) {
+                return true;
+            }
+
+            current = current.getCause();
+        }
+
+        return false;
+    }
+
+    /**
+     * Determines if an operation that failed should be attempted again.
+     *
+     * @param e error thrown by the failed attempt
+     * @param attempts number of attempts made so far
+     * @return true if the operation should be retried
+     */
+    boolean shouldRetry(final Throwable e, final int attempts) {
+        if (attempts >= maxAttempts || !isRetryable(e)) {
+            return false;
+        }
+
+        return budget.tryAcquire();
+    }
+
+    /**
+     * Calculates a randomized delay before the next attempt using
+     * exponential backoff with full jitter.
+     *
+     * @param attempts number of attempts made so far
+     * @return delay in milliseconds
+     */
+    long backoffMillis(final int attempts) {
+        if (baseDelayMillis == 0L) {
+            return 0L;
+        }
+
+        final int shift = Math.min(Math.max(attempts - 1, 0), MAX_BACKOFF_SHIFT);
+        final long ceiling = Math.min(maxDelayMillis, baseDelayMillis << shift);
+
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("maxAttempts", maxAttempts)
+                .append("baseDelayMillis", baseDelayMillis)
+                .append("maxDelayMillis", maxDelayMillis)
+                .append("budget", budget)
+                .toString();
+    }
+}
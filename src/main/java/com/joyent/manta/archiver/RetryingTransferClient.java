@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.exception.ContextedRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * {@link TransferClient} decorator that retries operations that failed due to
+ * transient errors. Retries are delayed using the backoff defined by a
+ * {@link RetryPolicy} and are limited both per operation and globally by the
+ * policy's {@link RetryBudget}. File uploads count their attempts on the
+ * {@link FileUpload} itself so that the limit applies to the object no matter
+ * how many times it is handed to this client.
+ *
+ * <p>{@link #find()} isn't retried because the stream it returns is
+ * evaluated lazily.</p>
+ */
+class RetryingTransferClient extends ForwardingTransferClient {
+    private static final Logger LOG = LoggerFactory.getLogger(RetryingTransferClient.class);
+
+    private final RetryPolicy policy;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param delegate client to forward calls to
+     * @param policy policy determining when and how operations are retried
+     */
+    RetryingTransferClient(final TransferClient delegate, final RetryPolicy policy) {
+        super(delegate);
+        this.policy = requireNonNull(policy, "Retry policy is null");
+    }
+
+    RetryPolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public void mkdirp(final String path, final DirectoryUpload upload) {
+        execute("mkdirp", path, localCounter(), () -> {
+            delegate().mkdirp(path, upload);
+            return null;
+        });
+    }
+
+    @Override
+    public void put(final String path, final FileUpload upload) {
+        final IntSupplier attempts = () -> {
+            upload.incrementUploadAttempts();
+            return upload.getUploadAttempts();
+        };
+
+        execute("put", path, attempts, () -> {
+            delegate().put(path, upload);
+            return null;
+        });
+    }
+
+    @Override
+    public void put(final String path, final SymbolicLinkUpload upload) {
+        execute("put", path, localCounter(), () -> {
+            delegate().put(path, upload);
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(final String path, final boolean recursive) {
+        execute("delete", path, localCounter(), () -> {
+            delegate().delete(path, recursive);
+            return null;
+        });
+    }
+
+    @Override
+    public VerificationResult verifyDirectory(final String remotePath) {
+        return execute("verifyDirectory", remotePath, localCounter(),
+                () -> delegate().verifyDirectory(remotePath));
+    }
+
+    @Override
+    public VerificationResult verifyFile(final String remotePath, final long size,
+                                         final byte[] checksum) {
+        return execute("verifyFile", remotePath, localCounter(),
+                () -> delegate().verifyFile(remotePath, size, checksum));
+    }
+
+    @Override
+    public VerificationResult verifyLink(final String remotePath, final Path localResolvedPath) {
+        return execute("verifyLink", remotePath, localCounter(),
+                () -> delegate().verifyLink(remotePath, localResolvedPath));
+    }
+
+    @Override
+    public VerificationResult download(final String remotePath, final Optional<Path> path) {
+        return execute("download", remotePath, localCounter(),
+                () -> delegate().download(remotePath, path));
+    }
+
+    @Override
+    public String get(final String remotePath) {
+        return execute("get", remotePath, localCounter(),
+                () -> delegate().get(remotePath));
+    }
+
+    /**
+     * Runs an operation until it succeeds or the retry policy decides that
+     * it should no longer be retried.
+     *
+     * @param operation name of operation used for logging
+     * @param path remote path the operation is acting upon
+     * @param attempts supplier that records an attempt and returns the total number of attempts
+     * @param call operation to run
+     * @param <T> return type of the operation
+     * @return result of the operation
+     */
+    private <T> T execute(final String operation, final String path,
+                          final IntSupplier attempts, final Supplier<T> call) {
+        policy.getBudget().deposit();
+
+        while (true) {
+            final int attempt = attempts.getAsInt();
+
+            try {
+                return call.get();
+            } catch (RuntimeException e) {
+                if (!policy.shouldRetry(e, attempt)) {
+                    throw annotate(e, operation, path, attempt);
+                }
+
+                final long delay = policy.backoffMillis(attempt);
+
+                LOG.warn("Attempt {} of {} on [{}] failed. Retrying in {}ms. Cause: {}",
+                        attempt, operation, path, delay, e.getMessage());
+
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw annotate(e, operation, path, attempt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds retry details to the context of an exception if it supports it.
+     *
+     * @param e exception to annotate
+     * @param operation name of operation that failed
+     * @param path remote path the operation was acting upon
+     * @param attempts number of attempts made
+     * @return the same exception passed
+     */
+    private RuntimeException annotate(final RuntimeException e, final String operation,
+                                      final String path, final int attempts) {
+        if (e instanceof ContextedRuntimeException) {
+            final ContextedRuntimeException contexted = (ContextedRuntimeException)e;
+            contexted.setContextValue("retryOperation", operation);
+            contexted.setContextValue("retryPath", path);
+            contexted.setContextValue("retryAttempts", attempts);
+            contexted.setContextValue("retryable", RetryPolicy.isRetryable(e));
+            contexted.setContextValue("retryBudget", policy.getBudget());
+        }
+
+        return e;
+    }
+
+    /**
+     * @return attempt counter for operations that don't track attempts themselves
+     */
+    private static IntSupplier localCounter() {
+        final AtomicInteger counter = new AtomicInteger(0);
+        return counter::incrementAndGet;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Controller that balances the compression stage of an upload against the
+ * upload stage. It periodically measures how busy the compressors are, how
+ * full the upload queue is and how many uploaders are idle waiting
+ * for work, and then adjusts the number of files that may be compressed
+ * concurrently. When uploaders are starved while compressors are busy the
+ * compression concurrency is raised, and when the queue is full while no
+ * uploader is waiting it is lowered, freeing CPU for the uploaders.
+ *
+ * <p>Only the compression side is resized. The uploaders already use every
+ * connection the client has, so more uploaders would only wait for a
+ * connection, and fewer would leave connections unused while the upload
+ * queue is full.</p>
+ */
+class StageBalancer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(StageBalancer.class);
+
+    /**
+     * Time between samples of the queue and waiting uploaders.
+     */
+    static final long SAMPLE_INTERVAL_MILLIS = 100L;
+
+    /**
+     * Number of samples taken before each balancing decision.
+     */
+    static final int SAMPLES_PER_DECISION = 20;
+
+    /**
+     * Fraction of uploaders waiting for work above which the upload stage
+     * is considered starved.
+     */
+    private static final double STARVED_UPLOADERS = 0.25;
+
+    /**
+     * Fraction of uploaders waiting for work below which the upload stage
+     * is considered saturated.
+     */
+    private static final double SATURATED_UPLOADERS = 0.05;
+
+    /**
+     * Utilization above which the compressors are considered busy.
+     */
+    private static final double BUSY_COMPRESSORS = 0.75;
+
+    private static final double PERCENT = 100.0;
+
+    private final Pipeline.StageStats uploadStage;
+    private final ConcurrencyLimit compressionLimit;
+    private final int maxCompressors;
+    private final int uploaders;
+    private final int queueCapacity;
+    private final LongSupplier compressorBusyNanos;
+    private final ScheduledExecutorService scheduler;
+
+    private int samples = 0;
+    private long waitingSum = 0L;
+    private long queueSizeSum = 0L;
+    private long lastBusyNanos = 0L;
+    private long lastDecisionNanos = System.nanoTime();
+    private volatile String lastDecision = "none yet";
+    private volatile int increases = 0;
+    private volatile int decreases = 0;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param uploadStage upload stage fed by the compression stage
+     * @param compressionLimit limit on concurrent compressions to adjust
+     * @param compressorBusyNanos supplier of the total time spent compressing
+     * @param maxCompressors maximum concurrent compressions allowed
+     * @param queueCapacity number of uploads that can be queued before
+     *                      compressors block
+     */
+    StageBalancer(final Pipeline.StageStats uploadStage,
+                  final ConcurrencyLimit compressionLimit,
+                  final LongSupplier compressorBusyNanos,
+                  final int maxCompressors,
+                  final int queueCapacity) {
+        Validate.isTrue(maxCompressors > 0, "Max compressors must be greater than zero");
+
+        this.uploadStage = uploadStage;
+        this.compressionLimit = compressionLimit;
+        this.compressorBusyNanos = compressorBusyNanos;
+        this.maxCompressors = maxCompressors;
+        this.uploaders = uploadStage.getParallelism();
+        this.queueCapacity = Math.max(queueCapacity, 1);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+                "stage-balancer-%d", "balancer", "StageBalancer"));
+    }
+
+    /**
+     * Starts periodically sampling and balancing the stages.
+     */
+    void start() {
+        scheduler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL_MILLIS,
+                SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a sample of the stages and balances them when enough samples
+     * have been taken.
+     */
+    synchronized void sample() {
+        waitingSum += uploadStage.getIdleWorkers();
+        queueSizeSum += uploadStage.getQueueSize();
+        samples++;
+
+        if (samples >= SAMPLES_PER_DECISION) {
+            balance();
+        }
+    }
+
+    /**
+     * Adjusts the compression concurrency based on the samples taken since
+     * the last adjustment.
+     */
+    synchronized void balance() {
+        if (samples == 0) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final long elapsed = Math.max(now - lastDecisionNanos, 1L);
+        final long busyNanos = compressorBusyNanos.getAsLong();
+        final int limit = compressionLimit.getLimit();
+
+        final double uploadersWaiting = (double)waitingSum / samples / uploaders;
+        final double queueOccupancy = (double)queueSizeSum / samples / queueCapacity;
+        final double compressorUtilization = (double)(busyNanos - lastBusyNanos) / elapsed / limit;
+
+        final String measurements = String.format("uploaders waiting %.0f%%, "
+                        + "upload queue %.0f%% full, compressors busy %.0f%%",
+                uploadersWaiting * PERCENT, queueOccupancy * PERCENT,
+                compressorUtilization * PERCENT);
+
+        if (uploadersWaiting > STARVED_UPLOADERS && compressorUtilization > BUSY_COMPRESSORS
+                && limit < maxCompressors) {
+            compressionLimit.setLimit(limit + 1);
+            increases++;
+            lastDecision = String.format("raised compressors %d -> %d (%s)",
+                    limit, limit + 1, measurements);
+            LOG.debug("Stage balancer {}", lastDecision);
+        } else if (uploadersWaiting < SATURATED_UPLOADERS && queueOccupancy >= 1.0 && limit > 1) {
+            compressionLimit.setLimit(limit - 1);
+            decreases++;
+            lastDecision = String.format("lowered compressors %d -> %d (%s)",
+                    limit, limit - 1, measurements);
+            LOG.debug("Stage balancer {}", lastDecision);
+        } else {
+            lastDecision = String.format("kept compressors at %d (%s)", limit, measurements);
+        }
+
+        samples = 0;
+        waitingSum = 0L;
+        queueSizeSum = 0L;
+        lastBusyNanos = busyNanos;
+        lastDecisionNanos = now;
+    }
+
+    String getLastDecision() {
+        return lastDecision;
+    }
+
+    int getIncreases() {
+        return increases;
+    }
+
+    int getDecreases() {
+        return decreases;
+    }
+
+    /**
+     * @return human readable summary of the balancer's state
+     */
+    String describe() {
+        return String.format("compressors %d/%d, uploaders %d, %d raises, %d reductions, last: %s",
+                compressionLimit.getLimit(), maxCompressors, uploaders, increases, decreases,
+                lastDecision);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        LOG.debug("Stage balancer finished: {}", describe());
+    }
+}
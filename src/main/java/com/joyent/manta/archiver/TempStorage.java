@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Set of directories, possibly on different filesystems, in which compressed
+ * temp files are written. Spreading temp files over several devices spreads
+ * the write bandwidth used by compression over them.
+ *
+ * <p>Each directory may have a capacity. Space is reserved in a directory
+ * before a file is compressed into it, based on the size of the file before
+ * compression, and the reservation is reduced to the compressed size once
+ * compression completes and released once the temp file is deleted. Files
+ * are placed in turn in each directory whose capacity and free disk space
+ * can hold them. Small files are placed on memory backed filesystems (tmpfs)
+ * when there are any, while larger files are kept off them unless no other
+ * directory has room. When no directory has room, callers wait until
+ * enough space is released.</p>
+ *
+ * <p>The temp storage used by the process is set with {@link #use(TempStorage)}
+ * and defaults to a single directory of unlimited capacity within
+ * {@code java.io.tmpdir}.</p>
+ */
+final class TempStorage {
+    private static final Logger LOG = LoggerFactory.getLogger(TempStorage.class);
+
+    /**
+     * Capacity of a directory without a limit.
+     */
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    /**
+     * Size of the largest file that is preferably placed on tmpfs.
+     */
+    static final long DEFAULT_SMALL_FILE_THRESHOLD = 1024L * 1024L;
+
+    /**
+     * Name of the directory created within each temp root.
+     */
+    static final String DIRECTORY_NAME = "manta-archiver";
+
+    private static final Pattern SIZE_PATTERN = Pattern.compile(
+            "^(\\d+(?:\\.\\d+)?)\\s*([kmgt]?)(?:i?b)?$");
+    private static final String[] BINARY_UNITS = {"k", "m", "g", "t"};
+    private static final long KIBIBYTE = 1024L;
+    private static final long SPACE_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(1L);
+    private static final String[] MEMORY_FILESYSTEMS = {"tmpfs", "ramfs"};
+
+    private static volatile TempStorage current = new TempStorage(Collections.singletonList(
+            new Root(ObjectUploadQueueLoader.TEMP_PATH, UNLIMITED, false)),
+            DEFAULT_SMALL_FILE_THRESHOLD);
+
+    private final List<Root> roots;
+    private final long smallFileThreshold;
+    private final Map<Path, Reservation> reservations = new HashMap<>();
+    private int nextRoot = 0;
+    private volatile boolean retainedOnExit = false;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param roots directories that temp files are written to
+     * @param smallFileThreshold size of the largest file that is preferably placed on tmpfs
+     */
+    TempStorage(final List<Root> roots, final long smallFileThreshold) {
+        Validate.notEmpty(roots, "At least one temp directory is required");
+
+        this.roots = Collections.unmodifiableList(new ArrayList<>(roots));
+        this.smallFileThreshold = smallFileThreshold;
+    }
+
+    /**
+     * @return the temp storage used by the process
+     */
+    static TempStorage current() {
+        return current;
+    }
+
+    /**
+     * Sets the temp storage used by the process.
+     *
+     * @param storage temp storage to use
+     */
+    static void use(final TempStorage storage) {
+        current = Validate.notNull(storage, "Temp storage must not be null");
+        LOG.info("Using temp storage: {}", storage.describe());
+    }
+
+    /**
+     * Parses a comma separated list of directories, each optionally followed
+     * by an equals sign and its capacity (e.g. "/mnt/ssd1=200GB,/dev/shm=2GB").
+     * Directories on tmpfs are detected automatically.
+     *
+     * @param spec specification of the temp directories
+     * @return a new instance
+     * @throws IllegalArgumentException thrown when the specification is invalid
+     */
+    static TempStorage parse(final String spec) {
+        Validate.notBlank(spec, "Temp directory specification must not be blank");
+
+        final List<Root> parsed = new ArrayList<>();
+
+        for (String entry : spec.split(",")) {
+            final String trimmed = entry.trim();
+
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+
+            final String directory;
+            long capacity = UNLIMITED;
+
+            if (trimmed.contains("=")) {
+                directory = StringUtils.substringBeforeLast(trimmed, "=").trim();
+                capacity = parseSize(StringUtils.substringAfterLast(trimmed, "=").trim());
+            } else {
+                directory = trimmed;
+            }
+
+            final Path parent = Paths.get(directory).toAbsolutePath().normalize();
+
+            if (!Files.isDirectory(parent)) {
+                throw new IllegalArgumentException(String.format(
+                        "Temp directory doesn't exist: %s", parent));
+            }
+
+            parsed.add(new Root(parent.resolve(DIRECTORY_NAME), capacity, isMemoryBacked(parent)));
+        }
+
+        return new TempStorage(parsed, DEFAULT_SMALL_FILE_THRESHOLD);
+    }
+
+    /**
+     * Parses a size in bytes with an optional binary unit (e.g. "512k" or "2GB").
+     *
+     * @param size size to parse
+     * @return number of bytes
+     * @throws IllegalArgumentException thrown when the size is invalid
+     */
+    static long parseSize(final String size) {
+        final Matcher matcher = SIZE_PATTERN.matcher(size.toLowerCase(Locale.ENGLISH));
+
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid size: %s", size));
+        }
+
+        final double value = Double.parseDouble(matcher.group(1));
+        final String unit = matcher.group(2);
+        long multiplier = 1L;
+
+        // Each unit is 1024 times the size of the one before it
+        for (String u : BINARY_UNITS) {
+            multiplier *= KIBIBYTE;
+
+            if (u.equals(unit)) {
+                return (long)(value * multiplier);
+            }
+        }
+
+        return (long)value;
+    }
+
+    private static boolean isMemoryBacked(final Path directory) {
+        try {
+            final String type = Files.getFileStore(directory).type();
+
+            for (String memoryType : MEMORY_FILESYSTEMS) {
+                if (memoryType.equalsIgnoreCase(type)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Unable to determine filesystem type of {}", directory, e);
+        }
+
+        return false;
+    }
+
+    List<Root> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Chooses the path of the temp file for a file to be compressed and
+     * reserves space for it, waiting until a directory has room.
+     *
+     * @param sourcePath path to the file to be compressed
+     * @param size size of the file before compression
+     * @return path to write the compressed file to
+     * @throws InterruptedException thrown when interrupted while waiting for space
+     */
+    Path allocate(final Path sourcePath, final long size) throws InterruptedException {
+        if (!fitsAnywhere(size)) {
+            String msg = "File is larger than the capacity of every temp directory";
+            FileProcessingException fpe = new FileProcessingException(msg);
+            fpe.setContextValue("path", sourcePath);
+            fpe.setContextValue("size", size);
+            fpe.setContextValue("tempStorage", describe());
+            throw fpe;
+        }
+
+        while (true) {
+            // The free disk space is read without holding the lock, so that
+            // allocations don't wait for each other's filesystem calls
+            final long[] usable = usableSpace();
+
+            synchronized (this) {
+                final Root root = choose(size, usable);
+
+                if (root != null) {
+                    return reserve(root, sourcePath, size);
+                }
+
+                LOG.debug("Waiting for room in temp directories for [{}]", sourcePath);
+                // Disk space can also be freed by other processes, so we check again periodically
+                wait(SPACE_WAIT_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Reads the free disk space of the filesystem of each directory.
+     */
+    private long[] usableSpace() {
+        final long[] usable = new long[roots.size()];
+
+        for (int i = 0; i < usable.length; i++) {
+            usable[i] = roots.get(i).usableSpace();
+        }
+
+        return usable;
+    }
+
+    /**
+     * Reserves space for a temp file in a directory chosen for it.
+     */
+    private Path reserve(final Root root, final Path sourcePath, final long size) {
+        final Path subPath = Paths.get(sourcePath + "." + ObjectCompressor.COMPRESSION_TYPE);
+        Path tempPath = ObjectUploadQueueLoader.appendPaths(root.directory, subPath);
+
+        if (reservations.containsKey(tempPath) || Files.exists(tempPath)) {
+            final Path changedPath = tempPath.resolveSibling(tempPath.getFileName() + "-"
+                    + UUID.randomUUID());
+            LOG.warn("Avoiding overwrite of path [{}] by changing file name to [{}]",
+                    tempPath, changedPath);
+            tempPath = changedPath;
+        }
+
+        root.reserved += size;
+        reservations.put(tempPath, new Reservation(root, size));
+
+        return tempPath;
+    }
+
+    /**
+     * Reserves space for a temp file that already exists, such as a temp
+     * file written by a previous run, in the directory that contains it.
+     * Temp files outside of every directory aren't accounted for.
+     *
+     * @param tempPath path to the existing temp file
+     * @param size size of the temp file
+     */
+    synchronized void adopt(final Path tempPath, final long size) {
+        if (reservations.containsKey(tempPath)) {
+            return;
+        }
+
+        for (Root root : roots) {
+            if (tempPath.startsWith(root.directory)) {
+                root.reserved += size;
+                reservations.put(tempPath, new Reservation(root, size));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Changes the space reserved for a temp file, typically to its size
+     * after compression.
+     *
+     * @param tempPath path returned by {@link #allocate(Path, long)}
+     * @param size new size to reserve
+     */
+    synchronized void resize(final Path tempPath, final long size) {
+        final Reservation reservation = reservations.get(tempPath);
+
+        if (reservation == null) {
+            return;
+        }
+
+        reservation.root.reserved += size - reservation.size;
+        reservation.size = size;
+        notifyAll();
+    }
+
+    /**
+     * Releases the space reserved for a temp file. This should be called
+     * once the temp file has been deleted.
+     *
+     * @param tempPath path returned by {@link #allocate(Path, long)}
+     */
+    synchronized void release(final Path tempPath) {
+        final Reservation reservation = reservations.remove(tempPath);
+
+        if (reservation == null) {
+            return;
+        }
+
+        reservation.root.reserved -= reservation.size;
+        notifyAll();
+    }
+
+    /**
+     * Chooses the next directory in turn with room for a file, preferring
+     * tmpfs for small files and avoiding it for larger files.
+     *
+     * @param usable free disk space of each directory's filesystem
+     */
+    private Root choose(final long size, final long[] usable) {
+        final boolean small = size <= smallFileThreshold;
+        Root fallback = null;
+
+        for (int i = 0; i < roots.size(); i++) {
+            final int index = (nextRoot + i) % roots.size();
+            final Root root = roots.get(index);
+
+            if (!root.hasRoom(size, usable[index])) {
+                continue;
+            }
+
+            if (root.memoryBacked == small) {
+                nextRoot = (nextRoot + i + 1) % roots.size();
+                return root;
+            }
+
+            if (fallback == null) {
+                fallback = root;
+            }
+        }
+
+        if (fallback != null) {
+            nextRoot = (roots.indexOf(fallback) + 1) % roots.size();
+        }
+
+        return fallback;
+    }
+
+    private boolean fitsAnywhere(final long size) {
+        for (Root root : roots) {
+            if (size <= root.capacity) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Keeps the temp files when the process exits, so that a later run can
+     * reuse the temp files that weren't uploaded.
+     *
+     * @param retained true to keep the temp files when the process exits
+     */
+    void setRetainedOnExit(final boolean retained) {
+        this.retainedOnExit = retained;
+    }
+
+    boolean isRetainedOnExit() {
+        return retainedOnExit;
+    }
+
+    /**
+     * Deletes every temp directory and all of the files within them.
+     */
+    void deleteAll() {
+        for (Root root : roots) {
+            if (!Files.exists(root.directory)) {
+                continue;
+            }
+
+            try {
+                FileUtils.forceDelete(root.directory.toFile());
+            } catch (IOException e) {
+                LOG.warn("Unable to delete temp files from path: " + root.directory, e);
+            }
+        }
+    }
+
+    /**
+     * @return human readable summary of each directory's usage
+     */
+    synchronized String describe() {
+        final StringJoiner joiner = new StringJoiner(", ");
+
+        for (Root root : roots) {
+            joiner.add(root.describe());
+        }
+
+        return joiner.toString();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("roots", roots)
+                .append("smallFileThreshold", smallFileThreshold)
+                .toString();
+    }
+
+    /**
+     * A directory that temp files are written to.
+     */
+    static final class Root {
+        private final Path directory;
+        private final long capacity;
+        private final boolean memoryBacked;
+        private long reserved = 0L;
+        private volatile FileStore store;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param directory directory that temp files are written to
+         * @param capacity maximum number of bytes of temp files in the directory
+         * @param memoryBacked true when the directory is on a memory backed filesystem
+         */
+        Root(final Path directory, final long capacity, final boolean memoryBacked) {
+            this.directory = directory;
+            this.capacity = capacity;
+            this.memoryBacked = memoryBacked;
+        }
+
+        Path getDirectory() {
+            return directory;
+        }
+
+        long getCapacity() {
+            return capacity;
+        }
+
+        boolean isMemoryBacked() {
+            return memoryBacked;
+        }
+
+        long getReserved() {
+            return reserved;
+        }
+
+        /**
+         * Determines if the directory can hold a file of the specified size
+         * within its capacity and the free space of its filesystem.
+         */
+        private boolean hasRoom(final long size, final long usable) {
+            if (reserved + size > capacity) {
+                return false;
+            }
+
+            return size <= usable;
+        }
+
+        /**
+         * Reads the free space of the directory's filesystem. The directory
+         * is only created and its filesystem looked up again when the
+         * directory was deleted since the last call.
+         */
+        private long usableSpace() {
+            final FileStore cached = store;
+
+            if (cached != null) {
+                try {
+                    return cached.getUsableSpace();
+                } catch (IOException e) {
+                    LOG.debug("Looking up filesystem of temp directory [{}] again", directory, e);
+                }
+            }
+
+            try {
+                Files.createDirectories(directory);
+                final FileStore found = Files.getFileStore(directory);
+                store = found;
+                return found.getUsableSpace();
+            } catch (IOException e) {
+                throw new UncheckedIOException(String.format(
+                        "Unable to access temp directory [%s]", directory), e);
+            }
+        }
+
+        private String describe() {
+            String type = "";
+
+            if (memoryBacked) {
+                type = " (tmpfs)";
+            }
+
+            String limit = "unlimited";
+
+            if (capacity != UNLIMITED) {
+                limit = FileUtils.byteCountToDisplaySize(capacity);
+            }
+
+            return String.format("%s%s [%s of %s reserved]", directory, type,
+                    FileUtils.byteCountToDisplaySize(reserved), limit);
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("directory", directory)
+                    .append("capacity", capacity)
+                    .append("memoryBacked", memoryBacked)
+                    .append("reserved", reserved)
+                    .toString();
+        }
+    }
+
+    /**
+     * Space reserved in a directory for a single temp file.
+     */
+    private static final class Reservation {
+        private final Root root;
+        private long size;
+
+        Reservation(final Root root, final long size) {
+            this.root = root;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Time-of-day schedule of transfer limits. A schedule is made up of rules
+ * separated by semicolons or new lines. Each rule has a time window and the
+ * limits applied during that window. The first rule matching the current
+ * time wins and when no rule matches no limits are applied. For example:
+ *
+ * <pre>
+ * 08:00-20:00=50MB,200rps;*=unlimited
+ * </pre>
+ *
+ * <p>Windows are written as <code>HH:mm-HH:mm</code> and may wrap around
+ * midnight. The <code>*</code> window matches all times. Bandwidth limits
+ * are bytes per second with an optional K, M or G (binary) suffix and
+ * request limits are suffixed with <code>rps</code>.</p>
+ */
+class ThrottleSchedule {
+    /**
+     * Schedule that never applies any limits.
+     */
+    static final ThrottleSchedule UNLIMITED = new ThrottleSchedule(Collections.emptyList());
+
+    private static final Pattern BANDWIDTH_PATTERN = Pattern.compile(
+            "^(\\d+(?:\\.\\d+)?)\\s*([kmg]?)(?:i?b)?(?:/s)?$");
+    private static final Pattern REQUESTS_PATTERN = Pattern.compile(
+            "^(\\d+)\\s*(?:rps|req/s)$");
+    private static final long KIBIBYTE = 1024L;
+    private static final String[] BINARY_UNITS = {"k", "m", "g"};
+
+    private final List<Rule> rules;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param rules rules in order of precedence
+     */
+    ThrottleSchedule(final List<Rule> rules) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+    }
+
+    /**
+     * Parses a schedule specification.
+     *
+     * @param spec schedule specification
+     * @return a new schedule
+     * @throws IllegalArgumentException thrown when the specification is invalid
+     */
+    static ThrottleSchedule parse(final String spec) {
+        if (StringUtils.isBlank(spec)) {
+            return UNLIMITED;
+        }
+
+        final List<Rule> parsed = new ArrayList<>();
+
+        for (String line : spec.split("[;\\r\\n]+")) {
+            final String rule = StringUtils.substringBefore(line, "#").trim();
+
+            if (rule.isEmpty()) {
+                continue;
+            }
+
+            parsed.add(parseRule(rule));
+        }
+
+        return new ThrottleSchedule(parsed);
+    }
+
+    private static Rule parseRule(final String rule) {
+        final String window = StringUtils.substringBefore(rule, "=").trim();
+        final String limits = StringUtils.substringAfter(rule, "=").trim();
+
+        if (window.isEmpty() || limits.isEmpty()) {
+            throw new IllegalArgumentException(String.format(
+                    "Throttle rule must be in the form window=limits: %s", rule));
+        }
+
+        final LocalTime start;
+        final LocalTime end;
+
+        if (window.equals("*")) {
+            start = null;
+            end = null;
+        } else {
+            final String[] times = window.split("-");
+
+            if (times.length != 2) {
+                throw new IllegalArgumentException(String.format(
+                        "Throttle window must be in the form HH:mm-HH:mm: %s", window));
+            }
+
+            try {
+                start = LocalTime.parse(times[0].trim());
+                end = LocalTime.parse(times[1].trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid time in throttle window: %s", window), e);
+            }
+        }
+
+        long bytesPerSecond = TokenBucket.UNLIMITED;
+        long requestsPerSecond = TokenBucket.UNLIMITED;
+
+        for (String limit : limits.split(",")) {
+            final String normalized = limit.trim().toLowerCase(Locale.ENGLISH);
+            final Matcher requests = REQUESTS_PATTERN.matcher(normalized);
+
+            if (requests.matches()) {
+                requestsPerSecond = Long.parseLong(requests.group(1));
+            } else if (!normalized.equals("unlimited")) {
+                bytesPerSecond = parseBandwidth(normalized);
+            }
+        }
+
+        return new Rule(start, end, bytesPerSecond, requestsPerSecond);
+    }
+
+    private static long parseBandwidth(final String bandwidth) {
+        final Matcher matcher = BANDWIDTH_PATTERN.matcher(bandwidth);
+
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid throttle limit: %s", bandwidth));
+        }
+
+        final double value = Double.parseDouble(matcher.group(1));
+        final String unit = matcher.group(2);
+        long multiplier = 1L;
+
+        // Each unit is 1024 times the size of the one before it
+        for (String u : BINARY_UNITS) {
+            multiplier *= KIBIBYTE;
+
+            if (u.equals(unit)) {
+                return (long)(value * multiplier);
+            }
+        }
+
+        return (long)value;
+    }
+
+    /**
+     * Finds the rule that applies at the specified time.
+     *
+     * @param time time of day
+     * @return the matching rule or an unlimited rule when none match
+     */
+    Rule ruleAt(final LocalTime time) {
+        for (Rule rule : rules) {
+            if (rule.matches(time)) {
+                return rule;
+            }
+        }
+
+        return Rule.NO_LIMITS;
+    }
+
+    List<Rule> getRules() {
+        return rules;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("rules", rules)
+                .toString();
+    }
+
+    /**
+     * Limits applied during a window of time. A null start and end indicate
+     * a window matching all times.
+     */
+    static class Rule {
+        /**
+         * Rule that applies no limits.
+         */
+        static final Rule NO_LIMITS = new Rule(null, null,
+                TokenBucket.UNLIMITED, TokenBucket.UNLIMITED);
+
+        private final LocalTime start;
+        private final LocalTime end;
+        private final long bytesPerSecond;
+        private final long requestsPerSecond;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param start inclusive start of window or null for all times
+         * @param end exclusive end of window or null for all times
+         * @param bytesPerSecond bandwidth limit or {@link TokenBucket#UNLIMITED}
+         * @param requestsPerSecond request rate limit or {@link TokenBucket#UNLIMITED}
+         */
+        Rule(final LocalTime start, final LocalTime end,
+             final long bytesPerSecond, final long requestsPerSecond) {
+            this.start = start;
+            this.end = end;
+            this.bytesPerSecond = bytesPerSecond;
+            this.requestsPerSecond = requestsPerSecond;
+        }
+
+        /**
+         * @param time time of day
+         * @return true if the time falls within this rule's window
+         */
+        boolean matches(final LocalTime time) {
+            if (start == null || end == null) {
+                return true;
+            }
+
+            // Windows like 20:00-08:00 wrap around midnight
+            if (start.isAfter(end)) {
+                return !time.isBefore(start) || time.isBefore(end);
+            }
+
+            return !time.isBefore(start) && time.isBefore(end);
+        }
+
+        long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        long getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("start", start)
+                    .append("end", end)
+                    .append("bytesPerSecond", bytesPerSecond)
+                    .append("requestsPerSecond", requestsPerSecond)
+                    .toString();
+        }
+    }
+}
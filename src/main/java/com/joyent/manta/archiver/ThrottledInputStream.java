@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * {@link InputStream} implementation that limits the rate at which bytes can
+ * be read to the bandwidth allowed by a {@link TransferThrottle}.
+ */
+class ThrottledInputStream extends FilterInputStream {
+    private final TransferThrottle throttle;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param in stream to wrap
+     * @param throttle throttle limiting the rate of reads
+     */
+    ThrottledInputStream(final InputStream in, final TransferThrottle throttle) {
+        super(in);
+        this.throttle = throttle;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+
+        if (b != -1) {
+            await(1L);
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int read = super.read(b, off, len);
+
+        if (read > 0) {
+            await(read);
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        final long skipped = super.skip(n);
+
+        if (skipped > 0) {
+            await(skipped);
+        }
+
+        return skipped;
+    }
+
+    private void await(final long count) throws InterruptedIOException {
+        try {
+            throttle.acquireBytes(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ioe = new InterruptedIOException(
+                    "Interrupted while waiting for bandwidth");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread-safe token bucket that limits the rate at which permits can be
+ * acquired. The bucket holds at most one second worth of permits so that
+ * short bursts are allowed. Acquiring more permits than are available puts
+ * the bucket into debt, making the caller and any subsequent callers wait
+ * until the debt has been refilled. A rate of zero or less disables limiting.
+ */
+class TokenBucket {
+    /**
+     * Rate value indicating that no limit is applied.
+     */
+    static final long UNLIMITED = 0L;
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private long ratePerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * Creates a new instance with the specified rate.
+     *
+     * @param ratePerSecond permits allowed per second or {@link #UNLIMITED}
+     */
+    TokenBucket(final long ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+        this.tokens = Math.max(ratePerSecond, 0L);
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Changes the rate of the bucket. Accumulated permits are capped at the
+     * new rate.
+     *
+     * @param newRatePerSecond permits allowed per second or {@link #UNLIMITED}
+     */
+    synchronized void setRate(final long newRatePerSecond) {
+        refill(System.nanoTime());
+
+        if (ratePerSecond <= 0L && newRatePerSecond > 0L) {
+            tokens = newRatePerSecond;
+        } else {
+            tokens = Math.min(tokens, Math.max(newRatePerSecond, 0L));
+        }
+
+        ratePerSecond = newRatePerSecond;
+    }
+
+    synchronized long getRate() {
+        return ratePerSecond;
+    }
+
+    /**
+     * @return true if this bucket limits the rate of acquisition
+     */
+    synchronized boolean isLimited() {
+        return ratePerSecond > 0L;
+    }
+
+    /**
+     * Acquires the specified number of permits, blocking until the rate
+     * allows for them to be used.
+     *
+     * @param permits number of permits to acquire
+     * @throws InterruptedException thrown when interrupted while waiting
+     */
+    void acquire(final long permits) throws InterruptedException {
+        final long waitNanos;
+
+        synchronized (this) {
+            if (ratePerSecond <= 0L || permits <= 0L) {
+                return;
+            }
+
+            refill(System.nanoTime());
+            tokens -= permits;
+
+            if (tokens >= 0) {
+                return;
+            }
+
+            waitNanos = (long)(-tokens / ratePerSecond * NANOS_PER_SECOND);
+        }
+
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    private void refill(final long now) {
+        final long elapsed = now - lastRefillNanos;
+        lastRefillNanos = now;
+
+        if (ratePerSecond > 0L) {
+            tokens = Math.min(ratePerSecond, tokens + elapsed * ratePerSecond / NANOS_PER_SECOND);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return new ToStringBuilder(this)
+                .append("ratePerSecond", ratePerSecond)
+                .append("tokens", tokens)
+                .toString();
+    }
+}
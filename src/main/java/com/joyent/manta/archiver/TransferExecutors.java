@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Factory for the threads used by transfer pipelines. This is the Java 8
+ * implementation, which uses platform threads. A Java 21 implementation
+ * in the versioned section of the multi-release JAR replaces this class and
+ * uses virtual threads for stages that block on remote I/O.
+ */
+final class TransferExecutors {
+    /**
+     * System property that disables virtual threads when set to false.
+     */
+    static final String VIRTUAL_THREADS_PROPERTY = "manta.archiver.virtualThreads";
+
+    private TransferExecutors() {
+    }
+
+    /**
+     * Indicates whether stages that block on remote I/O run each object on
+     * its own virtual thread, with concurrency bounded by a semaphore rather
+     * than by the number of threads.
+     *
+     * @return always false because virtual threads aren't available
+     */
+    static boolean isVirtualThreadPerObject() {
+        return false;
+    }
+
+    /**
+     * Creates a factory for threads that mostly block on remote I/O.
+     *
+     * @param threadFormat format with %d parameter for naming new threads
+     * @param threadGroupName name of thread group to put threads in
+     * @param loggerName name of logger to log exceptions to
+     * @return factory of platform threads
+     */
+    static ThreadFactory blockingThreadFactory(final String threadFormat,
+                                               final String threadGroupName,
+                                               final String loggerName) {
+        return new NamedThreadFactory(threadFormat, threadGroupName, loggerName);
+    }
+
+    /**
+     * @return description of the threads used for blocking stages
+     */
+    static String describe() {
+        return "platform threads";
+    }
+}
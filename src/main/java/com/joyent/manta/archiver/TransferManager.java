@@ -7,7 +7,6 @@
  */
 package com.joyent.manta.archiver;
 
-import com.google.common.cache.Cache;
 import me.tongfei.progressbar.ProgressBar;
 import me.tongfei.progressbar.ProgressBarStyle;
 import org.apache.commons.io.FileUtils;
@@ -17,25 +16,21 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TransferQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
-import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
 
 /**
  * Class responsible for managing the ingestion of the compressed file queue
@@ -44,20 +39,61 @@ import java.util.stream.Stream;
 public class TransferManager implements AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(TransferManager.class);
 
-    private static final int EXECUTOR_SHUTDOWN_WAIT_SECS = 5;
+    /**
+     * Name of the pipeline stage that uploads objects.
+     */
+    private static final String UPLOAD_STAGE = "upload";
+
+    /**
+     * Estimated heap used by a walked file waiting to be compressed, which
+     * sizes the queue of the compression stage.
+     */
+    private static final long ESTIMATED_BYTES_PER_CANDIDATE = 512L;
 
     private final TransferClient client;
     private final Path localRoot;
+    private final DeadLetterReport deadLetters = new DeadLetterReport();
+    private final UploadOrderPolicy uploadOrder;
+    private final int uploadOrderWindow;
+    private final UploadJournal journal;
+    private final boolean hashFirst;
+    private final long multipartThreshold;
+    private final MemoryGovernor memoryGovernor = MemoryGovernor.forHeap();
 
     /**
      * Creates a new instance backed by a transfer client mapped to a remote
-     * filesystem root path and a local filesystem root path.
+     * filesystem root path and a local filesystem root path. Operations
+     * that fail due to transient errors are retried unless the client passed
+     * already does so.
      *
      * @param client client used to transfer files
      * @param localRoot local filesystem working directory
      */
     public TransferManager(final TransferClient client, final Path localRoot) {
-        this.client = client;
+        this(client, localRoot, new Options());
+    }
+
+    /**
+     * Creates a new instance backed by a transfer client mapped to a remote
+     * filesystem root path and a local filesystem root path that transfers
+     * files as specified by the options passed.
+     *
+     * @param client client used to transfer files
+     * @param localRoot local filesystem working directory
+     * @param options options of the transfers, whose journal is closed with this instance
+     */
+    TransferManager(final TransferClient client, final Path localRoot, final Options options) {
+        this.uploadOrder = options.getUploadOrder();
+        this.uploadOrderWindow = options.getUploadOrderWindow();
+        this.journal = options.getJournal();
+        this.hashFirst = options.isHashFirst();
+        this.multipartThreshold = options.getMultipartThreshold();
+
+        if (client == null || ForwardingTransferClient.unwrap(client, RetryingTransferClient.class) != null) {
+            this.client = client;
+        } else {
+            this.client = new RetryingTransferClient(client, new RetryPolicy());
+        }
 
         if (localRoot != null) {
             this.localRoot = localRoot.toAbsolutePath().normalize();
@@ -66,76 +102,271 @@ public class TransferManager implements AutoCloseable {
         }
     }
 
+    /**
+     * Creates the uploader of large files, which is only enabled when a
+     * threshold was set and the client is backed by Manta.
+     *
+     * @param parallelism number of parts uploaded at once
+     * @param compressionLimit limit on the number of files and parts compressed at once
+     * @return uploader of large files in parts
+     */
+    private MultipartUploader multipartUploader(final int parallelism,
+                                                final ConcurrencyLimit compressionLimit) {
+        if (multipartThreshold <= 0L
+                || ForwardingTransferClient.unwrap(client, MantaTransferClient.class) == null) {
+            return MultipartUploader.disabled();
+        }
+
+        return new MultipartUploader(multipartThreshold, parallelism, compressionLimit);
+    }
+
+    /**
+     * Prepares a walked object for upload. Files uploaded in parts are only
+     * checksummed, since each part is compressed just before it is uploaded.
+     * A checksum already computed when the file was compared with its remote
+     * copy is reused.
+     *
+     * @param loader loader compressing the files uploaded whole
+     * @param multipart uploader of large files in parts
+     * @param candidate walked object
+     * @return object ready to be uploaded
+     * @throws InterruptedException thrown when interrupted while waiting to compress
+     */
+    private static ObjectUpload prepare(final ObjectUploadQueueLoader loader,
+                                        final MultipartUploader multipart,
+                                        final UploadOrderPolicy.Candidate candidate)
+            throws InterruptedException {
+        final Path path = candidate.getPath();
+
+        if (!candidate.isDirectory() && multipart.accepts(candidate.getSize())
+                && !Files.isSymbolicLink(path)) {
+            byte[] checksum = candidate.getChecksum();
+
+            if (checksum == null) {
+                checksum = LocalFileUtils.checksum(path);
+            }
+
+            return new MultipartFileUpload(path, candidate.getSize(),
+                    candidate.getLastModified(), checksum);
+        }
+
+        return loader.prepare(path, candidate.getChecksum());
+    }
+
     /**
      * Uploads all the files from the local working directory to the remote
      * working directory. It won't upload files that are identical, but it will
      * overwrite files that are different.
      *
+     * <p>The upload runs as a pipeline of stages: the local directory is
+     * walked, files already uploaded are skipped, files are compressed to
+     * temp files, objects are uploaded and temp files are cleaned up.
+     * Walking is cheap, so it is only held back once the walked files would
+     * occupy a sizable share of the heap or the heap is close to full, and
+     * the totals are usually known early, while the queue between
+     * compression and upload is bounded to limit the number of compressed
+     * temp files.</p>
+     *
+     * <p>When hashing first, files are compared with their remote copies by
+     * checksum before being compressed, so that unchanged files are never
+     * compressed.</p>
+     *
+     * <p>When the client is backed by an {@link AsyncTransferClient}, files
+     * are uploaded with non-blocking requests and the number of uploads in
+     * flight is bounded by that client instead of by the number of
+     * connections of the blocking client.</p>
+     *
+     * <p>Files above the multipart threshold skip the compression stage and
+     * are compressed and uploaded part by part by a {@link MultipartUploader}
+     * in the upload stage.</p>
+     *
      * @throws InterruptedException thrown when a blocking operation is interrupted
      */
     void uploadAll() throws InterruptedException {
-        final ForkJoinPool loaderPool = new ForkJoinPool(
-                ForkJoinPool.getCommonPoolParallelism(),
-                ForkJoinPool.defaultForkJoinWorkerThreadFactory,
-                new LoggingUncaughtExceptionHandler("ObjectCompressorThreadPool"),
-                true);
-
         final int concurrentUploaders = Math.max(client.getMaximumConcurrentConnections() - 2, 1);
-        final ExecutorService uploaderExecutor = Executors.newFixedThreadPool(
-                concurrentUploaders, new NamedThreadFactory(
-                        "uploader-thread-%d", "uploaders",
-                        "UploaderThreadPool"));
-
         final int preloadQueueSize = concurrentUploaders * 4;
-        final ObjectUploadQueueLoader loader = new ObjectUploadQueueLoader(loaderPool,
-                preloadQueueSize);
-        final TransferQueue<ObjectUpload> queue = loader.getQueue();
 
-        // We queue up the directory traversal and file processing work asynchronously
-        // so that we can start uploading right away and we don't need to wait for the
-        // entire recursive traversal to complete.
-        Future<TotalTransferDetails> transferDetailsFuture = uploaderExecutor.submit(
-                () -> loader.uploadDirectoryContents(localRoot));
+        // The compression stage is sized for the whole machine, but the number
+        // of files compressed at once is governed by the stage balancer.
+        final int maxCompressors = Runtime.getRuntime().availableProcessors();
+
+        // Comparing files with their remote copies waits on a request per file
+        int checkers = 1;
+
+        if (hashFirst) {
+            checkers = concurrentUploaders;
+        }
+
+        final ConcurrencyLimit compressionLimit = new ConcurrencyLimit(Math.max(
+                Math.min(ForkJoinPool.getCommonPoolParallelism(), maxCompressors), 1));
+        final ObjectUploadQueueLoader loader = new ObjectUploadQueueLoader(
+                new ObjectUploadQueueLoader.Options()
+                        .setOrderPolicy(uploadOrder)
+                        .setLookAheadWindow(uploadOrderWindow)
+                        .setCompressionLimit(compressionLimit)
+                        .setJournal(journal));
+
+        // Temp files that weren't uploaded are reused when a journaled upload is resumed
+        TempStorage.current().setRetainedOnExit(journal.isEnabled());
 
         final AtomicReference<ProgressBar> pbRef = new AtomicReference<>();
         final AtomicLong totalUploads = new AtomicLong(0L);
         final AtomicLong noOfObjectToUpload = new AtomicLong(Long.MAX_VALUE);
+        final MultipartUploader multipart = multipartUploader(concurrentUploaders, compressionLimit);
+        final ObjectUploader uploader = new ObjectUploader(totalUploads, client,
+                localRoot, pbRef, deadLetters, journal, multipart);
+
+        final TotalTransferDetails totals = new TotalTransferDetails();
+        final CompletableFuture<TotalTransferDetails> transferDetailsFuture = new CompletableFuture<>();
+
+        final Pipeline<ObjectUpload> compressed = Pipeline.from("upload",
+                () -> loader.scan(localRoot, totals).onClose(() -> transferDetailsFuture.complete(totals)))
+                .governedBy(memoryGovernor)
+                .<UploadOrderPolicy.Candidate>thenBlocking("check", checkers,
+                        memoryGovernor.maxQueuedItems(ESTIMATED_BYTES_PER_CANDIDATE), (candidate, downstream) -> {
+                    if (!candidate.isDirectory() && journal.isComplete(candidate.getPath(),
+                            candidate.getSize(), candidate.getLastModified())) {
+                        uploader.skip(candidate.getSize());
+                        return;
+                    }
+
+                    if (!hashFirst) {
+                        downstream.emit(candidate);
+                        return;
+                    }
+
+                    final UploadOrderPolicy.Candidate changed = uploader.skipIfUnchanged(candidate);
+
+                    if (changed != null) {
+                        downstream.emit(changed);
+                    }
+                })
+                .<ObjectUpload>then("compress", maxCompressors, maxCompressors * 4, (candidate, downstream) -> {
+                    final ObjectUpload upload;
 
-        final Cache<String, Boolean> dirCache;
-        if (client instanceof MantaTransferClient) {
-            dirCache = ((MantaTransferClient) client).getDirCache();
+                    try {
+                        upload = prepare(loader, multipart, candidate);
+                    } catch (RuntimeException e) {
+                        LOG.error("Object couldn't be prepared for upload", e);
+                        deadLetters.add(candidate.getPath().toString(), e);
+                        return;
+                    }
+
+                    downstream.emit(upload);
+                });
+
+        final AsyncTransferClient asyncClient = ForwardingTransferClient.unwrap(
+                client, AsyncTransferClient.class);
+        final Pipeline<ObjectUpload> uploaded;
+
+        // Uploads create their missing parent directories on demand
+        if (asyncClient != null) {
+            uploaded = compressed.thenAsync(UPLOAD_STAGE, asyncClient.getMaxInFlight(), preloadQueueSize,
+                    upload -> uploader.uploadAsync(upload, asyncClient));
         } else {
-            dirCache = null;
+            uploaded = compressed.thenBlocking(UPLOAD_STAGE, concurrentUploaders, preloadQueueSize,
+                    (upload, downstream) -> {
+                        if (uploader.upload(upload)) {
+                            downstream.emit(upload);
+                        }
+                    });
+        }
+
+        final Pipeline<Void> pipeline = uploaded.then("cleanup", 1, preloadQueueSize,
+                (upload, downstream) -> uploader.cleanup(upload));
+
+        try (Pipeline.Execution execution = pipeline.start();
+             StageBalancer balancer = new StageBalancer(execution.stage(UPLOAD_STAGE),
+                     compressionLimit, loader::getCompressionNanos, maxCompressors,
+                     preloadQueueSize)) {
+            balancer.start();
+
+            final DirectoryTrie dirCache;
+            final MantaTransferClient mantaClient = ForwardingTransferClient.unwrap(
+                    client, MantaTransferClient.class);
+            if (mantaClient != null) {
+                dirCache = mantaClient.getDirCache();
+            } else {
+                dirCache = null;
+            }
+
+            UploadStatusFunction statusFunction = new UploadStatusFunction(
+                    transferDetailsFuture, totalUploads, noOfObjectToUpload,
+                    dirCache, execution, balancer, loader.getBufferPool());
+
+            registerSighupFunction(withClientSignalHandling(statusFunction));
+
+            final TotalTransferDetails transferDetails;
+
+            try {
+                transferDetails = transferDetailsFuture.get();
+            } catch (ExecutionException e) {
+                throw new FileProcessingException(e);
+            }
+
+            if (transferDetails.numberOfObjects < 1) {
+                execution.await();
+                return;
+            }
+
+            noOfObjectToUpload.set(transferDetails.numberOfObjects);
+
+            final ProgressBar pb = startUploadProgress(transferDetails);
+            pbRef.set(pb);
+
+            try {
+                execution.await();
+            } finally {
+                pb.stop();
+            }
         }
 
-        UploadStatusFunction statusFunction = new UploadStatusFunction(
-                transferDetailsFuture, totalUploads, noOfObjectToUpload,
-                dirCache, queue, loaderPool);
+        if (totalUploads.get() != noOfObjectToUpload.get()) {
+            deadLetters.print(System.err);
 
-        registerSighupFunction(statusFunction);
+            String msg = "Actual number of objects uploads differs from expected number";
+            TransferClientException e = new TransferClientException(msg);
+            e.setContextValue("expectedNumberOfUploads", noOfObjectToUpload);
+            e.setContextValue("actualNumberOfUploads", totalUploads.get());
+            e.setContextValue("failedUploads", deadLetters.size());
+            throw e;
+        }
 
-        final Runnable uploader = new ObjectUploadRunnable(totalUploads,
-                queue, noOfObjectToUpload, client, localRoot, pbRef);
+        // Nothing is left to resume, so temp files of earlier runs can go
+        journal.finish();
+        TempStorage.current().setRetainedOnExit(false);
 
-        // This starts all of the uploader threads
-        for (int i = 0; i < concurrentUploaders; i++) {
-            uploaderExecutor.execute(uploader);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("All uploads [{}] have completed", totalUploads.get(),
+                    noOfObjectToUpload);
         }
 
-        final TotalTransferDetails transferDetails;
+        if (CompressionCache.current().isEnabled()) {
+            LOG.info("Compression cache: {}", CompressionCache.current().describe());
+        }
 
-        try {
-             transferDetails = transferDetailsFuture.get();
-        } catch (ExecutionException e) {
-            throw new FileProcessingException(e);
+        if (multipart.getUploads() > 0) {
+            LOG.info("Multipart uploads: {}", multipart.describe());
         }
 
-        if (transferDetails.numberOfObjects < 1) {
-            return;
+        if (uploader.getUnchanged() > 0) {
+            LOG.info("Skipped {} files identical to their remote copies without "
+                    + "compressing them", uploader.getUnchanged());
         }
 
-        noOfObjectToUpload.set(transferDetails.numberOfObjects);
+        if (journal.getSkipped() > 0 || journal.getReused() > 0) {
+            LOG.info("Skipped {} files already uploaded and reused {} temp files "
+                    + "according to the upload journal", journal.getSkipped(), journal.getReused());
+        }
+    }
 
+    /**
+     * Outputs the upload summary and starts the upload progress bar.
+     *
+     * @param transferDetails details about the objects to upload
+     * @return started progress bar
+     */
+    private ProgressBar startUploadProgress(final TotalTransferDetails transferDetails) {
         System.err.println("Maven Archiver - Upload");
         System.err.println();
 
@@ -155,38 +386,7 @@ public class TransferManager implements AutoCloseable {
 
         pb.start();
 
-        pbRef.set(pb);
-
-        LOG.debug("Shutting down object compression thread pool");
-        loaderPool.shutdown();
-        while (!loaderPool.awaitTermination(EXECUTOR_SHUTDOWN_WAIT_SECS, TimeUnit.SECONDS)) {
-            LOG.trace("Waiting for object preloader executor to shutdown");
-        }
-
-        LOG.debug("Shutting down object uploader thread pool");
-        uploaderExecutor.shutdown();
-        while (!uploaderExecutor.awaitTermination(EXECUTOR_SHUTDOWN_WAIT_SECS, TimeUnit.SECONDS)) {
-            LOG.trace("Waiting for uploader executor to shutdown. Uploaded {}/{} objects. "
-                            + "{} objects pre-processed.",
-                    totalUploads.get(), noOfObjectToUpload, loader.getObjectsProcessed().get());
-        }
-
-        if (totalUploads.get() != noOfObjectToUpload.get()) {
-            pb.stop();
-
-            String msg = "Actual number of objects uploads differs from expected number";
-            TransferClientException e = new TransferClientException(msg);
-            e.setContextValue("expectedNumberOfUploads", noOfObjectToUpload);
-            e.setContextValue("actualNumberOfUploads", totalUploads.get());
-            throw e;
-        }
-
-        if (LOG.isInfoEnabled()) {
-            LOG.info("All uploads [{}] have completed", totalUploads.get(),
-                    noOfObjectToUpload);
-        }
-
-        pb.stop();
+        return pb;
     }
 
     /**
@@ -197,71 +397,85 @@ public class TransferManager implements AutoCloseable {
      */
     void downloadAll() throws InterruptedException {
         final int concurrentDownloaders = Math.max(client.getMaximumConcurrentConnections() - 2, 1);
-        final ExecutorService downloadExecutor = Executors.newFixedThreadPool(
-                concurrentDownloaders, new NamedThreadFactory(
-                        "download-thread-%d", "downloaders",
-                        "DownloaderThreadPool"));
 
         System.err.println("Maven Archiver - Download");
         System.err.println();
 
+        registerSighupFunction(withClientSignalHandling(v -> Optional.empty()));
+
         final AtomicBoolean verificationSuccess = new AtomicBoolean(true);
         final AtomicLong totalObjects = new AtomicLong(0L);
         final AtomicLong totalObjectsProcessed = new AtomicLong(0L);
 
-        try (Stream<FileDownload> downloads = client.find()) {
-            downloads.forEach(fileDownload -> {
-                totalObjects.incrementAndGet();
-
-                final Path path = client.convertRemotePathToLocalPath(fileDownload.getRemotePath(), localRoot);
-                final File file = path.toFile();
-
-                if (fileDownload.isDirectory()) {
-                    if (file.exists() && file.lastModified() != fileDownload.getLastModified()) {
-                        if (!file.setLastModified(fileDownload.getLastModified())) {
-                            LOG.warn("Unable to set last modified time for directory: {}",
-                                    file);
+        // Directories are handled in order as they are listed, so that they
+        // exist before any of the files within them are downloaded.
+        final Pipeline<Void> pipeline = Pipeline.from("download", client::find)
+                .governedBy(memoryGovernor)
+                .toleratingItemFailures()
+                .<FileDownload>then("prepare", 1, concurrentDownloaders * 4, (fileDownload, downstream) -> {
+                    totalObjects.incrementAndGet();
+
+                    final Path path = client.convertRemotePathToLocalPath(
+                            fileDownload.getRemotePath(), localRoot);
+                    final File file = path.toFile();
+
+                    if (fileDownload.isDirectory()) {
+                        if (file.exists() && file.lastModified() != fileDownload.getLastModified()) {
+                            if (!file.setLastModified(fileDownload.getLastModified())) {
+                                LOG.warn("Unable to set last modified time for directory: {}",
+                                        file);
+                            }
+                        } else {
+                            file.mkdirs();
                         }
-                    } else {
-                        file.mkdirs();
-                    }
 
-                    totalObjectsProcessed.incrementAndGet();
-                } else {
-                    if (!file.exists()) {
-                        final Path parent = path.getParent();
-                        if (!parent.toFile().exists()) {
-                            parent.toFile().mkdirs();
+                        totalObjectsProcessed.incrementAndGet();
+                    } else {
+                        if (!file.exists()) {
+                            final Path parent = path.getParent();
+                            if (!parent.toFile().exists()) {
+                                parent.toFile().mkdirs();
+                            }
                         }
+
+                        downstream.emit(fileDownload);
                     }
+                })
+                .thenBlocking("transfer", concurrentDownloaders, concurrentDownloaders * 4, (fileDownload, downstream) -> {
+                    final Path path = client.convertRemotePathToLocalPath(
+                            fileDownload.getRemotePath(), localRoot);
 
-                    Runnable download = new ObjectDownloadRunnable(
-                            path, client, fileDownload, verificationSuccess,
-                            totalObjectsProcessed);
-                    downloadExecutor.execute(download);
-                }
-            });
-        }
+                    new ObjectDownloadRunnable(path, client, fileDownload, verificationSuccess,
+                            totalObjectsProcessed, deadLetters).run();
+                });
 
-        downloadExecutor.shutdown();
+        final long failedItems;
 
-        while (totalObjectsProcessed.get() < totalObjects.get()) {
-            downloadExecutor.awaitTermination(EXECUTOR_SHUTDOWN_WAIT_SECS, TimeUnit.SECONDS);
+        try (Pipeline.Execution execution = pipeline.start()) {
+            execution.await();
+            failedItems = execution.getFailedItems();
         }
 
         System.err.println();
         System.err.printf("Downloaded %d/%d objects%s",
-                totalObjectsProcessed.get(), totalObjects.get(), System.lineSeparator());
+                totalObjectsProcessed.get() - deadLetters.size(), totalObjects.get(),
+                System.lineSeparator());
+        printFailedItems(failedItems);
+        deadLetters.print(System.err);
     }
 
     /**
      * Verifies that all of the files in the specified local directory
-     * and subdirectories are identical to the files on Manta.
+     * and subdirectories are identical to the files on Manta. Local files
+     * are hashed, compared with their remote counterparts and reported (and
+     * fixed) in separate stages, so that hashing doesn't hold back the
+     * remote requests.
      *
      * @param fix when true we upload any missing files
      * @return true when all files verified successfully
+     * @throws InterruptedException thrown when a blocking operation is interrupted
      */
-    boolean verifyLocal(final boolean fix) {
+    boolean verifyLocal(final boolean fix) throws InterruptedException {
         System.err.println("Maven Archiver - Verify Local");
         System.err.println();
 
@@ -271,72 +485,110 @@ public class TransferManager implements AutoCloseable {
             System.err.println();
         }
 
-        final AtomicBoolean verificationSuccess = new AtomicBoolean(true);
-        final int statusMsgSize = 27;
+        registerSighupFunction(withClientSignalHandling(v -> Optional.empty()));
 
-        final String format = "[%s] %s <-> %s" + System.lineSeparator();
+        final int hashers = Runtime.getRuntime().availableProcessors();
+        final int concurrentVerifiers = Math.max(client.getMaximumConcurrentConnections() - 2, 1);
+        final AtomicBoolean verificationSuccess = new AtomicBoolean(true);
 
-        try (Stream<Path> contents = LocalFileUtils.directoryContentsStream(localRoot)) {
-            contents.parallel().forEach(localPath -> {
-                String mantaPath = client.convertLocalPathToRemotePath(localPath, localRoot);
+        final Pipeline<Void> pipeline = Pipeline.from("verifylocal",
+                () -> LocalFileUtils.directoryContentsStream(localRoot))
+                .governedBy(memoryGovernor)
+                .toleratingItemFailures()
+                .<LocalObject>then("hash", hashers, hashers * 4, (localPath, downstream) ->
+                        downstream.emit(LocalObject.fromPath(localPath)))
+                .<LocalObject>thenBlocking("verify", concurrentVerifiers, concurrentVerifiers * 4, (local, downstream) -> {
+                    local.mantaPath = client.convertLocalPathToRemotePath(local.path, localRoot);
+                    local.result = verifyLocalObject(local);
+                    downstream.emit(local);
+                })
+                .thenBlocking("report", concurrentVerifiers, concurrentVerifiers * 4, (local, downstream) -> {
+                    if (verificationSuccess.get() && !local.result.isOk()) {
+                        verificationSuccess.set(false);
+                    }
 
-                final VerificationResult result;
+                    reportLocalObject(local, fix);
+                });
 
-                if (Files.isSymbolicLink(localPath)) {
-                    result = client.verifyLink(mantaPath, localPath);
-                } else if (Files.isDirectory(localPath, LinkOption.NOFOLLOW_LINKS)) {
-                    result = client.verifyDirectory(mantaPath);
-                } else {
-                    final long size;
+        try (Pipeline.Execution execution = pipeline.start()) {
+            execution.await();
 
-                    try {
-                        size = Files.size(localPath);
-                    } catch (IOException e) {
-                        String msg = String.format("Unable to get the size of "
-                                + "local file: %s", localPath);
-                        throw new UncheckedIOException(msg, e);
-                    }
+            if (execution.getFailedItems() > 0) {
+                verificationSuccess.set(false);
+                printFailedItems(execution.getFailedItems());
+            }
+        }
 
-                    final byte[] checksum = LocalFileUtils.checksum(localPath);
-                    result = client.verifyFile(mantaPath, size, checksum);
-                }
+        return verificationSuccess.get();
+    }
 
-                if (verificationSuccess.get() && !result.isOk()) {
-                    verificationSuccess.set(false);
-                }
+    /**
+     * Compares a local object with its remote counterpart.
+     *
+     * @param local local object to verify
+     * @return result of the verification
+     */
+    private VerificationResult verifyLocalObject(final LocalObject local) {
+        if (local.link) {
+            return client.verifyLink(local.mantaPath, local.path);
+        } else if (local.directory) {
+            return client.verifyDirectory(local.mantaPath);
+        }
 
-                System.err.printf(format, StringUtils.center(result.toString(), statusMsgSize),
-                        localPath, mantaPath);
+        return client.verifyFile(local.mantaPath, local.size, local.checksum);
+    }
 
-                if (fix && !result.isOk()) {
-                    System.err.printf(format, StringUtils.center("FIXING", statusMsgSize),
-                            localPath, mantaPath);
-                    if (Files.isSymbolicLink(localPath)) {
-                        SymbolicLinkUpload upload = new SymbolicLinkUpload(localPath);
+    /**
+     * Outputs the result of verifying a local object and uploads it when
+     * it is missing or corrupted and fixing is enabled.
+     *
+     * @param local verified local object
+     * @param fix when true we upload the object if it failed verification
+     * @throws InterruptedException thrown when interrupted while waiting for temp space
+     */
+    private void reportLocalObject(final LocalObject local, final boolean fix)
+            throws InterruptedException {
+        final int statusMsgSize = 27;
+        final String format = "[%s] %s <-> %s" + System.lineSeparator();
+        final Path localPath = local.path;
+        final String mantaPath = local.mantaPath;
+        final VerificationResult result = local.result;
 
-                        if (result.isNotLink()) {
-                            boolean recursive = VerificationResult.NOT_LINK_ACTUALLY_DIR.equals(result);
-                            client.delete(mantaPath, recursive);
-                        }
+        System.err.printf(format, StringUtils.center(result.toString(), statusMsgSize),
+                localPath, mantaPath);
 
-                        client.put(mantaPath, upload);
-                    } else if (Files.isDirectory(localPath, LinkOption.NOFOLLOW_LINKS)) {
-                        client.mkdirp(mantaPath, new DirectoryUpload(localPath));
-                    } else {
-                        FileUpload upload = ObjectUploadQueueLoader.fileToUploadFromPath(localPath);
-                        client.put(mantaPath, upload);
+        if (result.isOk() && local.checksum != null) {
+            journal.verified(localPath, local.size, local.lastModified, local.checksum);
+        }
 
-                        try {
-                            Files.deleteIfExists(upload.getTempPath());
-                        } catch (IOException e) {
-                            LOG.error("Unable to delete temp file", e);
-                        }
-                    }
-                }
-            });
+        if (!fix || result.isOk()) {
+            return;
         }
 
-        return verificationSuccess.get();
+        System.err.printf(format, StringUtils.center("FIXING", statusMsgSize),
+                localPath, mantaPath);
+        if (local.link) {
+            SymbolicLinkUpload upload = new SymbolicLinkUpload(localPath);
+
+            if (result.isNotLink()) {
+                boolean recursive = VerificationResult.NOT_LINK_ACTUALLY_DIR.equals(result);
+                client.delete(mantaPath, recursive);
+            }
+
+            client.put(mantaPath, upload);
+        } else if (local.directory) {
+            client.mkdirp(mantaPath, new DirectoryUpload(localPath));
+        } else {
+            FileUpload upload = ObjectUploadQueueLoader.fileToUploadFromPath(localPath);
+            client.put(mantaPath, upload);
+            journal.uploaded(upload);
+
+            try {
+                upload.release();
+            } catch (IOException e) {
+                LOG.error("Unable to delete temp file", e);
+            }
+        }
     }
 
     /**
@@ -348,27 +600,24 @@ public class TransferManager implements AutoCloseable {
      */
     boolean verifyRemote() throws InterruptedException {
         final int concurrentVerifiers = Math.max(client.getMaximumConcurrentConnections() - 2, 1);
-        final ExecutorService verifyExecutor = Executors.newFixedThreadPool(
-                concurrentVerifiers, new NamedThreadFactory(
-                        "verify-thread-%d", "verifiers",
-                        "VerifierThreadPool"));
 
         System.err.println("Maven Archiver - Verify Remote");
         System.err.println();
 
+        registerSighupFunction(withClientSignalHandling(v -> Optional.empty()));
+
         final AtomicBoolean verificationSuccess = new AtomicBoolean(true);
 
         final String format = "[%s] %s" + System.lineSeparator();
 
-        final AtomicLong totalFiles = new AtomicLong(0L);
         final AtomicLong totalFilesProcessed = new AtomicLong(0L);
 
-        try (Stream<FileDownload> files = client.find()) {
-            // Only process files (no links and no directories)
-            files.filter(f -> !f.isDirectory() && !f.isLink()).forEach(file -> {
-                totalFiles.incrementAndGet();
-
-                final Runnable verify = () -> {
+        // Only process files (no links and no directories)
+        final Pipeline<Void> pipeline = Pipeline.from("verifyremote",
+                () -> client.find().filter(f -> !f.isDirectory() && !f.isLink()))
+                .governedBy(memoryGovernor)
+                .toleratingItemFailures()
+                .thenBlocking("verify", concurrentVerifiers, concurrentVerifiers * 4, (file, downstream) -> {
                     final VerificationResult result = client.download(
                             file.getRemotePath(), Optional.empty());
 
@@ -380,30 +629,106 @@ public class TransferManager implements AutoCloseable {
                     System.err.printf(format, centered, file);
 
                     totalFilesProcessed.incrementAndGet();
-                };
-
-                verifyExecutor.execute(verify);
-            });
-        }
+                });
 
-        verifyExecutor.shutdown();
+        final long totalFiles;
+        final long failedItems;
 
-        while (totalFilesProcessed.get() != totalFiles.get()) {
-            verifyExecutor.awaitTermination(EXECUTOR_SHUTDOWN_WAIT_SECS, TimeUnit.SECONDS);
+        try (Pipeline.Execution execution = pipeline.start()) {
+            execution.await();
+            totalFiles = execution.getSourced();
+            failedItems = execution.getFailedItems();
         }
 
-        System.err.printf("%d/%d files verified%s", totalFilesProcessed.get(), totalFiles.get(),
+        System.err.printf("%d/%d files verified%s", totalFilesProcessed.get(), totalFiles,
                 System.lineSeparator());
 
+        if (failedItems > 0) {
+            verificationSuccess.set(false);
+            printFailedItems(failedItems);
+        }
+
         return verificationSuccess.get();
     }
 
+    /**
+     * Reports the number of objects that couldn't be processed, whose
+     * errors were logged as they happened.
+     *
+     * @param failedItems number of objects that failed
+     */
+    private static void printFailedItems(final long failedItems) {
+        if (failedItems > 0) {
+            System.err.printf("%d objects failed with errors, see the log for details%s",
+                    failedItems, System.lineSeparator());
+        }
+    }
+
     @SuppressWarnings("EmptyStatement")
     @Override
     public void close() {
+        if (memoryGovernor.getPauses() > 0) {
+            LOG.info("Memory governor: {}", memoryGovernor.describe());
+        }
+
+        memoryGovernor.close();
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close upload journal", e);
+        }
+
         client.close();
     }
 
+    /**
+     * Chains a signal handler function with the reloading of transfer limits
+     * and the output of the statistics of each client, of the HEAD cache and
+     * of request hedging when they are used by the client.
+     *
+     * @param function function to run after the client's signal handling
+     * @return chained function
+     */
+    private Function<Void, Optional<RuntimeException>> withClientSignalHandling(
+            final Function<Void, Optional<RuntimeException>> function) {
+        final RateLimitedTransferClient rateLimited = ForwardingTransferClient.unwrap(
+                client, RateLimitedTransferClient.class);
+        final MantaTransferClient mantaClient = ForwardingTransferClient.unwrap(
+                client, MantaTransferClient.class);
+
+        return v -> {
+            if (rateLimited != null) {
+                final Optional<RuntimeException> reloadError =
+                        rateLimited.getThrottle().reloadFunction().apply(v);
+
+                if (reloadError.isPresent()) {
+                    return reloadError;
+                }
+            }
+
+            if (mantaClient != null && mantaClient.getClients() != null
+                    && mantaClient.getClients().size() > 1) {
+                System.err.printf("Clients: %s%s", mantaClient.getClients().describe(),
+                        System.lineSeparator());
+            }
+
+            if (HeadCache.current().isEnabled()) {
+                System.err.printf("HEAD cache: %s%s", HeadCache.current().describe(),
+                        System.lineSeparator());
+            }
+
+            if (mantaClient != null && mantaClient.getHedger().isEnabled()) {
+                final RequestHedger hedger = mantaClient.getHedger();
+                System.err.printf("Hedged requests: %d/%d (%d won, %d denied by budget)%s",
+                        hedger.getHedges(), hedger.getRequests(), hedger.getHedgeWins(),
+                        hedger.getHedgesDenied(), System.lineSeparator());
+            }
+
+            return function.apply(v);
+        };
+    }
+
     /**
      * Safely registers a SIGHUP handler that works for systems that support signals.
      * This seemingly complex way of loading the sun.misc.* classes is important because
@@ -425,4 +750,138 @@ public class TransferManager implements AutoCloseable {
                 LOG.warn(msg, e);
         }
     }
+
+    /**
+     * Options of the transfers of a {@link TransferManager}, whose defaults
+     * upload objects in the order they are walked, without a journal,
+     * without comparing files with their remote copies first and without
+     * multipart uploads.
+     */
+    static final class Options {
+        private UploadOrderPolicy uploadOrder = UploadOrderPolicy.WALK;
+        private int uploadOrderWindow = UploadOrderPolicy.DEFAULT_LOOK_AHEAD_WINDOW;
+        private UploadJournal journal = UploadJournal.disabled();
+        private boolean hashFirst;
+        private long multipartThreshold;
+
+        UploadOrderPolicy getUploadOrder() {
+            return uploadOrder;
+        }
+
+        /**
+         * @param uploadOrder order in which local objects are submitted for upload
+         * @return this instance
+         */
+        Options setUploadOrder(final UploadOrderPolicy uploadOrder) {
+            this.uploadOrder = requireNonNull(uploadOrder, "Upload order is null");
+            return this;
+        }
+
+        int getUploadOrderWindow() {
+            return uploadOrderWindow;
+        }
+
+        /**
+         * @param uploadOrderWindow number of walked objects that can be reordered at once
+         * @return this instance
+         */
+        Options setUploadOrderWindow(final int uploadOrderWindow) {
+            this.uploadOrderWindow = uploadOrderWindow;
+            return this;
+        }
+
+        UploadJournal getJournal() {
+            return journal;
+        }
+
+        /**
+         * @param journal journal of the files compressed, uploaded and verified
+         * @return this instance
+         */
+        Options setJournal(final UploadJournal journal) {
+            this.journal = requireNonNull(journal, "Journal is null");
+            return this;
+        }
+
+        boolean isHashFirst() {
+            return hashFirst;
+        }
+
+        /**
+         * @param hashFirst when true files identical to their remote copies aren't compressed
+         * @return this instance
+         */
+        Options setHashFirst(final boolean hashFirst) {
+            this.hashFirst = hashFirst;
+            return this;
+        }
+
+        long getMultipartThreshold() {
+            return multipartThreshold;
+        }
+
+        /**
+         * @param multipartThreshold size of the files uploaded with multipart
+         *                           uploads or zero to upload every file whole
+         * @return this instance
+         */
+        Options setMultipartThreshold(final long multipartThreshold) {
+            this.multipartThreshold = multipartThreshold;
+            return this;
+        }
+    }
+
+    /**
+     * State of a local object as it passes through the stages of local
+     * verification.
+     */
+    private static final class LocalObject {
+        private final Path path;
+        private final boolean link;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+        private final byte[] checksum;
+        private String mantaPath;
+        private VerificationResult result;
+
+        private LocalObject(final Path path, final boolean link, final boolean directory,
+                            final long size, final long lastModified, final byte[] checksum) {
+            this.path = path;
+            this.link = link;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Reads the type, size and checksum of a local object.
+         *
+         * @param path path to the local object
+         * @return the local object's state
+         * @throws IOException thrown when the size of a file can't be read
+         */
+        static LocalObject fromPath(final Path path) throws IOException {
+            if (Files.isSymbolicLink(path)) {
+                return new LocalObject(path, true, false, 0L, 0L, null);
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                return new LocalObject(path, false, true, 0L, 0L, null);
+            }
+
+            final long size;
+            final long lastModified = path.toFile().lastModified();
+
+            try {
+                size = Files.size(path);
+            } catch (IOException e) {
+                String msg = String.format("Unable to get the size of "
+                        + "local file: %s", path);
+                throw new IOException(msg, e);
+            }
+
+            return new LocalObject(path, false, false, size, lastModified,
+                    LocalFileUtils.checksum(path));
+        }
+    }
 }
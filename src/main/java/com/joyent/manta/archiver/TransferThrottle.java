@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.LocalTime;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Process-wide limiter of the bandwidth and request rate used when
+ * transferring objects. Limits are taken from a {@link ThrottleSchedule}
+ * that is re-evaluated against the time of day as transfers progress.
+ * When a control file is configured, its contents replace the schedule
+ * whenever the file is modified or when {@link #reload()} is called, so
+ * that limits can be changed while a transfer is running.
+ */
+class TransferThrottle {
+    private static final Logger LOG = LoggerFactory.getLogger(TransferThrottle.class);
+
+    /**
+     * Minimum amount of time between checks of the schedule and control file.
+     */
+    private static final long REFRESH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final TokenBucket bytes = new TokenBucket(TokenBucket.UNLIMITED);
+    private final TokenBucket requests = new TokenBucket(TokenBucket.UNLIMITED);
+    private final Path controlFile;
+    private final Clock clock;
+
+    private volatile ThrottleSchedule schedule;
+    private volatile ThrottleSchedule.Rule activeRule;
+    private volatile long controlFileModified = Long.MIN_VALUE;
+    private volatile long nextRefreshNanos = Long.MIN_VALUE;
+
+    /**
+     * Creates a new instance that never limits transfers.
+     */
+    TransferThrottle() {
+        this(ThrottleSchedule.UNLIMITED, null, Clock.systemDefaultZone());
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param schedule schedule of limits to apply
+     * @param controlFile file containing a schedule that overrides the one passed or null
+     * @param clock clock used to determine the time of day
+     */
+    TransferThrottle(final ThrottleSchedule schedule, final Path controlFile,
+                     final Clock clock) {
+        this.schedule = schedule;
+        this.controlFile = controlFile;
+        this.clock = clock;
+
+        reload();
+    }
+
+    /**
+     * Waits until a request can be made within the limits.
+     *
+     * @throws InterruptedException thrown when interrupted while waiting
+     */
+    void acquireRequest() throws InterruptedException {
+        refresh();
+        requests.acquire(1L);
+    }
+
+    /**
+     * Waits until the specified number of bytes can be transferred within
+     * the limits.
+     *
+     * @param count number of bytes
+     * @throws InterruptedException thrown when interrupted while waiting
+     */
+    void acquireBytes(final long count) throws InterruptedException {
+        refresh();
+        bytes.acquire(count);
+    }
+
+    /**
+     * @return true if a bandwidth limit is currently in effect
+     */
+    boolean isBandwidthLimited() {
+        refresh();
+        return bytes.isLimited();
+    }
+
+    /**
+     * Wraps a stream so that reading from it is limited by the bandwidth
+     * limit of this throttle.
+     *
+     * @param in stream to wrap
+     * @return throttled stream
+     */
+    InputStream throttle(final InputStream in) {
+        return new ThrottledInputStream(in, this);
+    }
+
+    /**
+     * Rereads the control file if one is configured and applies the limits
+     * for the current time of day.
+     */
+    void reload() {
+        loadControlFile(true);
+        applySchedule();
+    }
+
+    /**
+     * @return function that reloads this throttle, suitable for signal handlers
+     */
+    Function<Void, Optional<RuntimeException>> reloadFunction() {
+        return v -> {
+            try {
+                reload();
+                System.err.printf("Transfer limits: %s%s", describe(), System.lineSeparator());
+                return Optional.empty();
+            } catch (RuntimeException e) {
+                return Optional.of(e);
+            }
+        };
+    }
+
+    /**
+     * @return human readable description of the limits in effect
+     */
+    String describe() {
+        final StringBuilder builder = new StringBuilder();
+
+        if (bytes.isLimited()) {
+            builder.append(bytes.getRate()).append(" bytes/s");
+        } else {
+            builder.append("unlimited bandwidth");
+        }
+
+        builder.append(", ");
+
+        if (requests.isLimited()) {
+            builder.append(requests.getRate()).append(" requests/s");
+        } else {
+            builder.append("unlimited requests");
+        }
+
+        return builder.toString();
+    }
+
+    ThrottleSchedule getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * Periodically checks for changes to the control file and the time of day.
+     */
+    private void refresh() {
+        final long now = System.nanoTime();
+
+        if (now - nextRefreshNanos < 0) {
+            return;
+        }
+
+        nextRefreshNanos = now + REFRESH_INTERVAL_NANOS;
+
+        loadControlFile(false);
+        applySchedule();
+    }
+
+    private synchronized void applySchedule() {
+        final ThrottleSchedule.Rule rule = schedule.ruleAt(LocalTime.now(clock));
+
+        if (rule == activeRule) {
+            return;
+        }
+
+        activeRule = rule;
+        bytes.setRate(rule.getBytesPerSecond());
+        requests.setRate(rule.getRequestsPerSecond());
+
+        LOG.info("Transfer limits changed to {}", describe());
+    }
+
+    private synchronized void loadControlFile(final boolean force) {
+        if (controlFile == null || !Files.isReadable(controlFile)) {
+            return;
+        }
+
+        try {
+            final long modified = Files.getLastModifiedTime(controlFile).toMillis();
+
+            if (!force && modified == controlFileModified) {
+                return;
+            }
+
+            controlFileModified = modified;
+
+            final String spec = new String(Files.readAllBytes(controlFile),
+                    StandardCharsets.UTF_8);
+            schedule = ThrottleSchedule.parse(spec);
+            activeRule = null;
+
+            LOG.info("Loaded transfer limit schedule from {}: {}", controlFile, schedule);
+        } catch (IOException | IllegalArgumentException e) {
+            String msg = String.format("Unable to load transfer limit schedule "
+                    + "from [%s]. Keeping existing schedule.", controlFile);
+            LOG.warn(msg, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("schedule", schedule)
+                .append("controlFile", controlFile)
+                .append("bytes", bytes)
+                .append("requests", requests)
+                .toString();
+    }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.bouncycastle.util.encoders.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-ahead journal of the state of each file of an upload, so that an
+ * upload that was interrupted, for example by the process being killed or
+ * the host rebooting, can be resumed without starting over.
+ *
+ * <p>Each time a file is compressed to a temp file, uploaded or verified
+ * against its remote copy, a record is appended to the journal. When the
+ * journal is opened again, files that were uploaded or verified are skipped
+ * as long as their size and last modified time haven't changed, and temp
+ * files that were compressed but not uploaded are reused once their size
+ * is validated. Only the work that was in flight is redone.</p>
+ *
+ * <p>The journal starts with the remote directory that files are uploaded
+ * to, and can't be opened for an upload to another directory, whose files
+ * weren't uploaded. Only the records of previous runs are held in memory,
+ * and each one only until its file was checked.</p>
+ *
+ * <p>Records are buffered and written and forced to disk at most once per
+ * second, so that a crash loses at most a second of records, whose work is
+ * redone. The journal is compacted to the last record of each file when it
+ * is opened.</p>
+ */
+final class UploadJournal implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadJournal.class);
+
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String HEADER_PREFIX = "#remote-root" + FIELD_SEPARATOR;
+    private static final String NO_TEMP_FILE = "-";
+    private static final int NUMBER_OF_FIELDS = 7;
+    private static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    /**
+     * State of a file recorded in the journal.
+     */
+    enum State {
+        /**
+         * The file was compressed to a temp file that wasn't uploaded yet.
+         */
+        COMPRESSED,
+        /**
+         * The file was uploaded.
+         */
+        UPLOADED,
+        /**
+         * The remote copy of the file was verified to match it.
+         */
+        VERIFIED
+    }
+
+    private final Path file;
+    private final Map<Path, Entry> entries;
+    private final FileChannel channel;
+    private final Writer writer;
+    private final AtomicLong skipped = new AtomicLong(0L);
+    private final AtomicLong reused = new AtomicLong(0L);
+    private long lastSync = System.nanoTime();
+
+    private UploadJournal(final Path file, final Map<Path, Entry> entries,
+                          final FileChannel channel) {
+        this.file = file;
+        this.entries = entries;
+        this.channel = channel;
+
+        if (channel != null) {
+            this.writer = new BufferedWriter(new OutputStreamWriter(
+                    Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+        } else {
+            this.writer = null;
+        }
+    }
+
+    /**
+     * @return a journal that records nothing and never skips work
+     */
+    static UploadJournal disabled() {
+        return new UploadJournal(null, new ConcurrentHashMap<>(), null);
+    }
+
+    /**
+     * Opens a journal of the uploads to a remote directory, reading the
+     * records of previous runs if the file exists. Temp files that are
+     * missing or were truncated are forgotten.
+     *
+     * @param file path to the journal file
+     * @param remoteRoot remote directory that files are uploaded to
+     * @return journal that appends to the file
+     * @throws IOException thrown when the journal can't be read or written, or
+     *                     records the uploads to another remote directory
+     */
+    static UploadJournal open(final Path file, final String remoteRoot) throws IOException {
+        final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+        if (Files.exists(file)) {
+            read(file, remoteRoot, entries);
+        }
+
+        final Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (Writer out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            out.write(HEADER_PREFIX + Entry.encode(remoteRoot) + System.lineSeparator());
+
+            for (Entry entry : entries.values()) {
+                out.write(entry.toRecord());
+            }
+        }
+
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+
+        LOG.info("Opened upload journal [{}] with {} entries", file, entries.size());
+
+        return new UploadJournal(file, entries, channel);
+    }
+
+    private static void read(final Path file, final String remoteRoot,
+                             final Map<Path, Entry> entries) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+
+            if (header == null) {
+                return;
+            }
+
+            // Files of another remote directory weren't uploaded where they are now
+            if (!header.startsWith(HEADER_PREFIX)
+                    || !remoteRoot.equals(Entry.decode(header.substring(HEADER_PREFIX.length())))) {
+                throw new IOException(String.format("Journal [%s] records uploads to another "
+                        + "remote directory than [%s]: %s", file, remoteRoot, header));
+            }
+
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final Entry entry = Entry.fromRecord(line);
+
+                // The last line may have been cut short by a crash
+                if (entry == null) {
+                    LOG.warn("Ignoring malformed upload journal record: {}", line);
+                    continue;
+                }
+
+                entries.put(entry.source, entry);
+            }
+        }
+
+        final List<Entry> compressed = new ArrayList<>();
+
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.COMPRESSED) {
+                compressed.add(entry);
+            }
+        }
+
+        for (Entry entry : compressed) {
+            if (!entry.isTempFileIntact()) {
+                LOG.debug("Temp file of [{}] is no longer intact", entry.source);
+                entries.remove(entry.source);
+                deleteQuietly(entry.tempPath);
+            }
+        }
+    }
+
+    /**
+     * @return true when records are written to a journal file
+     */
+    boolean isEnabled() {
+        return writer != null;
+    }
+
+    /**
+     * Determines if a file was already uploaded or verified and hasn't
+     * changed since. Files found to be complete are counted as skipped.
+     *
+     * @param source path to the local file
+     * @param size current size of the file
+     * @param lastModified current last modified time of the file in epoch milliseconds
+     * @return true when the file doesn't need to be uploaded again
+     */
+    boolean isComplete(final Path source, final long size, final long lastModified) {
+        final Path key = key(source);
+        final Entry entry = entries.get(key);
+
+        if (entry == null || entry.state == State.COMPRESSED) {
+            return false;
+        }
+
+        // Each file is only checked once, so its record is no longer needed
+        entries.remove(key, entry);
+
+        if (!entry.matches(size, lastModified)) {
+            return false;
+        }
+
+        skipped.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Finds the temp file that a previous run compressed a file into, when
+     * the file hasn't changed since and the temp file is intact. The temp
+     * file is adopted by the current {@link TempStorage}.
+     *
+     * @param source path to the local file
+     * @param size current size of the file
+     * @param lastModified current last modified time of the file in epoch milliseconds
+     * @return upload of the existing temp file or null if the file needs to be compressed
+     */
+    FileUpload reuse(final Path source, final long size, final long lastModified) {
+        final Path key = key(source);
+        final Entry entry = entries.get(key);
+
+        if (entry == null || entry.state != State.COMPRESSED) {
+            return null;
+        }
+
+        if (!entry.matches(size, lastModified) || !entry.isTempFileIntact()) {
+            entries.remove(key, entry);
+            deleteQuietly(entry.tempPath);
+            return null;
+        }
+
+        TempStorage.current().adopt(entry.tempPath, entry.compressedSize);
+        reused.incrementAndGet();
+
+        LOG.debug("Reusing temp file [{}] compressed by a previous run", entry.tempPath);
+
+        return new FileUpload(entry.tempPath, source, entry.checksum,
+                Instant.ofEpochMilli(entry.lastModified), entry.size, entry.compressedSize);
+    }
+
+    /**
+     * Records that a file was compressed into a temp file. Files compressed
+     * into memory aren't recorded because they don't outlive the process.
+     *
+     * @param upload compressed file
+     */
+    void compressed(final FileUpload upload) {
+        if (upload.isInMemory()) {
+            return;
+        }
+
+        append(new Entry(State.COMPRESSED, key(upload.getSourcePath()),
+                upload.getLastModified().toEpochMilli(), upload.getUncompressedSize(),
+                upload.getChecksum(), upload.getTempPath(), upload.getCompressedSize()));
+    }
+
+    /**
+     * Records that a file was uploaded.
+     *
+     * @param upload uploaded file
+     */
+    void uploaded(final FileUpload upload) {
+        append(new Entry(State.UPLOADED, key(upload.getSourcePath()),
+                upload.getLastModified().toEpochMilli(), upload.getUncompressedSize(),
+                upload.getChecksum(), null, upload.getCompressedSize()));
+    }
+
+    /**
+     * Records that the remote copy of a file was verified to match it.
+     *
+     * @param source path to the local file
+     * @param size size of the file
+     * @param lastModified last modified time of the file in epoch milliseconds
+     * @param checksum checksum of the file
+     */
+    void verified(final Path source, final long size, final long lastModified,
+                  final byte[] checksum) {
+        append(new Entry(State.VERIFIED, key(source), lastModified, size, checksum,
+                null, 0L));
+    }
+
+    /**
+     * Deletes the temp files of files that were compressed but never
+     * uploaded, once an upload has completed and they can't be reused.
+     */
+    void finish() {
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.COMPRESSED) {
+                entries.remove(entry.source, entry);
+                deleteQuietly(entry.tempPath);
+            }
+        }
+    }
+
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    long getReused() {
+        return reused.get();
+    }
+
+    private void append(final Entry entry) {
+        if (writer == null) {
+            return;
+        }
+
+        // Only temp files are looked up later in the run
+        if (entry.state == State.COMPRESSED) {
+            entries.put(entry.source, entry);
+        } else {
+            entries.remove(entry.source);
+        }
+
+        synchronized (this) {
+            try {
+                writer.write(entry.toRecord());
+
+                final long now = System.nanoTime();
+
+                if (now - lastSync >= SYNC_INTERVAL_NANOS) {
+                    writer.flush();
+                    channel.force(false);
+                    lastSync = now;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(String.format(
+                        "Unable to write to upload journal [%s]", file), e);
+            }
+        }
+    }
+
+    private static Path key(final Path source) {
+        return source.toAbsolutePath().normalize();
+    }
+
+    private static void deleteQuietly(final Path path) {
+        if (path == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Unable to delete temp file: " + path, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+
+        writer.flush();
+        channel.force(false);
+        writer.close();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("file", file)
+                .append("entries", entries.size())
+                .append("skipped", getSkipped())
+                .append("reused", getReused())
+                .toString();
+    }
+
+    /**
+     * Last recorded state of a file.
+     */
+    private static final class Entry {
+        private final State state;
+        private final Path source;
+        private final long lastModified;
+        private final long size;
+        private final byte[] checksum;
+        private final Path tempPath;
+        private final long compressedSize;
+
+        Entry(final State state, final Path source, final long lastModified, final long size,
+              final byte[] checksum, final Path tempPath, final long compressedSize) {
+            this.state = state;
+            this.source = source;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.checksum = checksum;
+            this.tempPath = tempPath;
+            this.compressedSize = compressedSize;
+        }
+
+        /**
+         * Parses a journal record.
+         *
+         * @param line line of the journal
+         * @return entry or null if the record is malformed
+         */
+        static Entry fromRecord(final String line) {
+            final String[] fields = line.split(FIELD_SEPARATOR, -1);
+
+            if (fields.length != NUMBER_OF_FIELDS) {
+                return null;
+            }
+
+            try {
+                Path tempPath = null;
+
+                if (!NO_TEMP_FILE.equals(fields[5])) {
+                    tempPath = Paths.get(decode(fields[5]));
+                }
+
+                return new Entry(State.valueOf(fields[0]), Paths.get(decode(fields[6])),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Hex.decode(fields[3]), tempPath, Long.parseLong(fields[4]));
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        String toRecord() {
+            String temp = NO_TEMP_FILE;
+
+            if (tempPath != null) {
+                temp = encode(tempPath.toString());
+            }
+
+            return String.join(FIELD_SEPARATOR, state.name(), Long.toString(lastModified),
+                    Long.toString(size), Hex.toHexString(checksum),
+                    Long.toString(compressedSize), temp, encode(source.toString()))
+                    + System.lineSeparator();
+        }
+
+        boolean matches(final long currentSize, final long currentLastModified) {
+            return size == currentSize && lastModified == currentLastModified;
+        }
+
+        boolean isTempFileIntact() {
+            try {
+                return tempPath != null && Files.isRegularFile(tempPath)
+                        && Files.size(tempPath) == compressedSize;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private static String encode(final String value) {
+            try {
+                return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String decode(final String value) {
+            try {
+                return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
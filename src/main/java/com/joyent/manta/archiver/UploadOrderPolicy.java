@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Policies for the order in which objects found while walking the local
+ * directory are submitted for compression and upload. Because the walk is
+ * streamed, policies can only reorder objects within a bounded look-ahead
+ * window of the walk. Larger windows approximate the ideal order more
+ * closely at the cost of holding more entries in memory.
+ */
+enum UploadOrderPolicy {
+    /**
+     * Objects are submitted in the order the walk finds them.
+     */
+    WALK {
+        @Override
+        Iterator<Candidate> reorder(final Iterator<Candidate> walk, final int window) {
+            return walk;
+        }
+    },
+    /**
+     * Largest files are submitted first so that the longest uploads start
+     * early and don't become a single threaded tail at the end of a run.
+     */
+    LARGEST_FIRST {
+        @Override
+        Iterator<Candidate> reorder(final Iterator<Candidate> walk, final int window) {
+            return new PriorityWindowIterator(walk, window,
+                    Comparator.comparingLong(Candidate::getSize).reversed());
+        }
+    },
+    /**
+     * Most recently modified files are submitted first so that the newest
+     * data is archived as soon as possible.
+     */
+    NEWEST_FIRST {
+        @Override
+        Iterator<Candidate> reorder(final Iterator<Candidate> walk, final int window) {
+            return new PriorityWindowIterator(walk, window,
+                    Comparator.comparingLong(Candidate::getLastModified).reversed());
+        }
+    },
+    /**
+     * Objects are submitted in rotation across their parent directories so
+     * that concurrent uploads are spread over many remote directories.
+     */
+    DIRECTORY_ROUND_ROBIN {
+        @Override
+        Iterator<Candidate> reorder(final Iterator<Candidate> walk, final int window) {
+            return new RoundRobinWindowIterator(walk, window);
+        }
+    };
+
+    /**
+     * Default number of walked entries that can be reordered at once.
+     */
+    static final int DEFAULT_LOOK_AHEAD_WINDOW = 1024;
+
+    /**
+     * Reorders the objects found by a walk.
+     *
+     * @param walk objects in the order they were walked
+     * @param window maximum number of objects buffered for reordering
+     * @return iterator providing objects in the order of this policy
+     */
+    abstract Iterator<Candidate> reorder(Iterator<Candidate> walk, int window);
+
+    /**
+     * Local object found by a walk along with the attributes used to order it.
+     */
+    static class Candidate {
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final boolean directory;
+        private final byte[] checksum;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param path path to the object
+         * @param size size of the file or zero for directories
+         * @param lastModified last modified time in epoch milliseconds
+         * @param directory true if the object is a directory
+         */
+        Candidate(final Path path, final long size, final long lastModified,
+                  final boolean directory) {
+            this(path, size, lastModified, directory, null);
+        }
+
+        private Candidate(final Path path, final long size, final long lastModified,
+                          final boolean directory, final byte[] checksum) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.directory = directory;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Reads the attributes of a path.
+         *
+         * @param path path to read
+         * @return new instance
+         */
+        static Candidate fromPath(final Path path) {
+            final File file = path.toFile().getAbsoluteFile();
+
+            if (file.isDirectory()) {
+                return new Candidate(path, 0L, file.lastModified(), true);
+            }
+
+            return new Candidate(path, file.length(), file.lastModified(), false);
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return checksum of the file or null when it wasn't computed yet
+         */
+        byte[] getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * Creates a copy of this candidate carrying the checksum of the file,
+         * so that the file isn't read again to compute it.
+         *
+         * @param fileChecksum checksum of the file
+         * @return new instance
+         */
+        Candidate withChecksum(final byte[] fileChecksum) {
+            return new Candidate(path, size, lastModified, directory, fileChecksum);
+        }
+
+        @Override
+        public String toString() {
+            return new ToStringBuilder(this)
+                    .append("path", path)
+                    .append("size", size)
+                    .append("lastModified", lastModified)
+                    .append("directory", directory)
+                    .toString();
+        }
+    }
+
+    /**
+     * Iterator that always returns the highest priority object within the
+     * look-ahead window.
+     */
+    private static class PriorityWindowIterator implements Iterator<Candidate> {
+        private final Iterator<Candidate> walk;
+        private final int window;
+        private final PriorityQueue<Candidate> buffer;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param walk objects in the order they were walked
+         * @param window maximum number of objects buffered for reordering
+         * @param priority comparator ordering the highest priority objects first
+         */
+        PriorityWindowIterator(final Iterator<Candidate> walk, final int window,
+                               final Comparator<Candidate> priority) {
+            this.walk = walk;
+            this.window = Math.max(window, 1);
+            this.buffer = new PriorityQueue<>(this.window, priority);
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return !buffer.isEmpty();
+        }
+
+        @Override
+        public Candidate next() {
+            fill();
+
+            if (buffer.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+
+            return buffer.poll();
+        }
+
+        private void fill() {
+            while (buffer.size() < window && walk.hasNext()) {
+                buffer.add(walk.next());
+            }
+        }
+    }
+
+    /**
+     * Iterator that returns objects within the look-ahead window in rotation
+     * across their parent directories.
+     */
+    private static class RoundRobinWindowIterator implements Iterator<Candidate> {
+        private final Iterator<Candidate> walk;
+        private final int window;
+        private final Map<Path, Deque<Candidate>> byDirectory = new HashMap<>();
+        private final Deque<Path> rotation = new ArrayDeque<>();
+        private int buffered = 0;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param walk objects in the order they were walked
+         * @param window maximum number of objects buffered for reordering
+         */
+        RoundRobinWindowIterator(final Iterator<Candidate> walk, final int window) {
+            this.walk = walk;
+            this.window = Math.max(window, 1);
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return buffered > 0;
+        }
+
+        @Override
+        public Candidate next() {
+            fill();
+
+            if (buffered == 0) {
+                throw new NoSuchElementException();
+            }
+
+            final Path dir = rotation.poll();
+            final Deque<Candidate> pending = byDirectory.get(dir);
+            final Candidate next = pending.poll();
+            buffered--;
+
+            if (pending.isEmpty()) {
+                byDirectory.remove(dir);
+            } else {
+                rotation.add(dir);
+            }
+
+            return next;
+        }
+
+        private void fill() {
+            while (buffered < window && walk.hasNext()) {
+                final Candidate candidate = walk.next();
+                final Path dir = directoryOf(candidate.getPath());
+                final Deque<Candidate> pending = byDirectory.computeIfAbsent(dir, d -> {
+                    rotation.add(d);
+                    return new ArrayDeque<>();
+                });
+
+                pending.add(candidate);
+                buffered++;
+            }
+        }
+
+        private static Path directoryOf(final Path path) {
+            final Path parent = path.getParent();
+
+            if (parent == null) {
+                return path;
+            }
+
+            return parent;
+        }
+    }
+}
@@ -7,13 +7,9 @@
  */
 package com.joyent.manta.archiver;
 
-import com.google.common.cache.Cache;
-
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
-import java.util.concurrent.TransferQueue;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
@@ -24,29 +20,31 @@ public class UploadStatusFunction implements Function<Void, Optional<RuntimeExce
     private final Future<TotalTransferDetails> transferDetailsFuture;
     private final AtomicLong totalUploads;
     private final AtomicLong noOfObjectToUpload;
-    private final Cache<String, Boolean> dirCache;
-    private final TransferQueue<ObjectUpload> uploadQueue;
-    private final ForkJoinPool preloadForkJoinPool;
+    private final DirectoryTrie dirCache;
+    private final Pipeline.Execution pipeline;
+    private final StageBalancer stageBalancer;
+    private final BufferPool bufferPool;
 
     @SuppressWarnings("JavadocMethod")
-    public UploadStatusFunction(final Future<TotalTransferDetails> transferDetailsFuture,
-                                final AtomicLong totalUploads,
-                                final AtomicLong noOfObjectToUpload,
-                                final Cache<String, Boolean> dirCache,
-                                final TransferQueue<ObjectUpload> uploadQueue,
-                                final ForkJoinPool preloadForkJoinPool) {
+    UploadStatusFunction(final Future<TotalTransferDetails> transferDetailsFuture,
+                         final AtomicLong totalUploads,
+                         final AtomicLong noOfObjectToUpload,
+                         final DirectoryTrie dirCache,
+                         final Pipeline.Execution pipeline,
+                         final StageBalancer stageBalancer,
+                         final BufferPool bufferPool) {
         this.transferDetailsFuture = transferDetailsFuture;
         this.totalUploads = totalUploads;
         this.noOfObjectToUpload = noOfObjectToUpload;
         this.dirCache = dirCache;
-        this.uploadQueue = uploadQueue;
-        this.preloadForkJoinPool = preloadForkJoinPool;
+        this.pipeline = pipeline;
+        this.stageBalancer = stageBalancer;
+        this.bufferPool = bufferPool;
     }
 
     @Override
     public Optional<RuntimeException> apply(final Void aVoid) {
         try {
-            printfln("Upload queue size: %d", uploadQueue.size());
             printfln("Total objects to upload [noOfObjectToUpload]: %d", noOfObjectToUpload.get());
 
             if (transferDetailsFuture.isDone()) {
@@ -65,12 +63,15 @@ public class UploadStatusFunction implements Function<Void, Optional<RuntimeExce
                 printfln("Directory cache size: %d", dirCache.size());
             }
 
-            printfln("Preload ForkJoinPool active thread count: %d",
-                    preloadForkJoinPool.getActiveThreadCount());
-            printfln("Preload ForkJoinPool pool size: %d",
-                    preloadForkJoinPool.getPoolSize());
-            printfln("Preload ForkJoinPool running thread count: %d",
-                    preloadForkJoinPool.getRunningThreadCount());
+            printfln("Upload pipeline: %s", pipeline.describe());
+
+            if (stageBalancer != null) {
+                printfln("Stage balancer: %s", stageBalancer.describe());
+            }
+
+            if (bufferPool != null) {
+                printfln("Small file buffers: %s", bufferPool.describe());
+            }
         } catch (RuntimeException e) {
             return Optional.of(e);
         }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Factory for the threads used by transfer pipelines. This is the Java 21
+ * implementation, which is loaded from the versioned section of the
+ * multi-release JAR. Stages that block on remote I/O run each object on its
+ * own virtual thread, so that the number of objects in flight is bounded by
+ * the size of the connection pool rather than by the cost of threads.
+ * Virtual threads can be disabled by setting the system property
+ * {@value #VIRTUAL_THREADS_PROPERTY} to false.
+ */
+final class TransferExecutors {
+    /**
+     * System property that disables virtual threads when set to false.
+     */
+    static final String VIRTUAL_THREADS_PROPERTY = "manta.archiver.virtualThreads";
+
+    private TransferExecutors() {
+    }
+
+    /**
+     * Indicates whether stages that block on remote I/O run each object on
+     * its own virtual thread, with concurrency bounded by a semaphore rather
+     * than by the number of threads.
+     *
+     * @return true unless virtual threads have been disabled
+     */
+    static boolean isVirtualThreadPerObject() {
+        return !"false".equalsIgnoreCase(System.getProperty(VIRTUAL_THREADS_PROPERTY));
+    }
+
+    /**
+     * Creates a factory for threads that mostly block on remote I/O.
+     *
+     * @param threadFormat format with %d parameter for naming new threads
+     * @param threadGroupName name of thread group to put threads in
+     * @param loggerName name of logger to log exceptions to
+     * @return factory of virtual threads or platform threads when virtual
+     *         threads are disabled
+     */
+    static ThreadFactory blockingThreadFactory(final String threadFormat,
+                                               final String threadGroupName,
+                                               final String loggerName) {
+        if (!isVirtualThreadPerObject()) {
+            return new NamedThreadFactory(threadFormat, threadGroupName, loggerName);
+        }
+
+        final String prefix = threadFormat.replace("%d", "");
+
+        return Thread.ofVirtual()
+                .name(prefix, 1L)
+                .uncaughtExceptionHandler(new LoggingUncaughtExceptionHandler(loggerName))
+                .factory();
+    }
+
+    /**
+     * @return description of the threads used for blocking stages
+     */
+    static String describe() {
+        if (isVirtualThreadPerObject()) {
+            return "virtual threads";
+        }
+
+        return "platform threads";
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaClient;
+import com.joyent.manta.client.MantaObject;
+import com.joyent.manta.client.MantaObjectResponse;
+import com.joyent.manta.config.ConfigContext;
+import com.joyent.manta.exception.MantaClientHttpResponseException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class AsyncTransferClientTest {
+    private static final String MANTA_URL = "https://manta.example.com/";
+    private static final String MANTA_ROOT = "/username/stor/backup";
+    private static final String MANTA_PATH = MANTA_ROOT + "/dir/file.txt";
+    private static final byte[] CHECKSUM = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private Path tempFile;
+    private FileUpload upload;
+    private FakeTransport transport;
+    private AsyncTransferClient client;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        tempFile = Files.createTempFile("async-transfer", ".xz");
+        Files.write(tempFile, new byte[] {1, 2, 3});
+        upload = new FileUpload(tempFile, Paths.get("/local/dir/file.txt"), CHECKSUM,
+                Instant.now(), 10L, 3L);
+
+        transport = new FakeTransport();
+        client = newClient(new MantaTransferClient(null, MANTA_ROOT), endpoints(MANTA_URL));
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        client.close();
+        Files.deleteIfExists(tempFile);
+        HeadCache.use(HeadCache.disabled());
+    }
+
+    private static ClientPool endpoints(final String... mantaUrls) {
+        final List<MantaClient> clients = new ArrayList<>();
+
+        for (String mantaUrl : mantaUrls) {
+            final MantaClient mantaClient = mock(MantaClient.class);
+            final ConfigContext config = mock(ConfigContext.class);
+            when(config.getMantaURL()).thenReturn(mantaUrl);
+            when(mantaClient.getContext()).thenReturn(config);
+            clients.add(mantaClient);
+        }
+
+        return new ClientPool(clients, Clock.systemUTC());
+    }
+
+    private AsyncTransferClient newClient(final MantaTransferClient manta, final ClientPool endpoints) {
+        manta.getDirCache().add(MANTA_ROOT + "/dir/");
+
+        // The Manta client isn't connected, so it must not be closed
+        final TransferClient delegate = new ForwardingTransferClient(manta) {
+            @Override
+            public void close() {
+            }
+        };
+
+        return new AsyncTransferClient(delegate, transport, endpoints,
+                new TransferThrottle(), new RetryPolicy(3, 0L, 0L, new RetryBudget()), 64, 1);
+    }
+
+    private static HttpResponse response(final int status) {
+        return new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "status " + status);
+    }
+
+    public void newFileIsOnlyPutIfAbsent() throws Exception {
+        transport.respond(response(204));
+
+        client.putAsync(MANTA_PATH, upload).get(10, TimeUnit.SECONDS);
+
+        assertEquals(transport.requests.size(), 1);
+        final HttpUriRequest put = transport.requests.get(0);
+        assertEquals(put.getMethod(), "PUT");
+        assertEquals(put.getURI().toString(), "https://manta.example.com" + MANTA_PATH);
+        assertEquals(put.getFirstHeader("If-Match").getValue(), "\"\"");
+        assertEquals(put.getFirstHeader(MantaTransferClient.ORIGINAL_MD5_HEADER).getValue(),
+                Base64.encodeBase64String(CHECKSUM));
+        assertEquals(put.getFirstHeader(MantaTransferClient.UNCOMPRESSED_SIZE_HEADER).getValue(), "10");
+        assertEquals(client.getInFlight(), 0);
+    }
+
+    public void unchangedRemoteFileIsNotOverwritten() throws Exception {
+        final HttpResponse head = response(200);
+        head.setHeader(MantaTransferClient.ORIGINAL_MD5_HEADER, Base64.encodeBase64String(CHECKSUM));
+        transport.respond(response(412), head);
+
+        client.putAsync(MANTA_PATH, upload).get(10, TimeUnit.SECONDS);
+
+        assertEquals(transport.requests.size(), 2);
+        assertEquals(transport.requests.get(1).getMethod(), "HEAD");
+        assertEquals(client.getUnchanged(), 1L);
+    }
+
+    public void changedRemoteFileIsOverwritten() throws Exception {
+        final HttpResponse head = response(200);
+        head.setHeader(MantaTransferClient.ORIGINAL_MD5_HEADER, "different");
+        transport.respond(response(412), head, response(204));
+
+        client.putAsync(MANTA_PATH, upload).get(10, TimeUnit.SECONDS);
+
+        assertEquals(transport.requests.size(), 3);
+        final HttpUriRequest overwrite = transport.requests.get(2);
+        assertEquals(overwrite.getMethod(), "PUT");
+        assertNull(overwrite.getFirstHeader("If-Match"));
+        assertEquals(client.getUnchanged(), 0L);
+    }
+
+    public void indexedRemoteFileIsCheckedWithoutConditionalPut() throws Exception {
+        final MantaClient mantaClient = mock(MantaClient.class);
+        final ConfigContext config = mock(ConfigContext.class);
+        final MantaObjectResponse rootResponse = mock(MantaObjectResponse.class);
+        final MantaObject dir = mock(MantaObject.class);
+        final MantaObject file = mock(MantaObject.class);
+
+        when(config.getMantaHomeDirectory()).thenReturn("/username");
+        when(config.getMaximumConnections()).thenReturn(4);
+        when(mantaClient.getContext()).thenReturn(config);
+        when(rootResponse.isDirectory()).thenReturn(true);
+        when(mantaClient.head(anyString())).thenReturn(rootResponse);
+        when(dir.getPath()).thenReturn(MANTA_ROOT + "/dir");
+        when(dir.isDirectory()).thenReturn(true);
+        when(file.getPath()).thenReturn(MANTA_PATH);
+        when(mantaClient.listObjects(MANTA_ROOT + "/")).thenAnswer(invocation -> Stream.of(dir));
+        when(mantaClient.listObjects(MANTA_ROOT + "/dir/")).thenAnswer(invocation -> Stream.of(file));
+
+        final MantaTransferClient manta = new MantaTransferClient(() -> mantaClient, MANTA_ROOT);
+        manta.prefetchListing();
+        client.close();
+        client = newClient(manta, endpoints(MANTA_URL));
+
+        final HttpResponse head = response(200);
+        head.setHeader(MantaTransferClient.ORIGINAL_MD5_HEADER, "different");
+        transport.respond(head, response(204));
+
+        client.putAsync(MANTA_PATH, upload).get(10, TimeUnit.SECONDS);
+
+        assertEquals(transport.requests.size(), 2);
+        assertEquals(transport.requests.get(0).getMethod(), "HEAD");
+        assertNull(transport.requests.get(1).getFirstHeader("If-Match"));
+        assertNull(manta.getIndex().lookup(MANTA_PATH));
+    }
+
+    public void requestsAreSpreadOverEveryEndpoint() throws Exception {
+        client.close();
+        client = newClient(new MantaTransferClient(null, MANTA_ROOT),
+                endpoints(MANTA_URL, "https://manta2.example.com"));
+        transport.respond(response(204), response(204));
+
+        client.putAsync(MANTA_PATH, upload).get(10, TimeUnit.SECONDS);
+        client.putAsync(MANTA_PATH, upload).get(10, TimeUnit.SECONDS);
+
+        assertEquals(transport.requests.get(0).getURI().getHost(), "manta.example.com");
+        assertEquals(transport.requests.get(1).getURI().getHost(), "manta2.example.com");
+    }
+
+    public void failingEndpointIsDrained() throws Exception {
+        client.close();
+        client = newClient(new MantaTransferClient(null, MANTA_ROOT),
+                endpoints(MANTA_URL, "https://manta2.example.com"));
+        transport.respondBy(request -> {
+            if (request.getURI().getHost().equals("manta.example.com")) {
+                return response(503);
+            }
+
+            return response(204);
+        });
+
+        for (int i = 0; i < 10; i++) {
+            client.putAsync(MANTA_PATH, upload).get(10, TimeUnit.SECONDS);
+        }
+
+        final long failing = transport.requests.stream()
+                .filter(request -> request.getURI().getHost().equals("manta.example.com"))
+                .count();
+        assertEquals(failing, (long)ClientPool.FAILURES_BEFORE_DRAIN);
+    }
+
+    public void uploadedFileIsRemovedFromHeadCache() throws Exception {
+        final HeadCache cache = new HeadCache(HeadCache.DEFAULT_TTL_MILLIS);
+        HeadCache.use(cache);
+        cache.head(MANTA_PATH, () -> mock(MantaObjectResponse.class));
+        transport.respond(response(204));
+
+        client.putAsync(MANTA_PATH, upload).get(10, TimeUnit.SECONDS);
+
+        assertEquals(cache.size(), 0);
+    }
+
+    public void serverErrorsAreRetried() throws Exception {
+        transport.respond(response(503), response(204));
+
+        client.putAsync(MANTA_PATH, upload).get(10, TimeUnit.SECONDS);
+
+        assertEquals(transport.requests.size(), 2);
+        assertEquals(client.getRetries(), 1L);
+    }
+
+    public void clientErrorsFailWithoutRetrying() throws Exception {
+        transport.respond(response(403));
+
+        final CompletableFuture<Void> result = client.putAsync(MANTA_PATH, upload);
+
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            fail("Expected exception was not thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransferClientException);
+            final MantaClientHttpResponseException cause =
+                    (MantaClientHttpResponseException)e.getCause().getCause();
+            assertEquals(cause.getStatusCode(), 403);
+        }
+
+        assertEquals(transport.requests.size(), 1);
+        assertEquals(client.getRetries(), 0L);
+    }
+
+    public void missingTempFileFailsWithoutRequests() throws Exception {
+        Files.delete(tempFile);
+
+        final CompletableFuture<Void> result = client.putAsync(MANTA_PATH, upload);
+
+        assertTrue(result.isCompletedExceptionally());
+        assertFalse(RetryPolicy.isRetryable(result.handle((v, e) -> e).get()));
+        assertTrue(transport.requests.isEmpty());
+    }
+
+    /**
+     * Transport that completes requests with canned responses in order.
+     */
+    private static final class FakeTransport implements AsyncTransferClient.Transport {
+        private final Deque<HttpResponse> responses = new ArrayDeque<>();
+        private final List<HttpUriRequest> requests = new ArrayList<>();
+        private Function<HttpUriRequest, HttpResponse> responder;
+
+        synchronized void respond(final HttpResponse... canned) {
+            for (HttpResponse response : canned) {
+                responses.add(response);
+            }
+        }
+
+        synchronized void respondBy(final Function<HttpUriRequest, HttpResponse> function) {
+            responder = function;
+        }
+
+        @Override
+        public synchronized CompletableFuture<HttpResponse> execute(final HttpUriRequest request) {
+            requests.add(request);
+
+            if (responder != null) {
+                return CompletableFuture.completedFuture(responder.apply(request));
+            }
+
+            if (responses.isEmpty()) {
+                final CompletableFuture<HttpResponse> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("Unexpected request"));
+                return failed;
+            }
+
+            return CompletableFuture.completedFuture(responses.poll());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
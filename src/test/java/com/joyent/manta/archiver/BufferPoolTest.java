@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class BufferPoolTest {
+    private static BufferPool poolOf(final int buffers) {
+        final BufferPool sizing = new BufferPool(1024, 0L);
+        return new BufferPool(1024, (long)sizing.getBufferSize() * buffers);
+    }
+
+    public void numberOfBuffersIsBounded() {
+        final BufferPool pool = poolOf(3);
+
+        final byte[] first = pool.tryAcquire();
+        assertNotNull(first);
+        assertNotNull(pool.tryAcquire());
+        assertNotNull(pool.tryAcquire());
+        assertNull(pool.tryAcquire());
+        assertEquals(pool.getExhausted(), 1L);
+
+        pool.release(first);
+        assertEquals(pool.getInUse(), 2);
+        assertSame(pool.tryAcquire(), first);
+    }
+
+    public void onlySmallFilesAreAccepted() {
+        final BufferPool pool = poolOf(1);
+
+        assertTrue(pool.accepts(0L));
+        assertTrue(pool.accepts(1024L));
+        assertFalse(pool.accepts(1025L));
+        assertFalse(BufferPool.disabled().accepts(0L));
+    }
+
+    public void smallFileIsCompressedIntoMemory() throws IOException {
+        final Path file = Files.createTempFile("buffer-pool", ".txt");
+        final byte[] contents = "small configuration file".getBytes(StandardCharsets.UTF_8);
+        Files.write(file, contents);
+
+        final BufferPool pool = poolOf(1);
+
+        try {
+            final FileUpload upload = ObjectUploadQueueLoader.fileToUploadInMemory(
+                    file, pool, pool.tryAcquire());
+
+            assertTrue(upload.isInMemory());
+            assertNull(upload.getTempPath());
+            assertEquals(upload.getUncompressedSize(), contents.length);
+            assertEquals(pool.getInUse(), 1);
+
+            try (InputStream in = ObjectCompressor.INSTANCE.decompress(
+                    "/stor/file", upload.openContent())) {
+                assertEquals(IOUtils.toByteArray(in), contents);
+            }
+
+            upload.release();
+            upload.release();
+
+            assertFalse(upload.isContentAvailable());
+            assertEquals(pool.getInUse(), 0);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void oversizedOutputLeavesThePool() {
+        final BufferPool pool = poolOf(1);
+        final PooledBufferOutputStream out = new PooledBufferOutputStream(pool, pool.tryAcquire());
+
+        out.write(new byte[pool.getBufferSize() + 1], 0, pool.getBufferSize() + 1);
+
+        assertFalse(out.isPooled());
+        assertEquals(out.size(), pool.getBufferSize() + 1);
+        assertEquals(pool.getInUse(), 0);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaClient;
+import com.joyent.manta.exception.MantaClientHttpResponseException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+@Test
+public class ClientPoolTest {
+    private MantaClient first;
+    private MantaClient second;
+    private MutableClock clock;
+    private ClientPool pool;
+
+    @BeforeMethod
+    public void setup() {
+        first = mock(MantaClient.class);
+        second = mock(MantaClient.class);
+        clock = new MutableClock();
+        pool = new ClientPool(Arrays.asList(first, second), clock);
+    }
+
+    private void failWith(final MantaClient client, final IOException e) {
+        try {
+            pool.call(c -> {
+                if (c == client) {
+                    throw e;
+                }
+
+                return null;
+            });
+        } catch (IOException caught) {
+            assertSame(caught, e);
+        }
+    }
+
+    public void requestsGoToClientWithFewestInProgress() throws IOException {
+        try (ClientPool.Lease busy = pool.lease()) {
+            for (int i = 0; i < 4; i++) {
+                assertNotSame(pool.call(c -> c), busy.client());
+            }
+        }
+    }
+
+    public void idleClientsShareRequests() throws IOException {
+        final MantaClient a = pool.call(c -> c);
+        final MantaClient b = pool.call(c -> c);
+
+        assertNotSame(a, b);
+    }
+
+    public void failingClientIsDrainedAndRetriedLater() throws IOException {
+        for (int i = 0; i < ClientPool.FAILURES_BEFORE_DRAIN * 2; i++) {
+            failWith(first, new IOException("connection refused"));
+        }
+
+        for (int i = 0; i < 4; i++) {
+            assertSame(pool.call(c -> c), second);
+        }
+
+        clock.advance(ClientPool.DRAIN_MILLIS + 1L);
+
+        MantaClient used = second;
+
+        for (int i = 0; i < 2 && used == second; i++) {
+            used = pool.call(c -> c);
+        }
+
+        assertSame(used, first);
+    }
+
+    public void requestErrorsDoNotDrainClient() throws IOException {
+        final MantaClientHttpResponseException notFound = mock(MantaClientHttpResponseException.class);
+        when(notFound.getStatusCode()).thenReturn(404);
+
+        for (int i = 0; i < ClientPool.FAILURES_BEFORE_DRAIN * 2; i++) {
+            failWith(first, notFound);
+        }
+
+        assertNotSame(pool.call(c -> c), pool.call(c -> c));
+    }
+
+    public void drainedClientsAreUsedWhenNoneIsHealthy() throws IOException {
+        for (int i = 0; i < ClientPool.FAILURES_BEFORE_DRAIN * 2; i++) {
+            failWith(first, new IOException("connection refused"));
+            failWith(second, new IOException("connection refused"));
+        }
+
+        try {
+            pool.call(c -> {
+                throw new IOException("still failing");
+            });
+            fail("Request should have failed");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "still failing");
+        }
+    }
+
+    public void closingPoolClosesEveryClient() {
+        pool.close();
+
+        verify(first).close();
+        verify(second).close();
+    }
+}
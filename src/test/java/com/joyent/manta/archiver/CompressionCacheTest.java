@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class CompressionCacheTest {
+    private Path base;
+    private Path cacheDir;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        base = Files.createTempDirectory("compression-cache");
+        cacheDir = base.resolve("cache");
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        CompressionCache.use(CompressionCache.disabled());
+        FileUtils.deleteDirectory(base.toFile());
+    }
+
+    private Path file(final String name, final String contents) throws IOException {
+        final Path path = base.resolve(name);
+        Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+
+    public void uploadedTempFilesAreReusedForIdenticalContents() throws Exception {
+        final CompressionCache cache = CompressionCache.open(cacheDir, 1024L * 1024L);
+        CompressionCache.use(cache);
+
+        final String contents = "the same contents in two places";
+        final FileUpload first = ObjectUploadQueueLoader.fileToUploadFromPath(file("first", contents));
+
+        assertFalse(cache.holds(first.getTempPath()));
+        first.release();
+
+        assertFalse(Files.exists(first.getTempPath()));
+        assertEquals(cache.getNumberOfFiles(), 1);
+
+        final FileUpload second = ObjectUploadQueueLoader.fileToUploadFromPath(file("second", contents));
+
+        assertTrue(cache.holds(second.getTempPath()));
+        assertEquals(second.getCompressedSize(), first.getCompressedSize());
+        assertEquals(second.getChecksum(), first.getChecksum());
+        assertEquals(second.getSourcePath(), base.resolve("second"));
+        assertEquals(cache.getHits(), 1L);
+
+        try (InputStream in = ObjectCompressor.INSTANCE.decompress("/stor/second",
+                second.openContent())) {
+            assertEquals(IOUtils.toString(in, StandardCharsets.UTF_8), contents);
+        }
+
+        second.release();
+
+        assertTrue(Files.exists(second.getTempPath()));
+        assertEquals(cache.getNumberOfFiles(), 1);
+    }
+
+    public void leastRecentlyUsedFilesAreEvicted() throws Exception {
+        final CompressionCache cache = CompressionCache.open(cacheDir, 1024L * 1024L);
+        CompressionCache.use(cache);
+
+        final FileUpload a = ObjectUploadQueueLoader.fileToUploadFromPath(file("a", "aaaa"));
+        final FileUpload b = ObjectUploadQueueLoader.fileToUploadFromPath(file("b", "bbbb"));
+        a.release();
+        b.release();
+
+        // Using a makes b the least recently used
+        final FileUpload reusedA = cache.lookup(base.resolve("a"));
+        assertNotNull(reusedA);
+        reusedA.release();
+
+        final long budget = cache.getTotalBytes();
+        final CompressionCache reopened = CompressionCache.open(cacheDir, budget);
+        CompressionCache.use(reopened);
+
+        final FileUpload c = ObjectUploadQueueLoader.fileToUploadFromPath(file("c", "cccc"));
+        final FileUpload pinnedA = reopened.lookup(base.resolve("a"));
+        assertNotNull(pinnedA);
+        c.release();
+
+        assertEquals(reopened.getEvictions(), 1L);
+        assertNull(reopened.lookup(base.resolve("b")));
+        assertTrue(Files.exists(pinnedA.getTempPath()));
+        pinnedA.release();
+    }
+
+    public void knownChecksumIsUsedToLookUpFiles() throws Exception {
+        final CompressionCache cache = CompressionCache.open(cacheDir, 1024L * 1024L);
+        CompressionCache.use(cache);
+
+        final Path path = file("known", "contents looked up by a known checksum");
+        final FileUpload first = ObjectUploadQueueLoader.fileToUploadFromPath(path);
+        first.release();
+
+        // A checksum passed in isn't computed again, so a wrong one misses
+        assertNull(cache.lookup(path, new byte[first.getChecksum().length]));
+
+        final FileUpload reused = cache.lookup(path, first.getChecksum());
+        assertNotNull(reused);
+        assertEquals(reused.getChecksum(), first.getChecksum());
+        reused.release();
+    }
+
+    public void smallFilesAreNotLookedUpWhenBuffersAreTaken() throws Exception {
+        final CompressionCache cache = CompressionCache.open(cacheDir, 1024L * 1024L);
+        CompressionCache.use(cache);
+
+        final BufferPool pool = new BufferPool(1024, 1024L + 4096L);
+        final byte[] taken = pool.tryAcquire();
+        assertNotNull(taken);
+
+        final ObjectUploadQueueLoader loader = new ObjectUploadQueueLoader(
+                new ObjectUploadQueueLoader.Options()
+                        .setCompressionLimit(new ConcurrencyLimit(1))
+                        .setBufferPool(pool));
+        final FileUpload upload = (FileUpload)loader.prepare(file("small", "small contents"));
+
+        assertFalse(upload.isInMemory());
+        assertEquals(cache.getHits(), 0L);
+        assertEquals(cache.getMisses(), 0L);
+
+        upload.release();
+        pool.release(taken);
+    }
+
+    public void incompleteFilesAreDeletedWhenOpened() throws IOException {
+        Files.createDirectories(cacheDir);
+        final Path partial = Files.write(cacheDir.resolve("abc.6.xz.partial"), new byte[10]);
+        Files.write(cacheDir.resolve("def.6.xz"), new byte[10]);
+
+        final CompressionCache cache = CompressionCache.open(cacheDir, 1024L);
+
+        assertFalse(Files.exists(partial));
+        assertEquals(cache.getNumberOfFiles(), 1);
+        assertEquals(cache.getTotalBytes(), 10L);
+    }
+
+    public void disabledCacheKeepsNothing() throws Exception {
+        final FileUpload upload = ObjectUploadQueueLoader.fileToUploadFromPath(file("d", "dddd"));
+        final CompressionCache cache = CompressionCache.disabled();
+
+        assertNull(cache.lookup(upload.getSourcePath()));
+        assertFalse(cache.retain(upload));
+        assertFalse(cache.holds(upload.getTempPath()));
+
+        upload.release();
+        assertFalse(Files.exists(upload.getTempPath()));
+    }
+}
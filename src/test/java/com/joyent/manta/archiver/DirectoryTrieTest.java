@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class DirectoryTrieTest {
+    public void addedDirectoriesImplyTheirParents() {
+        final DirectoryTrie trie = new DirectoryTrie();
+        trie.add("/user/stor/backup/a/b/");
+
+        assertTrue(trie.contains("/user/stor/backup/a/b/"));
+        assertTrue(trie.contains("/user/stor/backup/a/b"));
+        assertTrue(trie.contains("/user/stor/backup/a/"));
+        assertTrue(trie.contains("/user/stor/"));
+        assertTrue(trie.contains("/"));
+        assertEquals(trie.size(), 5);
+
+        assertFalse(trie.contains("/user/stor/backup/a/c/"));
+        assertFalse(trie.contains("/user/stor/backup/a/b/c"));
+        assertFalse(trie.contains("/user/stor/back/"));
+        assertFalse(trie.contains("/user/stor/backupa/"));
+    }
+
+    public void addingKnownDirectoriesChangesNothing() {
+        final DirectoryTrie trie = new DirectoryTrie();
+        trie.add("/user/stor/a/");
+        trie.add("/user/stor/a");
+        trie.add("/user/stor/");
+
+        assertEquals(trie.size(), 3);
+    }
+
+    public void removingDirectoryForgetsItsSubdirectories() {
+        final DirectoryTrie trie = new DirectoryTrie();
+        trie.add("/user/stor/a/b/c/");
+        trie.add("/user/stor/a/d/");
+        trie.add("/user/stor/e/");
+
+        trie.remove("/user/stor/a/");
+
+        assertFalse(trie.contains("/user/stor/a/"));
+        assertFalse(trie.contains("/user/stor/a/b/c/"));
+        assertFalse(trie.contains("/user/stor/a/d"));
+        assertTrue(trie.contains("/user/stor/e/"));
+        assertTrue(trie.contains("/user/stor/"));
+        assertEquals(trie.size(), 3);
+
+        // Removing what isn't known does nothing
+        trie.remove("/user/stor/missing/");
+        trie.remove("/user/stor/a/b/");
+        assertEquals(trie.size(), 3);
+    }
+
+    public void manySubdirectoriesRemainFindable() {
+        final DirectoryTrie trie = new DirectoryTrie();
+
+        IntStream.range(0, 10_000).forEach(i -> trie.add("/user/stor/dir-" + i + "/"));
+
+        assertEquals(trie.size(), 10_002);
+        IntStream.range(0, 10_000).forEach(i -> assertTrue(trie.contains("/user/stor/dir-" + i)));
+
+        // Removing from the middle of the table keeps other children reachable
+        IntStream.range(0, 10_000).filter(i -> i % 2 == 0)
+                .forEach(i -> trie.remove("/user/stor/dir-" + i));
+
+        IntStream.range(0, 10_000).forEach(i ->
+                assertEquals(trie.contains("/user/stor/dir-" + i), i % 2 != 0));
+        assertEquals(trie.size(), 5_002);
+    }
+
+    public void concurrentAdditionsAreAllKept() throws InterruptedException {
+        final DirectoryTrie trie = new DirectoryTrie();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            IntStream.range(0, 8).forEach(t -> executor.execute(() ->
+                    IntStream.range(0, 1_000).forEach(i -> trie.add("/user/stor/" + (i % 10) + "/" + i + "/"))));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(executor.awaitTermination(30L, TimeUnit.SECONDS));
+
+        IntStream.range(0, 1_000).forEach(i ->
+                assertTrue(trie.contains("/user/stor/" + (i % 10) + "/" + i)));
+        assertEquals(trie.size(), 2 + 10 + 1_000);
+    }
+}
@@ -10,6 +10,8 @@ package com.joyent.manta.archiver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -34,7 +36,12 @@ class EchoTransferClient implements TransferClient {
     @Override
     public void put(final String path, final FileUpload upload) {
         LOG.trace("put:    {} --> {}", upload.getSourcePath(), path);
-        upload.getTempPath().toFile().delete();
+
+        try {
+            upload.release();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
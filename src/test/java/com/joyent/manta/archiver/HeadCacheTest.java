@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaObjectResponse;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+@Test
+public class HeadCacheTest {
+    private static final long TTL = 1000L;
+
+    private MutableClock clock;
+    private HeadCache cache;
+    private AtomicInteger requests;
+
+    @BeforeMethod
+    public void setup() {
+        clock = new MutableClock();
+        cache = new HeadCache(TTL, 2, clock);
+        requests = new AtomicInteger(0);
+    }
+
+    private MantaObjectResponse head(final String path) throws IOException {
+        return cache.head(path, () -> {
+            requests.incrementAndGet();
+            return mock(MantaObjectResponse.class);
+        });
+    }
+
+    public void repeatedRequestIsServedFromCache() throws IOException {
+        final MantaObjectResponse first = head("/user/stor/a.xz");
+
+        assertSame(head("/user/stor/a.xz"), first);
+        assertEquals(requests.get(), 1);
+        assertEquals(cache.getHits(), 1L);
+        assertEquals(cache.getMisses(), 1L);
+    }
+
+    public void expiredEntryIsRequestedAgain() throws IOException {
+        final MantaObjectResponse first = head("/user/stor/a.xz");
+        clock.advance(TTL);
+
+        assertNotSame(head("/user/stor/a.xz"), first);
+        assertEquals(requests.get(), 2);
+    }
+
+    public void leastRecentlyUsedEntryIsEvicted() throws IOException {
+        head("/user/stor/a.xz");
+        head("/user/stor/b.xz");
+        head("/user/stor/a.xz");
+        head("/user/stor/c.xz");
+
+        assertEquals(cache.size(), 2);
+        assertEquals(cache.getEvictions(), 1L);
+
+        head("/user/stor/a.xz");
+        assertEquals(requests.get(), 3);
+
+        head("/user/stor/b.xz");
+        assertEquals(requests.get(), 4);
+    }
+
+    public void writtenObjectsAreInvalidated() throws IOException {
+        head("/user/stor/dir/");
+        head("/user/stor/dir/a.xz");
+        cache.invalidate("/user/stor/dir/a.xz");
+
+        head("/user/stor/dir/a.xz");
+        assertEquals(requests.get(), 3);
+
+        cache.invalidateTree("/user/stor/dir");
+
+        assertEquals(cache.size(), 0);
+    }
+
+    public void responseOfObjectWrittenDuringRequestIsNotCached() throws IOException {
+        cache.head("/user/stor/a.xz", () -> {
+            requests.incrementAndGet();
+            cache.invalidate("/user/stor/a.xz");
+            return mock(MantaObjectResponse.class);
+        });
+
+        head("/user/stor/a.xz");
+        assertEquals(requests.get(), 2);
+
+        head("/user/stor/a.xz");
+        assertEquals(requests.get(), 2);
+    }
+
+    public void largeCacheKeepsItsMaximumAcrossSegments() throws IOException {
+        cache = new HeadCache(TTL, 10_000, clock);
+
+        for (int i = 0; i < 20_000; i++) {
+            head("/user/stor/" + i + ".xz");
+        }
+
+        assertEquals(cache.size(), 10_000);
+        assertEquals(cache.getEvictions(), 10_000L);
+    }
+
+    public void failedRequestsAreNotCached() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.head("/user/stor/missing.xz", () -> {
+                    requests.incrementAndGet();
+                    throw new FileNotFoundException("missing");
+                });
+                fail("Request should have failed");
+            } catch (FileNotFoundException e) {
+                assertEquals(e.getMessage(), "missing");
+            }
+        }
+
+        assertEquals(requests.get(), 2);
+    }
+
+    public void disabledCacheAlwaysRequests() throws IOException {
+        cache = HeadCache.disabled();
+
+        head("/user/stor/a.xz");
+        head("/user/stor/a.xz");
+
+        assertEquals(requests.get(), 2);
+        assertEquals(cache.size(), 0);
+    }
+}
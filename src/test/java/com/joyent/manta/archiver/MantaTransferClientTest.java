@@ -8,21 +8,54 @@
 package com.joyent.manta.archiver;
 
 import com.joyent.manta.client.MantaClient;
+import com.joyent.manta.client.MantaMetadata;
+import com.joyent.manta.client.MantaObject;
+import com.joyent.manta.client.MantaObjectResponse;
+import com.joyent.manta.config.ConfigContext;
+import com.joyent.manta.http.MantaHttpHeaders;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.testng.annotations.BeforeClass;
+import org.mockito.ArgumentCaptor;
 import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 @Test
 public class MantaTransferClientTest {
@@ -77,6 +110,200 @@ public class MantaTransferClientTest {
         assertMantaPathConversionEquals(remotePath, expected);
     }
 
+    public void concurrentDirectoryCreationIsCoalesced() throws Exception {
+        final MantaClient mantaClient = mockMantaClient();
+        final AtomicInteger puts = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        doAnswer(invocation -> {
+            puts.incrementAndGet();
+            release.await();
+            return true;
+        }).when(mantaClient).putDirectory(anyString());
+
+        final MantaTransferClient client = new MantaTransferClient(() -> mantaClient, MANTA_ROOT);
+        final String dir = MANTA_ROOT + "/coalesced/";
+        final List<Thread> callers = new CopyOnWriteArrayList<>();
+        final CountDownLatch arrived = new CountDownLatch(8);
+        final ExecutorService executor = Executors.newFixedThreadPool(8, r -> {
+            final Thread thread = new Thread(r);
+            callers.add(thread);
+            return thread;
+        });
+
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    arrived.countDown();
+                    client.ensureDirectory(dir);
+                    return null;
+                }));
+            }
+
+            // Every caller is blocked once the first is waiting for its PUT
+            // and the others are waiting for the first
+            assertTrue(arrived.await(5, TimeUnit.SECONDS));
+            awaitBlocked(callers);
+            release.countDown();
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(puts.get(), 1);
+        verify(mantaClient, never()).putDirectory(anyString(), anyBoolean());
+    }
+
+    private static void awaitBlocked(final List<Thread> threads) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (!threads.stream().allMatch(t -> t.getState() == Thread.State.WAITING)) {
+            assertTrue(System.nanoTime() < deadline, "Callers didn't block: " + threads);
+            Thread.yield();
+        }
+    }
+
+    public void failedDirectoryCreationIsRetried() throws Exception {
+        final MantaClient mantaClient = mockMantaClient();
+
+        when(mantaClient.putDirectory(anyString()))
+                .thenThrow(new IOException("first attempt fails"))
+                .thenReturn(true);
+
+        final MantaTransferClient client = new MantaTransferClient(() -> mantaClient, MANTA_ROOT);
+        final String dir = MANTA_ROOT + "/retried/";
+
+        try {
+            client.ensureDirectory(dir);
+            fail("Expected the first directory creation to fail");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "first attempt fails");
+        }
+
+        client.ensureDirectory(dir);
+        client.ensureDirectory(dir);
+
+        verify(mantaClient, times(2)).putDirectory(anyString());
+    }
+
+    public void missingParentsAreCreatedOnDemandFromTheTop() throws Exception {
+        final MantaClient mantaClient = mockMantaClient();
+        final List<String> created = new CopyOnWriteArrayList<>();
+
+        doAnswer(invocation -> {
+            created.add((String)invocation.getArguments()[0]);
+            return true;
+        }).when(mantaClient).putDirectory(anyString());
+
+        final MantaTransferClient client = new MantaTransferClient(() -> mantaClient, MANTA_ROOT);
+        client.ensureDirectory(MANTA_ROOT + "/a/b/c/");
+        client.ensureDirectory(MANTA_ROOT + "/a/b/d/");
+
+        assertEquals(created, Arrays.asList(MANTA_ROOT + "/a/", MANTA_ROOT + "/a/b/",
+                MANTA_ROOT + "/a/b/c/", MANTA_ROOT + "/a/b/d/"));
+        verify(mantaClient, never()).putDirectory(anyString(), anyBoolean());
+    }
+
+    public void prefetchedListingAvoidsRequestsPerObject() throws Exception {
+        final MantaClient mantaClient = mockMantaClient();
+        final MantaObject existingDir = mock(MantaObject.class);
+        when(existingDir.getPath()).thenReturn(MANTA_ROOT + "/existing");
+        when(existingDir.isDirectory()).thenReturn(true);
+
+        when(mantaClient.listObjects(MANTA_ROOT + "/")).thenAnswer(invocation -> Stream.of(existingDir));
+        when(mantaClient.listObjects(MANTA_ROOT + "/existing/")).thenAnswer(invocation -> Stream.empty());
+
+        final MantaTransferClient client = new MantaTransferClient(() -> mantaClient, MANTA_ROOT);
+        client.prefetchListing();
+
+        assertTrue(client.getDirCache().contains(MANTA_ROOT + "/existing/"));
+        client.ensureDirectory(MANTA_ROOT + "/existing/");
+        assertEquals(client.verifyDirectory(MANTA_ROOT + "/existing/"), VerificationResult.OK);
+        assertEquals(client.verifyDirectory(MANTA_ROOT + "/missing/"), VerificationResult.NOT_FOUND);
+        assertEquals(client.verifyFile(MANTA_ROOT + "/missing.xz", 1L, new byte[16]),
+                VerificationResult.NOT_FOUND);
+
+        verify(mantaClient, never()).putDirectory(anyString());
+        verify(mantaClient, never()).putDirectory(anyString(), anyBoolean());
+
+        // Only the HEAD of the remote root when the client was created
+        verify(mantaClient, times(1)).head(anyString());
+    }
+
+    public void linkIsVerifiedFromMetadataWithoutReadingObject() throws Exception {
+        final MantaClient mantaClient = mockMantaClient();
+        final MantaTransferClient client = new MantaTransferClient(() -> mantaClient, MANTA_ROOT);
+        final Path link = Paths.get(LOCAL_ROOT, "link-" + UUID.randomUUID());
+        Files.createSymbolicLink(link, Paths.get("target", "file.txt"));
+        final String remotePath = MANTA_ROOT + "/link";
+
+        client.put(remotePath, new SymbolicLinkUpload(link));
+
+        final ArgumentCaptor<MantaMetadata> metadata = ArgumentCaptor.forClass(MantaMetadata.class);
+        verify(mantaClient).put(eq(remotePath), any(byte[].class), any(MantaHttpHeaders.class),
+                metadata.capture());
+
+        final MantaObjectResponse head = mock(MantaObjectResponse.class);
+        when(head.getHeaderAsString(anyString()))
+                .thenAnswer(invocation -> metadata.getValue().get(invocation.getArguments()[0]));
+        when(mantaClient.head(remotePath)).thenReturn(head);
+
+        assertEquals(client.verifyLink(remotePath, link), VerificationResult.LINK_OK);
+
+        Files.delete(link);
+        Files.createSymbolicLink(link, Paths.get("elsewhere"));
+
+        assertEquals(client.verifyLink(remotePath, link), VerificationResult.LINK_MISMATCH);
+        verify(mantaClient, never()).getAsInputStream(anyString());
+    }
+
+    public void pooledBufferIsKeptUntilUploadIsDone() throws Exception {
+        final MantaClient mantaClient = mockMantaClient();
+        final MantaTransferClient client = new MantaTransferClient(() -> mantaClient, MANTA_ROOT);
+        final BufferPool pool = new BufferPool(64, 1024L * 1024L);
+        final byte[] buffer = pool.tryAcquire();
+        final byte[] contents = "compressed contents".getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(contents, 0, buffer, 0, contents.length);
+
+        final FileUpload upload = new FileUpload(buffer, pool, Paths.get(LOCAL_ROOT, "small.txt"),
+                new byte[16], Instant.now(), 64L, contents.length);
+        final String remotePath = MANTA_ROOT + "/small.txt.xz";
+        final AtomicReference<byte[]> sent = new AtomicReference<>();
+
+        when(mantaClient.put(eq(remotePath), any(InputStream.class), eq((long)contents.length),
+                any(MantaHttpHeaders.class), any(MantaMetadata.class))).thenAnswer(invocation -> {
+                    // As when a losing hedged attempt is still sending once the upload is over
+                    upload.release();
+                    assertEquals(pool.getInUse(), 1);
+                    sent.set(IOUtils.toByteArray((InputStream)invocation.getArguments()[1]));
+                    return mock(MantaObjectResponse.class);
+                });
+
+        client.put(remotePath, upload);
+
+        assertEquals(sent.get(), contents);
+        assertEquals(pool.getInUse(), 0);
+    }
+
+    private static MantaClient mockMantaClient() throws IOException {
+        final MantaClient mantaClient = mock(MantaClient.class);
+        final ConfigContext config = mock(ConfigContext.class);
+        final MantaObjectResponse rootResponse = mock(MantaObjectResponse.class);
+
+        when(config.getMantaHomeDirectory()).thenReturn("/username");
+        when(config.getMaximumConnections()).thenReturn(4);
+        when(mantaClient.getContext()).thenReturn(config);
+        when(rootResponse.isDirectory()).thenReturn(true);
+        when(mantaClient.head(anyString())).thenReturn(rootResponse);
+
+        return mantaClient;
+    }
+
     private void assertMantaPathConversionEquals(final ObjectUpload upload,
                                                  final String expectedRelativePath) {
         final TransferClient client = new MantaTransferClient(null, MANTA_ROOT);
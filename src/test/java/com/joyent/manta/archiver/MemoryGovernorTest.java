@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class MemoryGovernorTest {
+    private static final long MAX = 1000L;
+
+    private static MemoryGovernor governor(final AtomicLong currentUsed) {
+        return new MemoryGovernor(currentUsed::get, MAX, 0.75, 0.60, MemoryGovernor.DEFAULT_MAX_PAUSE_MILLIS);
+    }
+
+    public void pausesAtHighWatermarkAndResumesBelowLowWatermark() {
+        final MemoryGovernor governor = governor(new AtomicLong(MAX));
+
+        governor.collected(700L);
+        assertFalse(governor.isPaused());
+
+        governor.collected(750L);
+        assertTrue(governor.isPaused());
+
+        // Between the watermarks the governor stays paused
+        governor.collected(650L);
+        assertTrue(governor.isPaused());
+
+        governor.collected(590L);
+        assertFalse(governor.isPaused());
+        assertEquals(governor.getPauses(), 1L);
+    }
+
+    public void currentHeapBelowLastCollectionResumes() throws InterruptedException {
+        final AtomicLong currentUsed = new AtomicLong(MAX);
+        final MemoryGovernor governor = governor(currentUsed);
+
+        governor.collected(800L);
+        assertTrue(governor.isPaused());
+
+        // Memory freed since the collection can only lower occupancy
+        currentUsed.set(100L);
+        governor.awaitHeadroom(() -> false);
+
+        assertFalse(governor.isPaused());
+    }
+
+    public void awaitHeadroomBlocksWhilePaused() throws InterruptedException {
+        final MemoryGovernor governor = governor(new AtomicLong(MAX));
+        final CountDownLatch released = new CountDownLatch(1);
+
+        governor.collected(900L);
+
+        final Thread waiter = new Thread(() -> {
+            try {
+                governor.awaitHeadroom(() -> false);
+                released.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+
+        assertFalse(released.await(200L, TimeUnit.MILLISECONDS));
+
+        governor.collected(100L);
+
+        assertTrue(released.await(5L, TimeUnit.SECONDS));
+        waiter.join();
+        assertTrue(governor.getPausedMillis() > 0L);
+    }
+
+    public void closeReleasesWaiters() throws InterruptedException {
+        final MemoryGovernor governor = governor(new AtomicLong(MAX));
+        governor.collected(900L);
+        governor.close();
+
+        governor.awaitHeadroom(() -> false);
+        assertFalse(governor.isPaused());
+    }
+
+    public void queuedItemsAreBoundedByHeap() {
+        final MemoryGovernor governor = new MemoryGovernor(() -> 0L, 8L * 1024L * 1024L, 0.75, 0.60, 1L);
+
+        assertEquals(governor.maxQueuedItems(512L), 2048);
+        assertEquals(governor.maxQueuedItems(Long.MAX_VALUE), 1);
+    }
+
+    public void drainedDownstreamResumesUntilNextCollection() throws InterruptedException {
+        final MemoryGovernor governor = governor(new AtomicLong(MAX));
+        governor.collected(900L);
+
+        governor.awaitHeadroom(() -> true);
+        assertFalse(governor.isPaused());
+
+        // Stale figures don't pause again, only a new collection does
+        governor.collected(900L);
+        assertTrue(governor.isPaused());
+        assertEquals(governor.getPauses(), 2L);
+    }
+
+    public void pauseEndsAfterMaximumDuration() throws InterruptedException {
+        final MemoryGovernor governor = new MemoryGovernor(() -> MAX, MAX, 0.75, 0.60, 100L);
+        governor.collected(900L);
+
+        governor.awaitHeadroom(() -> false);
+
+        assertFalse(governor.isPaused());
+        assertTrue(governor.getPausedMillis() >= 100L);
+    }
+
+    public void governedPipelineStopsReadingWhilePaused() throws InterruptedException {
+        final MemoryGovernor governor = governor(new AtomicLong(MAX));
+        final CountDownLatch paused = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // The first item holds the only worker, so the second stays queued
+        // while the governor is paused
+        final Pipeline<Void> pipeline = Pipeline.from("test", () -> IntStream.range(0, 100).boxed()
+                .peek(i -> {
+                    if (i == 1) {
+                        governor.collected(900L);
+                        paused.countDown();
+                    }
+                }))
+                .governedBy(governor)
+                .then("count", 1, 1000, (i, downstream) -> {
+                    if (i == 0) {
+                        release.await();
+                    }
+                });
+
+        try (Pipeline.Execution execution = pipeline.start()) {
+            assertTrue(paused.await(5L, TimeUnit.SECONDS));
+            assertTrue(governor.isPaused());
+            assertTrue(execution.describe().contains("paused for memory"));
+            assertTrue(execution.getSourced() <= 2L);
+
+            governor.collected(100L);
+            release.countDown();
+            execution.await();
+
+            assertEquals(execution.getSourced(), 100L);
+            assertEquals(execution.stage("count").getProcessed(), 100L);
+        }
+    }
+
+    public void governedPipelineResumesOnceDrained() throws InterruptedException {
+        final MemoryGovernor governor = governor(new AtomicLong(MAX));
+
+        final Pipeline<Void> pipeline = Pipeline.from("test", () -> IntStream.range(0, 100).boxed())
+                .governedBy(governor)
+                .then("count", 1, 1000, (i, downstream) -> { });
+
+        governor.collected(900L);
+
+        // Nothing is queued, so holding back the source would free nothing
+        try (Pipeline.Execution execution = pipeline.start()) {
+            execution.await();
+
+            assertEquals(execution.stage("count").getProcessed(), 100L);
+        }
+    }
+}
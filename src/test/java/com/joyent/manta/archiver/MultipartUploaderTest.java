@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaMetadata;
+import com.joyent.manta.client.multipart.MantaMultipartUploadPart;
+import com.joyent.manta.client.multipart.MantaMultipartUploadTuple;
+import com.joyent.manta.client.multipart.ServerSideMultipartManager;
+import com.joyent.manta.client.multipart.ServerSideMultipartUpload;
+import com.joyent.manta.http.MantaHttpHeaders;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class MultipartUploaderTest {
+    private static final String MANTA_PATH = "/user/stor/backup/large.bin.xz";
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private Path tempDir;
+    private Path source;
+    private ServerSideMultipartManager manager;
+    private ServerSideMultipartUpload multipart;
+    private Map<Integer, byte[]> uploadedParts;
+    private List<Integer> committedParts;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("multipart-uploader-test");
+        source = tempDir.resolve("large.bin");
+        manager = mock(ServerSideMultipartManager.class);
+        multipart = mock(ServerSideMultipartUpload.class);
+        uploadedParts = new ConcurrentSkipListMap<>();
+        committedParts = new ArrayList<>();
+
+        when(manager.initiateUpload(anyString(), any(MantaMetadata.class), any(MantaHttpHeaders.class)))
+                .thenReturn(multipart);
+        when(manager.uploadPart(any(ServerSideMultipartUpload.class), anyInt(), any(File.class)))
+                .thenAnswer(invocation -> {
+                    final int number = (Integer)invocation.getArguments()[1];
+                    final File file = (File)invocation.getArguments()[2];
+                    uploadedParts.put(number, Files.readAllBytes(file.toPath()));
+                    return new MantaMultipartUploadPart(number, MANTA_PATH, "etag-" + number);
+                });
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            final Stream<? extends MantaMultipartUploadTuple> parts =
+                    (Stream<? extends MantaMultipartUploadTuple>)invocation.getArguments()[1];
+            committedParts.addAll(parts.map(MantaMultipartUploadTuple::getPartNumber)
+                    .collect(Collectors.toList()));
+            return null;
+        }).when(manager).complete(any(ServerSideMultipartUpload.class), any());
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(tempDir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private MultipartUploader uploader(final long minPartSize, final int maxAttempts) {
+        return new MultipartUploader(1L, CHUNK_SIZE, minPartSize, 4, new ConcurrencyLimit(2),
+                new RetryPolicy(maxAttempts, 0L, 0L, new RetryBudget()));
+    }
+
+    private byte[] writeSource(final int size, final boolean compressible) throws IOException {
+        final byte[] contents = new byte[size];
+
+        if (!compressible) {
+            new Random(size).nextBytes(contents);
+        }
+
+        Files.write(source, contents);
+        return contents;
+    }
+
+    private MultipartFileUpload upload() {
+        final File file = source.toFile();
+        return new MultipartFileUpload(source, file.length(), file.lastModified(),
+                LocalFileUtils.checksum(source));
+    }
+
+    private void upload(final MultipartUploader uploader) throws IOException, InterruptedException {
+        uploader.upload(manager, new TransferThrottle(), MANTA_PATH, upload(),
+                new MantaMetadata(), new MantaHttpHeaders());
+    }
+
+    private byte[] decompressUploadedParts() throws IOException {
+        final ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+
+        for (byte[] part : uploadedParts.values()) {
+            concatenated.write(part);
+        }
+
+        try (InputStream in = ObjectCompressor.INSTANCE.decompress(MANTA_PATH,
+                new ByteArrayInputStream(concatenated.toByteArray()))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private boolean hasTempPartFiles() throws IOException {
+        final Path tempRoot = ObjectUploadQueueLoader.appendPaths(
+                ObjectUploadQueueLoader.TEMP_PATH, tempDir);
+
+        if (!Files.exists(tempRoot)) {
+            return false;
+        }
+
+        try (Stream<Path> paths = Files.list(tempRoot)) {
+            return paths.anyMatch(p -> p.getFileName().toString().contains(".part"));
+        }
+    }
+
+    public void chunksAreUploadedAsPartsThatDecompressAsOneFile() throws Exception {
+        final byte[] contents = writeSource(CHUNK_SIZE * 5 + 123, false);
+        final MultipartUploader uploader = uploader(1L, 3);
+
+        upload(uploader);
+
+        assertEquals(uploadedParts.size(), 6);
+        assertEquals(committedParts.size(), 6);
+
+        for (int i = 0; i < committedParts.size(); i++) {
+            assertEquals((int)committedParts.get(i), i + 1);
+        }
+
+        assertEquals(decompressUploadedParts(), contents);
+        assertEquals(uploader.getUploads(), 1L);
+        assertEquals(uploader.getParts(), 6L);
+        assertFalse(hasTempPartFiles());
+    }
+
+    public void chunksCompressedBelowMinimumPartSizeAreJoined() throws Exception {
+        final byte[] contents = writeSource(CHUNK_SIZE * 4, true);
+        final MultipartUploader uploader = uploader(1024L * 1024L, 3);
+
+        upload(uploader);
+
+        assertEquals(uploadedParts.size(), 1);
+        assertEquals(committedParts.size(), 1);
+        assertEquals(decompressUploadedParts(), contents);
+    }
+
+    public void failedPartIsRetriedOnItsOwn() throws Exception {
+        final byte[] contents = writeSource(CHUNK_SIZE * 3, false);
+        final AtomicInteger attemptsOfSecondPart = new AtomicInteger(0);
+
+        doAnswer(invocation -> {
+            final int number = (Integer)invocation.getArguments()[1];
+            final File file = (File)invocation.getArguments()[2];
+
+            if (number == 2 && attemptsOfSecondPart.incrementAndGet() == 1) {
+                throw new IOException("connection reset");
+            }
+
+            uploadedParts.put(number, Files.readAllBytes(file.toPath()));
+            return new MantaMultipartUploadPart(number, MANTA_PATH, "etag-" + number);
+        }).when(manager).uploadPart(any(ServerSideMultipartUpload.class), anyInt(), any(File.class));
+
+        final MultipartUploader uploader = uploader(1L, 3);
+        upload(uploader);
+
+        assertEquals(attemptsOfSecondPart.get(), 2);
+        assertEquals(uploader.getRetries(), 1L);
+        assertEquals(decompressUploadedParts(), contents);
+        verify(manager, times(4)).uploadPart(any(ServerSideMultipartUpload.class), anyInt(), any(File.class));
+    }
+
+    public void uploadIsAbortedWhenPartFailsForGood() throws Exception {
+        writeSource(CHUNK_SIZE * 6, false);
+
+        doThrow(new IOException("connection refused")).when(manager)
+                .uploadPart(any(ServerSideMultipartUpload.class), anyInt(), any(File.class));
+
+        final MultipartUploader uploader = uploader(1L, 2);
+
+        try {
+            upload(uploader);
+            fail("Upload should have failed");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "connection refused");
+        }
+
+        verify(manager).abort(multipart);
+        verify(manager, never()).complete(any(ServerSideMultipartUpload.class), any());
+        assertEquals(uploader.getAborts(), 1L);
+        assertFalse(hasTempPartFiles());
+    }
+
+    public void onlyFilesAboveThresholdAreAccepted() {
+        final MultipartUploader uploader = new MultipartUploader(1024L, 1, new ConcurrencyLimit(1));
+
+        assertTrue(uploader.accepts(1024L));
+        assertFalse(uploader.accepts(1023L));
+        assertFalse(MultipartUploader.disabled().accepts(Long.MAX_VALUE));
+    }
+
+    public void chunksGrowSoThatFilesFitInMaximumParts() {
+        final MultipartUploader uploader = new MultipartUploader(1024L, 1, new ConcurrencyLimit(1));
+        final long terabyte = 1024L * 1024L * 1024L * 1024L;
+
+        assertEquals(uploader.chunkSizeOf(1024L), MultipartUploader.DEFAULT_CHUNK_SIZE);
+        assertTrue(terabyte / uploader.chunkSizeOf(terabyte) <= MultipartUploader.MAX_PARTS);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class ObjectDownloadRunnableTest {
+    private static final String REMOTE_PATH = "/user/stor/backup/link";
+
+    private Path tempDir;
+    private Path link;
+    private TransferClient client;
+    private AtomicBoolean success;
+    private DeadLetterReport deadLetters;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("object-download-test");
+        link = Files.createSymbolicLink(tempDir.resolve("link"), Paths.get("target", "file.txt"));
+        client = mock(TransferClient.class);
+        success = new AtomicBoolean(true);
+        deadLetters = new DeadLetterReport();
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(tempDir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private void run() {
+        final FileDownload download = new FileDownload(0L, 0L, REMOTE_PATH, false);
+        new ObjectDownloadRunnable(link, client, download, success, new AtomicLong(0L),
+                deadLetters).run();
+    }
+
+    public void matchingExistingLinkIsSkipped() {
+        when(client.verifyLink(REMOTE_PATH, link)).thenReturn(VerificationResult.LINK_OK);
+
+        run();
+
+        verify(client).verifyLink(REMOTE_PATH, link);
+        verify(client, never()).download(anyString(), any());
+        assertTrue(success.get());
+        assertTrue(deadLetters.isEmpty());
+    }
+
+    public void mismatchedExistingLinkIsDownloaded() {
+        when(client.verifyLink(REMOTE_PATH, link)).thenReturn(VerificationResult.LINK_MISMATCH);
+        when(client.download(REMOTE_PATH, Optional.of(link))).thenReturn(VerificationResult.LINK_OK);
+
+        run();
+
+        verify(client).download(REMOTE_PATH, Optional.of(link));
+        assertTrue(success.get());
+        assertEquals(deadLetters.size(), 0);
+    }
+}
@@ -18,8 +18,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.testng.Assert.assertEquals;
 
@@ -48,33 +47,30 @@ public class ObjectUploadQueueLoaderTest {
 
         FakeDirectoryStructureCreator.createFakeDirectoriesAndFiles(root);
 
-        ForkJoinPool executor = new ForkJoinPool(ForkJoinPool.getCommonPoolParallelism(),
-                ForkJoinPool.defaultForkJoinWorkerThreadFactory,
-                new LoggingUncaughtExceptionHandler("UnitTestForkJoinPool"),
-                true);
-        ObjectUploadQueueLoader loader = new ObjectUploadQueueLoader(executor,10);
+        ObjectUploadQueueLoader loader = new ObjectUploadQueueLoader();
 
-        TotalTransferDetails transferDetails = loader.uploadDirectoryContents(root);
-        long numberTransferred = 0L;
-        long totalBytesTransferred = 0L;
+        TotalTransferDetails transferDetails = new TotalTransferDetails();
+        AtomicLong transferred = new AtomicLong(0L);
+        AtomicLong bytesTransferred = new AtomicLong(0L);
 
         try {
-            while (numberTransferred < transferDetails.numberOfObjects) {
-                final ObjectUpload upload = loader.getQueue().poll(1, TimeUnit.SECONDS);
-
-                if (upload != null) {
-                    numberTransferred++;
-                    if (!upload.isDirectory()) {
-                        totalBytesTransferred += upload.getSourcePath().toFile().length();
-                    }
-                }
-            }
+            Pipeline.from("test", () -> loader.scan(root, transferDetails))
+                    .<ObjectUpload>then("compress", 4, 10,
+                            (candidate, downstream) -> downstream.emit(loader.prepare(candidate.getPath())))
+                    .then("count", 1, 10, (upload, downstream) -> {
+                        transferred.incrementAndGet();
+                        if (!upload.isDirectory()) {
+                            bytesTransferred.addAndGet(upload.getSourcePath().toFile().length());
+                        }
+                    })
+                    .run();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-        } finally {
-            executor.shutdownNow();
         }
 
+        long numberTransferred = transferred.get();
+        long totalBytesTransferred = bytesTransferred.get();
+
         Assert.assertEquals(numberTransferred, transferDetails.numberOfObjects,
                 "Number of actual files transferred doesn't equal the number enqueued");
         Assert.assertEquals(totalBytesTransferred, transferDetails.numberOfBytes,
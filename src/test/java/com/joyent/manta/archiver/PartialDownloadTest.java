@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class PartialDownloadTest {
+    private static final int SIZE = (int)PartialDownload.STAGING_THRESHOLD + 1024 * 1024;
+    private static final int INTERRUPTED_AT = (int)PartialDownload.CHECKPOINT_BYTES + 12345;
+
+    private Path tempDir;
+    private Path target;
+    private byte[] contents;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("partial-download-test");
+        target = tempDir.resolve("large.bin");
+        contents = new byte[SIZE];
+        new Random(SIZE).nextBytes(contents);
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        try (Stream<Path> paths = Files.walk(tempDir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private InputStream from(final int offset) {
+        return new ByteArrayInputStream(Arrays.copyOfRange(contents, offset, contents.length));
+    }
+
+    /**
+     * Stream of the contents that fails part way through, like a dropped connection.
+     */
+    private InputStream interruptedAt(final int position) {
+        return new SequenceInputStream(new BoundedInputStream(from(0), position),
+                new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("connection reset");
+                    }
+                });
+    }
+
+    private void interruptDownload(final String etag) throws IOException {
+        final PartialDownload partial = PartialDownload.of(target);
+
+        try (InputStream in = partial.stage(etag, SIZE, interruptedAt(INTERRUPTED_AT))) {
+            IOUtils.toByteArray(in);
+            fail("Download should have been interrupted");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "connection reset");
+        }
+
+        partial.abandon();
+    }
+
+    private boolean exists(final String suffix) {
+        return Files.exists(target.resolveSibling(target.getFileName() + suffix));
+    }
+
+    public void interruptedDownloadResumesFromBytesReceived() throws IOException {
+        interruptDownload("etag-1");
+
+        assertTrue(exists(PartialDownload.PARTIAL_SUFFIX));
+        assertFalse(Files.exists(target));
+
+        final PartialDownload partial = PartialDownload.of(target);
+
+        assertTrue(partial.isResumable());
+        assertEquals(partial.getEtag(), "etag-1");
+        assertEquals(partial.getOffset(), INTERRUPTED_AT);
+
+        try (InputStream in = partial.stage("etag-1", SIZE, from(INTERRUPTED_AT))) {
+            Files.copy(in, partial.getOutputPath());
+        }
+
+        partial.commit();
+
+        assertEquals(Files.readAllBytes(target), contents);
+        assertFalse(exists(PartialDownload.PARTIAL_SUFFIX));
+        assertFalse(exists(PartialDownload.STATE_SUFFIX));
+        assertFalse(exists(PartialDownload.OUTPUT_SUFFIX));
+    }
+
+    public void changedObjectIsDownloadedFromFirstByte() throws IOException {
+        interruptDownload("etag-1");
+
+        final PartialDownload partial = PartialDownload.of(target);
+
+        try (InputStream in = partial.stage("etag-2", SIZE, from(0))) {
+            assertEquals(IOUtils.toByteArray(in), contents);
+        }
+
+        assertEquals(partial.getEtag(), "etag-2");
+    }
+
+    public void stateWithoutStagedBytesIsDiscarded() throws IOException {
+        interruptDownload("etag-1");
+        Files.delete(target.resolveSibling(target.getFileName() + PartialDownload.PARTIAL_SUFFIX));
+
+        final PartialDownload partial = PartialDownload.of(target);
+
+        assertFalse(partial.isResumable());
+        assertFalse(exists(PartialDownload.STATE_SUFFIX));
+    }
+
+    public void smallObjectsAreNotStaged() throws IOException {
+        final PartialDownload partial = PartialDownload.of(target);
+        final InputStream remaining = new ByteArrayInputStream(new byte[16]);
+
+        assertSame(partial.stage("etag-1", 16L, remaining), remaining);
+        assertFalse(exists(PartialDownload.PARTIAL_SUFFIX));
+        assertFalse(exists(PartialDownload.STATE_SUFFIX));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class PipelineTest {
+    public void allItemsFlowThroughEveryStage() throws InterruptedException {
+        final ConcurrentLinkedQueue<Integer> results = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean sourceClosed = new AtomicBoolean(false);
+
+        Pipeline.from("test", () -> IntStream.range(0, 1000).boxed()
+                        .onClose(() -> sourceClosed.set(true)))
+                .<Integer>then("double", 4, 8, (i, downstream) -> downstream.emit(i * 2))
+                .<Integer>then("filter", 2, 8, (i, downstream) -> {
+                    if (i % 4 == 0) {
+                        downstream.emit(i);
+                    }
+                })
+                .then("collect", 3, 8, (i, downstream) -> results.add(i))
+                .run();
+
+        assertEquals(results.size(), 500);
+        assertTrue(sourceClosed.get());
+    }
+
+    public void blockingStageProcessesEveryItem() throws InterruptedException {
+        final AtomicInteger processed = new AtomicInteger();
+
+        Pipeline.from("test", () -> IntStream.range(0, 500).boxed())
+                .<Integer>thenBlocking("io", 16, 4, (i, downstream) -> {
+                    Thread.sleep(1L);
+                    downstream.emit(i);
+                })
+                .then("count", 1, 4, (i, downstream) -> processed.incrementAndGet())
+                .run();
+
+        assertEquals(processed.get(), 500);
+    }
+
+    public void asyncStageKeepsManyItemsInFlight() throws InterruptedException {
+        final ScheduledExecutorService completer = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger();
+
+        try {
+            Pipeline.from("test", () -> IntStream.range(0, 2000).boxed())
+                    .<Integer>thenAsync("async", 256, 16, i -> {
+                        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+                        completer.schedule(() -> {
+                            inFlight.decrementAndGet();
+
+                            // Odd items complete without passing anything on
+                            if (i % 2 == 0) {
+                                future.complete(i);
+                            } else {
+                                future.complete(null);
+                            }
+                        }, 5L, TimeUnit.MILLISECONDS);
+
+                        return future;
+                    })
+                    .then("count", 1, 4, (i, downstream) -> processed.incrementAndGet())
+                    .run();
+        } finally {
+            completer.shutdownNow();
+        }
+
+        assertEquals(processed.get(), 1000);
+        assertTrue(maxInFlight.get() > 16, "Only " + maxInFlight.get() + " items were in flight");
+        assertTrue(maxInFlight.get() <= 256, maxInFlight.get() + " items were in flight");
+    }
+
+    public void asyncFailureCancelsPipeline() throws InterruptedException {
+        final Pipeline<Integer> pipeline = Pipeline.from("test", () -> IntStream.range(0, 10_000).boxed())
+                .thenAsync("async", 8, 4, i -> {
+                    final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+                    if (i == 10) {
+                        future.completeExceptionally(new FileProcessingException("bad file"));
+                    } else {
+                        future.complete(i);
+                    }
+
+                    return future;
+                });
+
+        try {
+            pipeline.run();
+            fail("Expected exception was not thrown");
+        } catch (FileProcessingException e) {
+            assertEquals(e.getFirstContextValue("pipelineStage"), "async");
+        }
+    }
+
+    public void emptySourceCompletes() throws InterruptedException {
+        final AtomicInteger processed = new AtomicInteger();
+
+        Pipeline.from("test", IntStream.empty()::boxed)
+                .then("count", 2, 1, (i, downstream) -> processed.incrementAndGet())
+                .run();
+
+        assertEquals(processed.get(), 0);
+    }
+
+    public void slowStageAppliesBackpressure() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Pipeline<Void> pipeline = Pipeline.from("test", () -> IntStream.range(0, 100).boxed())
+                .then("blocked", 1, 2, (i, downstream) -> release.await());
+
+        try (Pipeline.Execution execution = pipeline.start()) {
+            Thread.sleep(200L);
+
+            // One item is being processed and two are queued
+            assertEquals(execution.getSourced(), 3L);
+            assertEquals(execution.stage("blocked").getQueueSize(), 2);
+            assertFalse(execution.isDone());
+
+            release.countDown();
+            execution.await();
+
+            assertEquals(execution.stage("blocked").getProcessed(), 100L);
+        }
+    }
+
+    public void failureCancelsPipeline() throws InterruptedException {
+        final AtomicLong processed = new AtomicLong();
+
+        final Pipeline<Void> pipeline = Pipeline.from("test", () -> IntStream.range(0, 10_000).boxed())
+                .<Integer>then("fail", 2, 4, (i, downstream) -> {
+                    if (i == 10) {
+                        throw new IOException("broken");
+                    }
+
+                    downstream.emit(i);
+                })
+                .then("count", 2, 4, (i, downstream) -> processed.incrementAndGet());
+
+        try {
+            pipeline.run();
+            fail("Expected exception was not thrown");
+        } catch (UncheckedIOException e) {
+            assertEquals(e.getCause().getMessage(), "broken");
+        }
+
+        assertTrue(processed.get() < 10_000L);
+    }
+
+    public void runtimeExceptionsAreRethrown() throws InterruptedException {
+        try {
+            Pipeline.from("test", () -> IntStream.range(0, 10).boxed())
+                    .then("fail", 1, 1, (i, downstream) -> {
+                        throw new FileProcessingException("bad file");
+                    })
+                    .run();
+            fail("Expected exception was not thrown");
+        } catch (FileProcessingException e) {
+            assertEquals(e.getFirstContextValue("pipelineStage"), "fail");
+        }
+    }
+
+    public void toleratedFailuresAreCountedAndSkipped() throws InterruptedException {
+        final AtomicLong processed = new AtomicLong();
+
+        final Pipeline<Void> pipeline = Pipeline.from("test", () -> IntStream.range(0, 100).boxed())
+                .toleratingItemFailures()
+                .<Integer>then("fail", 2, 4, (i, downstream) -> {
+                    if (i % 10 == 0) {
+                        throw new FileProcessingException("bad file");
+                    }
+
+                    downstream.emit(i);
+                })
+                .<Integer>thenAsync("async", 4, 4, i -> {
+                    final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+                    if (i == 11) {
+                        future.completeExceptionally(new IOException("broken"));
+                    } else {
+                        future.complete(i);
+                    }
+
+                    return future;
+                })
+                .then("count", 2, 4, (i, downstream) -> processed.incrementAndGet());
+
+        try (Pipeline.Execution execution = pipeline.start()) {
+            execution.await();
+
+            assertEquals(execution.stage("fail").getProcessed(), 90L);
+            assertEquals(execution.getFailedItems(), 11L);
+            assertTrue(execution.describe().contains("10 failed"));
+        }
+
+        assertEquals(processed.get(), 89L);
+    }
+}
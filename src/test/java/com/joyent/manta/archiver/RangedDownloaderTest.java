@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class RangedDownloaderTest {
+    private static final String MANTA_PATH = "/user/stor/backup/large.bin.xz";
+    private static final int RANGE_SIZE = 16 * 1024;
+
+    private static byte[] contents(final int size) {
+        final byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        return contents;
+    }
+
+    private static RangedDownloader downloader(final int maxAttempts) {
+        return new RangedDownloader(1L, RANGE_SIZE, 3,
+                new RetryPolicy(maxAttempts, 0L, 0L, new RetryBudget()));
+    }
+
+    private static InputStream range(final byte[] contents, final long start, final long end) {
+        return new ByteArrayInputStream(Arrays.copyOfRange(contents, (int)start, (int)end + 1));
+    }
+
+    public void rangesAreReadBackInOrder() throws IOException {
+        final byte[] contents = contents(RANGE_SIZE * 7 + 321);
+        final List<Long> starts = new CopyOnWriteArrayList<>();
+        final RangedDownloader downloader = downloader(3);
+
+        try (InputStream in = downloader.open(MANTA_PATH, contents.length, (start, end) -> {
+            starts.add(start);
+            return range(contents, start, end);
+        }, new TransferThrottle())) {
+            assertEquals(IOUtils.toByteArray(in), contents);
+        }
+
+        assertEquals(starts.size(), 8);
+        assertEquals(downloader.getDownloads(), 1L);
+        assertEquals(downloader.getRanges(), 8L);
+        assertEquals(downloader.getRetries(), 0L);
+    }
+
+    public void brokenRangeResumesFromLastByteReceived() throws IOException {
+        final byte[] contents = contents(RANGE_SIZE * 3);
+        final AtomicInteger failures = new AtomicInteger(0);
+        final List<Long> resumedAt = new CopyOnWriteArrayList<>();
+        final RangedDownloader downloader = downloader(3);
+
+        try (InputStream in = downloader.open(MANTA_PATH, contents.length, (start, end) -> {
+            if (start == RANGE_SIZE && failures.getAndIncrement() == 0) {
+                // The connection drops half way through the second range
+                return range(contents, start, start + RANGE_SIZE / 2 - 1);
+            }
+
+            if (start > RANGE_SIZE && start < RANGE_SIZE * 2) {
+                resumedAt.add(start);
+            }
+
+            return range(contents, start, end);
+        }, new TransferThrottle())) {
+            assertEquals(IOUtils.toByteArray(in), contents);
+        }
+
+        assertEquals(resumedAt.size(), 1);
+        assertEquals((long)resumedAt.get(0), RANGE_SIZE + RANGE_SIZE / 2);
+        assertEquals(downloader.getRetries(), 1L);
+    }
+
+    public void rangeFailingForGoodFailsTheRead() throws IOException {
+        final byte[] contents = contents(RANGE_SIZE * 4);
+        final RangedDownloader downloader = downloader(2);
+
+        try (InputStream in = downloader.open(MANTA_PATH, contents.length, (start, end) -> {
+            if (start >= RANGE_SIZE * 2) {
+                throw new IOException("connection refused");
+            }
+
+            return range(contents, start, end);
+        }, new TransferThrottle())) {
+            IOUtils.toByteArray(in);
+            fail("Download should have failed");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "connection refused");
+        }
+    }
+
+    public void onlyObjectsAboveThresholdAreAccepted() {
+        final RangedDownloader downloader = new RangedDownloader(1024L);
+
+        assertTrue(downloader.accepts(1024L));
+        assertFalse(downloader.accepts(1023L));
+        assertFalse(downloader.accepts(null));
+        assertFalse(RangedDownloader.disabled().accepts(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaObject;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.joyent.manta.archiver.RemoteTrees.ROOT;
+import static com.joyent.manta.archiver.RemoteTrees.lister;
+import static com.joyent.manta.archiver.RemoteTrees.object;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class RemoteIndexTest {
+    private static RemoteIndex index(final Map<String, List<MantaObject>> tree) throws InterruptedException {
+        return RemoteIndex.build(ROOT, lister(tree), 4);
+    }
+
+    private static Map<String, List<MantaObject>> tree() {
+        final Map<String, List<MantaObject>> tree = new HashMap<>();
+        tree.put(ROOT, Arrays.asList(
+                object(ROOT + "b.xz", false, 20L),
+                object(ROOT + "a.xz", false, 10L),
+                object(ROOT + "dir", true, 0L),
+                object(ROOT + "empty", true, 0L)));
+        tree.put(ROOT + "dir/", Arrays.asList(
+                object(ROOT + "dir/nested.xz", false, 30L)));
+        tree.put(ROOT + "empty/", Arrays.asList());
+        return tree;
+    }
+
+    public void listsEveryDirectoryOfTheTree() throws InterruptedException {
+        final RemoteIndex index = index(tree());
+
+        assertEquals(index.getDirectories(), 3);
+        assertEquals(index.getEntries(), 5L);
+
+        final RemoteIndex.Entry nested = index.lookup(ROOT + "dir/nested.xz");
+        assertNotNull(nested);
+        assertTrue(nested.exists());
+        assertFalse(nested.isDirectory());
+        assertEquals(nested.getSize(), 30L);
+        assertEquals(nested.getEtag(), "etag-30");
+        assertEquals(nested.getLastModified(), 1_500_000_000_000L);
+
+        assertEquals(index.lookup(ROOT + "a.xz").getSize(), 10L);
+        assertTrue(index.isDirectory(ROOT));
+        assertTrue(index.isDirectory(ROOT + "dir/"));
+        assertEquals(index.lookup(ROOT + "empty").getChildren(), 0);
+        assertEquals(index.lookup(ROOT + "dir").getChildren(), 1);
+    }
+
+    public void missingObjectsAreKnownToBeAbsent() throws InterruptedException {
+        final RemoteIndex index = index(tree());
+
+        assertSame(index.lookup(ROOT + "missing.xz"), RemoteIndex.Entry.ABSENT);
+        assertSame(index.lookup(ROOT + "dir/missing.xz"), RemoteIndex.Entry.ABSENT);
+        assertFalse(index.isDirectory(ROOT + "missing/"));
+
+        // Nothing is known about directories that weren't listed
+        assertNull(index.lookup(ROOT + "missing/file.xz"));
+        assertNull(index.lookup("/user/stor/elsewhere.xz"));
+    }
+
+    public void unlistableDirectoriesAreUnknown() throws InterruptedException {
+        final Map<String, List<MantaObject>> tree = tree();
+        tree.remove(ROOT + "dir/");
+
+        final RemoteIndex index = index(tree);
+
+        assertEquals(index.getFailures(), 1L);
+        assertTrue(index.isDirectory(ROOT + "dir"));
+        assertNull(index.lookup(ROOT + "dir/nested.xz"));
+    }
+
+    public void changedPathsAreNoLongerAnswered() throws InterruptedException {
+        final RemoteIndex index = index(tree());
+
+        index.invalidate(ROOT + "a.xz");
+        index.invalidate(ROOT + "dir/");
+
+        assertNull(index.lookup(ROOT + "a.xz"));
+        assertNull(index.lookup(ROOT + "dir"));
+        assertNull(index.lookup(ROOT + "dir/nested.xz"));
+        assertEquals(index.lookup(ROOT + "b.xz").getSize(), 20L);
+    }
+
+    public void newPathsOnlyMakeAbsentNamesOfTheirDirectoryUnknown() throws InterruptedException {
+        final RemoteIndex index = index(tree());
+
+        assertFalse(index.lookup(ROOT + "other.xz").exists());
+
+        index.invalidate(ROOT + "new.xz");
+
+        assertNull(index.lookup(ROOT + "new.xz"));
+        assertNull(index.lookup(ROOT + "other.xz"));
+        assertEquals(index.lookup(ROOT + "b.xz").getSize(), 20L);
+        assertFalse(index.lookup(ROOT + "dir/other.xz").exists());
+    }
+
+    public void emptyIndexKnowsNothing() {
+        final RemoteIndex index = RemoteIndex.empty();
+
+        assertFalse(index.isEnabled());
+        assertNull(index.lookup(ROOT + "a.xz"));
+        assertFalse(index.isDirectory(ROOT));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaObject;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.joyent.manta.archiver.RemoteTrees.ROOT;
+import static com.joyent.manta.archiver.RemoteTrees.lister;
+import static com.joyent.manta.archiver.RemoteTrees.object;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class RemoteTreeListerTest {
+    private static Map<String, List<MantaObject>> tree() {
+        final Map<String, List<MantaObject>> tree = new HashMap<>();
+        tree.put(ROOT, Arrays.asList(
+                object(ROOT + "a.xz", false),
+                object(ROOT + "dir", true),
+                object(ROOT + "empty", true)));
+        tree.put(ROOT + "dir/", Arrays.asList(
+                object(ROOT + "dir/nested.xz", false),
+                object(ROOT + "dir/deeper", true)));
+        tree.put(ROOT + "dir/deeper/", Arrays.asList(
+                object(ROOT + "dir/deeper/deepest.xz", false)));
+        tree.put(ROOT + "empty/", Collections.emptyList());
+        return tree;
+    }
+
+    public void streamsEveryObjectWithDirectoriesBeforeTheirContents() {
+        final List<String> paths;
+
+        try (Stream<MantaObject> objects = RemoteTreeLister.find(ROOT, lister(tree()), 4)) {
+            paths = objects.map(MantaObject::getPath).collect(Collectors.toList());
+        }
+
+        assertEquals(paths.size(), 6);
+        assertTrue(paths.containsAll(Arrays.asList(ROOT + "a.xz", ROOT + "dir", ROOT + "empty",
+                ROOT + "dir/nested.xz", ROOT + "dir/deeper", ROOT + "dir/deeper/deepest.xz")));
+        assertTrue(paths.indexOf(ROOT + "dir") < paths.indexOf(ROOT + "dir/nested.xz"));
+        assertTrue(paths.indexOf(ROOT + "dir/deeper") < paths.indexOf(ROOT + "dir/deeper/deepest.xz"));
+    }
+
+    public void directoryThatCantBeListedFailsTheStream() {
+        final Map<String, List<MantaObject>> tree = tree();
+        tree.remove(ROOT + "dir/deeper/");
+
+        try (Stream<MantaObject> objects = RemoteTreeLister.find(ROOT, lister(tree), 4)) {
+            objects.forEach(o -> { });
+            fail("Listing should have failed");
+        } catch (TransferClientException e) {
+            assertEquals(e.getFirstContextValue("directory"), ROOT + "dir/deeper/");
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    public void listingIsClosedBeforeWaitingForTheReader() {
+        final AtomicInteger opened = new AtomicInteger(0);
+        final AtomicInteger closed = new AtomicInteger(0);
+        final RemoteTreeLister.DirectoryLister tracking = d -> {
+            opened.incrementAndGet();
+            return lister(tree()).list(d).onClose(closed::incrementAndGet);
+        };
+
+        try (Stream<MantaObject> objects = RemoteTreeLister.find(ROOT, tracking, 1, 1)) {
+            objects.iterator().next();
+
+            // The lister now waits for room for the rest of the root's objects
+            assertEquals(opened.get(), 1);
+            assertEquals(closed.get(), 1);
+        }
+    }
+
+    public void closingTheStreamStopsTheListing() throws InterruptedException {
+        final int depth = 1000;
+        final Map<String, List<MantaObject>> tree = new HashMap<>();
+        String dir = ROOT;
+
+        for (int i = 0; i < depth; i++) {
+            final String child = dir + "d" + i;
+            tree.put(dir, Collections.singletonList(object(child, true)));
+            dir = child + "/";
+        }
+
+        tree.put(dir, Collections.emptyList());
+
+        final AtomicInteger listed = new AtomicInteger(0);
+        final RemoteTreeLister.DirectoryLister counting = d -> {
+            listed.incrementAndGet();
+            return lister(tree).list(d);
+        };
+
+        try (Stream<MantaObject> objects = RemoteTreeLister.find(ROOT, counting, 2, 1)) {
+            final Iterator<MantaObject> iterator = objects.iterator();
+            iterator.next();
+            iterator.next();
+        }
+
+        final int listedWhenClosed = listed.get();
+        Thread.sleep(200L);
+
+        assertEquals(listed.get(), listedWhenClosed);
+        assertTrue(listedWhenClosed < depth);
+    }
+}
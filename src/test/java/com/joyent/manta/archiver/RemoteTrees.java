@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaObject;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Remote directory trees held in memory for tests of remote listings.
+ */
+final class RemoteTrees {
+    static final String ROOT = "/user/stor/backup/";
+
+    private RemoteTrees() {
+    }
+
+    static MantaObject object(final String path, final boolean directory) {
+        return object(path, directory, 0L);
+    }
+
+    static MantaObject object(final String path, final boolean directory, final long size) {
+        final MantaObject object = mock(MantaObject.class);
+        when(object.getPath()).thenReturn(path);
+        when(object.isDirectory()).thenReturn(directory);
+        when(object.getContentLength()).thenReturn(size);
+        when(object.getLastModifiedTime()).thenReturn(new Date(1_500_000_000_000L));
+        when(object.getEtag()).thenReturn("etag-" + size);
+        return object;
+    }
+
+    /**
+     * Lists the directories of a tree, failing for directories that aren't
+     * in the tree.
+     */
+    static RemoteTreeLister.DirectoryLister lister(final Map<String, List<MantaObject>> tree) {
+        return dir -> {
+            final List<MantaObject> objects = tree.get(dir);
+
+            if (objects == null) {
+                throw new IOException("Can't list " + dir);
+            }
+
+            return objects.stream();
+        };
+    }
+}
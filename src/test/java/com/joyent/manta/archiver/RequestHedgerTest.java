@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.client.MantaObjectInputStream;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class RequestHedgerTest {
+    private static void warmUp(final RequestHedger hedger, final String operation) throws IOException {
+        for (int i = 0; i < 64; i++) {
+            hedger.execute(operation, () -> "fast");
+        }
+    }
+
+    private static void sleep(final long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    public void disabledHedgerCallsDirectly() throws IOException {
+        try (RequestHedger hedger = RequestHedger.disabled()) {
+            assertEquals(hedger.execute("HEAD", () -> "value"), "value");
+            assertEquals(hedger.getRequests(), 0L);
+        }
+    }
+
+    public void slowRequestIsHedged() throws IOException {
+        try (RequestHedger hedger = new RequestHedger(true, 0.5)) {
+            warmUp(hedger, "HEAD");
+
+            final AtomicInteger calls = new AtomicInteger();
+            final long start = System.nanoTime();
+
+            final String result = hedger.execute("HEAD", () -> {
+                if (calls.incrementAndGet() == 1) {
+                    sleep(TimeUnit.SECONDS.toMillis(10));
+                    return "slow";
+                }
+
+                return "hedged";
+            });
+
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertEquals(result, "hedged");
+            assertEquals(hedger.getHedges(), 1L);
+            assertEquals(hedger.getHedgeWins(), 1L);
+            assertTrue(elapsed < TimeUnit.SECONDS.toMillis(5),
+                    "Hedged request took too long: " + elapsed + "ms");
+        }
+    }
+
+    public void losingObjectStreamIsAbortedInsteadOfRead() throws Exception {
+        try (RequestHedger hedger = new RequestHedger(true, 0.5)) {
+            warmUp(hedger, "GET");
+
+            final MantaObjectInputStream slow = mock(MantaObjectInputStream.class);
+            final MantaObjectInputStream hedged = mock(MantaObjectInputStream.class);
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch discarded = new CountDownLatch(1);
+            final AtomicInteger calls = new AtomicInteger();
+
+            doAnswer(invocation -> {
+                discarded.countDown();
+                return null;
+            }).when(slow).close();
+
+            final MantaObjectInputStream result = hedger.execute("GET", () -> {
+                if (calls.incrementAndGet() > 1) {
+                    return hedged;
+                }
+
+                // The losing request completes even though it is cancelled
+                while (true) {
+                    try {
+                        release.await();
+                        return slow;
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                }
+            });
+
+            release.countDown();
+
+            assertSame(result, hedged);
+            assertTrue(discarded.await(5, TimeUnit.SECONDS));
+            verify(slow).abortConnection();
+            verify(hedged, never()).abortConnection();
+        }
+    }
+
+    public void hedgesAreLimitedByBudget() throws IOException {
+        try (RequestHedger hedger = new RequestHedger(true, 0.0)) {
+            warmUp(hedger, "PUT");
+
+            for (int i = 0; i < 12; i++) {
+                hedger.execute("PUT", () -> {
+                    sleep(100L);
+                    return "slow";
+                });
+            }
+
+            // The budget starts with 10 hedges and none are earned back
+            assertEquals(hedger.getHedges(), 10L);
+            assertEquals(hedger.getHedgesDenied(), 2L);
+        }
+    }
+
+    public void failureIsReportedWhenAllAttemptsFail() throws IOException {
+        try (RequestHedger hedger = new RequestHedger(true, 0.5)) {
+            warmUp(hedger, "GET");
+
+            try {
+                hedger.execute("GET", () -> {
+                    sleep(200L);
+                    throw new IOException("unavailable");
+                });
+                fail("Expected exception was not thrown");
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "unavailable");
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import com.joyent.manta.exception.MantaClientHttpResponseException;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class RetryingTransferClientTest {
+    private static RetryPolicy noDelayPolicy(final int maxAttempts, final RetryBudget budget) {
+        return new RetryPolicy(maxAttempts, 0L, 0L, budget);
+    }
+
+    private static MantaClientHttpResponseException httpError(final int status) {
+        MantaClientHttpResponseException e = mock(MantaClientHttpResponseException.class);
+        when(e.getStatusCode()).thenReturn(status);
+        return e;
+    }
+
+    public void classifiesErrors() {
+        assertTrue(RetryPolicy.isRetryable(new TransferClientException(httpError(503))));
+        assertTrue(RetryPolicy.isRetryable(new TransferClientException(httpError(429))));
+        assertTrue(RetryPolicy.isRetryable(new UncheckedIOException(new IOException("reset"))));
+        assertFalse(RetryPolicy.isRetryable(new TransferClientException(httpError(404))));
+        assertFalse(RetryPolicy.isRetryable(new FileProcessingException("bad file")));
+        assertFalse(RetryPolicy.isRetryable(new IllegalStateException("bug")));
+    }
+
+    public void retriesTransientErrorsUntilSuccess() {
+        final AtomicInteger calls = new AtomicInteger();
+        final TransferClient failing = new EchoTransferClient() {
+            @Override
+            public void delete(final String path, final boolean recursive) {
+                if (calls.incrementAndGet() < 3) {
+                    throw new TransferClientException(new IOException("timeout"));
+                }
+            }
+        };
+
+        new RetryingTransferClient(failing, noDelayPolicy(5, new RetryBudget()))
+                .delete("/user/stor/dir", true);
+
+        assertEquals(calls.get(), 3);
+    }
+
+    public void doesNotRetryPermanentErrors() {
+        final AtomicInteger calls = new AtomicInteger();
+        final TransferClient failing = new EchoTransferClient() {
+            @Override
+            public void delete(final String path, final boolean recursive) {
+                calls.incrementAndGet();
+                throw new TransferClientException(httpError(403));
+            }
+        };
+
+        try {
+            new RetryingTransferClient(failing, noDelayPolicy(5, new RetryBudget()))
+                    .delete("/user/stor/dir", true);
+            fail("Expected exception was not thrown");
+        } catch (TransferClientException e) {
+            assertEquals(e.getFirstContextValue("retryAttempts"), 1);
+        }
+
+        assertEquals(calls.get(), 1);
+    }
+
+    public void uploadAttemptsAreLimitedPerObject() {
+        final TransferClient failing = new EchoTransferClient() {
+            @Override
+            public void put(final String path, final FileUpload upload) {
+                throw new TransferClientException(httpError(500));
+            }
+        };
+
+        final FileUpload upload = new FileUpload(Paths.get("/tmp/nowhere.xz"),
+                Paths.get("/tmp/nowhere"), new byte[16], Instant.now(), 1L, 1L);
+        final RetryingTransferClient client = new RetryingTransferClient(
+                failing, noDelayPolicy(3, new RetryBudget()));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.put("/user/stor/nowhere", upload);
+                fail("Expected exception was not thrown");
+            } catch (TransferClientException e) {
+                // expected
+            }
+        }
+
+        // The second call only gets a single attempt because the limit
+        // is tracked on the object itself
+        assertEquals(upload.getUploadAttempts(), 4);
+    }
+
+    public void exhaustedBudgetStopsRetries() {
+        final AtomicInteger calls = new AtomicInteger();
+        final TransferClient failing = new EchoTransferClient() {
+            @Override
+            public String get(final String remotePath) {
+                calls.incrementAndGet();
+                throw new TransferClientException(new IOException("connection refused"));
+            }
+        };
+
+        final RetryBudget budget = new RetryBudget(1L, 1L, 0.0);
+
+        try {
+            new RetryingTransferClient(failing, noDelayPolicy(10, budget))
+                    .get("/user/stor/file");
+            fail("Expected exception was not thrown");
+        } catch (TransferClientException e) {
+            // expected
+        }
+
+        assertEquals(calls.get(), 2);
+        assertEquals(budget.getRetriesDenied(), 1L);
+    }
+
+    public void defaultPoliciesShareTheProcessBudget() {
+        assertSame(new RetryPolicy().getBudget(), RetryBudget.shared());
+        assertSame(new RetryPolicy().getBudget(), new RetryPolicy().getBudget());
+    }
+
+    public void backoffIsBoundedByMaximumDelay() {
+        final RetryPolicy policy = new RetryPolicy(10, 100L, 1_000L, new RetryBudget());
+
+        for (int attempt = 1; attempt < 40; attempt++) {
+            final long delay = policy.backoffMillis(attempt);
+            assertTrue(delay >= 0L && delay <= 1_000L, "Delay out of bounds: " + delay);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class StageBalancerTest {
+    public void concurrencyLimitCanBeLoweredAndRaised() throws InterruptedException {
+        final ConcurrencyLimit limit = new ConcurrencyLimit(2);
+        limit.acquire();
+        limit.acquire();
+
+        limit.setLimit(1);
+        assertEquals(limit.getLimit(), 1);
+
+        // Both running operations must finish before a new one can start
+        limit.release();
+        assertEquals(limit.getAvailable(), 0);
+        limit.release();
+        assertEquals(limit.getAvailable(), 1);
+
+        limit.setLimit(3);
+        assertEquals(limit.getAvailable(), 3);
+    }
+
+    public void raisesCompressorsWhenUploadersAreStarved() {
+        final FixedStage uploadStage = new FixedStage(1, 1, 0);
+        final ConcurrencyLimit limit = new ConcurrencyLimit(1);
+        final AtomicLong busyNanos = new AtomicLong();
+
+        try (StageBalancer balancer = new StageBalancer(uploadStage, limit, busyNanos::get,
+                4, 4)) {
+            // Compressors were busy for the whole period
+            busyNanos.set(TimeUnit.HOURS.toNanos(1L));
+
+            for (int i = 0; i < StageBalancer.SAMPLES_PER_DECISION; i++) {
+                balancer.sample();
+            }
+
+            assertEquals(limit.getLimit(), 2);
+            assertEquals(balancer.getIncreases(), 1);
+            assertTrue(balancer.getLastDecision().startsWith("raised"),
+                    balancer.getLastDecision());
+        }
+    }
+
+    public void lowersCompressorsWhenQueueIsFull() {
+        final FixedStage uploadStage = new FixedStage(1, 0, 4);
+        final ConcurrencyLimit limit = new ConcurrencyLimit(3);
+
+        try (StageBalancer balancer = new StageBalancer(uploadStage, limit, () -> 0L,
+                4, 4)) {
+            for (int i = 0; i < StageBalancer.SAMPLES_PER_DECISION; i++) {
+                balancer.sample();
+            }
+
+            assertEquals(limit.getLimit(), 2);
+            assertEquals(balancer.getDecreases(), 1);
+        }
+    }
+
+    public void keepsCompressorsWhenStagesAreBalanced() {
+        final FixedStage uploadStage = new FixedStage(1, 0, 1);
+        final ConcurrencyLimit limit = new ConcurrencyLimit(2);
+
+        try (StageBalancer balancer = new StageBalancer(uploadStage, limit, () -> 0L,
+                4, 4)) {
+            balancer.balance();
+
+            for (int i = 0; i < StageBalancer.SAMPLES_PER_DECISION; i++) {
+                balancer.sample();
+            }
+
+            assertEquals(limit.getLimit(), 2);
+            assertTrue(balancer.getLastDecision().startsWith("kept"),
+                    balancer.getLastDecision());
+        }
+    }
+
+    private static class FixedStage implements Pipeline.StageStats {
+        private final int parallelism;
+        private final int idleWorkers;
+        private final int queueSize;
+
+        FixedStage(final int parallelism, final int idleWorkers, final int queueSize) {
+            this.parallelism = parallelism;
+            this.idleWorkers = idleWorkers;
+            this.queueSize = queueSize;
+        }
+
+        @Override
+        public String getName() {
+            return "upload";
+        }
+
+        @Override
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        @Override
+        public int getIdleWorkers() {
+            return idleWorkers;
+        }
+
+        @Override
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        @Override
+        public long getProcessed() {
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class TempStorageTest {
+    private static final Path SOURCE = Paths.get("/home/user/file.txt");
+
+    private Path base;
+    private TempStorage.Root disk1;
+    private TempStorage.Root disk2;
+    private TempStorage.Root tmpfs;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        base = Files.createTempDirectory("temp-storage");
+        disk1 = new TempStorage.Root(base.resolve("disk1"), 10_000L, false);
+        disk2 = new TempStorage.Root(base.resolve("disk2"), 10_000L, false);
+        tmpfs = new TempStorage.Root(base.resolve("tmpfs"), 10_000L, true);
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(base.toFile());
+    }
+
+    public void largeFilesAreStripedAcrossDisks() throws InterruptedException {
+        final TempStorage storage = new TempStorage(Arrays.asList(disk1, tmpfs, disk2), 100L);
+
+        final Path first = storage.allocate(SOURCE, 1_000L);
+        final Path second = storage.allocate(SOURCE, 1_000L);
+        final Path third = storage.allocate(SOURCE, 1_000L);
+
+        assertTrue(first.startsWith(disk1.getDirectory()), first.toString());
+        assertTrue(second.startsWith(disk2.getDirectory()), second.toString());
+        assertTrue(third.startsWith(disk1.getDirectory()), third.toString());
+        assertNotEquals(first, third);
+        assertEquals(tmpfs.getReserved(), 0L);
+    }
+
+    public void smallFilesPreferTmpfs() throws InterruptedException {
+        final TempStorage storage = new TempStorage(Arrays.asList(disk1, tmpfs, disk2), 100L);
+
+        final Path small = storage.allocate(SOURCE, 50L);
+
+        assertTrue(small.startsWith(tmpfs.getDirectory()), small.toString());
+        assertTrue(small.toString().endsWith("file.txt." + ObjectCompressor.COMPRESSION_TYPE));
+    }
+
+    public void fullDirectoriesAreSkipped() throws InterruptedException {
+        final TempStorage storage = new TempStorage(Arrays.asList(disk1, disk2), 100L);
+
+        storage.allocate(SOURCE, 9_000L);
+
+        final Path next = storage.allocate(SOURCE, 5_000L);
+        final Path last = storage.allocate(SOURCE, 5_000L);
+
+        assertTrue(next.startsWith(disk2.getDirectory()), next.toString());
+        assertTrue(last.startsWith(disk2.getDirectory()), last.toString());
+        assertEquals(disk2.getReserved(), 10_000L);
+    }
+
+    public void allocationWaitsForRelease() throws Exception {
+        final TempStorage storage = new TempStorage(Arrays.asList(disk1), 100L);
+        final Path held = storage.allocate(SOURCE, 8_000L);
+
+        final CompletableFuture<Path> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return storage.allocate(SOURCE, 8_000L);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        try {
+            waiting.get(200L, TimeUnit.MILLISECONDS);
+            fail("Allocation should wait while the directory is full");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        storage.release(held);
+
+        assertTrue(waiting.get(5L, TimeUnit.SECONDS).startsWith(disk1.getDirectory()));
+    }
+
+    public void concurrentAllocationsAreAllReserved() throws Exception {
+        final TempStorage storage = new TempStorage(Arrays.asList(disk1, disk2), 100L);
+        final List<CompletableFuture<Path>> allocations = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            allocations.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return storage.allocate(SOURCE, 1_000L);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+
+        final Set<Path> paths = new HashSet<>();
+
+        for (CompletableFuture<Path> allocation : allocations) {
+            paths.add(allocation.get(5L, TimeUnit.SECONDS));
+        }
+
+        assertEquals(paths.size(), 20);
+        assertEquals(disk1.getReserved() + disk2.getReserved(), 20_000L);
+    }
+
+    public void resizeFreesSpaceAfterCompression() throws InterruptedException {
+        final TempStorage storage = new TempStorage(Arrays.asList(disk1), 100L);
+        final Path path = storage.allocate(SOURCE, 8_000L);
+
+        storage.resize(path, 2_000L);
+        assertEquals(disk1.getReserved(), 2_000L);
+
+        storage.release(path);
+        storage.release(path);
+        assertEquals(disk1.getReserved(), 0L);
+    }
+
+    @Test(expectedExceptions = FileProcessingException.class)
+    public void fileLargerThanEveryDirectoryIsRejected() throws InterruptedException {
+        new TempStorage(Arrays.asList(disk1, disk2), 100L).allocate(SOURCE, 20_000L);
+    }
+
+    public void specificationIsParsed() throws IOException {
+        final Path other = Files.createDirectory(base.resolve("other"));
+        final TempStorage storage = TempStorage.parse(base + "=2GB, " + other + "=512k");
+
+        assertEquals(storage.getRoots().size(), 2);
+
+        final TempStorage.Root first = storage.getRoots().get(0);
+        assertEquals(first.getDirectory(), base.resolve(TempStorage.DIRECTORY_NAME));
+        assertEquals(first.getCapacity(), 2L * 1024L * 1024L * 1024L);
+        assertEquals(storage.getRoots().get(1).getCapacity(), 512L * 1024L);
+        assertEquals(TempStorage.parse(base.toString()).getRoots().get(0).getCapacity(),
+                TempStorage.UNLIMITED);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void missingDirectoryIsRejected() {
+        TempStorage.parse(base.resolve("missing") + "=1GB");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidCapacityIsRejected() {
+        TempStorage.parse(base + "=lots");
+    }
+
+    public void deleteAllRemovesEveryDirectory() throws Exception {
+        final TempStorage storage = new TempStorage(Arrays.asList(disk1, disk2), 100L);
+
+        for (int i = 0; i < 2; i++) {
+            Path path = storage.allocate(SOURCE, 10L);
+            Files.createDirectories(path.getParent());
+            Files.write(path, new byte[10]);
+        }
+
+        storage.deleteAll();
+
+        assertFalse(Files.exists(disk1.getDirectory()));
+        assertFalse(Files.exists(disk2.getDirectory()));
+    }
+}
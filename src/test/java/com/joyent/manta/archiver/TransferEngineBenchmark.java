@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+/**
+ * Benchmark comparing the transfer pipeline running blocking stages on a
+ * fixed set of platform threads against running them with a virtual thread
+ * per object. Each object simulates a tiny transfer that blocks for a fixed
+ * time, which is where thread per object concurrency matters most.
+ *
+ * <p>Virtual threads are only used when running on Java 21+ against the
+ * packaged multi-release JAR, for example:</p>
+ *
+ * <pre>
+ * java -cp target/manta-archiver-*.jar:target/test-classes:$(cat cp.txt) \
+ *     com.joyent.manta.archiver.TransferEngineBenchmark 1000000 256 1000
+ * </pre>
+ *
+ * <p>Arguments are the number of objects (default 1,000,000), the number of
+ * objects in flight (default 256) and the simulated latency of each
+ * transfer in microseconds (default 1000). Each mode is warmed up with a
+ * tenth of the objects before it is measured. Measured results are kept in
+ * the virtual threads section of the README.</p>
+ */
+public final class TransferEngineBenchmark {
+    private TransferEngineBenchmark() {
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        final int objects = intArg(args, 0, 1_000_000);
+        final int concurrency = intArg(args, 1, 256);
+        final long latencyNanos = TimeUnit.MICROSECONDS.toNanos(intArg(args, 2, 1_000));
+
+        // Warm up both modes before measuring
+        run(false, objects / 10, concurrency, latencyNanos, false);
+        run(true, objects / 10, concurrency, latencyNanos, false);
+
+        run(false, objects, concurrency, latencyNanos, true);
+        run(true, objects, concurrency, latencyNanos, true);
+    }
+
+    private static void run(final boolean virtual, final int objects, final int concurrency,
+                            final long latencyNanos, final boolean report) throws InterruptedException {
+        System.setProperty(TransferExecutors.VIRTUAL_THREADS_PROPERTY, Boolean.toString(virtual));
+
+        if (virtual && !TransferExecutors.isVirtualThreadPerObject()) {
+            if (report) {
+                System.err.println("Virtual threads aren't available on this JVM");
+            }
+            return;
+        }
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        final AtomicLong completed = new AtomicLong();
+        final long start = System.nanoTime();
+
+        Pipeline.from("benchmark", () -> IntStream.range(0, objects).boxed())
+                .<Integer>thenBlocking("transfer", concurrency, concurrency * 4, (i, downstream) -> {
+                    LockSupport.parkNanos(latencyNanos);
+                    downstream.emit(i);
+                })
+                .then("complete", 1, concurrency * 4, (i, downstream) -> completed.incrementAndGet())
+                .run();
+
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        if (report) {
+            System.err.printf("%-16s %,d objects in %,d ms (%,.0f objects/s), peak platform threads: %d%n",
+                    TransferExecutors.describe(), completed.get(), elapsedMillis,
+                    completed.get() * 1000.0 / Math.max(elapsedMillis, 1L),
+                    threads.getPeakThreadCount());
+        }
+    }
+
+    private static int intArg(final String[] args, final int index, final int defaultValue) {
+        if (args.length > index) {
+            return Integer.parseInt(args[index]);
+        }
+
+        return defaultValue;
+    }
+}
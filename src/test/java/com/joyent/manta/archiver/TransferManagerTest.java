@@ -12,8 +12,13 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.testng.Assert.assertEquals;
 
 @Test
 public class TransferManagerTest {
@@ -33,4 +38,46 @@ public class TransferManagerTest {
             Thread.currentThread().interrupt();
         }
     }
+
+    public void unchangedFilesAreNotCompressedWhenHashingFirst() throws Exception {
+        final Set<String> uploaded = ConcurrentHashMap.newKeySet();
+        final TransferClient client = new EchoTransferClient() {
+            @Override
+            public void put(final String path, final FileUpload upload) {
+                uploaded.add(path);
+                super.put(path, upload);
+            }
+
+            @Override
+            public String convertLocalPathToRemotePath(final Path sourcePath, final Path localRoot) {
+                return "/remote" + sourcePath;
+            }
+
+            @Override
+            public VerificationResult verifyFile(final String remotePath, final long size,
+                                                 final byte[] checksum) {
+                if (remotePath.endsWith("unchanged")) {
+                    return VerificationResult.OK;
+                }
+
+                return VerificationResult.NOT_FOUND;
+            }
+        };
+
+        final Path root = Files.createTempDirectory("archiver-");
+        Files.write(root.resolve("unchanged"),
+                "stored remotely".getBytes(StandardCharsets.UTF_8));
+        final Path changed = Files.write(root.resolve("changed"),
+                "not stored remotely".getBytes(StandardCharsets.UTF_8));
+
+        try (TransferManager manager = new TransferManager(client, root,
+                new TransferManager.Options().setHashFirst(true))) {
+            manager.uploadAll();
+        } finally {
+            FileUtils.deleteDirectory(root.toFile());
+        }
+
+        assertEquals(uploaded.size(), 1);
+        assertEquals(uploaded.iterator().next(), "/remote" + changed);
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class TransferThrottleTest {
+    private static Clock clockAt(final String time) {
+        final Instant instant = LocalDate.of(2018, 1, 1)
+                .atTime(LocalTime.parse(time)).toInstant(ZoneOffset.UTC);
+        return Clock.fixed(instant, ZoneOffset.UTC);
+    }
+
+    public void canParseSchedule() {
+        ThrottleSchedule schedule = ThrottleSchedule.parse(
+                "08:00-20:00=50MB,200rps; 20:00-08:00 = 1.5g ;*=unlimited");
+
+        assertEquals(schedule.getRules().size(), 3);
+
+        ThrottleSchedule.Rule day = schedule.ruleAt(LocalTime.parse("12:00"));
+        assertEquals(day.getBytesPerSecond(), 50L * 1024 * 1024);
+        assertEquals(day.getRequestsPerSecond(), 200L);
+
+        ThrottleSchedule.Rule night = schedule.ruleAt(LocalTime.parse("02:30"));
+        assertEquals(night.getBytesPerSecond(), 1536L * 1024 * 1024);
+        assertEquals(night.getRequestsPerSecond(), TokenBucket.UNLIMITED);
+
+        assertEquals(schedule.ruleAt(LocalTime.parse("20:00")), night);
+        assertEquals(schedule.ruleAt(LocalTime.parse("08:00")), day);
+    }
+
+    public void noMatchingRuleIsUnlimited() {
+        ThrottleSchedule schedule = ThrottleSchedule.parse("09:00-10:00=1KB");
+        ThrottleSchedule.Rule rule = schedule.ruleAt(LocalTime.parse("11:00"));
+
+        assertEquals(rule.getBytesPerSecond(), TokenBucket.UNLIMITED);
+        assertEquals(rule.getRequestsPerSecond(), TokenBucket.UNLIMITED);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidScheduleIsRejected() {
+        ThrottleSchedule.parse("08:00=50MB");
+    }
+
+    public void scheduleIsAppliedForTimeOfDay() {
+        ThrottleSchedule schedule = ThrottleSchedule.parse("08:00-20:00=1MB;*=unlimited");
+
+        assertTrue(new TransferThrottle(schedule, null, clockAt("09:15")).isBandwidthLimited());
+        assertFalse(new TransferThrottle(schedule, null, clockAt("21:15")).isBandwidthLimited());
+    }
+
+    public void throttledStreamIsLimitedToRate() throws Exception {
+        final int rate = 64 * 1024;
+        final TransferThrottle throttle = new TransferThrottle(
+                ThrottleSchedule.parse("*=64KB"), null, Clock.systemUTC());
+
+        // The first second worth of bytes is available as a burst, so
+        // reading three seconds worth takes at least two seconds
+        final byte[] data = new byte[rate * 3];
+        final long start = System.nanoTime();
+
+        try (InputStream in = throttle.throttle(new ByteArrayInputStream(data))) {
+            assertEquals(IOUtils.copyLarge(in, new NullOutputStream()), data.length);
+        }
+
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 1900L, "Read completed too quickly: " + elapsed + "ms");
+    }
+
+    public void controlFileReplacesSchedule() throws Exception {
+        final Path controlFile = Files.createTempFile("manta-archiver-limits-", ".conf");
+        FileUtils.forceDeleteOnExit(controlFile.toFile());
+        Files.write(controlFile, "*=10MB".getBytes(StandardCharsets.UTF_8));
+
+        final TransferThrottle throttle = new TransferThrottle(
+                ThrottleSchedule.UNLIMITED, controlFile, Clock.systemUTC());
+        assertTrue(throttle.isBandwidthLimited());
+
+        Files.write(controlFile, "# no limits\n*=unlimited\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(controlFile, FileTime.fromMillis(System.currentTimeMillis() + 5000L));
+        throttle.reload();
+
+        assertFalse(throttle.isBandwidthLimited());
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Test
+public class UploadJournalTest {
+    private static final long MODIFIED = 1_500_000_000_000L;
+    private static final byte[] CHECKSUM = new byte[16];
+    private static final String ROOT = "/user/stor/backup";
+
+    private Path base;
+    private Path journalFile;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        base = Files.createTempDirectory("upload-journal");
+        journalFile = base.resolve("upload.journal");
+    }
+
+    @AfterMethod
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(base.toFile());
+    }
+
+    private FileUpload compressedUpload(final String name, final int compressedSize)
+            throws IOException {
+        final Path temp = base.resolve(name + ".gz");
+        Files.write(temp, new byte[compressedSize]);
+        return new FileUpload(temp, base.resolve(name), CHECKSUM,
+                Instant.ofEpochMilli(MODIFIED), 100L, compressedSize);
+    }
+
+    public void uploadedFilesAreSkippedUntilTheyChange() throws IOException {
+        final Path source = base.resolve("file\twith\nodd name");
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            journal.uploaded(new FileUpload(base.resolve("unused"), source, CHECKSUM,
+                    Instant.ofEpochMilli(MODIFIED), 100L, 10L));
+            journal.verified(base.resolve("verified"), 5L, MODIFIED, CHECKSUM);
+        }
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            assertTrue(journal.isComplete(source, 100L, MODIFIED));
+            assertTrue(journal.isComplete(base.resolve("verified"), 5L, MODIFIED));
+            assertFalse(journal.isComplete(source, 100L, MODIFIED + 1));
+            assertFalse(journal.isComplete(source, 101L, MODIFIED));
+            assertFalse(journal.isComplete(base.resolve("other"), 100L, MODIFIED));
+            assertEquals(journal.getSkipped(), 2L);
+        }
+    }
+
+    public void intactTempFilesAreReused() throws IOException {
+        final FileUpload upload = compressedUpload("reused", 10);
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            journal.compressed(upload);
+        }
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            assertFalse(journal.isComplete(upload.getSourcePath(), 100L, MODIFIED));
+
+            final FileUpload reused = journal.reuse(upload.getSourcePath(), 100L, MODIFIED);
+
+            assertNotNull(reused);
+            assertEquals(reused.getTempPath(), upload.getTempPath());
+            assertEquals(reused.getCompressedSize(), 10L);
+            assertEquals(reused.getLastModified(), Instant.ofEpochMilli(MODIFIED));
+            assertEquals(journal.getReused(), 1L);
+        }
+    }
+
+    public void truncatedTempFilesAreDiscarded() throws IOException {
+        final FileUpload upload = compressedUpload("truncated", 10);
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            journal.compressed(upload);
+        }
+
+        Files.write(upload.getTempPath(), new byte[4]);
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            assertNull(journal.reuse(upload.getSourcePath(), 100L, MODIFIED));
+            assertFalse(Files.exists(upload.getTempPath()));
+        }
+    }
+
+    public void changedSourceFilesAreCompressedAgain() throws IOException {
+        final FileUpload upload = compressedUpload("changed", 10);
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            journal.compressed(upload);
+        }
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            assertNull(journal.reuse(upload.getSourcePath(), 100L, MODIFIED + 1));
+            assertFalse(Files.exists(upload.getTempPath()));
+        }
+    }
+
+    public void incompleteLastRecordIsIgnored() throws IOException {
+        final Path source = base.resolve("complete");
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            journal.uploaded(new FileUpload(base.resolve("unused"), source, CHECKSUM,
+                    Instant.ofEpochMilli(MODIFIED), 100L, 10L));
+        }
+
+        Files.write(journalFile, "UPLOADED\t15000".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            assertTrue(journal.isComplete(source, 100L, MODIFIED));
+        }
+
+        // The remote root and the last complete record
+        assertEquals(Files.readAllLines(journalFile).size(), 2);
+    }
+
+    public void journalOfAnotherRemoteDirectoryIsRejected() throws IOException {
+        final Path source = base.resolve("elsewhere");
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            journal.uploaded(new FileUpload(base.resolve("unused"), source, CHECKSUM,
+                    Instant.ofEpochMilli(MODIFIED), 100L, 10L));
+        }
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, "/user/stor/other")) {
+            fail("Journal of another remote directory was opened: " + journal);
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("/user/stor/other"));
+        }
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            assertTrue(journal.isComplete(source, 100L, MODIFIED));
+        }
+    }
+
+    public void recordsAreOnlyHeldUntilTheirFileIsChecked() throws IOException {
+        final FileUpload upload = compressedUpload("held", 10);
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            journal.compressed(upload);
+            journal.uploaded(upload);
+            journal.verified(base.resolve("verified"), 5L, MODIFIED, CHECKSUM);
+
+            // Files recorded by this run aren't looked up again
+            assertFalse(journal.isComplete(upload.getSourcePath(), 100L, MODIFIED));
+        }
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            assertTrue(journal.isComplete(upload.getSourcePath(), 100L, MODIFIED));
+            assertFalse(journal.isComplete(upload.getSourcePath(), 100L, MODIFIED));
+            assertTrue(journal.isComplete(base.resolve("verified"), 5L, MODIFIED));
+        }
+    }
+
+    public void finishDeletesTempFilesThatWereNotUploaded() throws IOException {
+        final FileUpload uploaded = compressedUpload("uploaded", 10);
+        final FileUpload orphaned = compressedUpload("orphaned", 10);
+
+        try (UploadJournal journal = UploadJournal.open(journalFile, ROOT)) {
+            journal.compressed(uploaded);
+            journal.compressed(orphaned);
+            journal.uploaded(uploaded);
+
+            journal.finish();
+        }
+
+        assertTrue(Files.exists(uploaded.getTempPath()));
+        assertFalse(Files.exists(orphaned.getTempPath()));
+    }
+
+    public void disabledJournalRecordsNothing() throws IOException {
+        final FileUpload upload = compressedUpload("disabled", 10);
+
+        try (UploadJournal journal = UploadJournal.disabled()) {
+            journal.compressed(upload);
+            journal.uploaded(upload);
+
+            assertFalse(journal.isEnabled());
+            assertFalse(journal.isComplete(upload.getSourcePath(), 100L, MODIFIED));
+            assertNull(journal.reuse(upload.getSourcePath(), 100L, MODIFIED));
+        }
+    }
+}
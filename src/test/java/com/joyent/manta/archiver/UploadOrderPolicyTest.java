@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2018, Joyent, Inc. All rights reserved.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+package com.joyent.manta.archiver;
+
+import org.testng.annotations.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class UploadOrderPolicyTest {
+    private static UploadOrderPolicy.Candidate file(final String path, final long size,
+                                                    final long lastModified) {
+        return new UploadOrderPolicy.Candidate(Paths.get(path), size, lastModified, false);
+    }
+
+    private static List<String> order(final UploadOrderPolicy policy, final int window,
+                                      final UploadOrderPolicy.Candidate... candidates) {
+        final Iterator<UploadOrderPolicy.Candidate> itr = policy.reorder(
+                Arrays.asList(candidates).iterator(), window);
+        final List<String> paths = new ArrayList<>();
+        itr.forEachRemaining(c -> paths.add(c.getPath().toString()));
+        return paths;
+    }
+
+    public void walkOrderIsUnchanged() {
+        assertEquals(order(UploadOrderPolicy.WALK, 2,
+                file("/a/1", 1, 1), file("/a/2", 3, 2), file("/a/3", 2, 3)),
+                Arrays.asList("/a/1", "/a/2", "/a/3"));
+    }
+
+    public void largestFirstWithinWindow() {
+        assertEquals(order(UploadOrderPolicy.LARGEST_FIRST, 10,
+                file("/a/1", 1, 1), file("/a/2", 3, 2), file("/a/3", 2, 3)),
+                Arrays.asList("/a/2", "/a/3", "/a/1"));
+
+        // With a window of two the largest file can only move ahead of
+        // the files that are buffered with it
+        assertEquals(order(UploadOrderPolicy.LARGEST_FIRST, 2,
+                file("/a/1", 1, 1), file("/a/2", 2, 2), file("/a/3", 3, 3)),
+                Arrays.asList("/a/2", "/a/3", "/a/1"));
+    }
+
+    public void newestFirstWithinWindow() {
+        assertEquals(order(UploadOrderPolicy.NEWEST_FIRST, 10,
+                file("/a/1", 1, 10), file("/a/2", 1, 30), file("/a/3", 1, 20)),
+                Arrays.asList("/a/2", "/a/3", "/a/1"));
+    }
+
+    public void directoryRoundRobin() {
+        assertEquals(order(UploadOrderPolicy.DIRECTORY_ROUND_ROBIN, 10,
+                file("/a/1", 1, 1), file("/a/2", 1, 1), file("/a/3", 1, 1),
+                file("/b/1", 1, 1), file("/b/2", 1, 1), file("/c/1", 1, 1)),
+                Arrays.asList("/a/1", "/b/1", "/c/1", "/a/2", "/b/2", "/a/3"));
+    }
+}